@@ -21,6 +21,7 @@
 
 package org.efaps.webdav4vfs;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
@@ -38,6 +39,7 @@ import org.apache.commons.vfs.FileSystemOptions;
 import org.apache.commons.vfs.auth.StaticUserAuthenticator;
 import org.apache.commons.vfs.impl.DefaultFileSystemConfigBuilder;
 import org.efaps.webdav4vfs.handler.AbstractWebdavHandler;
+import org.efaps.webdav4vfs.handler.Compression;
 import org.efaps.webdav4vfs.handler.CopyHandler;
 import org.efaps.webdav4vfs.handler.DeleteHandler;
 import org.efaps.webdav4vfs.handler.GetHandler;
@@ -51,6 +53,18 @@ import org.efaps.webdav4vfs.handler.PropFindHandler;
 import org.efaps.webdav4vfs.handler.PropPatchHandler;
 import org.efaps.webdav4vfs.handler.PutHandler;
 import org.efaps.webdav4vfs.handler.UnlockHandler;
+import org.efaps.webdav4vfs.lock.ClusterLockManager;
+import org.efaps.webdav4vfs.lock.JournalLockStore;
+import org.efaps.webdav4vfs.lock.LocalLockManager;
+import org.efaps.webdav4vfs.lock.LockManager;
+import org.efaps.webdav4vfs.lock.SharedLockRegistry;
+import org.efaps.webdav4vfs.metrics.Metrics;
+import org.efaps.webdav4vfs.vfs.BufferPool;
+import org.efaps.webdav4vfs.vfs.ContentCache;
+import org.efaps.webdav4vfs.vfs.ContentCoordinator;
+import org.efaps.webdav4vfs.vfs.ContentDigest;
+import org.efaps.webdav4vfs.vfs.ReadAhead;
+import org.efaps.webdav4vfs.vfs.Staging;
 import org.efaps.webdav4vfs.vfs.VFSBackend;
 
 
@@ -106,6 +120,140 @@ public class WebDAVServlet
         } catch (FileSystemException e) {
             LOG.error(String.format("can't create file system backend for '%s'", rootUri));
         }
+
+        String lockRegistry = servletConfig.getInitParameter("lock.registry");
+        if (lockRegistry != null) {
+            try {
+                final SharedLockRegistry registry = (SharedLockRegistry) Class.forName(lockRegistry).newInstance();
+                LockManager.setInstance(new ClusterLockManager(registry, VFSBackend.resolveFile("/")));
+            } catch (Exception e) {
+                LOG.error(String.format("can't create shared lock registry '%s'", lockRegistry), e);
+            }
+        }
+
+        String lockJournal = servletConfig.getInitParameter("lock.journal");
+        if (lockJournal != null) {
+            if (LockManager.getInstance() instanceof LocalLockManager) {
+                try {
+                    ((LocalLockManager) LockManager.getInstance()).setLockStore(
+                            new JournalLockStore(new File(lockJournal)), VFSBackend.resolveFile("/"));
+                } catch (IOException e) {
+                    LOG.error(String.format("can't open lock journal '%s'", lockJournal), e);
+                }
+            } else {
+                LOG.warn(String.format("lock journal '%s' is ignored for shared locks", lockJournal));
+            }
+        }
+
+        String contentLockTimeout = servletConfig.getInitParameter("content.lock.timeout");
+        if (contentLockTimeout != null) {
+            try {
+                ContentCoordinator.setInstance(new ContentCoordinator(Long.parseLong(contentLockTimeout)));
+            } catch (NumberFormatException e) {
+                LOG.error(String.format("invalid content lock timeout '%s'", contentLockTimeout), e);
+            }
+        }
+
+        String cacheSize = servletConfig.getInitParameter("cache.size");
+        if (cacheSize != null) {
+            String cacheMaxFileSize = servletConfig.getInitParameter("cache.maxFileSize");
+            try {
+                ContentCache.setInstance(new ContentCache(Long.parseLong(cacheSize),
+                                                          (cacheMaxFileSize == null)
+                                                              ? ContentCache.DEFAULT_MAX_FILE_SIZE
+                                                              : Integer.parseInt(cacheMaxFileSize)));
+            } catch (NumberFormatException e) {
+                LOG.error(String.format("invalid content cache size '%s' / '%s'", cacheSize, cacheMaxFileSize), e);
+            }
+        }
+
+        String digestCacheSize = servletConfig.getInitParameter("digest.cacheSize");
+        String digestSyncLimit = servletConfig.getInitParameter("digest.syncLimit");
+        String digestQueueSize = servletConfig.getInitParameter("digest.queueSize");
+        if ((digestCacheSize != null) || (digestSyncLimit != null) || (digestQueueSize != null)) {
+            try {
+                ContentDigest.setInstance(new ContentDigest(
+                        (digestCacheSize == null) ? ContentDigest.DEFAULT_CACHE_SIZE : Integer.parseInt(digestCacheSize),
+                        (digestSyncLimit == null) ? ContentDigest.DEFAULT_SYNC_LIMIT : Long.parseLong(digestSyncLimit),
+                        (digestQueueSize == null) ? ContentDigest.DEFAULT_QUEUE_SIZE : Integer.parseInt(digestQueueSize)));
+            } catch (NumberFormatException e) {
+                LOG.error(String.format("invalid digest cache size '%s' / synchronous limit '%s' / queue size '%s'",
+                                        digestCacheSize, digestSyncLimit, digestQueueSize), e);
+            }
+        }
+
+        String stagingMaxAge = servletConfig.getInitParameter("staging.maxAge");
+        String stagingSpoolDir = servletConfig.getInitParameter("staging.spoolDir");
+        String stagingMaxSize = servletConfig.getInitParameter("staging.maxSize");
+        if ((stagingMaxAge != null) || (stagingSpoolDir != null) || (stagingMaxSize != null)) {
+            try {
+                Staging.setInstance(new Staging(
+                        (stagingMaxAge == null) ? Staging.DEFAULT_MAX_AGE : Long.parseLong(stagingMaxAge) * 1000L,
+                        (stagingSpoolDir == null) ? Staging.DEFAULT_SPOOL_DIR : new File(stagingSpoolDir),
+                        (stagingMaxSize == null) ? Staging.DEFAULT_MAX_SIZE : Long.parseLong(stagingMaxSize)));
+            } catch (NumberFormatException e) {
+                LOG.error(String.format("invalid maximum age '%s' / size '%s' of staging files",
+                                        stagingMaxAge, stagingMaxSize), e);
+            }
+        }
+        String stagingSweepInterval = servletConfig.getInitParameter("staging.sweepInterval");
+        try {
+            long interval = (stagingSweepInterval == null) ? 3600L : Long.parseLong(stagingSweepInterval);
+            if (interval > 0) {
+                Staging.getInstance().start(interval * 1000L);
+            }
+        } catch (NumberFormatException e) {
+            LOG.error(String.format("invalid sweep interval '%s' of staging files", stagingSweepInterval), e);
+        }
+
+        String bufferPoolSize = servletConfig.getInitParameter("buffer.poolSize");
+        if (bufferPoolSize != null) {
+            try {
+                BufferPool.setInstance(new BufferPool(Long.parseLong(bufferPoolSize)));
+            } catch (NumberFormatException e) {
+                LOG.error(String.format("invalid buffer pool size '%s'", bufferPoolSize), e);
+            }
+        }
+
+        String readAheadDepth = servletConfig.getInitParameter("readahead.depth");
+        String readAheadBufferSize = servletConfig.getInitParameter("readahead.bufferSize");
+        if ((readAheadDepth != null) || (readAheadBufferSize != null)) {
+            try {
+                ReadAhead.setInstance(new ReadAhead(
+                        (readAheadDepth == null) ? ReadAhead.DEFAULT_DEPTH : Integer.parseInt(readAheadDepth),
+                        (readAheadBufferSize == null) ? ReadAhead.DEFAULT_BUFFER_SIZE
+                                                      : Integer.parseInt(readAheadBufferSize)));
+            } catch (NumberFormatException e) {
+                LOG.error(String.format("invalid read ahead depth '%s' / buffer size '%s'",
+                                        readAheadDepth, readAheadBufferSize), e);
+            }
+        }
+
+        String compressionLevel = servletConfig.getInitParameter("compression.level");
+        String compressionMinSize = servletConfig.getInitParameter("compression.minSize");
+        String compressionCacheSize = servletConfig.getInitParameter("compression.cacheSize");
+        if ((compressionLevel != null) || (compressionMinSize != null) || (compressionCacheSize != null)) {
+            try {
+                Compression.setInstance(new Compression(
+                        (compressionLevel == null) ? Compression.DEFAULT_LEVEL : Integer.parseInt(compressionLevel),
+                        (compressionMinSize == null) ? Compression.DEFAULT_MIN_SIZE : Long.parseLong(compressionMinSize),
+                        (compressionCacheSize == null) ? Compression.DEFAULT_CACHE_SIZE
+                                                       : Long.parseLong(compressionCacheSize)));
+            } catch (NumberFormatException e) {
+                LOG.error("invalid compression settings", e);
+            }
+        }
+
+        Metrics.getInstance().registerMBean();
+    }
+
+    @Override()
+    public void destroy()
+    {
+        Metrics.getInstance().unregisterMBean();
+        LockManager.getInstance().close();
+        Staging.getInstance().stop();
+        super.destroy();
     }
 
     @Override()
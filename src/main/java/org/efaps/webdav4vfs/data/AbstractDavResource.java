@@ -31,6 +31,7 @@ import org.apache.commons.vfs.FileObject;
 import org.apache.commons.vfs.FileSystemException;
 import org.dom4j.Element;
 import org.dom4j.Node;
+import org.efaps.webdav4vfs.vfs.ContentDigest;
 
 /**
  * This is a DAV resource. This class mainly handles the properties associated
@@ -181,7 +182,9 @@ public abstract class AbstractDavResource
             try {
                 final FileContent objectContent = object.getContent();
                 for (String attributeName : objectContent.getAttributeNames()) {
-                    if (!getPropertyValue(okPropEl, attributeName, ignoreValue)) {
+                    // the stored content digest is no property
+                    if (!ContentDigest.ATTR_DIGEST.equals(attributeName)
+                            && !getPropertyValue(okPropEl, attributeName, ignoreValue)) {
                         failPropEl.addElement(attributeName);
                     }
                 }
@@ -94,23 +94,26 @@ public abstract class AbstractCopyMoveBaseHandler
           return;
         }
 
+        final int status;
         if (targetObject.exists()) {
           if (!overwrite) {
             _response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
             return;
           }
-          _response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+          status = HttpServletResponse.SC_NO_CONTENT;
         } else {
           FileObject targetParent = targetObject.getParent();
           if (!targetParent.exists() ||
               !FileType.FOLDER.equals(targetParent.getType())) {
             _response.sendError(HttpServletResponse.SC_CONFLICT);
           }
-          _response.setStatus(HttpServletResponse.SC_CREATED);
+          status = HttpServletResponse.SC_CREATED;
         }
 
-        // delegate the actual execution to a sub class
+        // delegate the actual execution to a sub class; the status is set
+        // only if it succeeded, so that a sub class could answer a failure
         this.copyOrMove(object, targetObject, getDepth(_request));
+        _response.setStatus(status);
     }
 
     /**
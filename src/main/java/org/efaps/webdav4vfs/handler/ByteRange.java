@@ -0,0 +1,196 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.handler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Byte range of a HTTP <code>Range</code> header (see RFC 7233).
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+final class ByteRange
+{
+    /**
+     * Position of the first byte.
+     */
+    private final long first;
+
+    /**
+     * Position of the last byte (inclusive).
+     */
+    private final long last;
+
+    /**
+     * @param _first    position of the first byte
+     * @param _last     position of the last byte (inclusive)
+     */
+    ByteRange(final long _first,
+              final long _last)
+    {
+        this.first = _first;
+        this.last = _last;
+    }
+
+    /**
+     * Parses the value of a <code>Range</code> header for a content with
+     * given length. Ranges which start behind the end of the content are
+     * dropped, the others are limited to the end of the content.
+     *
+     * @param _header   value of the range header
+     * @param _length   length of the content
+     * @return satisfiable byte ranges in the order of the header (empty if
+     *         no range is satisfiable), or <code>null</code> if the header is
+     *         not a valid byte range header and must be ignored
+     */
+    static List<ByteRange> parse(final String _header,
+                                 final long _length)
+    {
+        List<ByteRange> ret = null;
+        final String header = _header.trim();
+        if (header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            ret = new ArrayList<ByteRange>();
+            int specs = 0;
+            for (final String spec : header.substring(6).split(",")) {
+                final String value = spec.trim();
+                if (value.length() == 0) {
+                    continue;
+                }
+                specs++;
+                final int dash = value.indexOf('-');
+                if (dash < 0) {
+                    ret = null;
+                    break;
+                }
+                try {
+                    if (dash == 0) {
+                        final long suffix = Long.parseLong(value.substring(1));
+                        if (suffix < 0) {
+                            ret = null;
+                            break;
+                        }
+                        if ((suffix > 0) && (_length > 0)) {
+                            ret.add(new ByteRange(Math.max(0, _length - suffix), _length - 1));
+                        }
+                    } else {
+                        final long first = Long.parseLong(value.substring(0, dash).trim());
+                        final String lastStr = value.substring(dash + 1).trim();
+                        final long last = (lastStr.length() == 0) ? Long.MAX_VALUE : Long.parseLong(lastStr);
+                        if ((first < 0) || (last < first)) {
+                            ret = null;
+                            break;
+                        }
+                        if (first < _length) {
+                            ret.add(new ByteRange(first, Math.min(last, _length - 1)));
+                        }
+                    }
+                } catch (final NumberFormatException e) {
+                    ret = null;
+                    break;
+                }
+            }
+            if (specs == 0) {
+                ret = null;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Sorts the byte ranges and merges overlapping and adjacent ranges.
+     *
+     * @param _ranges   byte ranges to coalesce
+     * @return sorted, non overlapping byte ranges
+     */
+    static List<ByteRange> coalesce(final List<ByteRange> _ranges)
+    {
+        final List<ByteRange> sorted = new ArrayList<ByteRange>(_ranges);
+        Collections.sort(sorted, new Comparator<ByteRange>() {
+            public int compare(final ByteRange _range1,
+                               final ByteRange _range2)
+            {
+                return (_range1.first < _range2.first) ? -1 : ((_range1.first == _range2.first) ? 0 : 1);
+            }
+        });
+        final List<ByteRange> ret = new ArrayList<ByteRange>();
+        ByteRange current = null;
+        for (final ByteRange range : sorted) {
+            if (current == null) {
+                current = range;
+            } else if (range.first <= current.last + 1) {
+                current = new ByteRange(current.first, Math.max(current.last, range.last));
+            } else {
+                ret.add(current);
+                current = range;
+            }
+        }
+        if (current != null) {
+            ret.add(current);
+        }
+        return ret;
+    }
+
+    /**
+     * @return position of the first byte
+     */
+    long getFirst()
+    {
+        return this.first;
+    }
+
+    /**
+     * @return position of the last byte (inclusive)
+     */
+    long getLast()
+    {
+        return this.last;
+    }
+
+    /**
+     * @return number of bytes of the range
+     */
+    long getLength()
+    {
+        return this.last - this.first + 1;
+    }
+
+    /**
+     * Returns the value of the <code>Content-Range</code> header for this
+     * range.
+     *
+     * @param _total    length of the complete content
+     * @return value of the content range header
+     */
+    String getContentRange(final long _total)
+    {
+        return "bytes " + this.first + "-" + this.last + "/" + _total;
+    }
+
+    @Override()
+    public String toString()
+    {
+        return this.first + "-" + this.last;
+    }
+}
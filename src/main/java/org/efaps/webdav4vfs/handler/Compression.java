@@ -0,0 +1,338 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ * Copyright 2007 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.handler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.vfs.FileContent;
+import org.apache.commons.vfs.FileSystemException;
+import org.efaps.webdav4vfs.metrics.Counter;
+import org.efaps.webdav4vfs.metrics.Metrics;
+import org.efaps.webdav4vfs.vfs.FileTransfer;
+
+/**
+ * Gzip compression of GET responses for compressible content types. Small
+ * enough compressed variants are held in a cache keyed by the entity tag of
+ * the file (which changes with each modification), so hot files are not
+ * compressed (and their content is not even opened, see
+ * {@link #getCachedVariant(String)}) for each request; larger contents are
+ * compressed while they are streamed. A compressed variant has its own entity tag (with suffix
+ * {@link #ETAG_SUFFIX}) and all responses of compressible contents have the
+ * header <code>Vary: Accept-Encoding</code>.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+public final class Compression
+{
+    /**
+     * Default compression level.
+     */
+    public static final int DEFAULT_LEVEL = 6;
+
+    /**
+     * Default minimum size of compressed contents.
+     */
+    public static final int DEFAULT_MIN_SIZE = 1024;
+
+    /**
+     * Default budget of the cache of compressed variants.
+     */
+    public static final long DEFAULT_CACHE_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Suffix of the entity tags of compressed variants.
+     */
+    static final String ETAG_SUFFIX = "-gzip";
+
+    /**
+     * Maximum size of contents whose compressed variant is cached.
+     */
+    private static final long MAX_CACHED_SIZE = 1024 * 1024;
+
+    /**
+     * Compressed responses.
+     */
+    private static final Counter COMPRESSED = Metrics.getInstance().counter(
+            "webdav4vfs_compression_responses_total", "Responses sent with gzip content encoding.");
+
+    /**
+     * Compressed responses sent from the cache of compressed variants.
+     */
+    private static final Counter CACHED = Metrics.getInstance().counter(
+            "webdav4vfs_compression_cache_hits_total", "Compressed responses sent from the cache of variants.");
+
+    /**
+     * Current instance.
+     */
+    private static volatile Compression instance = new Compression(Compression.DEFAULT_LEVEL,
+                                                                    Compression.DEFAULT_MIN_SIZE,
+                                                                    Compression.DEFAULT_CACHE_SIZE);
+
+    /**
+     * Compression level (<code>0</code> disables the compression).
+     */
+    private final int level;
+
+    /**
+     * Minimum size of compressed contents.
+     */
+    private final long minSize;
+
+    /**
+     * Budget of the cache of compressed variants.
+     */
+    private final long cacheSize;
+
+    /**
+     * Size of all cached variants.
+     */
+    private long cachedBytes;
+
+    /**
+     * Cached compressed variants by the entity tag of the file in access
+     * order.
+     */
+    private final LinkedHashMap<String, byte[]> variants = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+    /**
+     * @param _level        compression level between 1 and 9 (<code>0</code>
+     *                      disables the compression)
+     * @param _minSize      minimum size of compressed contents
+     * @param _cacheSize    budget of the cache of compressed variants
+     */
+    public Compression(final int _level,
+                       final long _minSize,
+                       final long _cacheSize)
+    {
+        this.level = _level;
+        this.minSize = _minSize;
+        this.cacheSize = _cacheSize;
+    }
+
+    /**
+     * @return current compression
+     */
+    public static Compression getInstance()
+    {
+        return Compression.instance;
+    }
+
+    /**
+     * Replaces the current compression settings.
+     *
+     * @param _instance new compression
+     */
+    public static void setInstance(final Compression _instance)
+    {
+        Compression.instance = _instance;
+    }
+
+    /**
+     * Checks if the content could be compressed: the compression must be
+     * enabled, the content must be large enough and the content type must be
+     * text like.
+     *
+     * @param _content  content of the file
+     * @param _size     size of the content
+     * @return <i>true</i> if the content is compressible
+     * @throws FileSystemException if the content type could not be read
+     */
+    boolean isCompressible(final FileContent _content,
+                           final long _size)
+        throws FileSystemException
+    {
+        boolean ret = false;
+        if ((this.level > 0) && (_size >= this.minSize)) {
+            final String type = _content.getContentInfo().getContentType();
+            if (type != null) {
+                final String mime = type.toLowerCase();
+                ret = mime.startsWith("text/")
+                    || mime.startsWith("application/xml") || mime.startsWith("application/json")
+                    || mime.startsWith("application/javascript") || mime.startsWith("application/x-javascript")
+                    || mime.contains("+xml") || mime.contains("+json");
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Checks if the client accepts the gzip content coding (RFC 7231,
+     * section 5.3.4).
+     *
+     * @param _request  HTTP request
+     * @return <i>true</i> if gzip is accepted
+     */
+    static boolean acceptsGzip(final HttpServletRequest _request)
+    {
+        final String header = _request.getHeader("Accept-Encoding");
+        double gzip = -1;
+        double any = -1;
+        if (header != null) {
+            for (final String value : header.split(",")) {
+                final String[] parts = value.split(";");
+                final String coding = parts[0].trim().toLowerCase();
+                double quality = 1;
+                for (int idx = 1; idx < parts.length; idx++) {
+                    final String param = parts[idx].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            quality = Double.parseDouble(param.substring(2));
+                        } catch (final NumberFormatException e) {
+                            quality = 0;
+                        }
+                    }
+                }
+                if ("gzip".equals(coding) || "x-gzip".equals(coding)) {
+                    gzip = quality;
+                } else if ("*".equals(coding)) {
+                    any = quality;
+                }
+            }
+        }
+        return (gzip > 0) || ((gzip < 0) && (any > 0));
+    }
+
+    /**
+     * Sends the content gzip compressed. The compressed variant is taken
+     * from the cache, or compressed and cached if the content is small
+     * enough; larger contents are compressed while sent (without content
+     * length).
+     *
+     * @param _in       opened content to send
+     * @param _etag     entity tag of the (uncompressed) file
+     * @param _size     size of the content
+     * @param _response HTTP response
+     * @throws IOException if the content could not be compressed or sent
+     */
+    void send(final InputStream _in,
+              final String _etag,
+              final long _size,
+              final HttpServletResponse _response)
+        throws IOException
+    {
+        byte[] variant = getCachedVariant(_etag);
+        if (variant != null) {
+            sendVariant(variant, _response);
+        } else if ((_size <= Compression.MAX_CACHED_SIZE) && (_size <= this.cacheSize)) {
+            Compression.COMPRESSED.inc();
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) (_size / 4) + 64);
+            compress(_in, bytes);
+            variant = bytes.toByteArray();
+            putVariant(_etag, variant);
+            _response.setHeader("Content-Length", String.valueOf(variant.length));
+            _response.getOutputStream().write(variant);
+        } else {
+            Compression.COMPRESSED.inc();
+            compress(_in, _response.getOutputStream());
+        }
+    }
+
+    /**
+     * Sends a cached compressed variant (see
+     * {@link #getCachedVariant(String)}).
+     *
+     * @param _variant  cached compressed variant
+     * @param _response HTTP response
+     * @throws IOException if the variant could not be sent
+     */
+    void sendVariant(final byte[] _variant,
+                     final HttpServletResponse _response)
+        throws IOException
+    {
+        Compression.COMPRESSED.inc();
+        Compression.CACHED.inc();
+        _response.setHeader("Content-Length", String.valueOf(_variant.length));
+        _response.getOutputStream().write(_variant);
+    }
+
+    /**
+     * Compresses the content to the output stream.
+     *
+     * @param _in       opened content to compress
+     * @param _out      output stream
+     * @throws IOException if the content could not be compressed
+     */
+    private void compress(final InputStream _in,
+                          final OutputStream _out)
+        throws IOException
+    {
+        final GZIPOutputStream gzip = new GZIPOutputStream(_out, 8192) {
+            {
+                this.def.setLevel(Compression.this.level);
+            }
+        };
+        FileTransfer.copy(_in, gzip);
+        gzip.finish();
+    }
+
+    /**
+     * Returns the cached compressed variant. The entity tag changes with
+     * each modification, so a cached variant is sent without opening the
+     * content.
+     *
+     * @param _etag     entity tag of the (uncompressed) file
+     * @return cached compressed variant or <code>null</code>
+     */
+    synchronized byte[] getCachedVariant(final String _etag)
+    {
+        return this.variants.get(_etag);
+    }
+
+    /**
+     * Caches the compressed variant; the least recently used variants are
+     * removed until the cache fits in the budget.
+     *
+     * @param _etag     entity tag of the file
+     * @param _variant  compressed variant
+     */
+    private synchronized void putVariant(final String _etag,
+                                         final byte[] _variant)
+    {
+        if (_variant.length <= this.cacheSize) {
+            final byte[] old = this.variants.put(_etag, _variant);
+            this.cachedBytes += _variant.length - ((old == null) ? 0 : old.length);
+            final Iterator<byte[]> iter = this.variants.values().iterator();
+            while (this.cachedBytes > this.cacheSize) {
+                this.cachedBytes -= iter.next().length;
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * @return bytes of all cached compressed variants
+     */
+    public synchronized long getCachedBytes()
+    {
+        return this.cachedBytes;
+    }
+}
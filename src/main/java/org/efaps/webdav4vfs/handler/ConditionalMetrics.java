@@ -0,0 +1,72 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ * Copyright 2007 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.handler;
+
+import org.efaps.webdav4vfs.metrics.Counter;
+import org.efaps.webdav4vfs.metrics.Gauge;
+import org.efaps.webdav4vfs.metrics.Metrics;
+
+/**
+ * Metrics of the conditional GET and HEAD requests.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+final class ConditionalMetrics
+{
+    /**
+     * GET and HEAD requests with a conditional header.
+     */
+    static final Counter CONDITIONAL = Metrics.getInstance().counter(
+            "webdav4vfs_http_conditional_requests_total", "GET and HEAD requests with conditional headers.");
+
+    /**
+     * Conditional requests answered with 304 Not Modified.
+     */
+    static final Counter NOT_MODIFIED = Metrics.getInstance().counter(
+            "webdav4vfs_http_not_modified_total", "Conditional requests answered with 304 Not Modified.");
+
+    /**
+     * Conditional requests answered with 412 Precondition Failed.
+     */
+    static final Counter PRECONDITION_FAILED = Metrics.getInstance().counter(
+            "webdav4vfs_http_precondition_failed_total", "Conditional requests answered with 412 Precondition Failed.");
+
+    static {
+        Metrics.getInstance().register(new Gauge("webdav4vfs_http_not_modified_ratio",
+                                                 "Ratio of the conditional requests answered with 304.") {
+            @Override()
+            public double getValue()
+            {
+                final long total = ConditionalMetrics.CONDITIONAL.get();
+                return (total == 0) ? 0 : (double) ConditionalMetrics.NOT_MODIFIED.get() / total;
+            }
+        });
+    }
+
+    /**
+     * Only static fields.
+     */
+    private ConditionalMetrics()
+    {
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ * Copyright 2007 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.handler;
+
+/**
+ * Value of a <code>Content-Range</code> header of a PUT request for a part
+ * of a resumable upload (see RFC 7233, section 4.2): either
+ * <code>bytes first-last/total</code> or <code>bytes first-last/*</code>
+ * for a part of the content, or <code>bytes &#42;/total</code> to query the
+ * state of the upload.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+final class ContentRange
+{
+    /**
+     * Position of the first byte or <code>-1</code> for a query.
+     */
+    private final long first;
+
+    /**
+     * Position of the last byte (inclusive) or <code>-1</code> for a query.
+     */
+    private final long last;
+
+    /**
+     * Total length of the content or <code>-1</code> if not known.
+     */
+    private final long total;
+
+    /**
+     * @param _first    position of the first byte
+     * @param _last     position of the last byte (inclusive)
+     * @param _total    total length of the content
+     */
+    private ContentRange(final long _first,
+                         final long _last,
+                         final long _total)
+    {
+        this.first = _first;
+        this.last = _last;
+        this.total = _total;
+    }
+
+    /**
+     * Parses the value of a <code>Content-Range</code> header.
+     *
+     * @param _header   value of the header
+     * @return content range or <code>null</code> if the value is not valid
+     */
+    static ContentRange parse(final String _header)
+    {
+        ContentRange ret = null;
+        final String value = _header.trim();
+        final int slash = value.indexOf('/');
+        if (value.startsWith("bytes ") && (slash > 0)) {
+            final String range = value.substring(6, slash).trim();
+            final String length = value.substring(slash + 1).trim();
+            try {
+                final long total = "*".equals(length) ? -1 : Long.parseLong(length);
+                if ("*".equals(range)) {
+                    if (total >= 0) {
+                        ret = new ContentRange(-1, -1, total);
+                    }
+                } else {
+                    final int dash = range.indexOf('-');
+                    final long first = Long.parseLong(range.substring(0, dash).trim());
+                    final long last = Long.parseLong(range.substring(dash + 1).trim());
+                    if ((first >= 0) && (last >= first) && ((total < 0) || (last < total))) {
+                        ret = new ContentRange(first, last, total);
+                    }
+                }
+            } catch (final NumberFormatException e) {
+                ret = null;
+            } catch (final StringIndexOutOfBoundsException e) {
+                ret = null;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return <i>true</i> if the state of the upload is queried (no bytes
+     *         are sent)
+     */
+    boolean isQuery()
+    {
+        return this.first < 0;
+    }
+
+    /**
+     * @return position of the first byte
+     */
+    long getFirst()
+    {
+        return this.first;
+    }
+
+    /**
+     * @return number of bytes of the part
+     */
+    long getLength()
+    {
+        return this.last - this.first + 1;
+    }
+
+    /**
+     * @return total length of the content or <code>-1</code> if not known
+     */
+    long getTotal()
+    {
+        return this.total;
+    }
+
+    @Override()
+    public String toString()
+    {
+        return "bytes " + (isQuery() ? "*" : this.first + "-" + this.last) + "/"
+                + ((this.total < 0) ? "*" : String.valueOf(this.total));
+    }
+}
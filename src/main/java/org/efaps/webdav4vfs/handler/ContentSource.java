@@ -0,0 +1,214 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ * Copyright 2007 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.handler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import org.apache.commons.vfs.Capability;
+import org.apache.commons.vfs.FileContent;
+import org.apache.commons.vfs.RandomAccessContent;
+import org.apache.commons.vfs.util.RandomAccessMode;
+import org.efaps.webdav4vfs.vfs.ContentCache;
+import org.efaps.webdav4vfs.vfs.FileTransfer;
+import org.efaps.webdav4vfs.vfs.ReadAhead;
+
+/**
+ * Opened content of a file which is sent by a GET request. The content is
+ * opened while the read lock of the file is held (see
+ * {@link org.efaps.webdav4vfs.vfs.ContentCoordinator}) and sent after the
+ * lock is released: because a PUT replaces a file by a rename of its staged
+ * content, the opened content stays a consistent snapshot. Only on file
+ * systems without rename the lock is held until the content is sent (see
+ * {@link org.efaps.webdav4vfs.vfs.Staging#isReplacedInPlace}).
+ * <p>
+ * Files of the local file system are read through a file channel (see
+ * {@link FileTransfer}); byte ranges of file systems with random access are
+ * directly sought; all other contents are read as stream (ranges are
+ * reached by skipping).
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+final class ContentSource
+{
+    /**
+     * Stream of a local file or <code>null</code>.
+     */
+    private final FileInputStream localStream;
+
+    /**
+     * Random access content or <code>null</code>.
+     */
+    private final RandomAccessContent randomAccess;
+
+    /**
+     * Sequential stream of the content or <code>null</code>.
+     */
+    private final InputStream stream;
+
+    /**
+     * @param _localStream  stream of a local file
+     * @param _randomAccess random access content
+     * @param _stream       sequential stream of the content
+     */
+    private ContentSource(final FileInputStream _localStream,
+                          final RandomAccessContent _randomAccess,
+                          final InputStream _stream)
+    {
+        this.localStream = _localStream;
+        this.randomAccess = _randomAccess;
+        this.stream = _stream;
+    }
+
+    /**
+     * Opens the content.
+     *
+     * @param _content      content to open
+     * @param _ranges       <i>true</i> if byte ranges are sent
+     * @param _sequential   <i>true</i> if the content is only read as stream
+     *                      (e.g. to compress it)
+     * @return opened content
+     * @throws IOException if the content could not be opened
+     */
+    static ContentSource open(final FileContent _content,
+                              final boolean _ranges,
+                              final boolean _sequential)
+        throws IOException
+    {
+        final ContentSource ret;
+        final File localFile = _sequential ? null : FileTransfer.getLocalFile(_content.getFile());
+        if (localFile != null) {
+            ret = new ContentSource(new FileInputStream(localFile), null, null);
+        } else if (_ranges && _content.getFile().getFileSystem().hasCapability(Capability.RANDOM_ACCESS_READ)) {
+            ret = new ContentSource(null, _content.getRandomAccessContent(RandomAccessMode.READ), null);
+        } else if (_ranges) {
+            ret = new ContentSource(null, null, ReadAhead.getInstance().getInputStream(_content));
+        } else {
+            ret = new ContentSource(null, null, ContentCache.getInstance().getInputStream(_content));
+        }
+        return ret;
+    }
+
+    /**
+     * @return sequential stream of the content (only if opened as
+     *         sequential)
+     */
+    InputStream getInputStream()
+    {
+        return this.stream;
+    }
+
+    /**
+     * Sends the byte ranges of the content.
+     *
+     * @param _ranges       sorted and non overlapping byte ranges
+     * @param _multipart    multipart body in which the ranges are sent, or
+     *                      <code>null</code> for a single range
+     * @param _out          output stream of the response
+     * @throws IOException if the content could not be read or sent
+     */
+    void sendRanges(final List<ByteRange> _ranges,
+                    final MultipartByteRanges _multipart,
+                    final OutputStream _out)
+        throws IOException
+    {
+        if (this.localStream != null) {
+            final FileChannel channel = this.localStream.getChannel();
+            for (final ByteRange range : _ranges) {
+                if (_multipart != null) {
+                    _multipart.writePartHeader(_out, range);
+                }
+                FileTransfer.transfer(channel, range.getFirst(), range.getLength(), _out);
+            }
+        } else if (this.randomAccess != null) {
+            for (final ByteRange range : _ranges) {
+                if (_multipart != null) {
+                    _multipart.writePartHeader(_out, range);
+                }
+                this.randomAccess.seek(range.getFirst());
+                FileTransfer.copy(this.randomAccess.getInputStream(), _out, range.getLength());
+            }
+        } else {
+            long pos = 0;
+            for (final ByteRange range : _ranges) {
+                if (_multipart != null) {
+                    _multipart.writePartHeader(_out, range);
+                }
+                pos += skip(this.stream, range.getFirst() - pos);
+                pos += FileTransfer.copy(this.stream, _out, range.getLength());
+            }
+        }
+        if (_multipart != null) {
+            _multipart.writeEnd(_out);
+        }
+    }
+
+    /**
+     * Closes the opened content.
+     *
+     * @throws IOException if the content could not be closed
+     */
+    void close()
+        throws IOException
+    {
+        if (this.localStream != null) {
+            this.localStream.close();
+        } else if (this.randomAccess != null) {
+            this.randomAccess.close();
+        } else {
+            this.stream.close();
+        }
+    }
+
+    /**
+     * Skips given number of bytes of the input stream.
+     *
+     * @param _in       input stream
+     * @param _length   number of bytes to skip
+     * @return number of skipped bytes (less than <code>_length</code> only
+     *         at the end of the stream)
+     * @throws IOException if the bytes could not be skipped
+     */
+    private static long skip(final InputStream _in,
+                             final long _length)
+        throws IOException
+    {
+        long left = _length;
+        while (left > 0) {
+            final long skipped = _in.skip(left);
+            if (skipped > 0) {
+                left -= skipped;
+            } else if (_in.read() >= 0) {
+                left--;
+            } else {
+                break;
+            }
+        }
+        return _length - left;
+    }
+}
@@ -21,10 +21,20 @@
 
 package org.efaps.webdav4vfs.handler;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.commons.vfs.FileObject;
 import org.apache.commons.vfs.FileSelectInfo;
 import org.apache.commons.vfs.FileSelector;
 import org.apache.commons.vfs.FileSystemException;
+import org.apache.commons.vfs.NameScope;
+import org.apache.commons.vfs.Selectors;
+import org.efaps.webdav4vfs.vfs.ContentCache;
+import org.efaps.webdav4vfs.vfs.ContentDigest;
+import org.efaps.webdav4vfs.vfs.FileTransfer;
+import org.efaps.webdav4vfs.vfs.Staging;
 
 /**
  * @author Matthias L. Jugel
@@ -39,13 +49,37 @@ public class CopyHandler
                               final int depth)
         throws FileSystemException
     {
-        target.copyFrom(object, new FileSelector() {
+        // parents before their children
+        final List<FileObject> files = new ArrayList<FileObject>();
+        object.findFiles(new FileSelector() {
             public boolean includeFile(FileSelectInfo fileSelectInfo) throws Exception {
-                return fileSelectInfo.getDepth() <= depth;
+                return fileSelectInfo.getDepth() <= depth && !Staging.isStagingFile(fileSelectInfo.getFile());
             }
             public boolean traverseDescendents(FileSelectInfo fileSelectInfo) throws Exception {
                 return fileSelectInfo.getDepth() < depth;
             }
-        });
+        }, false, files);
+        // same as FileObject.copyFrom, but the contents are copied with the
+        // pooled buffers of the file transfer and the digests of the contents
+        // are carried over to the copies
+        for (final FileObject file : files) {
+            final String relativeName = object.getName().getRelativeName(file.getName());
+            final FileObject destination = target.resolveFile(relativeName, NameScope.DESCENDENT_OR_SELF);
+            try {
+                if (destination.exists() && !destination.getType().equals(file.getType())) {
+                    destination.delete(Selectors.SELECT_ALL);
+                }
+                if (file.getType().hasContent()) {
+                    final ContentDigest.Digest digest = ContentDigest.getInstance().getDigest(file);
+                    FileTransfer.copyContent(file, destination);
+                    ContentDigest.getInstance().copied(file, digest, destination);
+                } else if (file.getType().hasChildren()) {
+                    destination.createFolder();
+                }
+            } catch (final IOException e) {
+                throw new FileSystemException("vfs.provider/copy-file.error", new Object[] {file, destination}, e);
+            }
+        }
+        ContentCache.getInstance().invalidate(target);
     }
 }
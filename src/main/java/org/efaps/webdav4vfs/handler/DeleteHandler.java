@@ -36,6 +36,8 @@ import org.apache.commons.vfs.FileSelectInfo;
 import org.apache.commons.vfs.FileSelector;
 import org.efaps.webdav4vfs.lock.LockException;
 import org.efaps.webdav4vfs.lock.LockManager;
+import org.efaps.webdav4vfs.vfs.ContentCache;
+import org.efaps.webdav4vfs.vfs.ContentDigest;
 import org.efaps.webdav4vfs.vfs.VFSBackend;
 
 
@@ -86,6 +88,10 @@ public void service(HttpServletRequest request, HttpServletResponse response) th
     if (object.exists()) {
       int deletedObjects = object.delete(ALL_FILES_SELECTOR);
       LOG.debug("deleted " + deletedObjects + " objects");
+      // the locks of the deleted subtree are not needed anymore
+      LockManager.getInstance().removeLocks(object);
+      ContentCache.getInstance().invalidate(object);
+      ContentDigest.getInstance().invalidate(object);
       if (deletedObjects > 0) {
         response.setStatus(HttpServletResponse.SC_OK);
       } else {
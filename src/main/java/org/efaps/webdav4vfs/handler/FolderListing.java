@@ -0,0 +1,442 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ * Copyright 2007 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.handler;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.vfs.FileContent;
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystemException;
+import org.apache.commons.vfs.FileType;
+import org.efaps.webdav4vfs.util.URLEncoder;
+import org.efaps.webdav4vfs.util.Util;
+import org.efaps.webdav4vfs.vfs.Staging;
+
+/**
+ * Listing of the children of a folder for a GET request, as HTML page or
+ * (if requested with parameter <code>format=json</code> or with
+ * <code>Accept: application/json</code>) as JSON document. The entries are
+ * written while the children are iterated, so the memory needed is
+ * independent of the number of entries. Large folders are paged with the
+ * parameters <code>offset</code> and <code>limit</code>; the metadata of the
+ * children is only read for the entries of the requested page.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+final class FolderListing
+{
+    /**
+     * Default number of entries of one page.
+     */
+    static final int DEFAULT_LIMIT = 1000;
+
+    /**
+     * Maximum number of entries of one page.
+     */
+    static final int MAX_LIMIT = 10000;
+
+    /**
+     * Size of the buffer of the response writer.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Must the listing be written as JSON document?
+     */
+    private final boolean json;
+
+    /**
+     * Index of the first listed child.
+     */
+    private final int offset;
+
+    /**
+     * Maximum number of listed children.
+     */
+    private final int limit;
+
+    /**
+     * @param _request  HTTP request with the paging parameters
+     * @throws IllegalArgumentException if the paging parameters are not valid
+     */
+    FolderListing(final HttpServletRequest _request)
+    {
+        final String format = _request.getParameter("format");
+        if (format != null) {
+            this.json = "json".equalsIgnoreCase(format);
+        } else {
+            final String accept = _request.getHeader("Accept");
+            this.json = (accept != null) && accept.contains("application/json") && !accept.contains("text/html");
+        }
+        final String offsetParam = _request.getParameter("offset");
+        final String limitParam = _request.getParameter("limit");
+        this.offset = (offsetParam == null) ? 0 : Integer.parseInt(offsetParam.trim());
+        final int requestedLimit = (limitParam == null) ? FolderListing.DEFAULT_LIMIT
+                                                        : Integer.parseInt(limitParam.trim());
+        if ((this.offset < 0) || (requestedLimit < 1)) {
+            throw new IllegalArgumentException("offset " + this.offset + " or limit " + requestedLimit + " invalid");
+        }
+        this.limit = Math.min(requestedLimit, FolderListing.MAX_LIMIT);
+    }
+
+    /**
+     * @return content type of the listing
+     */
+    String getContentType()
+    {
+        return this.json ? "application/json; charset=UTF-8" : "text/html; charset=UTF-8";
+    }
+
+    /**
+     * Writes the listing of the folder.
+     *
+     * @param _folder   folder to list
+     * @param _request  HTTP request (for the links of the entries)
+     * @param _out      output stream of the response
+     * @throws IOException if the folder could not be read or the listing
+     *                     could not be written
+     */
+    void write(final FileObject _folder,
+               final HttpServletRequest _request,
+               final OutputStream _out)
+        throws IOException
+    {
+        String path = _request.getPathInfo();
+        if ((path == null) || (path.length() == 0)) {
+            path = "/";
+        } else if (!path.endsWith("/")) {
+            path = path + "/";
+        }
+        final String prefix = nullToEmpty(_request.getContextPath()) + nullToEmpty(_request.getServletPath());
+
+        // commons vfs knows no iterator over the children; only the children
+        // of the requested page are touched
+        final FileObject[] children = _folder.getChildren();
+        final int end = (int) Math.min((long) this.offset + this.limit, children.length);
+
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(_out, "UTF-8"), FolderListing.BUFFER_SIZE);
+        if (this.json) {
+            writeJsonStart(writer, path, children.length);
+        } else {
+            writeHtmlStart(writer, prefix, path);
+        }
+        boolean separator = false;
+        for (int idx = this.offset; idx < end; idx++) {
+            final FileObject child = children[idx];
+            // uploads in progress are not visible
+            if (!Staging.isStagingFile(child)) {
+                writeEntry(writer, separator, child, prefix + URLEncoder.encode(path + child.getName().getBaseName(),
+                                                                               "UTF-8"));
+                separator = true;
+            }
+        }
+        if (this.json) {
+            writeJsonEnd(writer, end < children.length);
+        } else {
+            writeHtmlEnd(writer, children.length, end);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Writes the entry of one child.
+     *
+     * @param _writer       writer of the response
+     * @param _separator    must a separator be written before the entry?
+     * @param _child        child of the listed folder
+     * @param _href         link of the child (without trailing slash)
+     * @throws IOException if the entry could not be written
+     */
+    private void writeEntry(final Writer _writer,
+                            final boolean _separator,
+                            final FileObject _child,
+                            final String _href)
+        throws IOException
+    {
+        final String name = _child.getName().getBaseName();
+        final boolean folder = FileType.FOLDER.equals(_child.getType());
+        long size = -1;
+        long lastModified = -1;
+        if (!folder) {
+            try {
+                final FileContent content = _child.getContent();
+                size = content.getSize();
+                lastModified = content.getLastModifiedTime();
+            } catch (final FileSystemException e) {
+                // the child was removed in the meantime
+            }
+        }
+        final String href = folder ? _href + "/" : _href;
+        if (this.json) {
+            writeJsonEntry(_writer, _separator, name, href, folder, size, lastModified);
+        } else {
+            writeHtmlEntry(_writer, name, href, folder, size, lastModified);
+        }
+    }
+
+    /**
+     * @param _writer   writer of the response
+     * @param _prefix   prefix of the links (context and servlet path)
+     * @param _path     path of the folder (ending with a slash)
+     * @throws IOException if the listing could not be written
+     */
+    private void writeHtmlStart(final Writer _writer,
+                                final String _prefix,
+                                final String _path)
+        throws IOException
+    {
+        _writer.write("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"UTF-8\">\n<title>Index of ");
+        writeHtml(_writer, _path);
+        _writer.write("</title>\n</head>\n<body>\n<h1>Index of ");
+        writeHtml(_writer, _path);
+        _writer.write("</h1>\n<table>\n<tr><th>Name</th><th>Size</th><th>Last Modified</th></tr>\n");
+        if (_path.length() > 1) {
+            final String parent = _path.substring(0, _path.lastIndexOf('/', _path.length() - 2) + 1);
+            _writer.write("<tr><td><a href=\"");
+            writeHtml(_writer, _prefix + URLEncoder.encode(parent, "UTF-8"));
+            _writer.write("\">../</a></td><td></td><td></td></tr>\n");
+        }
+    }
+
+    /**
+     * @param _writer       writer of the response
+     * @param _name         name of the child
+     * @param _href         link of the child
+     * @param _folder       is the child a folder?
+     * @param _size         size of the child (or <code>-1</code>)
+     * @param _lastModified last modification of the child (or
+     *                      <code>-1</code>)
+     * @throws IOException if the entry could not be written
+     */
+    private void writeHtmlEntry(final Writer _writer,
+                                final String _name,
+                                final String _href,
+                                final boolean _folder,
+                                final long _size,
+                                final long _lastModified)
+        throws IOException
+    {
+        _writer.write("<tr><td><a href=\"");
+        writeHtml(_writer, _href);
+        _writer.write("\">");
+        writeHtml(_writer, _name);
+        if (_folder) {
+            _writer.write('/');
+        }
+        _writer.write("</a></td><td>");
+        if (_size >= 0) {
+            _writer.write(String.valueOf(_size));
+        }
+        _writer.write("</td><td>");
+        if (_lastModified >= 0) {
+            _writer.write(Util.getDateString(_lastModified));
+        }
+        _writer.write("</td></tr>\n");
+    }
+
+    /**
+     * @param _writer   writer of the response
+     * @param _total    number of children of the folder
+     * @param _end      index after the last listed child
+     * @throws IOException if the listing could not be written
+     */
+    private void writeHtmlEnd(final Writer _writer,
+                              final int _total,
+                              final int _end)
+        throws IOException
+    {
+        _writer.write("</table>\n<p>");
+        if (_end > this.offset) {
+            _writer.write("Entries " + (this.offset + 1) + " to " + _end + " of " + _total + ".");
+        } else {
+            _writer.write("No entries (of " + _total + ").");
+        }
+        if (this.offset > 0) {
+            _writer.write(" <a href=\"");
+            writeHtml(_writer, getPageQuery(Math.max(0, this.offset - this.limit)));
+            _writer.write("\">Previous</a>");
+        }
+        if (_end < _total) {
+            _writer.write(" <a href=\"");
+            writeHtml(_writer, getPageQuery(_end));
+            _writer.write("\">Next</a>");
+        }
+        _writer.write("</p>\n</body>\n</html>\n");
+    }
+
+    /**
+     * @param _writer   writer of the response
+     * @param _path     path of the folder (ending with a slash)
+     * @param _total    number of children of the folder
+     * @throws IOException if the listing could not be written
+     */
+    private void writeJsonStart(final Writer _writer,
+                                final String _path,
+                                final int _total)
+        throws IOException
+    {
+        _writer.write("{\"path\":");
+        writeJson(_writer, _path);
+        _writer.write(",\"offset\":" + this.offset + ",\"limit\":" + this.limit + ",\"total\":" + _total
+                + ",\"entries\":[");
+    }
+
+    /**
+     * @param _writer       writer of the response
+     * @param _separator    must a separator be written before the entry?
+     * @param _name         name of the child
+     * @param _href         link of the child
+     * @param _folder       is the child a folder?
+     * @param _size         size of the child (or <code>-1</code>)
+     * @param _lastModified last modification of the child in milliseconds
+     *                      (or <code>-1</code>)
+     * @throws IOException if the entry could not be written
+     */
+    private void writeJsonEntry(final Writer _writer,
+                                final boolean _separator,
+                                final String _name,
+                                final String _href,
+                                final boolean _folder,
+                                final long _size,
+                                final long _lastModified)
+        throws IOException
+    {
+        if (_separator) {
+            _writer.write(',');
+        }
+        _writer.write("\n{\"name\":");
+        writeJson(_writer, _name);
+        _writer.write(",\"href\":");
+        writeJson(_writer, _href);
+        _writer.write(_folder ? ",\"type\":\"folder\"" : ",\"type\":\"file\"");
+        if (_size >= 0) {
+            _writer.write(",\"size\":" + _size);
+        }
+        if (_lastModified >= 0) {
+            _writer.write(",\"lastModified\":" + _lastModified);
+        }
+        _writer.write('}');
+    }
+
+    /**
+     * @param _writer   writer of the response
+     * @param _more     are there more children after the listed entries?
+     * @throws IOException if the listing could not be written
+     */
+    private void writeJsonEnd(final Writer _writer,
+                              final boolean _more)
+        throws IOException
+    {
+        _writer.write("\n]");
+        if (_more) {
+            _writer.write(",\"next\":");
+            writeJson(_writer, getPageQuery(this.offset + this.limit));
+        }
+        _writer.write("}\n");
+    }
+
+    /**
+     * @param _offset   offset of the page
+     * @return query string of the page with given offset
+     */
+    private String getPageQuery(final int _offset)
+    {
+        return "?" + (this.json ? "format=json&" : "") + "offset=" + _offset + "&limit=" + this.limit;
+    }
+
+    /**
+     * Writes the text escaped for HTML.
+     *
+     * @param _writer   writer of the response
+     * @param _text     text to write
+     * @throws IOException if the text could not be written
+     */
+    private static void writeHtml(final Writer _writer,
+                                  final String _text)
+        throws IOException
+    {
+        for (int idx = 0; idx < _text.length(); idx++) {
+            final char ch = _text.charAt(idx);
+            switch (ch) {
+                case '<':
+                    _writer.write("&lt;");
+                    break;
+                case '>':
+                    _writer.write("&gt;");
+                    break;
+                case '&':
+                    _writer.write("&amp;");
+                    break;
+                case '"':
+                    _writer.write("&quot;");
+                    break;
+                case '\'':
+                    _writer.write("&#39;");
+                    break;
+                default:
+                    _writer.write(ch);
+            }
+        }
+    }
+
+    /**
+     * Writes the text as JSON string.
+     *
+     * @param _writer   writer of the response
+     * @param _text     text to write
+     * @throws IOException if the text could not be written
+     */
+    private static void writeJson(final Writer _writer,
+                                  final String _text)
+        throws IOException
+    {
+        _writer.write('"');
+        for (int idx = 0; idx < _text.length(); idx++) {
+            final char ch = _text.charAt(idx);
+            if ((ch == '"') || (ch == '\\')) {
+                _writer.write('\\');
+                _writer.write(ch);
+            } else if (ch < 0x20) {
+                _writer.write(String.format("\\u%04x", (int) ch));
+            } else {
+                _writer.write(ch);
+            }
+        }
+        _writer.write('"');
+    }
+
+    /**
+     * @param _text     text
+     * @return the text or an empty string for <code>null</code>
+     */
+    private static String nullToEmpty(final String _text)
+    {
+        return (_text == null) ? "" : _text;
+    }
+}
@@ -22,18 +22,21 @@
 package org.efaps.webdav4vfs.handler;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.vfs.FileContent;
 import org.apache.commons.vfs.FileObject;
 import org.apache.commons.vfs.FileSystemException;
 import org.apache.commons.vfs.FileType;
 import org.efaps.webdav4vfs.util.Util;
+import org.efaps.webdav4vfs.vfs.ContentCoordinator;
+import org.efaps.webdav4vfs.vfs.ContentDigest;
+import org.efaps.webdav4vfs.vfs.FileTransfer;
+import org.efaps.webdav4vfs.vfs.Staging;
 import org.efaps.webdav4vfs.vfs.VFSBackend;
 
 
@@ -44,6 +47,16 @@ import org.efaps.webdav4vfs.vfs.VFSBackend;
 public class GetHandler
     extends AbstractWebdavHandler
 {
+    /**
+     * Status code for a range which could not be satisfied.
+     */
+    static final int SC_REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+
+    /**
+     * Maximum number of byte ranges of one request. If more ranges are
+     * requested, the complete content is sent.
+     */
+    private static final int MAX_RANGES = 64;
 
     @Override()
     public void service(final HttpServletRequest _request,
@@ -54,29 +67,403 @@ public class GetHandler
 
         if (object.exists()) {
             if (FileType.FOLDER.equals(object.getType())) {
-                _response.sendError(HttpServletResponse.SC_FORBIDDEN);
+                listFolder(_request, _response, object, true);
                 return;
             }
 
-            setHeader(_response, object.getContent());
+            // a concurrent PUT of the resource must not change the content
+            // while the headers are evaluated and the content is opened; the
+            // lock is released before the content is sent if a PUT replaces
+            // the file by a rename (the opened content stays unchanged),
+            // otherwise only after the content is sent
+            ContentCoordinator.HeldLock readLock;
+            try {
+                readLock = ContentCoordinator.getInstance().acquireRead(object);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                readLock = null;
+            }
+            if (readLock == null) {
+                _response.setHeader("Retry-After", "1");
+                _response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+            ContentSource source = null;
+            try {
+                final FileContent content = object.getContent();
+                final long size = content.getSize();
+                final String contentType = content.getContentInfo().getContentType();
+                final String etag = Util.getETag(object);
+                setHeader(_response, content, etag);
+                final boolean gzip = negotiateEncoding(_request, _response, content, size, etag);
+                if (!gzip) {
+                    setDigest(_response, content);
+                }
+                if (!checkPreconditions(_request, _response, content, getETag(etag, gzip))) {
+                    return;
+                }
+                final List<ByteRange> ranges = gzip ? null : getRanges(_request, content, size, etag);
+                if ((ranges != null) && ranges.isEmpty()) {
+                    _response.setHeader("Content-Range", "bytes */" + size);
+                    _response.sendError(GetHandler.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return;
+                }
+                if ((ranges != null) && (ranges.size() == 1)) {
+                    final ByteRange range = ranges.get(0);
+                    _response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                    _response.setHeader("Content-Range", range.getContentRange(size));
+                    _response.setHeader("Content-Length", String.valueOf(range.getLength()));
+                } else if (ranges != null) {
+                    _response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                } else if (gzip) {
+                    _response.setHeader("Content-Encoding", "gzip");
+                } else {
+                    // with a known length the connection could be kept alive
+                    // without chunked encoding
+                    _response.setHeader("Content-Length", String.valueOf(size));
+                    setContentMD5(_response, content);
+                }
+                // a cached compressed variant is sent without opening the
+                // content (the entity tag changes with the content)
+                final byte[] variant = gzip ? Compression.getInstance().getCachedVariant(etag) : null;
+                if (variant == null) {
+                    source = ContentSource.open(content, ranges != null, gzip);
+                }
+                if ((variant != null) || !Staging.isReplacedInPlace(object)) {
+                    readLock.unlock();
+                    readLock = null;
+                }
 
-            final InputStream is = object.getContent().getInputStream();
-            final OutputStream os = _response.getOutputStream();
-            IOUtils.copyLarge(is, os);
-            is.close();
+                if ((ranges != null) && (ranges.size() == 1)) {
+                    source.sendRanges(ranges, null, _response.getOutputStream());
+                } else if (ranges != null) {
+                    final MultipartByteRanges multipart = new MultipartByteRanges(contentType, size);
+                    _response.setHeader("Content-Type", multipart.getContentType());
+                    _response.setHeader("Content-Length", String.valueOf(multipart.getLength(ranges)));
+                    source.sendRanges(ranges, multipart, _response.getOutputStream());
+                } else if (variant != null) {
+                    Compression.getInstance().sendVariant(variant, _response);
+                } else if (gzip) {
+                    Compression.getInstance().send(source.getInputStream(), etag, size, _response);
+                } else if (source.getInputStream() == null) {
+                    source.sendRanges(Collections.singletonList(new ByteRange(0, size - 1)), null,
+                                      _response.getOutputStream());
+                } else {
+                    FileTransfer.copy(source.getInputStream(), _response.getOutputStream());
+                }
+            } finally {
+                try {
+                    if (source != null) {
+                        source.close();
+                    }
+                } finally {
+                    if (readLock != null) {
+                        readLock.unlock();
+                    }
+                }
+            }
         } else {
             _response.sendError(HttpServletResponse.SC_NOT_FOUND);
         }
     }
 
+    /**
+     * Answers the request for a folder with the listing of its children (see
+     * {@link FolderListing}). Invalid paging parameters are answered with
+     * 400 Bad Request.
+     *
+     * @param _request  HTTP request
+     * @param _response HTTP response
+     * @param _folder   requested folder
+     * @param _body     must the listing be written (<i>false</i> for HEAD)?
+     * @throws IOException if the folder could not be read or the listing
+     *                     could not be sent
+     */
+    void listFolder(final HttpServletRequest _request,
+                    final HttpServletResponse _response,
+                    final FileObject _folder,
+                    final boolean _body)
+        throws IOException
+    {
+        final FolderListing listing;
+        try {
+            listing = new FolderListing(_request);
+        } catch (final IllegalArgumentException e) {
+            _response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        _response.setHeader("Content-Type", listing.getContentType());
+        if (_body) {
+            listing.write(_folder, _request, _response.getOutputStream());
+        }
+    }
+
     void setHeader(final HttpServletResponse response,
-                   final FileContent _content)
+                   final FileContent _content,
+                   final String _etag)
         throws FileSystemException
     {
     response.setHeader("Last-Modified", Util.getDateString(_content.getLastModifiedTime()));
     response.setHeader("Content-Type", _content.getContentInfo().getContentType());
-    response.setHeader("ETag", Util.getETag(_content.getFile()));
+    response.setHeader("ETag", _etag);
+    response.setHeader("Accept-Ranges", "bytes");
   }
 
+    /**
+     * Sets the header <code>Digest</code> with the SHA-256 digest of the
+     * content (RFC 3230) if the digest is known (see {@link ContentDigest}).
+     * The instance digest is computed after the content coding, so the
+     * header is not set for compressed variants.
+     *
+     * @param _response HTTP response
+     * @param _content  content of the requested file
+     * @throws FileSystemException if the content could not be accessed
+     */
+    void setDigest(final HttpServletResponse _response,
+                   final FileContent _content)
+        throws FileSystemException
+    {
+        final ContentDigest.Digest digest = ContentDigest.getInstance().getDigest(_content.getFile());
+        if (digest != null) {
+            _response.setHeader("Digest", "SHA-256=" + digest.getSHA256Base64());
+        }
+    }
+
+    /**
+     * Sets the header <code>Content-MD5</code> for a response with the
+     * complete uncompressed content if the digest is known (the header is
+     * the digest of the sent body, so it is not set for ranges or compressed
+     * variants).
+     *
+     * @param _response HTTP response
+     * @param _content  content of the requested file
+     * @throws FileSystemException if the content could not be accessed
+     */
+    void setContentMD5(final HttpServletResponse _response,
+                       final FileContent _content)
+        throws FileSystemException
+    {
+        final ContentDigest.Digest digest = ContentDigest.getInstance().getDigest(_content.getFile());
+        if (digest != null) {
+            _response.setHeader("Content-MD5", digest.getMD5Base64());
+        }
+    }
+
+    /**
+     * Negotiates the content encoding for compressible contents (see
+     * {@link Compression}). The response of a compressible content always
+     * varies by the <code>Accept-Encoding</code> header; the compressed
+     * variant has its own entity tag. Byte ranges are always answered from
+     * the uncompressed content.
+     *
+     * @param _request  HTTP request
+     * @param _response HTTP response
+     * @param _content  content of the requested file
+     * @param _size     size of the content
+     * @param _etag     entity tag of the file (see {@link Util#getETag})
+     * @return <i>true</i> if the content must be sent gzip compressed
+     * @throws FileSystemException if the content could not be accessed
+     */
+    boolean negotiateEncoding(final HttpServletRequest _request,
+                              final HttpServletResponse _response,
+                              final FileContent _content,
+                              final long _size,
+                              final String _etag)
+        throws FileSystemException
+    {
+        boolean ret = false;
+        if (Compression.getInstance().isCompressible(_content, _size)) {
+            _response.setHeader("Vary", "Accept-Encoding");
+            ret = (_request.getHeader("Range") == null) && Compression.acceptsGzip(_request);
+            if (ret) {
+                _response.setHeader("ETag", getETag(_etag, true));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param _etag     entity tag of the file (see {@link Util#getETag})
+     * @param _gzip     <i>true</i> for the compressed variant
+     * @return entity tag of the sent variant of the content
+     */
+    String getETag(final String _etag,
+                   final boolean _gzip)
+    {
+        return _gzip ? _etag + Compression.ETAG_SUFFIX : _etag;
+    }
+
+    /**
+     * Evaluates the conditional headers <code>If-Match</code>,
+     * <code>If-Unmodified-Since</code>, <code>If-None-Match</code> and
+     * <code>If-Modified-Since</code> in the order of RFC 7232, section 6.
+     * If a condition fails, the response status is set to 304 Not Modified
+     * or 412 Precondition Failed. No content is opened for the evaluation.
+     *
+     * @param _request  HTTP request
+     * @param _response HTTP response
+     * @param _content  content of the requested file
+     * @param _etag     entity tag of the sent variant of the content
+     * @return <i>true</i> if the request must be answered normally;
+     *         <i>false</i> if the response was already sent
+     * @throws IOException if the content could not be accessed or the
+     *                     response could not be sent
+     */
+    boolean checkPreconditions(final HttpServletRequest _request,
+                               final HttpServletResponse _response,
+                               final FileContent _content,
+                               final String _etag)
+        throws IOException
+    {
+        final String ifMatch = _request.getHeader("If-Match");
+        final String ifUnmodifiedSince = _request.getHeader("If-Unmodified-Since");
+        final String ifNoneMatch = _request.getHeader("If-None-Match");
+        final String ifModifiedSince = _request.getHeader("If-Modified-Since");
 
+        int status = 0;
+        if ((ifMatch != null) || (ifUnmodifiedSince != null) || (ifNoneMatch != null)
+                || (ifModifiedSince != null)) {
+            ConditionalMetrics.CONDITIONAL.inc();
+            final long lastModified = _content.getLastModifiedTime() / 1000;
+            if (ifMatch != null) {
+                if (!matchesETag(ifMatch, _etag, false)) {
+                    status = HttpServletResponse.SC_PRECONDITION_FAILED;
+                }
+            } else if (ifUnmodifiedSince != null) {
+                final long date = Util.parseDate(ifUnmodifiedSince);
+                if ((date >= 0) && (lastModified > date / 1000)) {
+                    status = HttpServletResponse.SC_PRECONDITION_FAILED;
+                }
+            }
+            if (status == 0) {
+                if (ifNoneMatch != null) {
+                    if (matchesETag(ifNoneMatch, _etag, true)) {
+                        status = HttpServletResponse.SC_NOT_MODIFIED;
+                    }
+                } else if (ifModifiedSince != null) {
+                    final long date = Util.parseDate(ifModifiedSince);
+                    if ((date >= 0) && (lastModified <= date / 1000)) {
+                        status = HttpServletResponse.SC_NOT_MODIFIED;
+                    }
+                }
+            }
+        }
+        if (status == HttpServletResponse.SC_NOT_MODIFIED) {
+            ConditionalMetrics.NOT_MODIFIED.inc();
+            _response.setStatus(status);
+        } else if (status == HttpServletResponse.SC_PRECONDITION_FAILED) {
+            ConditionalMetrics.PRECONDITION_FAILED.inc();
+            _response.sendError(status);
+        }
+        return status == 0;
+    }
+
+    /**
+     * Checks if one of the entity tags of a conditional header matches the
+     * entity tag of the file (see RFC 7232, section 2.3.2). The entity tags
+     * of the header could be quoted or (like the sent ETag header) not.
+     *
+     * @param _header   value of the header with a list of entity tags
+     * @param _etag     entity tag of the file (weak with prefix
+     *                  <code>W/</code>)
+     * @param _weak     <i>true</i> for the weak comparison (weak entity tags
+     *                  match), <i>false</i> for the strong comparison
+     * @return <i>true</i> if one of the entity tags matches
+     */
+    static boolean matchesETag(final String _header,
+                               final String _etag,
+                               final boolean _weak)
+    {
+        final boolean weakETag = _etag.startsWith("W/");
+        final String etag = weakETag ? _etag.substring(2) : _etag;
+        boolean ret = false;
+        for (final String value : _header.split(",")) {
+            String tag = value.trim();
+            if ("*".equals(tag)) {
+                ret = true;
+            } else {
+                final boolean weak = tag.startsWith("W/");
+                if (weak) {
+                    tag = tag.substring(2);
+                }
+                if ((tag.length() > 1) && tag.startsWith("\"") && tag.endsWith("\"")) {
+                    tag = tag.substring(1, tag.length() - 1);
+                }
+                ret = (_weak || (!weak && !weakETag)) && tag.equals(etag);
+            }
+            if (ret) {
+                break;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the requested byte ranges of the content. The
+     * <code>Range</code> header is ignored if an <code>If-Range</code> header
+     * does not match the current entity tag or last modification time of the
+     * content (see RFC 7233, section 3.2).
+     *
+     * @param _request  HTTP request
+     * @param _content  content of the requested file
+     * @param _size     size of the content
+     * @param _etag     entity tag of the file
+     * @return satisfiable, sorted and non overlapping byte ranges (empty if
+     *         no range is satisfiable), or <code>null</code> if the complete
+     *         content must be sent
+     * @throws FileSystemException if the content could not be accessed
+     */
+    List<ByteRange> getRanges(final HttpServletRequest _request,
+                              final FileContent _content,
+                              final long _size,
+                              final String _etag)
+        throws FileSystemException
+    {
+        List<ByteRange> ret = null;
+        final String range = _request.getHeader("Range");
+        if (range != null) {
+            final String ifRange = _request.getHeader("If-Range");
+            if ((ifRange == null) || isIfRangeMatching(ifRange.trim(), _content, _etag)) {
+                ret = ByteRange.parse(range, _size);
+                // too many ranges are not answered (protection against
+                // abuse), overlapping ranges are merged
+                if ((ret != null) && (ret.size() > GetHandler.MAX_RANGES)) {
+                    ret = null;
+                } else if ((ret != null) && (ret.size() > 1)) {
+                    ret = ByteRange.coalesce(ret);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Checks if the value of an <code>If-Range</code> header matches the
+     * content. An entity tag must match strongly, a date must be equal to
+     * the last modification time.
+     *
+     * @param _ifRange  value of the if range header
+     * @param _content  content of the requested file
+     * @param _etag     entity tag of the file
+     * @return <i>true</i> if the if range header matches
+     * @throws FileSystemException if the content could not be accessed
+     */
+    private boolean isIfRangeMatching(final String _ifRange,
+                                      final FileContent _content,
+                                      final String _etag)
+        throws FileSystemException
+    {
+        final boolean ret;
+        if (_ifRange.startsWith("W/") || _ifRange.startsWith("\"")) {
+            ret = matchesETag(_ifRange, _etag, false);
+        } else {
+            final long date = Util.parseDate(_ifRange);
+            if (date >= 0) {
+                ret = (date / 1000) == (_content.getLastModifiedTime() / 1000);
+            } else {
+                ret = _ifRange.equals(_etag);
+            }
+        }
+        return ret;
+    }
 }
@@ -26,12 +26,22 @@ import java.io.IOException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.vfs.FileContent;
 import org.apache.commons.vfs.FileObject;
 import org.apache.commons.vfs.FileType;
+import org.efaps.webdav4vfs.util.Util;
+import org.efaps.webdav4vfs.vfs.ContentCoordinator;
+import org.efaps.webdav4vfs.vfs.StagedFile;
+import org.efaps.webdav4vfs.vfs.Staging;
 import org.efaps.webdav4vfs.vfs.VFSBackend;
 
 
 /**
+ * Handles the HEAD request. For the target of a running resumable upload
+ * (see {@link PutHandler}) the already written bytes and the total length
+ * are reported with the headers <code>Upload-Offset</code> and
+ * <code>Upload-Length</code>, so that the client knows where to resume.
+ *
  * @author Matthias L. Jugel
  * @version $Id$
  */
@@ -45,12 +55,57 @@ public class HeadHandler
     {
         FileObject object = VFSBackend.resolveFile(_request.getPathInfo());
 
+        final StagedFile upload = Staging.getInstance().getUpload(object, false);
+        if (upload != null) {
+            _response.setHeader(PutHandler.UPLOAD_OFFSET, String.valueOf(upload.getSize()));
+            if (upload.getLength() >= 0) {
+                _response.setHeader(PutHandler.UPLOAD_LENGTH, String.valueOf(upload.getLength()));
+            }
+        }
+
         if (object.exists()) {
             if (FileType.FOLDER.equals(object.getType())) {
-                _response.sendError(HttpServletResponse.SC_FORBIDDEN);
+                listFolder(_request, _response, object, false);
             } else {
-                setHeader(_response, object.getContent());
+                // like GET the headers are evaluated while the content is
+                // not replaced
+                ContentCoordinator.HeldLock readLock;
+                try {
+                    readLock = ContentCoordinator.getInstance().acquireRead(object);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    readLock = null;
+                }
+                if (readLock == null) {
+                    _response.setHeader("Retry-After", "1");
+                    _response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    return;
+                }
+                try {
+                    final FileContent content = object.getContent();
+                    final long size = content.getSize();
+                    final String etag = Util.getETag(object);
+                    setHeader(_response, content, etag);
+                    final boolean gzip = negotiateEncoding(_request, _response, content, size, etag);
+                    if (!gzip) {
+                        setDigest(_response, content);
+                    }
+                    if (checkPreconditions(_request, _response, content, getETag(etag, gzip))) {
+                        if (gzip) {
+                            // the length of the compressed variant is not known
+                            _response.setHeader("Content-Encoding", "gzip");
+                        } else {
+                            _response.setHeader("Content-Length", String.valueOf(size));
+                            setContentMD5(_response, content);
+                        }
+                    }
+                } finally {
+                    readLock.unlock();
+                }
             }
+        } else if (upload != null) {
+            // the headers of the upload must not be discarded by sendError
+            _response.setStatus(HttpServletResponse.SC_NOT_FOUND);
         } else {
             _response.sendError(HttpServletResponse.SC_NOT_FOUND);
         }
@@ -65,11 +65,26 @@ public class LockHandler extends AbstractWebdavHandler {
   private static final String TAG_LOCKDISCOVERY = "lockdiscovery";
 
   private static final String HEADER_LOCK_TOKEN = "Lock-Token";
+  private static final String HEADER_TIMEOUT = "Timeout";
 
   @Override
 public void service(HttpServletRequest request, HttpServletResponse response) throws IOException {
     FileObject object = VFSBackend.resolveFile(request.getPathInfo());
 
+    // refresh of a lock with given lock token and without body
+    String lockTokenHeader = request.getHeader(HEADER_LOCK_TOKEN);
+    if (lockTokenHeader != null && !hasBody(request)) {
+      String lockToken = lockTokenHeader.replaceAll("^<|>$", "");
+      Lock lock = LockManager.getInstance().findLock(object, lockToken);
+      if (lock == null) {
+        response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+      } else {
+        refreshLock(request, lock);
+        sendLockAcquiredResponse(response, lock);
+      }
+      return;
+    }
+
     try {
       final LockManager manager = LockManager.getInstance();
       final LockManager.EvaluationResult evaluation = manager.evaluateCondition(object, getIf(request));
@@ -79,6 +94,7 @@ public void service(HttpServletRequest request, HttpServletResponse response) th
       } else {
         if (!evaluation.locks.isEmpty()) {
           LOG.debug(String.format("discovered locks: %s", evaluation.locks));
+          refreshLock(request, evaluation.locks.get(0));
           sendLockAcquiredResponse(response, evaluation.locks.get(0));
           return;
         }
@@ -139,6 +155,33 @@ public void service(HttpServletRequest request, HttpServletResponse response) th
     }
   }
 
+  /**
+   * Refresh given lock. If a timeout header is given, the new timeout is
+   * used, otherwise the original timeout of the lock.
+   *
+   * @param request the servlet request
+   * @param lock    lock to refresh
+   */
+  private void refreshLock(HttpServletRequest request, Lock lock) {
+    if (request.getHeader(HEADER_TIMEOUT) != null) {
+      LockManager.getInstance().refreshLock(lock, getTimeout(request));
+    } else {
+      LockManager.getInstance().refreshLock(lock);
+    }
+    LOG.debug("REFRESH(" + lock + ")");
+  }
+
+  /**
+   * Check whether the request contains a body.
+   *
+   * @param request the servlet request
+   * @return <i>true</i> if a body is sent
+   */
+  private boolean hasBody(HttpServletRequest request) {
+    return request.getContentLength() > 0
+        || (request.getContentLength() < 0 && request.getHeader("Transfer-Encoding") != null);
+  }
+
   private void sendLockAcquiredResponse(HttpServletResponse response, Lock lock) throws IOException {
     if (!lock.getObject().exists()) {
       response.setStatus(SC_CREATED);
@@ -21,22 +21,108 @@
 
 package org.efaps.webdav4vfs.handler;
 
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import org.apache.commons.vfs.FileObject;
 import org.apache.commons.vfs.FileSystemException;
+import org.apache.commons.vfs.FileType;
+import org.efaps.webdav4vfs.lock.LockManager;
+import org.efaps.webdav4vfs.vfs.ChunkAssembly;
+import org.efaps.webdav4vfs.vfs.ChunksChangedException;
+import org.efaps.webdav4vfs.vfs.ContentCache;
+import org.efaps.webdav4vfs.vfs.ContentDigest;
+import org.efaps.webdav4vfs.vfs.ContentLockedException;
+import org.efaps.webdav4vfs.vfs.MissingChunksException;
+import org.efaps.webdav4vfs.vfs.Staging;
+import org.efaps.webdav4vfs.vfs.VFSBackend;
 
 /**
+ * Handles the MOVE request. A MOVE of the member
+ * {@link ChunkAssembly#ASSEMBLE_NAME} of an upload collection assembles the
+ * chunks of the collection into the destination (see {@link ChunkAssembly});
+ * the optional header <code>Upload-Length</code> is the expected length of
+ * the assembled content. A missing chunk is answered with 409 Conflict.
+ *
  * @author Matthias L. Jugel
  * @version $Id$
  */
 public class MoveHandler
     extends AbstractCopyMoveBaseHandler
 {
+    @Override()
+    public void service(final HttpServletRequest _request,
+                        final HttpServletResponse _response)
+        throws IOException
+    {
+        final FileObject object = VFSBackend.resolveFile(_request.getPathInfo());
+        if (ChunkAssembly.isAssembly(object)) {
+            final List<FileObject> chunks;
+            try {
+                chunks = ChunkAssembly.getChunks(object.getParent());
+            } catch (final IllegalArgumentException e) {
+                _response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            } catch (final MissingChunksException e) {
+                _response.sendError(HttpServletResponse.SC_CONFLICT, e.getMessage());
+                return;
+            }
+            long size = 0;
+            for (final FileObject chunk : chunks) {
+                size += chunk.getContent().getSize();
+            }
+            final String length = _request.getHeader(PutHandler.UPLOAD_LENGTH);
+            if ((length != null) && !length.trim().equals(String.valueOf(size))) {
+                _response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                                    "length of chunks " + size + " is not the upload length " + length);
+                return;
+            }
+            if (size > Staging.getInstance().getMaxSize()) {
+                _response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                return;
+            }
+        }
+        try {
+            super.service(_request, _response);
+        } catch (final ContentLockedException e) {
+            _response.sendError(AbstractWebdavHandler.SC_LOCKED);
+        } catch (final ChunksChangedException e) {
+            _response.sendError(HttpServletResponse.SC_CONFLICT, e.getMessage());
+        } catch (final MissingChunksException e) {
+            _response.sendError(HttpServletResponse.SC_CONFLICT, e.getMessage());
+        }
+    }
+
     @Override()
     protected void copyOrMove(final FileObject _object,
                               final FileObject _target,
                               final int _depth)
         throws FileSystemException
     {
-        _object.moveTo(_target);
+        if (ChunkAssembly.isAssembly(_object)) {
+            try {
+                ChunkAssembly.assemble(_object.getParent(), _target);
+            } catch (final FileSystemException e) {
+                throw e;
+            } catch (final IOException e) {
+                throw new FileSystemException(e);
+            }
+            LockManager.getInstance().removeLocks(_object.getParent());
+        } else {
+            // the digest of a file is loaded into memory, so that it is
+            // carried over even if the attributes are not moved
+            if (FileType.FILE.equals(_object.getType())) {
+                ContentDigest.getInstance().getDigest(_object);
+            }
+            _object.moveTo(_target);
+            ContentCache.getInstance().invalidate(_object);
+            ContentCache.getInstance().invalidate(_target);
+            ContentDigest.getInstance().moved(_object, _target);
+            // locks are not moved with the resource (RFC 4918, section 7.7)
+            LockManager.getInstance().removeLocks(_object);
+        }
     }
 }
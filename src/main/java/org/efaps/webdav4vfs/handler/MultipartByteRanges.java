@@ -0,0 +1,138 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ * Copyright 2007 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.handler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Writes the boundaries and part headers of a
+ * <code>multipart/byteranges</code> body (see RFC 7233, appendix A).
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+final class MultipartByteRanges
+{
+    /**
+     * Content type used if the content type of the file is unknown.
+     */
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+    /**
+     * Boundary between the parts.
+     */
+    private final String boundary = UUID.randomUUID().toString().replace("-", "");
+
+    /**
+     * Content type of the file.
+     */
+    private final String partContentType;
+
+    /**
+     * Size of the complete content.
+     */
+    private final long size;
+
+    /**
+     * @param _contentType  content type of the file (or <code>null</code> if
+     *                      not known)
+     * @param _size         size of the complete content
+     */
+    MultipartByteRanges(final String _contentType,
+                        final long _size)
+    {
+        this.partContentType = (_contentType == null) ? MultipartByteRanges.DEFAULT_CONTENT_TYPE : _contentType;
+        this.size = _size;
+    }
+
+    /**
+     * @return content type of the multipart body
+     */
+    String getContentType()
+    {
+        return "multipart/byteranges; boundary=" + this.boundary;
+    }
+
+    /**
+     * Calculates the length of the complete multipart body.
+     *
+     * @param _ranges   byte ranges of the body
+     * @return length of the body
+     */
+    long getLength(final List<ByteRange> _ranges)
+    {
+        long ret = getEnd().length();
+        for (final ByteRange range : _ranges) {
+            ret += getPartHeader(range).length() + range.getLength();
+        }
+        return ret;
+    }
+
+    /**
+     * Writes the boundary and the header of the part for given range.
+     *
+     * @param _out      output stream
+     * @param _range    byte range of the part
+     * @throws IOException if the header could not be written
+     */
+    void writePartHeader(final OutputStream _out,
+                         final ByteRange _range)
+        throws IOException
+    {
+        _out.write(getPartHeader(_range).getBytes("US-ASCII"));
+    }
+
+    /**
+     * Writes the closing boundary.
+     *
+     * @param _out      output stream
+     * @throws IOException if the boundary could not be written
+     */
+    void writeEnd(final OutputStream _out)
+        throws IOException
+    {
+        _out.write(getEnd().getBytes("US-ASCII"));
+    }
+
+    /**
+     * @param _range    byte range of the part
+     * @return boundary and header of the part
+     */
+    private String getPartHeader(final ByteRange _range)
+    {
+        return "\r\n--" + this.boundary + "\r\n"
+            + "Content-Type: " + this.partContentType + "\r\n"
+            + "Content-Range: " + _range.getContentRange(this.size) + "\r\n"
+            + "\r\n";
+    }
+
+    /**
+     * @return closing boundary
+     */
+    private String getEnd()
+    {
+        return "\r\n--" + this.boundary + "--\r\n";
+    }
+}
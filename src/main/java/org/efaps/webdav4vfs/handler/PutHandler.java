@@ -22,20 +22,22 @@
 package org.efaps.webdav4vfs.handler;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.text.ParseException;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.vfs.FileObject;
 import org.apache.commons.vfs.FileType;
 import org.efaps.webdav4vfs.lock.LockException;
 import org.efaps.webdav4vfs.lock.LockManager;
+import org.efaps.webdav4vfs.util.Util;
+import org.efaps.webdav4vfs.vfs.ContentCache;
+import org.efaps.webdav4vfs.vfs.ContentCoordinator;
+import org.efaps.webdav4vfs.vfs.StagedFile;
+import org.efaps.webdav4vfs.vfs.Staging;
 import org.efaps.webdav4vfs.vfs.VFSBackend;
 
 
@@ -46,47 +48,312 @@ import org.efaps.webdav4vfs.vfs.VFSBackend;
 public class PutHandler extends AbstractWebdavHandler {
   private static final Log LOG = LogFactory.getLog(PutHandler.class);
 
+  /**
+   * Header with the number of already written bytes of a resumable upload.
+   */
+  static final String UPLOAD_OFFSET = "Upload-Offset";
+
+  /**
+   * Header with the total length of a resumable upload.
+   */
+  static final String UPLOAD_LENGTH = "Upload-Length";
+
+  /**
+   * Status code if there is not enough space for the content.
+   */
+  static final int SC_INSUFFICIENT_STORAGE = 507;
+
+  /**
+   * All preconditions (lock conditions, <code>If-Match</code> and
+   * <code>If-None-Match</code>, target, parent folder, permissions, length of
+   * the content) are checked before the body is read, so that a
+   * client which waits for a "100 Continue" (requested with
+   * <code>Expect: 100-continue</code>) never sends the body of a rejected
+   * request (the container sends the "100 Continue" only when the body is
+   * read).
+   */
   @Override
 public void service(HttpServletRequest request, HttpServletResponse response) throws IOException {
     FileObject object = VFSBackend.resolveFile(request.getPathInfo());
 
     try {
       if (!LockManager.getInstance().evaluateCondition(object, getIf(request)).result) {
-        response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+        reject(request, response, HttpServletResponse.SC_PRECONDITION_FAILED);
         return;
       }
     } catch (LockException e) {
-      response.sendError(SC_LOCKED);
+      reject(request, response, SC_LOCKED);
       return;
     } catch (ParseException e) {
-      response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+      reject(request, response, HttpServletResponse.SC_PRECONDITION_FAILED);
+      return;
+    }
+    if (!matchesConditions(request, object)) {
+      reject(request, response, HttpServletResponse.SC_PRECONDITION_FAILED);
       return;
     }
     // it is forbidden to write data on a folder
     if (object.exists() && FileType.FOLDER.equals(object.getType())) {
-      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      reject(request, response, HttpServletResponse.SC_FORBIDDEN);
       return;
     }
 
     FileObject parent = object.getParent();
     if (!parent.exists()) {
-      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      reject(request, response, HttpServletResponse.SC_FORBIDDEN);
       return;
     }
 
     if (!FileType.FOLDER.equals(parent.getType())) {
-      response.sendError(HttpServletResponse.SC_CONFLICT);
+      reject(request, response, HttpServletResponse.SC_CONFLICT);
+      return;
+    }
+
+    if (object.exists() ? !object.isWriteable() : !parent.isWriteable()) {
+      reject(request, response, HttpServletResponse.SC_FORBIDDEN);
       return;
     }
 
-    InputStream is = request.getInputStream();
-    OutputStream os = object.getContent().getOutputStream();
-    long bytesCopied = IOUtils.copyLarge(is, os);
     String contentLengthHeader = request.getHeader("Content-length");
-    LOG.debug(String.format("sent %d/%s bytes", bytesCopied, contentLengthHeader == null ? "unknown" : contentLengthHeader));
-    os.flush();
-    object.close();
+    long contentLength = -1;
+    if (contentLengthHeader != null) {
+      try {
+        contentLength = Long.parseLong(contentLengthHeader.trim());
+      } catch (NumberFormatException e) {
+        contentLength = -1;
+      }
+      if (contentLength < 0) {
+        reject(request, response, HttpServletResponse.SC_BAD_REQUEST);
+        return;
+      }
+    }
 
+    String contentRangeHeader = request.getHeader("Content-Range");
+    if (contentRangeHeader != null) {
+      serviceRange(request, response, object, contentRangeHeader, contentLength);
+      return;
+    }
+
+    final Staging staging = Staging.getInstance();
+    if (contentLength > staging.getMaxSize()) {
+      reject(request, response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+      return;
+    }
+    if (contentLength > 0 && !staging.hasSpace(object, contentLength)) {
+      reject(request, response, SC_INSUFFICIENT_STORAGE);
+      return;
+    }
+
+    // the content is staged first, so that readers never see a partial
+    // content and a failed upload does not destroy the existing file
+    final StagedFile stagedFile = staging.create(object);
+    try {
+      long bytesCopied = stagedFile.write(request.getInputStream());
+      LOG.debug(String.format("sent %d/%s bytes", bytesCopied, contentLengthHeader == null ? "unknown" : contentLengthHeader));
+      if (contentLengthHeader != null && contentLength != bytesCopied) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+        return;
+      }
+      // without a content length the size is known only after the upload
+      if (bytesCopied > staging.getMaxSize()) {
+        response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        return;
+      }
+      if (!commit(request, response, object, stagedFile)) {
+        return;
+      }
+    } finally {
+      stagedFile.discard();
+    }
+
+    // the digest of the content was computed while the content was staged
+    response.setHeader("ETag", Util.getETag(object));
     response.setStatus(HttpServletResponse.SC_CREATED);
   }
+
+  /**
+   * Writes a part of a resumable upload. The part must start at or before
+   * the already written bytes of the upload (otherwise 409 with the current
+   * offset in the header <code>Upload-Offset</code>). If the upload is
+   * complete, the target is replaced (201), otherwise the written bytes are
+   * reported with the headers <code>Upload-Offset</code> and
+   * <code>Range</code> (202). A part without bytes (<code>bytes *&#47;total</code>)
+   * only reports the state of the upload.
+   *
+   * @param request the request with the part of the content
+   * @param response the response
+   * @param object target of the upload
+   * @param contentRangeHeader value of the <code>Content-Range</code> header
+   * @param contentLength length of the body or <code>-1</code> if not known
+   * @throws IOException if the part could not be written
+   */
+  private void serviceRange(HttpServletRequest request, HttpServletResponse response, FileObject object, String contentRangeHeader, long contentLength) throws IOException {
+    ContentRange range = ContentRange.parse(contentRangeHeader);
+    if (range == null || contentLength >= 0 && contentLength != (range.isQuery() ? 0 : range.getLength())) {
+      reject(request, response, HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+    final Staging staging = Staging.getInstance();
+    if (range.getTotal() > staging.getMaxSize()) {
+      reject(request, response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+      return;
+    }
+    if (!range.isQuery() && !staging.hasSpace(object, range.getLength(), true)) {
+      reject(request, response, SC_INSUFFICIENT_STORAGE);
+      return;
+    }
+
+    StagedFile upload = staging.getUpload(object, true);
+    // another part of the upload could still be written (e.g. by a stalled
+    // client); the part is not waited for longer than for a content lock
+    boolean locked;
+    try {
+      locked = upload.tryLock(ContentCoordinator.getInstance().getTimeout());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      locked = false;
+    }
+    if (!locked) {
+      response.setHeader(UPLOAD_OFFSET, String.valueOf(upload.getSize()));
+      reject(request, response, HttpServletResponse.SC_CONFLICT);
+      return;
+    }
+    try {
+      if (range.getTotal() >= 0) {
+        if (upload.getLength() >= 0 && upload.getLength() != range.getTotal()) {
+          reject(request, response, HttpServletResponse.SC_CONFLICT);
+          return;
+        }
+        upload.setLength(range.getTotal());
+      }
+      if (!range.isQuery()) {
+        if (range.getFirst() > upload.getSize()) {
+          response.setHeader(UPLOAD_OFFSET, String.valueOf(upload.getSize()));
+          reject(request, response, HttpServletResponse.SC_CONFLICT);
+          return;
+        }
+        long bytesCopied = upload.write(request.getInputStream(), range.getFirst());
+        LOG.debug(String.format("sent %d bytes of %s", bytesCopied, range));
+        if (bytesCopied != range.getLength()) {
+          response.setHeader(UPLOAD_OFFSET, String.valueOf(upload.getSize()));
+          response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+          return;
+        }
+      }
+      if (upload.getLength() >= 0 && upload.getSize() >= upload.getLength()) {
+        if (commit(request, response, object, upload)) {
+          response.setStatus(HttpServletResponse.SC_CREATED);
+        }
+      } else {
+        response.setHeader(UPLOAD_OFFSET, String.valueOf(upload.getSize()));
+        if (upload.getSize() > 0) {
+          response.setHeader("Range", "bytes=0-" + (upload.getSize() - 1));
+        }
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+      }
+    } finally {
+      upload.unlock();
+    }
+  }
+
+  /**
+   * Rejects the request before its body is read. If the client did not
+   * wait for a "100 Continue", it is already sending the body; the
+   * connection is closed, so that the container does not read the rest of
+   * the body to reuse the connection.
+   *
+   * @param request the rejected request
+   * @param response the response
+   * @param status status code of the rejection
+   * @throws IOException if the error could not be sent
+   */
+  private void reject(HttpServletRequest request, HttpServletResponse response, int status) throws IOException {
+    String expect = request.getHeader("Expect");
+    if (request.getContentLength() != 0 && (expect == null || !"100-continue".equalsIgnoreCase(expect.trim()))) {
+      response.setHeader("Connection", "close");
+    }
+    response.sendError(status);
+  }
+
+  /**
+   * Evaluates the headers <code>If-Match</code> and <code>If-None-Match</code>
+   * against the current entity tag of the target (RFC 7232, section 3.1 and
+   * 3.2): <code>If-Match</code> must match strongly an existing target,
+   * <code>If-None-Match</code> must not match (weakly) an existing target,
+   * so that <code>If-None-Match: *</code> only creates a new file.
+   *
+   * @param request the request
+   * @param object target
+   * @return <i>true</i> if the conditions are fulfilled
+   * @throws IOException if the target could not be accessed
+   */
+  private boolean matchesConditions(HttpServletRequest request, FileObject object) throws IOException {
+    String ifMatch = request.getHeader("If-Match");
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    boolean ret = true;
+    if (ifMatch != null || ifNoneMatch != null) {
+      object.refresh();
+      String etag = object.exists() ? Util.getETag(object) : null;
+      if (ifMatch != null) {
+        ret = etag != null && GetHandler.matchesETag(ifMatch, etag, false);
+      }
+      if (ret && ifNoneMatch != null) {
+        ret = etag == null || !GetHandler.matchesETag(ifNoneMatch, etag, true);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Replaces the target with the staged content while no one else reads or
+   * writes the target. The read lock of the parent is held as well, so that
+   * no chunk is added to an upload collection while its chunks are
+   * assembled (see {@link org.efaps.webdav4vfs.vfs.ChunkAssembly}). The
+   * conditional headers are evaluated again, because the target could have
+   * been replaced while the body was read.
+   *
+   * @param request the request
+   * @param response the response
+   * @param object target
+   * @param stagedFile staged content
+   * @return <i>true</i> if committed, <i>false</i> if the target could not
+   *         be locked or a condition failed (the error is already sent)
+   * @throws IOException if the target could not be replaced
+   */
+  private boolean commit(HttpServletRequest request, HttpServletResponse response, FileObject object, StagedFile stagedFile) throws IOException {
+    // a spooled content is copied next to the target before it is locked
+    stagedFile.prepare();
+    // serialize concurrent writers of the same resource (also if not locked)
+    final ContentCoordinator coordinator = ContentCoordinator.getInstance();
+    ContentCoordinator.HeldLock parentLock = null;
+    ContentCoordinator.HeldLock writeLock = null;
+    try {
+      parentLock = coordinator.acquireRead(object.getParent());
+      if (parentLock != null) {
+        writeLock = coordinator.acquireWrite(object);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (writeLock == null) {
+      if (parentLock != null) {
+        parentLock.unlock();
+      }
+      response.sendError(SC_LOCKED);
+      return false;
+    }
+    try {
+      if (!matchesConditions(request, object)) {
+        response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+        return false;
+      }
+      stagedFile.commit();
+      object.close();
+    } finally {
+      ContentCache.getInstance().invalidate(object);
+      writeLock.unlock();
+      parentLock.unlock();
+    }
+    return true;
+  }
 }
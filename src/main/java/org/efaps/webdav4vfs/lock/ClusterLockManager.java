@@ -0,0 +1,390 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.lock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystemException;
+
+/**
+ * Lock manager for a cluster of servlet nodes sharing the same VFS root. All
+ * locks are held as leases in a {@link SharedLockRegistry}; the registry
+ * decides about conflicts, so a lock acquired on one node is seen by all
+ * other nodes. Because locks are discovered much more often than they are
+ * changed, the discovered locks are held in a near-cache of this node. An
+ * entry of the near-cache is invalidated if the registry reports a change
+ * of the locks of the path (or of a parent path); additionally each entry is
+ * only valid for a short lease time and never longer than the first of its
+ * locks expires, so that even a lost change notification of a remote
+ * registry is only visible for this lease time. A path without locks is
+ * never cached: a lost notification of a new lock could otherwise hide the
+ * lock of another node for the lease time, so that a conflicting write is
+ * allowed.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+public class ClusterLockManager
+    extends LockManager
+{
+    /**
+     * Logging instance used in this class.
+     */
+    private static final Log LOG = LogFactory.getLog(ClusterLockManager.class);
+
+    /**
+     * Default lease time of the near-cache entries in milliseconds.
+     */
+    private static final long DEFAULT_CACHE_LEASE = 5000;
+
+    /**
+     * Registry holding the locks of all nodes.
+     */
+    private final SharedLockRegistry registry;
+
+    /**
+     * Root file object used to resolve the paths of the leases.
+     */
+    private final FileObject root;
+
+    /**
+     * Lease time of the near-cache entries in milliseconds.
+     */
+    private final long cacheLease;
+
+    /**
+     * Near-cache of the discovered locks depending on the path. The map is
+     * sorted so that the entries of all descendants of a path could be
+     * invalidated as one range.
+     */
+    private final ConcurrentNavigableMap<String, CacheEntry> cache
+        = new ConcurrentSkipListMap<String, CacheEntry>();
+
+    /**
+     * Incremented with each invalidation, so that discovered locks which
+     * were read from the registry before an invalidation are not cached.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Listener registered at the registry to invalidate the near-cache.
+     */
+    private final SharedLockRegistry.Listener listener = new SharedLockRegistry.Listener() {
+        public void changed(final String _path)
+        {
+            invalidate(_path);
+        }
+    };
+
+    /**
+     * Number of round trips to the registry.
+     */
+    private final AtomicLong roundTrips = new AtomicLong();
+
+    /**
+     * Sum of the durations of all round trips to the registry in
+     * nanoseconds.
+     */
+    private final AtomicLong roundTripNanos = new AtomicLong();
+
+    /**
+     * @param _registry registry holding the locks of all nodes
+     * @param _root     root file object of the shared VFS
+     */
+    public ClusterLockManager(final SharedLockRegistry _registry,
+                              final FileObject _root)
+    {
+        this(_registry, _root, ClusterLockManager.DEFAULT_CACHE_LEASE);
+    }
+
+    /**
+     * @param _registry     registry holding the locks of all nodes
+     * @param _root         root file object of the shared VFS
+     * @param _cacheLease   lease time of the near-cache entries in
+     *                      milliseconds (<code>0</code> disables the cache)
+     */
+    public ClusterLockManager(final SharedLockRegistry _registry,
+                              final FileObject _root,
+                              final long _cacheLease)
+    {
+        this.registry = _registry;
+        this.root = _root;
+        this.cacheLease = _cacheLease;
+        this.registry.addListener(this.listener);
+    }
+
+    /**
+     * Acquires the lock in the registry.
+     *
+     * @param _lock the lock to acquire
+     * @throws LockConflictException if an existing lock has priority
+     * @throws FileSystemException   if a conflicting lock cannot be resolved
+     */
+    @Override()
+    public void acquireLock(final Lock _lock)
+        throws LockConflictException, FileSystemException
+    {
+        final long start = System.nanoTime();
+        final List<LockLease> conflicts;
+        try {
+            conflicts = this.registry.acquire(new LockLease(_lock));
+        } finally {
+            recordRoundTrip(start);
+            LockMetrics.ACQUIRE.recordSince(start);
+        }
+        if (!conflicts.isEmpty()) {
+            LockMetrics.conflict(_lock);
+            throw new LockConflictException(toLocks(conflicts));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public void refreshLock(final Lock _lock,
+                            final long _timeout)
+    {
+        _lock.refresh(_timeout);
+        final long start = System.nanoTime();
+        final LockLease lease;
+        try {
+            lease = this.registry.refresh(_lock.getToken(), _timeout, _lock.getExpires());
+        } finally {
+            recordRoundTrip(start);
+        }
+        if (lease == null) {
+            LOG.warn(String.format("refreshed lock is not known by the registry: %s", _lock));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public boolean releaseLock(final FileObject _object,
+                               final String _token)
+    {
+        final long start = System.nanoTime();
+        try {
+            return this.registry.release(_object.getName().getPath(), _token);
+        } finally {
+            recordRoundTrip(start);
+            LockMetrics.RELEASE.recordSince(start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public int removeLocks(final FileObject _object)
+    {
+        final long start = System.nanoTime();
+        try {
+            return this.registry.removeTree(_object.getName().getPath());
+        } finally {
+            recordRoundTrip(start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public int getLockCount()
+    {
+        final long start = System.nanoTime();
+        try {
+            return this.registry.size();
+        } finally {
+            recordRoundTrip(start);
+        }
+    }
+
+    /**
+     * Discovers the locks from the near-cache. Only if the cache has no
+     * valid entry for the file object the registry is asked. Only found
+     * locks are cached, the registry is always asked for a file object
+     * without locks.
+     *
+     * @param _object   the file object to find locks for
+     * @return the locks that are found for this file object
+     * @throws FileSystemException if a discovered lock cannot be resolved
+     */
+    @Override()
+    public List<Lock> discoverLock(final FileObject _object)
+        throws FileSystemException
+    {
+        final String path = _object.getName().getPath();
+        final long now = System.currentTimeMillis();
+        final CacheEntry entry = this.cache.get(path);
+        final List<Lock> ret;
+        if ((entry != null) && (now < entry.validUntil)) {
+            ret = entry.locks;
+        } else {
+            final long gen = this.generation.get();
+            final long start = System.nanoTime();
+            final List<LockLease> leases;
+            try {
+                leases = this.registry.discover(path);
+            } finally {
+                recordRoundTrip(start);
+            }
+            ret = ((leases == null) || leases.isEmpty()) ? null : Collections.unmodifiableList(toLocks(leases));
+            if (ret == null) {
+                this.cache.remove(path);
+            } else if (this.cacheLease > 0) {
+                long validUntil = now + this.cacheLease;
+                for (final LockLease lease : leases) {
+                    validUntil = Math.min(validUntil, lease.getExpires());
+                }
+                final CacheEntry newEntry = new CacheEntry(ret, validUntil);
+                this.cache.put(path, newEntry);
+                // the locks were changed while they were read from the registry
+                if (this.generation.get() != gen) {
+                    this.cache.remove(path, newEntry);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Unregisters from the registry and clears the near-cache.
+     */
+    @Override()
+    public void close()
+    {
+        this.registry.removeListener(this.listener);
+        this.cache.clear();
+    }
+
+    /**
+     * Returns the number of round trips to the registry.
+     *
+     * @return number of round trips
+     */
+    public long getRoundTrips()
+    {
+        return this.roundTrips.get();
+    }
+
+    /**
+     * Returns the average duration of a round trip to the registry.
+     *
+     * @return average duration in nanoseconds (<code>0</code> if the
+     *         registry was not called)
+     */
+    public long getAverageRoundTripNanos()
+    {
+        final long count = this.roundTrips.get();
+        return (count == 0) ? 0 : this.roundTripNanos.get() / count;
+    }
+
+    /**
+     * Invalidates the near-cache entries of given path and of all its
+     * descendants, because the locks of a path also apply to the
+     * descendants.
+     *
+     * @param _path     path with changed locks
+     */
+    private void invalidate(final String _path)
+    {
+        this.generation.incrementAndGet();
+        if ("/".equals(_path)) {
+            this.cache.clear();
+        } else {
+            this.cache.remove(_path);
+            this.cache.subMap(_path + "/", _path + "/" + Character.MAX_VALUE).clear();
+        }
+    }
+
+    /**
+     * Records the duration of one round trip to the registry.
+     *
+     * @param _start    start time of the round trip in nanoseconds
+     */
+    private void recordRoundTrip(final long _start)
+    {
+        final long duration = System.nanoTime() - _start;
+        this.roundTrips.incrementAndGet();
+        this.roundTripNanos.addAndGet(duration);
+        LockMetrics.REGISTRY_ROUND_TRIP.record(duration);
+        if (LOG.isTraceEnabled()) {
+            LOG.trace(String.format("lock registry round trip took %d ns", duration));
+        }
+    }
+
+    /**
+     * Converts given leases to locks of this node.
+     *
+     * @param _leases   leases to convert
+     * @return list of locks
+     * @throws FileSystemException if the path of a lease cannot be resolved
+     */
+    private List<Lock> toLocks(final List<LockLease> _leases)
+        throws FileSystemException
+    {
+        final List<Lock> ret = new ArrayList<Lock>(_leases.size());
+        for (final LockLease lease : _leases) {
+            ret.add(new Lock(this.root.getFileSystem().resolveFile(lease.getPath()),
+                             lease.getType(), lease.getScope(), lease.getOwner(), lease.getDepth(),
+                             lease.getTimeout(), lease.getToken(), lease.getExpires()));
+        }
+        return ret;
+    }
+
+    /**
+     * Entry of the near-cache.
+     */
+    private static final class CacheEntry
+    {
+        /**
+         * Discovered locks (or <code>null</code> if not locked).
+         */
+        private final List<Lock> locks;
+
+        /**
+         * Time in milliseconds until the entry is valid.
+         */
+        private final long validUntil;
+
+        /**
+         * @param _locks        discovered locks
+         * @param _validUntil   time until the entry is valid
+         */
+        private CacheEntry(final List<Lock> _locks,
+                           final long _validUntil)
+        {
+            this.locks = _locks;
+            this.validUntil = _validUntil;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.lock;
+
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable syntax tree of a parsed 'If:' header. The header is a list of
+ * {@link TaggedList tagged lists}; each tagged list defines the resource
+ * the conditions apply to (or no resource for a No-tag-list) and the lists
+ * of conditions for this resource. The lists of conditions constitute an OR
+ * expression while the conditions within one list constitute an AND
+ * expression.
+ * <p/>
+ * Clients send the same 'If:' headers again and again, so parsed headers
+ * are held in a small LRU cache (see {@link #parse(String)}).
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+public final class IfHeader
+{
+    /**
+     * Maximum number of cached headers.
+     */
+    private static final int CACHE_SIZE = 512;
+
+    /**
+     * Maximum length of a header which is cached (to limit the memory used
+     * by the cache).
+     */
+    private static final int CACHE_MAX_LENGTH = 2048;
+
+    /**
+     * LRU cache of the parsed headers.
+     */
+    private static final Map<String, IfHeader> CACHE = new LinkedHashMap<String, IfHeader>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override()
+        protected boolean removeEldestEntry(final Map.Entry<String, IfHeader> _eldest)
+        {
+            return size() > IfHeader.CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Tagged lists of the header.
+     */
+    private final List<TaggedList> taggedLists;
+
+    /**
+     * @param _taggedLists  tagged lists of the header
+     */
+    IfHeader(final List<TaggedList> _taggedLists)
+    {
+        this.taggedLists = Collections.unmodifiableList(_taggedLists);
+    }
+
+    /**
+     * Returns the parsed 'If:' header for given header value. The header is
+     * only parsed if it is not already cached.
+     *
+     * @param _header   value of the 'If:' header
+     * @return parsed header
+     * @throws ParseException if the header does not meet the syntax
+     *                        requirements
+     */
+    public static IfHeader parse(final String _header)
+        throws ParseException
+    {
+        IfHeader ret;
+        synchronized (IfHeader.CACHE) {
+            ret = IfHeader.CACHE.get(_header);
+        }
+        if (ret == null) {
+            ret = new IfHeaderParser(_header).parse();
+            if (_header.length() <= IfHeader.CACHE_MAX_LENGTH) {
+                synchronized (IfHeader.CACHE) {
+                    IfHeader.CACHE.put(_header, ret);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return tagged lists of the header
+     */
+    public List<TaggedList> getTaggedLists()
+    {
+        return this.taggedLists;
+    }
+
+    @Override()
+    public String toString()
+    {
+        final StringBuilder ret = new StringBuilder();
+        for (final TaggedList taggedList : this.taggedLists) {
+            if (ret.length() > 0) {
+                ret.append(' ');
+            }
+            ret.append(taggedList);
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Lists of conditions for one resource.
+     */
+    public static final class TaggedList
+    {
+        /**
+         * Path of the tagged resource (<code>null</code> for a No-tag-list).
+         */
+        private final String path;
+
+        /**
+         * Lists of conditions (OR expression).
+         */
+        private final List<List<Condition>> lists;
+
+        /**
+         * @param _path     path of the tagged resource
+         * @param _lists    lists of conditions
+         */
+        TaggedList(final String _path,
+                   final List<List<Condition>> _lists)
+        {
+            this.path = _path;
+            this.lists = Collections.unmodifiableList(_lists);
+        }
+
+        /**
+         * @return path of the tagged resource or <code>null</code> if the
+         *         conditions apply to the requested resource
+         */
+        public String getPath()
+        {
+            return this.path;
+        }
+
+        /**
+         * @return lists of conditions; each list is an AND expression
+         */
+        public List<List<Condition>> getLists()
+        {
+            return this.lists;
+        }
+
+        @Override()
+        public String toString()
+        {
+            final StringBuilder ret = new StringBuilder();
+            if (this.path != null) {
+                ret.append('<').append(this.path).append('>');
+            }
+            for (final List<Condition> list : this.lists) {
+                if (ret.length() > 0) {
+                    ret.append(' ');
+                }
+                ret.append('(');
+                for (int idx = 0; idx < list.size(); idx++) {
+                    if (idx > 0) {
+                        ret.append(' ');
+                    }
+                    ret.append(list.get(idx));
+                }
+                ret.append(')');
+            }
+            return ret.toString();
+        }
+    }
+
+    /**
+     * One condition of a list: a state token or an entity tag which could be
+     * negated.
+     */
+    public static final class Condition
+    {
+        /**
+         * Type of a condition.
+         */
+        public enum Type
+        {
+            /** The condition is a lock state token. */
+            STATE_TOKEN,
+            /** The condition is an entity tag. */
+            ENTITY_TAG
+        }
+
+        /**
+         * Type of the condition.
+         */
+        private final Type type;
+
+        /**
+         * Is the condition negated with 'Not'?
+         */
+        private final boolean negated;
+
+        /**
+         * State token or entity tag.
+         */
+        private final String value;
+
+        /**
+         * @param _type     type of the condition
+         * @param _negated  is the condition negated?
+         * @param _value    state token or entity tag
+         */
+        Condition(final Type _type,
+                  final boolean _negated,
+                  final String _value)
+        {
+            this.type = _type;
+            this.negated = _negated;
+            this.value = _value;
+        }
+
+        /**
+         * @return type of the condition
+         */
+        public Type getType()
+        {
+            return this.type;
+        }
+
+        /**
+         * @return <i>true</i> if the condition is negated
+         */
+        public boolean isNegated()
+        {
+            return this.negated;
+        }
+
+        /**
+         * @return state token or entity tag
+         */
+        public String getValue()
+        {
+            return this.value;
+        }
+
+        @Override()
+        public String toString()
+        {
+            return (this.negated ? "Not " : "")
+                    + ((this.type == Condition.Type.STATE_TOKEN) ? "<" + this.value + ">" : "[" + this.value + "]");
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.lock;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single pass parser of an 'If:' header (see RFC 4918, section 10.4):
+ * <pre>
+ * If = "If" ":" ( 1*No-tag-list | 1*Tagged-list )
+ * No-tag-list = List
+ * Tagged-list = Resource-Tag 1*List
+ * List = "(" 1*Condition ")"
+ * Condition = ["Not"] (State-token | "[" entity-tag "]")
+ * </pre>
+ * The parser reads the header character by character; only the values of
+ * the state tokens, entity tags and resource tags are copied.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+final class IfHeaderParser
+{
+    /**
+     * Header to parse.
+     */
+    private final String header;
+
+    /**
+     * Current position within the header.
+     */
+    private int pos;
+
+    /**
+     * @param _header   header to parse
+     */
+    IfHeaderParser(final String _header)
+    {
+        this.header = _header;
+    }
+
+    /**
+     * Parses the header.
+     *
+     * @return parsed header
+     * @throws ParseException if the header does not meet the syntax
+     *                        requirements
+     */
+    IfHeader parse()
+        throws ParseException
+    {
+        final List<IfHeader.TaggedList> taggedLists = new ArrayList<IfHeader.TaggedList>(1);
+        String path = null;
+        List<List<IfHeader.Condition>> lists = null;
+        skipWhitespace();
+        while (this.pos < this.header.length()) {
+            final char ch = this.header.charAt(this.pos);
+            if (ch == '<') {
+                if (lists != null) {
+                    taggedLists.add(new IfHeader.TaggedList(path, lists));
+                }
+                final int start = this.pos;
+                final String uri = readUntil('>');
+                try {
+                    path = new URI(uri).getPath();
+                } catch (final URISyntaxException e) {
+                    throw new ParseException(String.format("invalid resource tag '%s' in '%s'", uri, this.header),
+                                             start);
+                }
+                lists = new ArrayList<List<IfHeader.Condition>>(1);
+            } else if (ch == '(') {
+                if (lists == null) {
+                    lists = new ArrayList<List<IfHeader.Condition>>(1);
+                }
+                lists.add(parseList());
+            } else {
+                throw syntaxError();
+            }
+            skipWhitespace();
+        }
+        if (lists != null) {
+            taggedLists.add(new IfHeader.TaggedList(path, lists));
+        }
+        return new IfHeader(taggedLists);
+    }
+
+    /**
+     * Parses one list of conditions, beginning at the opening brace.
+     *
+     * @return list of conditions
+     * @throws ParseException if the list is not valid
+     */
+    private List<IfHeader.Condition> parseList()
+        throws ParseException
+    {
+        final List<IfHeader.Condition> ret = new ArrayList<IfHeader.Condition>(2);
+        this.pos++;
+        skipWhitespace();
+        while ((this.pos < this.header.length()) && (this.header.charAt(this.pos) != ')')) {
+            boolean negated = false;
+            if (this.header.regionMatches(true, this.pos, "not", 0, 3)) {
+                negated = true;
+                this.pos += 3;
+                skipWhitespace();
+            }
+            if (this.pos >= this.header.length()) {
+                throw syntaxError();
+            }
+            switch (this.header.charAt(this.pos)) {
+                case '<':
+                    ret.add(new IfHeader.Condition(IfHeader.Condition.Type.STATE_TOKEN, negated, readUntil('>')));
+                    break;
+                case '[':
+                    ret.add(new IfHeader.Condition(IfHeader.Condition.Type.ENTITY_TAG, negated, readUntil(']')));
+                    break;
+                default:
+                    throw syntaxError();
+            }
+            skipWhitespace();
+        }
+        if ((this.pos >= this.header.length()) || ret.isEmpty()) {
+            throw syntaxError();
+        }
+        this.pos++;
+        return ret;
+    }
+
+    /**
+     * Reads the value between the current character (the opening
+     * character) and given closing character. The value must not be empty.
+     *
+     * @param _closing  closing character
+     * @return read value
+     * @throws ParseException if the closing character is not found or the
+     *                        value is empty
+     */
+    private String readUntil(final char _closing)
+        throws ParseException
+    {
+        final int start = this.pos + 1;
+        final int end = this.header.indexOf(_closing, start);
+        if (end <= start) {
+            throw syntaxError();
+        }
+        this.pos = end + 1;
+        return this.header.substring(start, end);
+    }
+
+    /**
+     * Skips all whitespace characters.
+     */
+    private void skipWhitespace()
+    {
+        while ((this.pos < this.header.length()) && Character.isWhitespace(this.header.charAt(this.pos))) {
+            this.pos++;
+        }
+    }
+
+    /**
+     * Creates the exception for a syntax error at the current position.
+     *
+     * @return parse exception
+     */
+    private ParseException syntaxError()
+    {
+        return new ParseException(String.format("syntax error in condition '%s' at %d", this.header, this.pos),
+                                  this.pos);
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.lock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Shared lock registry which holds the leases in the memory of this JVM. The
+ * registry could be shared between several {@link ClusterLockManager lock
+ * managers} of the same JVM (e.g. several servlet contexts on the same VFS
+ * root) and is used as stand-in for a distributed registry in the tests. To
+ * simulate a remote registry, a latency could be defined for each call.
+ * The leases are held in a sorted map of the paths, so that the leases of
+ * all descendants of a path are one range of the map.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+public class InMemorySharedLockRegistry
+    implements SharedLockRegistry
+{
+    /**
+     * Logging instance used in this class.
+     */
+    private static final Log LOG = LogFactory.getLog(InMemorySharedLockRegistry.class);
+
+    /**
+     * Simulated latency of each call in milliseconds.
+     */
+    private final long latency;
+
+    /**
+     * Leases depending on the path of the locked file objects.
+     */
+    private final TreeMap<String, List<LockLease>> paths = new TreeMap<String, List<LockLease>>();
+
+    /**
+     * Leases depending on the lock tokens.
+     */
+    private final Map<String, LockLease> tokens = new HashMap<String, LockLease>();
+
+    /**
+     * Registered listeners.
+     */
+    private final List<SharedLockRegistry.Listener> listeners
+        = new CopyOnWriteArrayList<SharedLockRegistry.Listener>();
+
+    /**
+     * Creates a registry without latency.
+     */
+    public InMemorySharedLockRegistry()
+    {
+        this(0);
+    }
+
+    /**
+     * @param _latency  simulated latency of each call in milliseconds
+     */
+    public InMemorySharedLockRegistry(final long _latency)
+    {
+        this.latency = _latency;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<LockLease> acquire(final LockLease _lease)
+    {
+        simulateLatency();
+        final List<LockLease> ret;
+        synchronized (this) {
+            ret = getConflicts(_lease, System.currentTimeMillis());
+            if (ret.isEmpty()) {
+                List<LockLease> leases = this.paths.get(_lease.getPath());
+                if (leases == null) {
+                    leases = new ArrayList<LockLease>();
+                    this.paths.put(_lease.getPath(), leases);
+                }
+                leases.add(_lease);
+                this.tokens.put(_lease.getToken(), _lease);
+            }
+        }
+        if (ret.isEmpty()) {
+            fireChanged(_lease.getPath());
+        }
+        return ret;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public LockLease refresh(final String _token,
+                             final long _timeout,
+                             final long _expires)
+    {
+        simulateLatency();
+        LockLease ret = null;
+        synchronized (this) {
+            final LockLease lease = this.tokens.get(_token);
+            if ((lease != null) && !lease.isExpired(System.currentTimeMillis())) {
+                ret = lease.refresh(_timeout, _expires);
+                final List<LockLease> leases = this.paths.get(lease.getPath());
+                leases.set(leases.indexOf(lease), ret);
+                this.tokens.put(_token, ret);
+            }
+        }
+        if (ret != null) {
+            fireChanged(ret.getPath());
+        }
+        return ret;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean release(final String _path,
+                           final String _token)
+    {
+        simulateLatency();
+        boolean released = false;
+        final boolean ret;
+        synchronized (this) {
+            final LockLease lease = this.tokens.get(_token);
+            if ((lease != null) && lease.getPath().equals(_path)) {
+                remove(lease);
+                released = true;
+            }
+            ret = released || getLeases(_path, System.currentTimeMillis()).isEmpty();
+        }
+        if (released) {
+            fireChanged(_path);
+        }
+        return ret;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int removeTree(final String _path)
+    {
+        simulateLatency();
+        int ret = 0;
+        synchronized (this) {
+            final List<String> paths = new ArrayList<String>();
+            if (this.paths.containsKey(_path)) {
+                paths.add(_path);
+            }
+            final String prefix = _path.endsWith("/") ? _path : _path + "/";
+            for (final String path : this.paths.subMap(prefix, prefix + Character.MAX_VALUE).keySet()) {
+                if (!path.equals(_path)) {
+                    paths.add(path);
+                }
+            }
+            for (final String path : paths) {
+                for (final LockLease lease : this.paths.remove(path)) {
+                    this.tokens.remove(lease.getToken());
+                    ret++;
+                }
+            }
+        }
+        if (ret > 0) {
+            fireChanged(_path);
+        }
+        return ret;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized int size()
+    {
+        return this.tokens.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<LockLease> discover(final String _path)
+    {
+        simulateLatency();
+        final long now = System.currentTimeMillis();
+        List<LockLease> ret = null;
+        synchronized (this) {
+            String path = _path;
+            while ((ret == null) && (path != null)) {
+                final List<LockLease> leases = getLeases(path, now);
+                if (!leases.isEmpty()) {
+                    ret = Collections.unmodifiableList(new ArrayList<LockLease>(leases));
+                }
+                path = getParentPath(path);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void addListener(final SharedLockRegistry.Listener _listener)
+    {
+        this.listeners.add(_listener);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void removeListener(final SharedLockRegistry.Listener _listener)
+    {
+        this.listeners.remove(_listener);
+    }
+
+    /**
+     * Searches all leases which conflicts with given <code>_lease</code>.
+     * First the path up to the root is checked and afterwards (if the depth
+     * requires it) the leases of the descendants.
+     *
+     * @param _lease    requested lease
+     * @param _now      current time in milliseconds
+     * @return list of conflicting leases (empty if no conflict exists)
+     */
+    private List<LockLease> getConflicts(final LockLease _lease,
+                                         final long _now)
+    {
+        final boolean exclusive = Lock.EXCLUSIVE.equals(_lease.getScope());
+        String path = _lease.getPath();
+        while (path != null) {
+            final List<LockLease> leases = getLeases(path, _now);
+            for (final LockLease lease : leases) {
+                if (exclusive || Lock.EXCLUSIVE.equals(lease.getScope())) {
+                    return new ArrayList<LockLease>(leases);
+                }
+            }
+            path = getParentPath(path);
+        }
+
+        final List<LockLease> ret = new ArrayList<LockLease>();
+        if (_lease.getDepth() != 0) {
+            final String prefix = _lease.getPath().endsWith("/") ? _lease.getPath() : _lease.getPath() + "/";
+            final List<String> descendants
+                = new ArrayList<String>(this.paths.subMap(prefix, prefix + Character.MAX_VALUE).keySet());
+            for (final String descendant : descendants) {
+                if (!descendant.equals(_lease.getPath())
+                        && ((_lease.getDepth() > 1) || (descendant.indexOf('/', prefix.length()) < 0))) {
+                    for (final LockLease lease : getLeases(descendant, _now)) {
+                        if (exclusive || Lock.EXCLUSIVE.equals(lease.getScope())) {
+                            ret.add(lease);
+                        }
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the not expired leases of given path. Expired leases are
+     * removed.
+     *
+     * @param _path     path
+     * @param _now      current time in milliseconds
+     * @return list of leases (empty if the path has no leases)
+     */
+    private List<LockLease> getLeases(final String _path,
+                                      final long _now)
+    {
+        final List<LockLease> leases = this.paths.get(_path);
+        final List<LockLease> ret;
+        if (leases == null) {
+            ret = Collections.emptyList();
+        } else {
+            final Iterator<LockLease> iter = leases.iterator();
+            while (iter.hasNext()) {
+                final LockLease lease = iter.next();
+                if (lease.isExpired(_now)) {
+                    iter.remove();
+                    this.tokens.remove(lease.getToken());
+                }
+            }
+            if (leases.isEmpty()) {
+                this.paths.remove(_path);
+            }
+            ret = leases;
+        }
+        return ret;
+    }
+
+    /**
+     * Removes given <code>_lease</code>.
+     *
+     * @param _lease    lease to remove
+     */
+    private void remove(final LockLease _lease)
+    {
+        this.tokens.remove(_lease.getToken());
+        final List<LockLease> leases = this.paths.get(_lease.getPath());
+        leases.remove(_lease);
+        if (leases.isEmpty()) {
+            this.paths.remove(_lease.getPath());
+        }
+    }
+
+    /**
+     * Returns the path of the parent.
+     *
+     * @param _path     path
+     * @return path of the parent or <code>null</code> for the root path
+     */
+    private String getParentPath(final String _path)
+    {
+        final String ret;
+        final int idx = _path.lastIndexOf('/');
+        if ((idx < 0) || "/".equals(_path)) {
+            ret = null;
+        } else if (idx == 0) {
+            ret = "/";
+        } else {
+            ret = _path.substring(0, idx);
+        }
+        return ret;
+    }
+
+    /**
+     * Informs all listeners about changed locks for given <code>_path</code>.
+     *
+     * @param _path     path of the changed locks
+     */
+    private void fireChanged(final String _path)
+    {
+        for (final SharedLockRegistry.Listener listener : this.listeners) {
+            try {
+                listener.changed(_path);
+            } catch (final RuntimeException e) {
+                LOG.error("listener failed for changed locks of " + _path, e);
+            }
+        }
+    }
+
+    /**
+     * Sleeps for the simulated latency.
+     */
+    private void simulateLatency()
+    {
+        if (this.latency > 0) {
+            try {
+                Thread.sleep(this.latency);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
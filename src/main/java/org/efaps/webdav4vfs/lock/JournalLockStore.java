@@ -0,0 +1,842 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.lock;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystemException;
+
+/**
+ * Lock store which writes all changes of locks into an append-only journal
+ * file. The journal is memory mapped in regions, so appending a change is
+ * only a copy into the mapped region. A background thread forces the
+ * written regions (also the full regions of a rollover) to the disk in a
+ * fixed interval (group commit), so a LOCK request never waits for a sync
+ * of the disk. If the journal contains too many obsolete records, the
+ * background thread compacts the journal by rewriting only the current
+ * locks. The compacted journal is written and forced without holding the
+ * monitor of this store; records appended meanwhile are appended again to
+ * the compacted journal when it replaces the journal.
+ * <p/>
+ * Each record of the journal is written as length, CRC32 checksum and the
+ * record data. A record with a length of zero marks the end of the journal,
+ * a length of <code>-1</code> the end of a region. While loading, the
+ * journal is read up to the first invalid record.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+public class JournalLockStore
+    implements LockStore
+{
+    /**
+     * Logging instance used in this class.
+     */
+    private static final Log LOG = LogFactory.getLog(JournalLockStore.class);
+
+    /**
+     * Record type for an acquired lock.
+     */
+    private static final byte OP_STORE = 1;
+
+    /**
+     * Record type for a refreshed lock.
+     */
+    private static final byte OP_REFRESH = 2;
+
+    /**
+     * Record type for a removed lock.
+     */
+    private static final byte OP_REMOVE = 3;
+
+    /**
+     * The owner of the lock is not defined.
+     */
+    private static final byte OWNER_NONE = 0;
+
+    /**
+     * The owner of the lock is a text.
+     */
+    private static final byte OWNER_TEXT = 1;
+
+    /**
+     * The owner of the lock is an URL.
+     */
+    private static final byte OWNER_URL = 2;
+
+    /**
+     * Size of the header of a record (length and checksum).
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * Default size of one memory mapped region of the journal.
+     */
+    private static final int DEFAULT_REGION_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Default interval in milliseconds in which the journal is forced to the
+     * disk.
+     */
+    private static final long DEFAULT_SYNC_INTERVAL = 20;
+
+    /**
+     * Minimum number of records in the journal before the journal is
+     * compacted.
+     */
+    private static final int COMPACT_MIN_RECORDS = 10000;
+
+    /**
+     * The journal is compacted if the number of records is greater than this
+     * factor multiplied with the number of current locks.
+     */
+    private static final int COMPACT_FACTOR = 4;
+
+    /**
+     * Journal file.
+     */
+    private final File journalFile;
+
+    /**
+     * Size of one memory mapped region.
+     */
+    private final int regionSize;
+
+    /**
+     * Interval in milliseconds in which the journal is forced to the disk.
+     */
+    private final long syncInterval;
+
+    /**
+     * Current locks depending on the lock token. Guarded by this store.
+     */
+    private final Map<String, Record> records = new HashMap<String, Record>();
+
+    /**
+     * Random access file of the journal.
+     */
+    private RandomAccessFile file;
+
+    /**
+     * Current memory mapped region of the journal.
+     */
+    private MappedByteBuffer region;
+
+    /**
+     * Start position of the current region within the journal.
+     */
+    private long regionStart;
+
+    /**
+     * Number of records within the journal.
+     */
+    private int journalRecords;
+
+    /**
+     * Are there changes which are not forced to the disk?
+     */
+    private boolean dirty;
+
+    /**
+     * Full regions of the journal which are not forced to the disk yet.
+     * Guarded by this store.
+     */
+    private final List<MappedByteBuffer> fullRegions = new ArrayList<MappedByteBuffer>();
+
+    /**
+     * Data of the records appended while the journal is compacted (or
+     * <code>null</code> if the journal is not compacted). Guarded by this
+     * store.
+     */
+    private List<byte[]> compactTail;
+
+    /**
+     * Serializes the compactions of the journal.
+     */
+    private final Object compaction = new Object();
+
+    /**
+     * Background thread to force the changes to the disk and to compact the
+     * journal.
+     */
+    private Thread syncThread;
+
+    /**
+     * Opens the journal with default region size and sync interval.
+     *
+     * @param _journalFile  journal file
+     * @throws IOException if the journal could not be opened
+     */
+    public JournalLockStore(final File _journalFile)
+        throws IOException
+    {
+        this(_journalFile, JournalLockStore.DEFAULT_REGION_SIZE, JournalLockStore.DEFAULT_SYNC_INTERVAL);
+    }
+
+    /**
+     * Opens the journal and reads all records of the journal.
+     *
+     * @param _journalFile  journal file
+     * @param _regionSize   size of one memory mapped region
+     * @param _syncInterval interval in milliseconds in which the changes are
+     *                      forced to the disk
+     * @throws IOException if the journal could not be opened
+     */
+    public JournalLockStore(final File _journalFile,
+                            final int _regionSize,
+                            final long _syncInterval)
+        throws IOException
+    {
+        this.journalFile = _journalFile;
+        this.regionSize = _regionSize;
+        this.syncInterval = _syncInterval;
+        openJournal();
+        this.syncThread = new Thread("WebDAV Lock Journal") {
+            @Override()
+            public void run()
+            {
+                runSync();
+            }
+        };
+        this.syncThread.setDaemon(true);
+        this.syncThread.start();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Collection<Lock> load(final FileObject _root)
+        throws FileSystemException
+    {
+        final List<Record> current;
+        synchronized (this) {
+            current = new ArrayList<Record>(this.records.values());
+        }
+        final long now = System.currentTimeMillis();
+        final List<Lock> ret = new ArrayList<Lock>(current.size());
+        for (final Record record : current) {
+            if (record.expires > now) {
+                ret.add(new Lock(_root.resolveFile(record.path), record.type, record.scope,
+                                 record.getOwner(), record.depth, record.timeout, record.token, record.expires));
+            } else {
+                removed(record.token);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void stored(final Lock _lock)
+    {
+        final Record record = new Record(_lock);
+        try {
+            final byte[] data = record.toBytes();
+            synchronized (this) {
+                this.records.put(record.token, record);
+                append(data);
+            }
+        } catch (final IOException e) {
+            LOG.error("could not store lock " + _lock, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void refreshed(final Lock _lock)
+    {
+        final long timeout = _lock.getTimeoutSeconds();
+        final long expires = _lock.getExpires();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(JournalLockStore.OP_REFRESH);
+            out.writeUTF(_lock.getToken());
+            out.writeLong(timeout);
+            out.writeLong(expires);
+            out.close();
+        } catch (final IOException e) {
+            // could not happen for a byte array stream
+            throw new IllegalStateException(e);
+        }
+        synchronized (this) {
+            final Record record = this.records.get(_lock.getToken());
+            if (record != null) {
+                record.timeout = timeout;
+                record.expires = expires;
+                append(bytes.toByteArray());
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void removed(final Lock _lock)
+    {
+        removed(_lock.getToken());
+    }
+
+    /**
+     * Writes the remove record for given lock token.
+     *
+     * @param _token    lock token of the removed lock
+     */
+    private void removed(final String _token)
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(JournalLockStore.OP_REMOVE);
+            out.writeUTF(_token);
+            out.close();
+        } catch (final IOException e) {
+            // could not happen for a byte array stream
+            throw new IllegalStateException(e);
+        }
+        synchronized (this) {
+            if (this.records.remove(_token) != null) {
+                append(bytes.toByteArray());
+            }
+        }
+    }
+
+    /**
+     * Forces all changes to the disk, stops the background thread and closes
+     * the journal.
+     */
+    public void close()
+    {
+        final Thread thread;
+        synchronized (this) {
+            thread = this.syncThread;
+            this.syncThread = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (this.file != null) {
+                for (final MappedByteBuffer fullRegion : this.fullRegions) {
+                    fullRegion.force();
+                }
+                this.fullRegions.clear();
+                this.region.force();
+                closeJournal();
+            }
+        }
+    }
+
+    /**
+     * Compacts the journal. The journal is rewritten with one record for
+     * each current lock. Only the copy of the current records and the
+     * replacement of the journal hold the monitor of this store; the
+     * compacted journal is written and forced to the disk without it.
+     *
+     * @throws IOException if the journal could not be compacted
+     */
+    public void compact()
+        throws IOException
+    {
+        synchronized (this.compaction) {
+            final List<byte[]> current;
+            synchronized (this) {
+                if (this.file == null) {
+                    throw new IOException("lock journal " + this.journalFile + " is already closed");
+                }
+                current = new ArrayList<byte[]>(this.records.size());
+                for (final Record record : this.records.values()) {
+                    current.add(record.toBytes());
+                }
+                this.compactTail = new ArrayList<byte[]>();
+            }
+            final File compactFile = new File(this.journalFile.getPath() + ".compact");
+            try {
+                final long end = writeCompacted(compactFile, current);
+                synchronized (this) {
+                    if (this.file != null) {
+                        replaceJournal(compactFile, end, current.size());
+                        LOG.debug(String.format("lock journal compacted to %d records", this.journalRecords));
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    this.compactTail = null;
+                }
+                compactFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes the compacted journal and forces it to the disk.
+     *
+     * @param _compactFile  file of the compacted journal
+     * @param _records      data of the records of the current locks
+     * @return position of the end of the compacted journal
+     * @throws IOException if the compacted journal could not be written
+     */
+    private long writeCompacted(final File _compactFile,
+                                final List<byte[]> _records)
+        throws IOException
+    {
+        final RandomAccessFile compact = new RandomAccessFile(_compactFile, "rw");
+        final long ret;
+        try {
+            compact.setLength(0);
+            final FileChannel channel = compact.getChannel();
+            final ByteBuffer buffer = ByteBuffer.allocate(this.regionSize);
+            long position = 0;
+            for (final byte[] data : _records) {
+                if (data.length + JournalLockStore.HEADER_SIZE > buffer.remaining()) {
+                    // mark the end of the region
+                    if (buffer.remaining() >= 4) {
+                        buffer.putInt(-1);
+                    }
+                    buffer.position(buffer.limit());
+                    buffer.flip();
+                    channel.write(buffer, position);
+                    position += this.regionSize;
+                    buffer.clear();
+                }
+                putRecord(buffer, data);
+            }
+            ret = position + buffer.position();
+            buffer.flip();
+            channel.write(buffer, position);
+            channel.force(true);
+        } finally {
+            compact.close();
+        }
+        return ret;
+    }
+
+    /**
+     * Replaces the journal by the compacted journal and appends the records
+     * appended meanwhile. The records of the current locks are not read
+     * again, they are already known. Must be called synchronized.
+     *
+     * @param _compactFile  file of the compacted journal
+     * @param _end          position of the end of the compacted journal
+     * @param _records      number of records in the compacted journal
+     * @throws IOException if the journal could not be replaced
+     */
+    private void replaceJournal(final File _compactFile,
+                                final long _end,
+                                final int _records)
+        throws IOException
+    {
+        final List<byte[]> tail = this.compactTail;
+        this.compactTail = null;
+        closeJournal();
+        if (!_compactFile.renameTo(this.journalFile)) {
+            // on some platforms an existing file is not replaced
+            if (!this.journalFile.delete()) {
+                // the journal is still complete
+                openJournal();
+                throw new IOException("could not replace journal " + this.journalFile + " by " + _compactFile);
+            } else if (!_compactFile.renameTo(this.journalFile)) {
+                throw new IOException("could not replace journal " + this.journalFile + " by " + _compactFile);
+            }
+        }
+        // all regions of the old journal are part of the forced compacted
+        // journal or of the tail
+        this.fullRegions.clear();
+        this.dirty = false;
+        this.file = new RandomAccessFile(this.journalFile, "rw");
+        this.regionStart = _end - (_end % this.regionSize);
+        this.file.setLength(this.regionStart + this.regionSize);
+        this.region = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, this.regionStart, this.regionSize);
+        this.region.position((int) (_end % this.regionSize));
+        this.journalRecords = _records;
+        for (final byte[] data : tail) {
+            append(data);
+        }
+    }
+
+    /**
+     * Opens the journal file, reads all records and maps the region for the
+     * next records.
+     *
+     * @throws IOException if the journal could not be opened
+     */
+    private void openJournal()
+        throws IOException
+    {
+        this.records.clear();
+        this.journalRecords = 0;
+        this.file = new RandomAccessFile(this.journalFile, "rw");
+        final long length = this.file.length();
+        long start = 0;
+        int position = 0;
+        boolean end = false;
+        while (!end && (start < length)) {
+            final MappedByteBuffer buffer = this.file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                                                                       start,
+                                                                       Math.min(this.regionSize, length - start));
+            position = 0;
+            boolean nextRegion = false;
+            while (!end && !nextRegion) {
+                if (buffer.limit() - position < JournalLockStore.HEADER_SIZE) {
+                    // a shorter (last) region ends the journal
+                    nextRegion = buffer.limit() == this.regionSize;
+                    end = !nextRegion;
+                } else {
+                    final int recordLength = buffer.getInt(position);
+                    if (recordLength == -1) {
+                        nextRegion = true;
+                    } else if ((recordLength <= 0)
+                            || (recordLength > buffer.limit() - position - JournalLockStore.HEADER_SIZE)) {
+                        end = true;
+                    } else {
+                        final byte[] data = new byte[recordLength];
+                        buffer.position(position + JournalLockStore.HEADER_SIZE);
+                        buffer.get(data);
+                        final CRC32 crc = new CRC32();
+                        crc.update(data);
+                        if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                            end = true;
+                        } else {
+                            replay(data);
+                            position += JournalLockStore.HEADER_SIZE + recordLength;
+                        }
+                    }
+                }
+            }
+            if (!end) {
+                start += this.regionSize;
+                position = 0;
+            }
+        }
+        // map the region for the next records and clear the rest of the
+        // region (it could contain records written after a broken record)
+        this.regionStart = start;
+        this.file.setLength(start + this.regionSize);
+        this.region = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, start, this.regionSize);
+        this.region.position(position);
+        while (this.region.hasRemaining()) {
+            this.region.put((byte) 0);
+        }
+        this.region.position(position);
+        this.region.force();
+        LOG.info(String.format("lock journal '%s' opened with %d locks", this.journalFile, this.records.size()));
+    }
+
+    /**
+     * Closes the journal file.
+     */
+    private void closeJournal()
+    {
+        try {
+            this.file.close();
+        } catch (final IOException e) {
+            LOG.error("could not close lock journal " + this.journalFile, e);
+        }
+        this.file = null;
+        this.region = null;
+    }
+
+    /**
+     * Replays given record data while opening the journal.
+     *
+     * @param _data     record data
+     * @throws IOException if the record could not be read
+     */
+    private void replay(final byte[] _data)
+        throws IOException
+    {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(_data));
+        final byte op = in.readByte();
+        if (op == JournalLockStore.OP_STORE) {
+            final Record record = new Record(in);
+            this.records.put(record.token, record);
+        } else if (op == JournalLockStore.OP_REFRESH) {
+            final Record record = this.records.get(in.readUTF());
+            if (record != null) {
+                record.timeout = in.readLong();
+                record.expires = in.readLong();
+            }
+        } else if (op == JournalLockStore.OP_REMOVE) {
+            this.records.remove(in.readUTF());
+        } else {
+            throw new IOException("unknown record type " + op + " in lock journal " + this.journalFile);
+        }
+        this.journalRecords++;
+    }
+
+    /**
+     * Appends given record data to the journal. If the current region is
+     * full, the next region is mapped; the full region is forced to the disk
+     * by the background thread. Must be called synchronized.
+     *
+     * @param _data     record data
+     */
+    private void append(final byte[] _data)
+    {
+        if (this.file == null) {
+            LOG.error("lock journal " + this.journalFile + " is already closed");
+        } else if (_data.length + JournalLockStore.HEADER_SIZE > this.regionSize) {
+            LOG.error("lock record with " + _data.length + " bytes is too large for lock journal");
+        } else {
+            try {
+                if (_data.length + JournalLockStore.HEADER_SIZE > this.region.remaining()) {
+                    if (this.region.remaining() >= 4) {
+                        this.region.putInt(this.region.position(), -1);
+                    }
+                    this.fullRegions.add(this.region);
+                    this.regionStart += this.regionSize;
+                    this.file.setLength(this.regionStart + this.regionSize);
+                    this.region = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                                             this.regionStart,
+                                                             this.regionSize);
+                }
+                putRecord(this.region, _data);
+                this.journalRecords++;
+                this.dirty = true;
+                if (this.compactTail != null) {
+                    this.compactTail.add(_data);
+                }
+            } catch (final IOException e) {
+                LOG.error("could not write lock record into journal " + this.journalFile, e);
+            }
+        }
+    }
+
+    /**
+     * Puts the record with header into the buffer. The length is written
+     * last so that a partly written record is not valid.
+     *
+     * @param _buffer   buffer to write in
+     * @param _data     record data
+     */
+    private void putRecord(final ByteBuffer _buffer,
+                           final byte[] _data)
+    {
+        final int position = _buffer.position();
+        final CRC32 crc = new CRC32();
+        crc.update(_data);
+        _buffer.position(position + JournalLockStore.HEADER_SIZE);
+        _buffer.put(_data);
+        _buffer.putInt(position + 4, (int) crc.getValue());
+        _buffer.putInt(position, _data.length);
+    }
+
+    /**
+     * Main loop of the background thread. Forces the written changes to the
+     * disk and compacts the journal if needed. The regions are forced
+     * without holding the monitor of this store.
+     */
+    private void runSync()
+    {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(this.syncInterval);
+            } catch (final InterruptedException e) {
+                break;
+            }
+            final List<MappedByteBuffer> toForce = new ArrayList<MappedByteBuffer>();
+            final boolean compact;
+            synchronized (this) {
+                if (this.file != null) {
+                    toForce.addAll(this.fullRegions);
+                    this.fullRegions.clear();
+                    if (this.dirty) {
+                        toForce.add(this.region);
+                        this.dirty = false;
+                    }
+                }
+                compact = (this.file != null)
+                        && (this.journalRecords > JournalLockStore.COMPACT_MIN_RECORDS)
+                        && (this.journalRecords > JournalLockStore.COMPACT_FACTOR * this.records.size());
+            }
+            for (final MappedByteBuffer buffer : toForce) {
+                buffer.force();
+            }
+            if (compact) {
+                try {
+                    compact();
+                } catch (final IOException e) {
+                    LOG.error("could not compact lock journal " + this.journalFile, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stored data of one lock.
+     */
+    private static final class Record
+    {
+        /**
+         * Lock token.
+         */
+        private final String token;
+
+        /**
+         * Path of the locked file object.
+         */
+        private final String path;
+
+        /**
+         * Type of the lock.
+         */
+        private final String type;
+
+        /**
+         * Scope of the lock.
+         */
+        private final String scope;
+
+        /**
+         * Kind of the owner.
+         */
+        private final byte ownerKind;
+
+        /**
+         * Text of the owner.
+         */
+        private final String owner;
+
+        /**
+         * Depth of the lock.
+         */
+        private final int depth;
+
+        /**
+         * Timeout in seconds.
+         */
+        private long timeout;
+
+        /**
+         * Time in milliseconds when the lock expires.
+         */
+        private long expires;
+
+        /**
+         * @param _lock     lock to store
+         */
+        private Record(final Lock _lock)
+        {
+            this.token = _lock.getToken();
+            this.path = _lock.getObject().getName().getPath();
+            this.type = _lock.getType();
+            this.scope = _lock.getScope();
+            if (_lock.getOwner() instanceof URL) {
+                this.ownerKind = JournalLockStore.OWNER_URL;
+                this.owner = ((URL) _lock.getOwner()).toExternalForm();
+            } else if (_lock.getOwner() != null) {
+                this.ownerKind = JournalLockStore.OWNER_TEXT;
+                this.owner = _lock.getOwner().toString();
+            } else {
+                this.ownerKind = JournalLockStore.OWNER_NONE;
+                this.owner = "";
+            }
+            this.depth = _lock.getDepth();
+            this.timeout = _lock.getTimeoutSeconds();
+            this.expires = _lock.getExpires();
+        }
+
+        /**
+         * @param _in       input to read the record from
+         * @throws IOException if the record could not be read
+         */
+        private Record(final DataInputStream _in)
+            throws IOException
+        {
+            this.token = _in.readUTF();
+            this.path = _in.readUTF();
+            this.type = _in.readUTF();
+            this.scope = _in.readUTF();
+            this.ownerKind = _in.readByte();
+            this.owner = _in.readUTF();
+            this.depth = _in.readInt();
+            this.timeout = _in.readLong();
+            this.expires = _in.readLong();
+        }
+
+        /**
+         * @return owner of the lock
+         */
+        private Object getOwner()
+        {
+            Object ret = null;
+            if (this.ownerKind == JournalLockStore.OWNER_URL) {
+                try {
+                    ret = new URL(this.owner);
+                } catch (final IOException e) {
+                    ret = this.owner;
+                }
+            } else if (this.ownerKind == JournalLockStore.OWNER_TEXT) {
+                ret = this.owner;
+            }
+            return ret;
+        }
+
+        /**
+         * @return record data for the journal
+         * @throws IOException if a text of the record is too long
+         */
+        private byte[] toBytes()
+            throws IOException
+        {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(JournalLockStore.OP_STORE);
+            out.writeUTF(this.token);
+            out.writeUTF(this.path);
+            out.writeUTF(this.type);
+            out.writeUTF(this.scope);
+            out.writeByte(this.ownerKind);
+            out.writeUTF(this.owner);
+            out.writeInt(this.depth);
+            out.writeLong(this.timeout);
+            out.writeLong(this.expires);
+            out.close();
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ * Copyright 2007 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.lock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystemException;
+
+
+/**
+ * Lock manager holding all locks in the memory of this JVM. The locks are
+ * held in a {@link LockIndex} so that the lock manager could be used
+ * concurrently from all servlet threads. Locks with a timeout are expired by
+ * a {@link LockTimerWheel}; additionally expired locks are removed lazily
+ * when they are discovered. Optionally all changes of locks are written to a
+ * {@link LockStore} so that the locks survive a restart.
+ *
+ * @author Matthias L. Jugel
+ * @version $Id$
+ */
+public class LocalLockManager
+    extends LockManager
+{
+    /**
+     * Logging instance used in this class.
+     */
+    private static final Log LOG = LogFactory.getLog(LocalLockManager.class);
+
+    /**
+     * Duration of one tick of the lock expiry timer wheel in milliseconds.
+     */
+    private static final long EXPIRY_TICK = 1000;
+
+    /**
+     * Number of buckets of the lock expiry timer wheel.
+     */
+    private static final int EXPIRY_BUCKETS = 512;
+
+    /**
+     * Index of all current locks.
+     */
+    private final LockIndex lockIndex;
+
+    /**
+     * Timer wheel to expire locks.
+     */
+    private final LockTimerWheel timerWheel;
+
+    /**
+     * Store for the locks (or <code>null</code> if locks are not stored).
+     */
+    private volatile LockStore lockStore;
+
+    /**
+     * Creates a new lock manager without any locks.
+     */
+    public LocalLockManager()
+    {
+        this.lockIndex = new LockIndex();
+        this.timerWheel = new LockTimerWheel(new LockTimerWheel.ExpiryListener() {
+            public void expired(final Lock _lock)
+            {
+                expireLock(_lock);
+            }
+        }, LocalLockManager.EXPIRY_TICK, LocalLockManager.EXPIRY_BUCKETS);
+    }
+
+    /**
+     * Acquire a lock. This will first check for conflicts and throws exceptions if
+     * there are existing locks or for some reason the lock could not be acquired.
+     * To be able to run without a global lock, the lock is first added as
+     * pending lock to the lock index and afterwards the conflicts are checked.
+     * If a conflict is found the lock is removed again. So two concurrent
+     * conflicting requests could never both get a lock (but in rare cases both
+     * could fail). A pending lock is only seen by the conflict checks; it is
+     * published (and so discovered by other requests) after the check. The
+     * lock is written to the lock store before it is published, so that a
+     * concurrent removal of the lock is always stored after the lock.
+     *
+     * @param lock the lock to acquire
+     * @throws LockConflictException if an existing lock has priority
+     * @throws FileSystemException   if the file object and its path cannot be accessed
+     */
+    @Override()
+    public void acquireLock(final Lock lock)
+        throws LockConflictException, FileSystemException
+    {
+        final long start = System.nanoTime();
+        this.lockIndex.addPending(lock);
+        boolean acquired = false;
+        try {
+            final long checkStart = System.nanoTime();
+            try {
+                checkConflicts(lock);
+            } finally {
+                LockMetrics.CONFLICT_CHECK.recordSince(checkStart);
+            }
+            acquired = true;
+        } catch (final LockConflictException e) {
+            LockMetrics.conflict(lock);
+            throw e;
+        } finally {
+            if (!acquired) {
+                this.lockIndex.remove(lock);
+            }
+            LockMetrics.ACQUIRE.recordSince(start);
+        }
+        final LockStore store = this.lockStore;
+        if (store != null) {
+            store.stored(lock);
+        }
+        if (this.lockIndex.publish(lock)) {
+            this.timerWheel.schedule(lock);
+        } else if (store != null) {
+            // removed meanwhile with the locks of a removed file object
+            store.removed(lock);
+        }
+    }
+
+    /**
+     * Defines the store for the locks. All not expired locks of the store are
+     * loaded and added to the current locks. A previously defined lock store
+     * is closed.
+     *
+     * @param _lockStore    new lock store (or <code>null</code> if locks
+     *                      should not be stored anymore)
+     * @param _root         root file object to resolve the paths of the
+     *                      stored locks
+     * @throws FileSystemException if a stored lock could not be resolved
+     */
+    public void setLockStore(final LockStore _lockStore,
+                             final FileObject _root)
+        throws FileSystemException
+    {
+        final LockStore oldStore = this.lockStore;
+        this.lockStore = null;
+        if (oldStore != null) {
+            oldStore.close();
+        }
+        if (_lockStore != null) {
+            final Collection<Lock> locks = _lockStore.load(_root);
+            for (final Lock lock : locks) {
+                this.lockIndex.add(lock);
+                this.timerWheel.schedule(lock);
+            }
+            this.lockStore = _lockStore;
+            LOG.info(String.format("%d locks restored", locks.size()));
+        }
+    }
+
+    /**
+     * Refresh given <code>_lock</code> with a new timeout.
+     *
+     * @param _lock     lock to refresh
+     * @param _timeout  new timeout in seconds (<code>-1</code> for infinite)
+     */
+    @Override()
+    public void refreshLock(final Lock _lock,
+                            final long _timeout)
+    {
+        final boolean scheduled = _lock.getExpires() != Long.MAX_VALUE;
+        _lock.refresh(_timeout);
+        // already scheduled locks are rescheduled by the timer wheel itself
+        if (!scheduled) {
+            this.timerWheel.schedule(_lock);
+        }
+        final LockStore store = this.lockStore;
+        if (store != null) {
+            store.refreshed(_lock);
+        }
+    }
+
+    /**
+     * Closes the lock store (if defined) and stops the expiry of the locks.
+     */
+    @Override()
+    public void close()
+    {
+        final LockStore oldStore = this.lockStore;
+        this.lockStore = null;
+        if (oldStore != null) {
+            oldStore.close();
+        }
+        this.timerWheel.stop();
+    }
+
+    /**
+     * Removes an expired lock from the lock index.
+     *
+     * @param _lock     expired lock
+     */
+    private void expireLock(final Lock _lock)
+    {
+        if (removeLock(_lock)) {
+            LockMetrics.EXPIRED.inc();
+            LOG.debug(String.format("lock expired: %s", _lock));
+        }
+    }
+
+    /**
+     * Removes given <code>_lock</code> from the lock index and from the lock
+     * store.
+     *
+     * @param _lock     lock to remove
+     * @return <i>true</i> if the lock was removed; otherwise <i>false</i>
+     */
+    private boolean removeLock(final Lock _lock)
+    {
+        final boolean ret = this.lockIndex.remove(_lock);
+        if (ret) {
+            this.timerWheel.cancel(_lock);
+        }
+        final LockStore store = this.lockStore;
+        if (ret && (store != null)) {
+            store.removed(_lock);
+        }
+        return ret;
+    }
+
+    /**
+     * Release a lock on a file object with a given lock token. Releeases the lock if
+     * if one exists and if the lock token is valid for the found lock.
+     *
+     * @param object the file object we want to unlock
+     * @param token  the lock token associated with the file object
+     * @return true if the lock has been released, false if not
+     */
+    @Override()
+    public boolean releaseLock(final FileObject object,
+                               final String token)
+    {
+        final long start = System.nanoTime();
+        final boolean ret;
+        final Lock lock = this.lockIndex.getLock(token);
+        if ((lock != null) && this.lockIndex.isLockOf(lock, object)) {
+            ret = removeLock(lock) || this.lockIndex.getLocks(object).isEmpty();
+        } else {
+            ret = this.lockIndex.getLocks(object).isEmpty();
+        }
+        LockMetrics.RELEASE.recordSince(start);
+        return ret;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public int removeLocks(final FileObject _object)
+    {
+        final List<Lock> locks = this.lockIndex.removeTree(_object);
+        final LockStore store = this.lockStore;
+        for (final Lock lock : locks) {
+            this.timerWheel.cancel(lock);
+            if (store != null) {
+                store.removed(lock);
+            }
+        }
+        if (!locks.isEmpty() && LOG.isDebugEnabled()) {
+            LOG.debug(String.format("%d locks removed for %s", locks.size(), _object));
+        }
+        return locks.size();
+    }
+
+    /**
+     * Returns the number of all current locks (including expired locks
+     * which are not removed yet).
+     *
+     * @return number of locks
+     */
+    @Override()
+    public int getLockCount()
+    {
+        return this.lockIndex.size();
+    }
+
+    /**
+     * Discover locks for a given file object. This will find locks for the
+     * object itself and parent path locks with a depth that reaches the file
+     * object.
+     *
+     * @param object the file object to find locks for
+     * @return the locks that are found for this file object
+     * @throws FileSystemException if the file object or its parents cannot be
+     *                             accessed
+     */
+    @Override()
+    public List<Lock> discoverLock(final FileObject object)
+        throws FileSystemException
+    {
+        List<Lock> locks = this.lockIndex.getClosestLocks(object);
+        while ((locks != null) && removeExpired(locks)) {
+            locks = this.lockIndex.getClosestLocks(object);
+        }
+        return locks;
+    }
+
+    /**
+     * Check whether a lock conflicts with already existing locks up and down the path.
+     * First we go up the path to check for parent locks that may include the file object
+     * and the go down the directory tree (if depth requires it) to check locks that
+     * will conflict. Both checks are answered by the lock index only, so the file
+     * system itself is not accessed. Pending locks of concurrent requests
+     * conflict also if they are already expired, because they could not be
+     * removed by this request.
+     *
+     * @param requestedLock the lock requested
+     * @throws LockConflictException if a conflicting lock was found
+     * @throws FileSystemException   if the file object or path cannot be accessed
+     */
+    private void checkConflicts(final Lock requestedLock)
+        throws LockConflictException, FileSystemException
+    {
+        final long now = System.currentTimeMillis();
+
+        // find locks in the parent path
+        for (final List<Lock> parentLocks : this.lockIndex.getPathLocks(requestedLock.getObject())) {
+            for (final Lock parentLock : parentLocks) {
+                if ((parentLock != requestedLock)
+                        && (this.lockIndex.isPending(parentLock) || !parentLock.isExpired(now))
+                        && (Lock.EXCLUSIVE.equals(requestedLock.getScope())
+                                || Lock.EXCLUSIVE.equals(parentLock.getScope()))) {
+                    throw new LockConflictException(parentLocks);
+                }
+            }
+        }
+
+        // look for locks down the path (if depth requests it)
+        if (requestedLock.getDepth() != 0) {
+            final List<Lock> childLocks = this.lockIndex.getDescendantLocks(
+                    requestedLock.getObject(),
+                    requestedLock.getDepth(),
+                    !Lock.EXCLUSIVE.equals(requestedLock.getScope()));
+            final List<Lock> conflicts = new ArrayList<Lock>(childLocks.size());
+            for (final Lock childLock : childLocks) {
+                if (childLock.isExpired(now) && !this.lockIndex.isPending(childLock)) {
+                    expireLock(childLock);
+                } else {
+                    conflicts.add(childLock);
+                }
+            }
+            if (!conflicts.isEmpty()) {
+                throw new LockConflictException(conflicts);
+            }
+        }
+    }
+
+    /**
+     * Find the lock with given lock token within given list of discovered
+     * locks. The lock is searched in the token index; because all discovered
+     * locks belong to the same file object, it is enough to check that the
+     * found lock belongs to this file object.
+     *
+     * @param _locks    discovered locks (all for the same file object)
+     * @param _token    lock token
+     * @return found lock or <code>null</code>
+     */
+    @Override()
+    protected Lock findLock(final List<Lock> _locks,
+                          final String _token)
+    {
+        Lock ret = null;
+        if ((_locks != null) && !_locks.isEmpty()) {
+            final Lock lock = this.lockIndex.getLock(_token);
+            if ((lock != null) && !lock.isExpired(System.currentTimeMillis())
+                    && this.lockIndex.isLockOf(lock, _locks.get(0).getObject())) {
+                ret = lock;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Removes all expired locks of given list from the lock index.
+     *
+     * @param _locks    list of locks to check
+     * @return <i>true</i> if at least one lock was expired
+     */
+    private boolean removeExpired(final List<Lock> _locks)
+    {
+        final long now = System.currentTimeMillis();
+        boolean ret = false;
+        for (final Lock lock : _locks) {
+            if (lock.isExpired(now)) {
+                expireLock(lock);
+                ret = true;
+            }
+        }
+        return ret;
+    }
+}
@@ -22,10 +22,10 @@
 package org.efaps.webdav4vfs.lock;
 
 import java.net.URL;
+import java.util.UUID;
 
 import org.apache.commons.vfs.FileObject;
 import org.dom4j.Element;
-import org.efaps.webdav4vfs.util.Util;
 
 
 /**
@@ -44,9 +44,19 @@ public class Lock
     private final String scope;
     private final Object owner;
     private final int depth;
-    private final long timeout;
     private final String token;
 
+    /**
+     * Timeout of the lock in seconds (<code>-1</code> means infinite).
+     */
+    private volatile long timeout;
+
+    /**
+     * Time in milliseconds when the lock expires ({@link Long#MAX_VALUE} for
+     * an infinite timeout).
+     */
+    private volatile long expires;
+
 
     public Lock(final FileObject object,
                 final String type,
@@ -60,11 +70,44 @@ public class Lock
         this.scope = scope;
         this.owner = owner;
         this.depth = depth;
-        this.timeout = timeout;
+        refresh(timeout);
 
-        this.token = "opaquelocktoken:" + Util.getETag(object);
+        this.token = "opaquelocktoken:" + UUID.randomUUID();
   }
 
+    /**
+     * Constructor used to restore a stored lock with its original lock token
+     * and expiry time.
+     *
+     * @param _object   locked file object
+     * @param _type     type of the lock
+     * @param _scope    scope of the lock
+     * @param _owner    owner of the lock
+     * @param _depth    depth of the lock
+     * @param _timeout  timeout in seconds (<code>-1</code> for infinite)
+     * @param _token    lock token
+     * @param _expires  time in milliseconds when the lock expires
+     * @see LockStore#load(FileObject)
+     */
+    Lock(final FileObject _object,
+         final String _type,
+         final String _scope,
+         final Object _owner,
+         final int _depth,
+         final long _timeout,
+         final String _token,
+         final long _expires)
+    {
+        this.object = _object;
+        this.type = _type;
+        this.scope = _scope;
+        this.owner = _owner;
+        this.depth = _depth;
+        this.timeout = _timeout;
+        this.expires = _expires;
+        this.token = _token;
+    }
+
     public FileObject getObject()
     {
         return object;
@@ -115,6 +158,52 @@ public class Lock
         return this.token;
     }
 
+    /**
+     * Returns the timeout of the lock.
+     *
+     * @return timeout in seconds (<code>-1</code> for infinite)
+     */
+    long getTimeoutSeconds()
+    {
+        return this.timeout;
+    }
+
+    /**
+     * Returns the time when the lock expires.
+     *
+     * @return time in milliseconds when the lock expires or
+     *         {@link Long#MAX_VALUE} if the lock never expires
+     */
+    public long getExpires()
+    {
+        return this.expires;
+    }
+
+    /**
+     * Checks if the lock is expired.
+     *
+     * @param _now  current time in milliseconds
+     * @return <i>true</i> if the lock is expired; otherwise <i>false</i>
+     */
+    public boolean isExpired(final long _now)
+    {
+        return _now >= this.expires;
+    }
+
+    /**
+     * Refreshes the lock with a new timeout starting from now. Used from the
+     * {@link LockManager} to refresh a lock.
+     *
+     * @param _timeout  new timeout in seconds (<code>-1</code> for infinite)
+     */
+    void refresh(final long _timeout)
+    {
+        this.timeout = _timeout;
+        this.expires = (_timeout < 0)
+                       ? Long.MAX_VALUE
+                       : System.currentTimeMillis() + _timeout * 1000L;
+    }
+
     /**
      * Create an XML serialized version of the lock by adding an activelock tag
      * with the locks properties to the root element provided.
@@ -143,15 +232,22 @@ public class Lock
     }
 
     /**
-     * There can only be one lock per object, thus compare the file objects.
+     * Each lock has its own unique lock token, thus compare the tokens (there
+     * could be more than one shared lock per object).
      *
      * @param _other    other lock to compare to
-     * @return whether this lock is for the same file object
+     * @return whether this lock has the same lock token
      */
     @Override()
     public boolean equals(final Object _other)
     {
-        return (_other instanceof Lock) && object.equals(((Lock) _other).object);
+        return (_other instanceof Lock) && this.token.equals(((Lock) _other).token);
+    }
+
+    @Override()
+    public int hashCode()
+    {
+        return this.token.hashCode();
     }
 
     @Override()
@@ -0,0 +1,621 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.lock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystem;
+
+/**
+ * Concurrent index of all locks held by the {@link LockManager}. The index is
+ * a trie over the path segments of the locked file objects with one trie per
+ * file system. Reading the locks of a node is lock free (the lock list of a
+ * node is replaced copy-on-write), only modifications synchronize on the
+ * modified node. Empty leaf nodes are pruned again so that the trie only
+ * contains the paths of currently locked file objects. Each node counts the
+ * locks below itself, so the question whether there is any lock below a path
+ * is answered in O(path depth) without walking the trie. Additionally all
+ * locks are indexed by their lock token.
+ * <p>
+ * A new lock is first added as pending lock (see {@link #addPending(Lock)}):
+ * the conflict checks see pending locks, but the lock discovery and the
+ * token index do not. So a lock which is removed again because of a
+ * conflict is never seen by other requests; only after the conflict check
+ * the lock is published (see {@link #publish(Lock)}).
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+final class LockIndex
+{
+    /**
+     * Root nodes of the tries depending on the file system.
+     */
+    private final ConcurrentMap<FileSystem, Node> roots = new ConcurrentHashMap<FileSystem, Node>();
+
+    /**
+     * All locks depending on their lock token.
+     */
+    private final ConcurrentMap<String, Lock> tokens = new ConcurrentHashMap<String, Lock>();
+
+    /**
+     * Pending locks which are not published yet.
+     */
+    private final Set<Lock> pending = Collections.newSetFromMap(new ConcurrentHashMap<Lock, Boolean>());
+
+    /**
+     * Adds given <code>_lock</code> to the node of the locked file object.
+     *
+     * @param _lock     lock to add
+     */
+    void add(final Lock _lock)
+    {
+        insert(_lock);
+        this.tokens.put(_lock.getToken(), _lock);
+    }
+
+    /**
+     * Adds given <code>_lock</code> as pending lock to the node of the locked
+     * file object. A pending lock is only seen by the conflict checks
+     * ({@link #getPathLocks(FileObject)} and
+     * {@link #getDescendantLocks(FileObject, int, boolean)}) until it is
+     * published.
+     *
+     * @param _lock     lock to add
+     */
+    void addPending(final Lock _lock)
+    {
+        this.pending.add(_lock);
+        insert(_lock);
+    }
+
+    /**
+     * Publishes given pending <code>_lock</code>.
+     *
+     * @param _lock     pending lock
+     * @return <i>true</i> if published; <i>false</i> if the lock was removed
+     *         meanwhile (by {@link #removeTree(FileObject)})
+     */
+    boolean publish(final Lock _lock)
+    {
+        final boolean ret = this.pending.remove(_lock);
+        if (ret) {
+            this.tokens.put(_lock.getToken(), _lock);
+        }
+        return ret;
+    }
+
+    /**
+     * Checks if given <code>_lock</code> is a pending lock.
+     *
+     * @param _lock     lock to check
+     * @return <i>true</i> if the lock is pending
+     */
+    boolean isPending(final Lock _lock)
+    {
+        return !this.pending.isEmpty() && this.pending.contains(_lock);
+    }
+
+    /**
+     * Inserts given <code>_lock</code> into the node of the locked file
+     * object.
+     *
+     * @param _lock     lock to insert
+     */
+    private void insert(final Lock _lock)
+    {
+        boolean added = false;
+        while (!added) {
+            final Node node = getOrCreateNode(_lock.getObject());
+            synchronized (node) {
+                if (!node.removed) {
+                    final List<Lock> locks = new ArrayList<Lock>(node.locks.size() + 1);
+                    locks.addAll(node.locks);
+                    locks.add(_lock);
+                    node.locks = Collections.unmodifiableList(locks);
+                    added = true;
+                }
+            }
+            if (added) {
+                updateCounters(node, _lock, 1);
+            }
+        }
+    }
+
+    /**
+     * Removes given <code>_lock</code> from the index. The lock is compared by
+     * identity, because multiple shared locks could exist for the same file
+     * object.
+     *
+     * @param _lock     lock to remove
+     * @return <i>true</i> if the lock was removed; otherwise <i>false</i>
+     */
+    boolean remove(final Lock _lock)
+    {
+        boolean ret = false;
+        final Node node = findNode(_lock.getObject());
+        if (node != null) {
+            synchronized (node) {
+                final List<Lock> locks = new ArrayList<Lock>(node.locks.size());
+                for (final Lock lock : node.locks) {
+                    if (lock == _lock) {
+                        ret = true;
+                    } else {
+                        locks.add(lock);
+                    }
+                }
+                if (ret) {
+                    node.locks = locks.isEmpty()
+                                 ? Collections.<Lock>emptyList()
+                                 : Collections.unmodifiableList(locks);
+                }
+            }
+            if (ret) {
+                this.pending.remove(_lock);
+                this.tokens.remove(_lock.getToken(), _lock);
+                updateCounters(node, _lock, -1);
+                prune(node);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Removes all locks of given file object and of all its descendants as
+     * one operation: the sub trie of the file object is detached from the
+     * trie and afterwards all nodes of the sub trie are marked as removed, so
+     * that concurrently added locks are either collected here or added again
+     * to a new node. Removed pending locks are not returned (they are not
+     * published and so could not be published anymore).
+     *
+     * @param _object   file object
+     * @return list of all removed published locks
+     */
+    List<Lock> removeTree(final FileObject _object)
+    {
+        final List<Lock> ret = new ArrayList<Lock>();
+        final Node node = findNode(_object);
+        if (node != null) {
+            final Node parent = node.parent;
+            if (parent == null) {
+                this.roots.remove(_object.getFileSystem(), node);
+            } else {
+                synchronized (parent) {
+                    synchronized (node) {
+                        parent.children.remove(node.name, node);
+                    }
+                }
+            }
+            final List<Lock> removed = new ArrayList<Lock>();
+            markRemoved(node, removed);
+            for (final Lock lock : removed) {
+                if (!this.pending.remove(lock)) {
+                    this.tokens.remove(lock.getToken(), lock);
+                    ret.add(lock);
+                }
+                updateCounters(node, lock, -1);
+            }
+            if (parent != null) {
+                prune(parent);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the number of all locks in the index.
+     *
+     * @return number of locks
+     */
+    int size()
+    {
+        return this.tokens.size();
+    }
+
+    /**
+     * Returns the lock for given lock token.
+     *
+     * @param _token    lock token
+     * @return found lock or <code>null</code>
+     */
+    Lock getLock(final String _token)
+    {
+        return (_token == null) ? null : this.tokens.get(_token);
+    }
+
+    /**
+     * Checks if given <code>_lock</code> is a lock of exactly given file
+     * object.
+     *
+     * @param _lock     lock to check
+     * @param _object   file object
+     * @return <i>true</i> if the lock is a lock of the file object
+     */
+    boolean isLockOf(final Lock _lock,
+                     final FileObject _object)
+    {
+        return (_lock.getObject().getFileSystem() == _object.getFileSystem())
+                && _lock.getObject().getName().getPath().equals(_object.getName().getPath());
+    }
+
+    /**
+     * Returns the published locks of exactly given file object.
+     *
+     * @param _object   file object
+     * @return list of locks (could be empty, but never <code>null</code>)
+     */
+    List<Lock> getLocks(final FileObject _object)
+    {
+        final Node node = findNode(_object);
+        return (node == null) ? Collections.<Lock>emptyList() : getPublished(node.locks);
+    }
+
+    /**
+     * Returns the published locks of the nearest node of given file object
+     * or one of its parents which is locked.
+     *
+     * @param _object   file object
+     * @return list of locks of the nearest locked node or <code>null</code> if
+     *         neither the file object nor one of its parents is locked
+     */
+    List<Lock> getClosestLocks(final FileObject _object)
+    {
+        Node node = findDeepestNode(_object);
+        while (node != null) {
+            final List<Lock> locks = getPublished(node.locks);
+            if (!locks.isEmpty()) {
+                return locks;
+            }
+            node = node.parent;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the lists of locks (including pending locks) for the file
+     * object itself and for all its parents. Only lists of indexed nodes are returned, so the first list is
+     * the one of the deepest indexed node on the path.
+     *
+     * @param _object   file object
+     * @return list of all lists of locks on the path
+     */
+    List<List<Lock>> getPathLocks(final FileObject _object)
+    {
+        final List<List<Lock>> ret = new ArrayList<List<Lock>>();
+        Node node = findDeepestNode(_object);
+        while (node != null) {
+            ret.add(node.locks);
+            node = node.parent;
+        }
+        return ret;
+    }
+
+    /**
+     * Returns all locks (including pending locks) below given file object up
+     * to given depth. If only exclusive locks are searched and
+     * <code>_exclusiveOnly</code> is set, shared locks are ignored. For an infinite depth the counters of the
+     * node answer whether locks exist at all, so normally (no conflict) the
+     * trie is not walked.
+     *
+     * @param _object           file object
+     * @param _depth            depth (1 for the direct children, everything
+     *                          greater than 1 for infinity)
+     * @param _exclusiveOnly    only exclusive locks are searched
+     * @return list of found locks (empty if not found)
+     */
+    List<Lock> getDescendantLocks(final FileObject _object,
+                                  final int _depth,
+                                  final boolean _exclusiveOnly)
+    {
+        final List<Lock> ret = new ArrayList<Lock>();
+        final Node node = findNode(_object);
+        if ((node != null) && (_depth > 0)
+                && ((node.exclusiveBelow.get() > 0) || (!_exclusiveOnly && (node.sharedBelow.get() > 0)))) {
+            collectLocks(node, _depth, _exclusiveOnly, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the published locks of given list. A lock is published if it
+     * is in the token index; so also a lock of a list which was read before
+     * the lock was removed again because of a conflict is not returned.
+     *
+     * @param _locks    locks of a node
+     * @return published locks
+     */
+    private List<Lock> getPublished(final List<Lock> _locks)
+    {
+        List<Lock> ret = _locks;
+        for (int idx = 0; idx < _locks.size(); idx++) {
+            final Lock lock = _locks.get(idx);
+            final boolean published = this.tokens.get(lock.getToken()) == lock;
+            if (!published && (ret == _locks)) {
+                ret = new ArrayList<Lock>(_locks.subList(0, idx));
+            } else if (published && (ret != _locks)) {
+                ret.add(lock);
+            }
+        }
+        return (ret == _locks) ? ret : Collections.unmodifiableList(ret);
+    }
+
+    /**
+     * Collects recursively the locks of the children of given
+     * <code>_node</code>.
+     *
+     * @param _node             node for which the child locks are collected
+     * @param _depth            remaining depth
+     * @param _exclusiveOnly    only exclusive locks are collected
+     * @param _locks            list of found locks
+     */
+    private void collectLocks(final Node _node,
+                              final int _depth,
+                              final boolean _exclusiveOnly,
+                              final List<Lock> _locks)
+    {
+        for (final Node child : _node.children.values()) {
+            for (final Lock lock : child.locks) {
+                if (!_exclusiveOnly || Lock.EXCLUSIVE.equals(lock.getScope())) {
+                    _locks.add(lock);
+                }
+            }
+            if ((_depth > 1)
+                    && ((child.exclusiveBelow.get() > 0) || (!_exclusiveOnly && (child.sharedBelow.get() > 0)))) {
+                collectLocks(child, _depth - 1, _exclusiveOnly, _locks);
+            }
+        }
+    }
+
+    /**
+     * Marks given <code>_node</code> and all its descendants as removed and
+     * collects their locks.
+     *
+     * @param _node     detached node
+     * @param _locks    list of collected locks
+     */
+    private void markRemoved(final Node _node,
+                             final List<Lock> _locks)
+    {
+        synchronized (_node) {
+            _node.removed = true;
+            _locks.addAll(_node.locks);
+            _node.locks = Collections.emptyList();
+        }
+        for (final Node child : _node.children.values()) {
+            markRemoved(child, _locks);
+        }
+    }
+
+    /**
+     * Updates the counters of the locks below for all parents of given
+     * <code>_node</code>.
+     *
+     * @param _node     node for which the lock was added or removed
+     * @param _lock     added or removed lock
+     * @param _delta    1 if added, -1 if removed
+     */
+    private void updateCounters(final Node _node,
+                                final Lock _lock,
+                                final int _delta)
+    {
+        final boolean exclusive = Lock.EXCLUSIVE.equals(_lock.getScope());
+        Node node = _node.parent;
+        while (node != null) {
+            if (exclusive) {
+                node.exclusiveBelow.addAndGet(_delta);
+            } else {
+                node.sharedBelow.addAndGet(_delta);
+            }
+            node = node.parent;
+        }
+    }
+
+    /**
+     * Searches the node for given file object.
+     *
+     * @param _object   file object
+     * @return found node or <code>null</code> if not indexed
+     */
+    private Node findNode(final FileObject _object)
+    {
+        final String[] segments = getSegments(_object);
+        Node node = this.roots.get(_object.getFileSystem());
+        for (int idx = 0; (node != null) && (idx < segments.length); idx++) {
+            node = node.children.get(segments[idx]);
+        }
+        return node;
+    }
+
+    /**
+     * Searches the deepest indexed node on the path of given file object.
+     *
+     * @param _object   file object
+     * @return deepest node or <code>null</code> if the file system of the
+     *         file object is not indexed
+     */
+    private Node findDeepestNode(final FileObject _object)
+    {
+        final String[] segments = getSegments(_object);
+        Node node = this.roots.get(_object.getFileSystem());
+        for (int idx = 0; (node != null) && (idx < segments.length); idx++) {
+            final Node child = node.children.get(segments[idx]);
+            if (child == null) {
+                break;
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    /**
+     * Returns the node for given file object. Missing nodes on the path are
+     * created.
+     *
+     * @param _object   file object
+     * @return node of the file object
+     */
+    private Node getOrCreateNode(final FileObject _object)
+    {
+        final String[] segments = getSegments(_object);
+        Node root = this.roots.get(_object.getFileSystem());
+        if (root == null) {
+            final Node newRoot = new Node(null, null);
+            root = this.roots.putIfAbsent(_object.getFileSystem(), newRoot);
+            if (root == null) {
+                root = newRoot;
+            }
+        }
+        Node node = root;
+        for (int idx = 0; idx < segments.length; idx++) {
+            Node child = node.children.get(segments[idx]);
+            if (child == null) {
+                final boolean removed;
+                synchronized (node) {
+                    removed = node.removed;
+                    if (!removed) {
+                        child = node.children.get(segments[idx]);
+                        if (child == null) {
+                            child = new Node(node, segments[idx]);
+                            node.children.put(segments[idx], child);
+                        }
+                    }
+                }
+                if (removed) {
+                    // parent was pruned in the meantime, start again (without
+                    // holding the monitor, because prune synchronizes the
+                    // parent before the child)
+                    return getOrCreateNode(_object);
+                }
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    /**
+     * Removes given <code>_node</code> and all its parents from the trie as
+     * long as they neither have locks nor children. The parent is always
+     * synchronized before the child so that no dead lock could occur.
+     *
+     * @param _node     node to prune
+     */
+    private void prune(final Node _node)
+    {
+        Node node = _node;
+        while (node.parent != null) {
+            final Node parent = node.parent;
+            synchronized (parent) {
+                synchronized (node) {
+                    if (node.removed || !node.locks.isEmpty() || !node.children.isEmpty()) {
+                        break;
+                    }
+                    parent.children.remove(node.name, node);
+                    node.removed = true;
+                }
+            }
+            node = parent;
+        }
+    }
+
+    /**
+     * Splits the path of given file object into the path segments.
+     *
+     * @param _object   file object
+     * @return array of path segments
+     */
+    private String[] getSegments(final FileObject _object)
+    {
+        final String path = _object.getName().getPath();
+        final List<String> segments = new ArrayList<String>();
+        int start = 0;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end > start) {
+                segments.add(path.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return segments.toArray(new String[segments.size()]);
+    }
+
+    /**
+     * Node of the lock trie.
+     */
+    private static final class Node
+    {
+        /**
+         * Parent node (<code>null</code> for the root node).
+         */
+        private final Node parent;
+
+        /**
+         * Name of the path segment.
+         */
+        private final String name;
+
+        /**
+         * Child nodes depending on the path segment.
+         */
+        private final ConcurrentMap<String, Node> children = new ConcurrentHashMap<String, Node>();
+
+        /**
+         * Current locks of this node. The list is never modified, but
+         * replaced.
+         */
+        private volatile List<Lock> locks = Collections.emptyList();
+
+        /**
+         * Number of exclusive locks below this node.
+         */
+        private final AtomicInteger exclusiveBelow = new AtomicInteger();
+
+        /**
+         * Number of shared locks below this node.
+         */
+        private final AtomicInteger sharedBelow = new AtomicInteger();
+
+        /**
+         * Is the node removed from the trie? Guarded by the node itself.
+         */
+        private boolean removed;
+
+        /**
+         * @param _parent   parent node
+         * @param _name     name of the path segment
+         */
+        private Node(final Node _parent,
+                     final String _name)
+        {
+            this.parent = _parent;
+            this.name = _name;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.lock;
+
+import java.io.Serializable;
+
+/**
+ * A lock lease is the node independent description of a {@link Lock} as it
+ * is held by a {@link SharedLockRegistry}. Instead of the file object only
+ * the path of the locked file object within the shared VFS root is stored.
+ * The lease is valid until its expiry time; a lock refresh results in a new
+ * lease with a later expiry time.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+public final class LockLease
+    implements Serializable
+{
+    /**
+     * Serial version unique identifier.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Path of the locked file object.
+     */
+    private final String path;
+
+    /**
+     * Lock token.
+     */
+    private final String token;
+
+    /**
+     * Type of the lock.
+     */
+    private final String type;
+
+    /**
+     * Scope of the lock.
+     */
+    private final String scope;
+
+    /**
+     * Owner of the lock (a string or an URL).
+     */
+    private final Serializable owner;
+
+    /**
+     * Depth of the lock.
+     */
+    private final int depth;
+
+    /**
+     * Timeout of the lock in seconds (<code>-1</code> means infinite).
+     */
+    private final long timeout;
+
+    /**
+     * Time in milliseconds when the lease expires ({@link Long#MAX_VALUE}
+     * for an infinite timeout).
+     */
+    private final long expires;
+
+    /**
+     * @param _path     path of the locked file object
+     * @param _token    lock token
+     * @param _type     type of the lock
+     * @param _scope    scope of the lock
+     * @param _owner    owner of the lock
+     * @param _depth    depth of the lock
+     * @param _timeout  timeout in seconds (<code>-1</code> for infinite)
+     * @param _expires  time in milliseconds when the lease expires
+     */
+    public LockLease(final String _path,
+                     final String _token,
+                     final String _type,
+                     final String _scope,
+                     final Serializable _owner,
+                     final int _depth,
+                     final long _timeout,
+                     final long _expires)
+    {
+        this.path = _path;
+        this.token = _token;
+        this.type = _type;
+        this.scope = _scope;
+        this.owner = _owner;
+        this.depth = _depth;
+        this.timeout = _timeout;
+        this.expires = _expires;
+    }
+
+    /**
+     * Creates the lease for given <code>_lock</code>.
+     *
+     * @param _lock     lock
+     */
+    LockLease(final Lock _lock)
+    {
+        this(_lock.getObject().getName().getPath(), _lock.getToken(), _lock.getType(), _lock.getScope(),
+             (Serializable) _lock.getOwner(), _lock.getDepth(), _lock.getTimeoutSeconds(), _lock.getExpires());
+    }
+
+    /**
+     * Returns a copy of this lease with new timeout and expiry time.
+     *
+     * @param _timeout  new timeout in seconds (<code>-1</code> for infinite)
+     * @param _expires  new expiry time in milliseconds
+     * @return refreshed lease
+     */
+    public LockLease refresh(final long _timeout,
+                             final long _expires)
+    {
+        return new LockLease(this.path, this.token, this.type, this.scope, this.owner, this.depth,
+                             _timeout, _expires);
+    }
+
+    /**
+     * @return path of the locked file object
+     */
+    public String getPath()
+    {
+        return this.path;
+    }
+
+    /**
+     * @return lock token
+     */
+    public String getToken()
+    {
+        return this.token;
+    }
+
+    /**
+     * @return type of the lock
+     */
+    public String getType()
+    {
+        return this.type;
+    }
+
+    /**
+     * @return scope of the lock
+     */
+    public String getScope()
+    {
+        return this.scope;
+    }
+
+    /**
+     * @return owner of the lock
+     */
+    public Serializable getOwner()
+    {
+        return this.owner;
+    }
+
+    /**
+     * @return depth of the lock
+     */
+    public int getDepth()
+    {
+        return this.depth;
+    }
+
+    /**
+     * @return timeout in seconds (<code>-1</code> for infinite)
+     */
+    public long getTimeout()
+    {
+        return this.timeout;
+    }
+
+    /**
+     * @return time in milliseconds when the lease expires
+     */
+    public long getExpires()
+    {
+        return this.expires;
+    }
+
+    /**
+     * @param _now  current time in milliseconds
+     * @return <i>true</i> if the lease is expired; otherwise <i>false</i>
+     */
+    public boolean isExpired(final long _now)
+    {
+        return _now >= this.expires;
+    }
+
+    @Override()
+    public String toString()
+    {
+        return String.format("LockLease[%s,%s,%s,%d]", this.path, this.scope, this.token, this.expires);
+    }
+}
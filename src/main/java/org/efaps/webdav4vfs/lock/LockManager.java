@@ -21,45 +21,38 @@
 
 package org.efaps.webdav4vfs.lock;
 
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.vfs.FileObject;
-import org.apache.commons.vfs.FileSelectInfo;
 import org.apache.commons.vfs.FileSystemException;
 import org.efaps.webdav4vfs.util.Util;
-import org.efaps.webdav4vfs.vfs.DepthFileSelector;
 
 
 /**
  * The lock manager is responsible for exclusive and shared write locks on the
  * DAV server. It is used to acquire a lock, release a lock, discover existing
- * locks or check conditions. The lock manager is a singleton.
+ * locks or check conditions. The lock manager used by the handlers is a
+ * singleton and could be used concurrently from all servlet threads. Per
+ * default the locks are only held in this JVM (see {@link LocalLockManager});
+ * if several servlet nodes share the same VFS root, a lock manager which
+ * shares the locks between the nodes (e.g. {@link ClusterLockManager}) must
+ * be defined with {@link #setInstance(LockManager)}.
  *
  * @author Matthias L. Jugel
  * @version $Id$
  */
-public class LockManager
+public abstract class LockManager
 {
-
-    private static LockManager instance = new LockManager();
     private static final Log LOG = LogFactory.getLog(LockManager.class);
 
-    // condition parser patterns and tokens
-    private static final Pattern IF_PATTERN = Pattern.compile("(<[^>]+>)|(\\([^)]+\\))");
-    private static final Pattern CONDITION_PATTERN = Pattern.compile("([Nn][Oo][Tt])|(<[^>]+>)|(\\[[^]]+\\])");
-    private static final char TOKEN_LOWER_THAN = '<';
-    private static final char TOKEN_LEFT_BRACE = '(';
-    private static final char TOKEN_LEFT_BRACKET = '[';
+    /**
+     * Current lock manager instance.
+     */
+    private static volatile LockManager instance = new LocalLockManager();
 
     /**
      * Get an instance of the lock manager.
@@ -71,79 +64,116 @@ public class LockManager
         return LockManager.instance;
     }
 
-    private final Map<FileObject, List<Lock>> lockMap;
-
     /**
-     * The lock manager is a singleton and cannot be instantiated directly.
+     * Defines the lock manager used from all handlers. The previous lock
+     * manager is not closed.
+     *
+     * @param _lockManager  new lock manager
      */
-    private LockManager()
+    public static void setInstance(final LockManager _lockManager)
     {
-        lockMap = new HashMap<FileObject, List<Lock>>();
+        LockManager.instance = _lockManager;
     }
 
     /**
-     * Acquire a lock. This will first check for conflicts and throws exceptions if
-     * there are existing locks or for some reason the lock could not be acquired.
+     * Acquire a lock. This will first check for conflicts and throws
+     * exceptions if there are existing locks or for some reason the lock
+     * could not be acquired.
      *
-     * @param lock the lock to acquire
+     * @param _lock the lock to acquire
      * @throws LockConflictException if an existing lock has priority
      * @throws FileSystemException   if the file object and its path cannot be accessed
      */
-    public void acquireLock(final Lock lock)
-        throws LockConflictException, FileSystemException
-    {
-        checkConflicts(lock);
-        addLock(lock);
-    }
+    public abstract void acquireLock(final Lock _lock)
+        throws LockConflictException, FileSystemException;
 
     /**
-     * Release a lock on a file object with a given lock token. Releeases the lock if
-     * if one exists and if the lock token is valid for the found lock.
+     * Refresh given <code>_lock</code> with its original timeout.
      *
-     * @param object the file object we want to unlock
-     * @param token  the lock token associated with the file object
-     * @return true if the lock has been released, false if not
+     * @param _lock     lock to refresh
      */
-    public boolean releaseLock(final FileObject object,
-                               final String token)
+    public void refreshLock(final Lock _lock)
     {
-        boolean ret = true;
-        final List<Lock> locks = this.lockMap.get(object);
-        if (null != locks) {
-            ret = false;
-            for (final Lock lock : locks) {
-                if (lock.getToken().equals(token)) {
-                    locks.remove(lock);
-                    ret = true;
-                    break;
-                }
-            }
-        }
-        return ret;
+        refreshLock(_lock, _lock.getTimeoutSeconds());
     }
 
+    /**
+     * Refresh given <code>_lock</code> with a new timeout.
+     *
+     * @param _lock     lock to refresh
+     * @param _timeout  new timeout in seconds (<code>-1</code> for infinite)
+     */
+    public abstract void refreshLock(final Lock _lock,
+                                     final long _timeout);
+
+    /**
+     * Release a lock on a file object with a given lock token. Releases the
+     * lock if one exists and if the lock token is valid for the found lock.
+     *
+     * @param _object   the file object we want to unlock
+     * @param _token    the lock token associated with the file object
+     * @return <i>true</i> if the lock has been released or the file object
+     *         is not locked at all, <i>false</i> if not
+     */
+    public abstract boolean releaseLock(final FileObject _object,
+                                        final String _token);
+
+    /**
+     * Removes all locks of given file object and of all its descendants. It
+     * is called after the file object was deleted or moved away, because the
+     * locks of a resource are not moved with the resource (see RFC 4918,
+     * section 7.7).
+     *
+     * @param _object   deleted or moved file object
+     * @return number of removed locks
+     */
+    public abstract int removeLocks(final FileObject _object);
+
+    /**
+     * Returns the number of all current locks.
+     *
+     * @return number of locks
+     */
+    public abstract int getLockCount();
+
     /**
      * Discover locks for a given file object. This will find locks for the
      * object itself and parent path locks with a depth that reaches the file
      * object.
      *
-     * @param object the file object to find locks for
-     * @return the locks that are found for this file object
+     * @param _object   the file object to find locks for
+     * @return the locks that are found for this file object (or
+     *         <code>null</code> if the file object is not locked)
+     * @throws FileSystemException if the file object or its parents cannot be
+     *                             accessed
+     */
+    public abstract List<Lock> discoverLock(final FileObject _object)
+        throws FileSystemException;
+
+    /**
+     * Find the lock with given lock token which applies to the file object.
+     * The lock must be one of the locks which are discovered for the file
+     * object (see {@link #discoverLock(FileObject)}).
+     *
+     * @param _object   file object
+     * @param _token    lock token
+     * @return found lock or <code>null</code> if no lock with given token
+     *         applies to the file object
      * @throws FileSystemException if the file object or its parents cannot be
      *                             accessed
      */
-    public List<Lock> discoverLock(final FileObject object)
+    public Lock findLock(final FileObject _object,
+                         final String _token)
         throws FileSystemException
     {
-        FileObject parent = object;
-        while (parent != null) {
-            List<Lock> parentLocks = lockMap.get(parent);
-            if ((parentLocks != null) && !parentLocks.isEmpty()) {
-                return parentLocks;
-            }
-            parent = parent.getParent();
-        }
-        return null;
+        return findLock(discoverLock(_object), _token);
+    }
+
+    /**
+     * Closes the lock manager. The default implementation does nothing.
+     */
+    public void close()
+    {
     }
 
     /**
@@ -151,7 +181,9 @@ public class LockManager
      * The condition may be a tagged list or an untagged list. Tagged lists define the resource, the condition
      * applies to in front of the condition (ex. 1, 2, 5, 6). Conditions may be inverted by using 'Not' at the
      * beginning of the condition (ex. 3, 4, 6). The list constitutes an OR expression while the list of
-     * conditions within braces () constitutes an AND expression.
+     * conditions within braces () constitutes an AND expression. The header is
+     * parsed with {@link IfHeader#parse(String)}, so already known headers are
+     * not parsed again.
      * <p/>
      * Evaluate example 2:<br/>
      * <code>
@@ -181,6 +213,41 @@ public class LockManager
     public EvaluationResult evaluateCondition(final FileObject contextObject,
                                               final String ifCondition)
         throws FileSystemException, LockConflictException, ParseException
+    {
+        final long start = System.nanoTime();
+        try {
+            final EvaluationResult ret = evaluate(contextObject, ifCondition);
+            if (ret.result) {
+                LockMetrics.EVALUATION_TRUE.inc();
+            } else {
+                LockMetrics.EVALUATION_FALSE.inc();
+            }
+            return ret;
+        } catch (final LockConflictException e) {
+            LockMetrics.EVALUATION_CONFLICT.inc();
+            throw e;
+        } catch (final ParseException e) {
+            LockMetrics.EVALUATION_INVALID.inc();
+            throw e;
+        } finally {
+            LockMetrics.EVALUATE.recordSince(start);
+        }
+    }
+
+    /**
+     * Evaluates an 'If:' header condition.
+     *
+     * @param contextObject the contextual resource (needed when the If: condition is not tagged)
+     * @param ifCondition   the string of the condition as sent by the If: header
+     * @return evaluation of the condition expression
+     * @throws ParseException        if the condition does not meet the syntax requirements
+     * @throws LockConflictException if the resource is locked, but no valid lock token is given
+     * @throws FileSystemException   if a resource cannot be accessed
+     * @see #evaluateCondition(FileObject, String)
+     */
+    private EvaluationResult evaluate(final FileObject contextObject,
+                                      final String ifCondition)
+        throws FileSystemException, LockConflictException, ParseException
     {
         List<Lock> locks = discoverLock(contextObject);
         final EvaluationResult evaluation = new EvaluationResult();
@@ -193,73 +260,44 @@ public class LockManager
             return evaluation;
         }
 
-        final Matcher matcher = IF_PATTERN.matcher(ifCondition);
+        final IfHeader header = IfHeader.parse(ifCondition);
         FileObject resource = contextObject;
-        while (matcher.find()) {
-            String token = matcher.group();
-            switch (token.charAt(0)) {
-                case TOKEN_LOWER_THAN:
-                    String resourceUri = token.substring(1, token.length() - 1);
-                    try {
-                        resource = contextObject.getFileSystem().resolveFile(new URI(resourceUri).getPath());
-                        locks = discoverLock(resource);
-                    } catch (URISyntaxException e) {
-                        throw new ParseException(ifCondition, matcher.start());
-                    }
-                    break;
-                case TOKEN_LEFT_BRACE:
-                    LOG.debug(String.format("URI(%s) {", resource));
-                    Matcher condMatcher = CONDITION_PATTERN.matcher(token.substring(1, token.length() - 1));
-                    boolean expressionResult = true;
-                    while (condMatcher.find()) {
-                        String condToken = condMatcher.group();
-                        boolean negate = false;
-                        if (condToken.matches("[Nn][Oo][Tt]")) {
-                            negate = true;
-                            condMatcher.find();
-                            condToken = condMatcher.group();
+        String resourceETag = null;
+        for (final IfHeader.TaggedList taggedList : header.getTaggedLists()) {
+            if (taggedList.getPath() != null) {
+                resource = contextObject.getFileSystem().resolveFile(taggedList.getPath());
+                resourceETag = null;
+                locks = discoverLock(resource);
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(String.format("URI(%s) {", resource));
+            }
+            for (final List<IfHeader.Condition> conditions : taggedList.getLists()) {
+                boolean expressionResult = true;
+                for (final IfHeader.Condition condition : conditions) {
+                    final boolean matches;
+                    if (condition.getType() == IfHeader.Condition.Type.STATE_TOKEN) {
+                        final Lock lock = findLock(locks, condition.getValue());
+                        if (lock != null) {
+                            evaluation.locks.add(lock);
                         }
-                        switch (condToken.charAt(0)) {
-                            case TOKEN_LOWER_THAN:
-                                String lockToken = condToken.substring(1, condToken.length() - 1);
-
-                                boolean foundLock = false;
-                                if (locks != null) {
-                                    for (Lock lock : locks) {
-                                        if (lockToken.equals(lock.getToken())) {
-                                            evaluation.locks.add(lock);
-                                            foundLock = true;
-                                            break;
-                                        }
-                                    }
-                                }
-                                final boolean foundLockResult = negate ? !foundLock : foundLock;
-                                LOG.debug(String.format("  %sis-locked-with(%s) = %b",
-                                                negate ? "NOT " : "", lockToken, foundLockResult));
-                                expressionResult = expressionResult && foundLockResult;
-                                break;
-                            case TOKEN_LEFT_BRACKET:
-                                String eTag = condToken.substring(1, condToken.length() - 1);
-                                String resourceETag = Util.getETag(resource);
-                                boolean resourceTagMatches = resourceETag.equals(eTag);
-                                final boolean matchesEtagResult = negate ? !resourceTagMatches : resourceTagMatches;
-                                LOG.debug(String.format("  %smatches-etag(%s) = %b",
-                                                    negate ? "NOT " : "", eTag, matchesEtagResult));
-                                expressionResult = expressionResult && matchesEtagResult;
-                                break;
-                            default:
-                                throw new ParseException(String.format("syntax error in condition '%s' at %d",
-                                                               ifCondition, matcher.start() + condMatcher.start()),
-                                                 matcher.start() + condMatcher.start());
+                        matches = lock != null;
+                    } else {
+                        if (resourceETag == null) {
+                            resourceETag = Util.getETag(resource);
                         }
+                        matches = resourceETag.equals(condition.getValue());
                     }
-
-                    evaluation.result = evaluation.result || expressionResult;
-                    LOG.debug("} => " + evaluation.result);
-                    break;
-                default:
-                    throw new ParseException(String.format("syntax error in condition '%s' at %d", ifCondition, matcher.start()),
-                                       matcher.start());
+                    final boolean conditionResult = condition.isNegated() ? !matches : matches;
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug(String.format("  %s = %b", condition, conditionResult));
+                    }
+                    expressionResult = expressionResult && conditionResult;
+                }
+                evaluation.result = evaluation.result || expressionResult;
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("} => " + evaluation.result);
             }
         }
 
@@ -284,62 +322,26 @@ public class LockManager
     }
 
     /**
-     * Add a lock to the list of shared locks of a given object.
+     * Find the lock with given lock token within given list of discovered
+     * locks. The lock must not be expired.
      *
-     * @param lock the lock to add
+     * @param _locks    discovered locks (could be <code>null</code>)
+     * @param _token    lock token
+     * @return found lock or <code>null</code>
      */
-    private void addLock(final Lock lock)
+    protected Lock findLock(final List<Lock> _locks,
+                            final String _token)
     {
-        final FileObject object = lock.getObject();
-        List<Lock> locks = lockMap.get(object);
-        if (null == locks) {
-            locks = new ArrayList<Lock>();
-            lockMap.put(object, locks);
-        }
-        locks.add(lock);
-    }
-
-    /**
-     * Check whether a lock conflicts with already existing locks up and down the path.
-     * First we go up the path to check for parent locks that may include the file object
-     * and the go down the directory tree (if depth requires it) to check locks that
-     * will conflict.
-     *
-     * @param requestedLock the lock requested
-     * @throws LockConflictException if a conflicting lock was found
-     * @throws FileSystemException   if the file object or path cannot be accessed
-     */
-    private void checkConflicts(final Lock requestedLock)
-        throws LockConflictException, FileSystemException
-    {
-        // find locks in the parent path
-        FileObject parent = requestedLock.getObject();
-        while (parent != null) {
-            List<Lock> parentLocks = lockMap.get(parent);
-            if (parentLocks != null && !parentLocks.isEmpty()) {
-                for (Lock parentLock : parentLocks) {
-                    if (Lock.EXCLUSIVE.equals(requestedLock.getScope()) || Lock.EXCLUSIVE.equals(parentLock.getScope())) {
-                        throw new LockConflictException(parentLocks);
-                    }
+        Lock ret = null;
+        if (_locks != null) {
+            final long now = System.currentTimeMillis();
+            for (final Lock lock : _locks) {
+                if (lock.getToken().equals(_token) && !lock.isExpired(now)) {
+                    ret = lock;
+                    break;
                 }
             }
-            parent = parent.getParent();
-        }
-
-        // look for locks down the path (if depth requests it)
-        if (requestedLock.getDepth() != 0 && requestedLock.getObject().getChildren().length > 0) {
-            requestedLock.getObject().findFiles(new DepthFileSelector(1, requestedLock.getDepth()) {
-                @Override()
-                public boolean includeFile(FileSelectInfo fileSelectInfo) throws Exception {
-                    List<Lock> childLocks = lockMap.get(fileSelectInfo.getFile());
-                    for (Lock childLock : childLocks) {
-                        if (Lock.EXCLUSIVE.equals(requestedLock.getScope()) || Lock.EXCLUSIVE.equals(childLock.getScope())) {
-                            throw new LockConflictException(childLocks);
-                        }
-                    }
-                    return false;
-                }
-            }, false, new ArrayList<Object>());
         }
+        return ret;
     }
 }
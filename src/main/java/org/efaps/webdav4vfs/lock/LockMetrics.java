@@ -0,0 +1,138 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.lock;
+
+import org.efaps.webdav4vfs.metrics.Counter;
+import org.efaps.webdav4vfs.metrics.Gauge;
+import org.efaps.webdav4vfs.metrics.Histogram;
+import org.efaps.webdav4vfs.metrics.Metrics;
+
+/**
+ * Metrics of the lock subsystem used by all lock managers.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+final class LockMetrics
+{
+    /**
+     * Duration of the lock acquisitions (including failed ones).
+     */
+    static final Histogram ACQUIRE = Metrics.getInstance().histogram(
+            "webdav4vfs_lock_acquire_seconds", "Duration of lock acquisitions.");
+
+    /**
+     * Duration of the lock releases.
+     */
+    static final Histogram RELEASE = Metrics.getInstance().histogram(
+            "webdav4vfs_lock_release_seconds", "Duration of lock releases.");
+
+    /**
+     * Duration of the conflict checks.
+     */
+    static final Histogram CONFLICT_CHECK = Metrics.getInstance().histogram(
+            "webdav4vfs_lock_conflict_check_seconds", "Duration of the conflict checks of lock acquisitions.");
+
+    /**
+     * Duration of the 'If:' header evaluations.
+     */
+    static final Histogram EVALUATE = Metrics.getInstance().histogram(
+            "webdav4vfs_lock_if_evaluation_seconds", "Duration of the If header evaluations.");
+
+    /**
+     * Failed acquisitions of exclusive locks.
+     */
+    static final Counter CONFLICTS_EXCLUSIVE = Metrics.getInstance().counter(
+            "webdav4vfs_lock_conflicts_exclusive_total", "Requested exclusive locks failed with a conflict.");
+
+    /**
+     * Failed acquisitions of shared locks.
+     */
+    static final Counter CONFLICTS_SHARED = Metrics.getInstance().counter(
+            "webdav4vfs_lock_conflicts_shared_total", "Requested shared locks failed with a conflict.");
+
+    /**
+     * 'If:' header evaluations which were true.
+     */
+    static final Counter EVALUATION_TRUE = Metrics.getInstance().counter(
+            "webdav4vfs_lock_if_true_total", "If header evaluations with result true.");
+
+    /**
+     * 'If:' header evaluations which were false.
+     */
+    static final Counter EVALUATION_FALSE = Metrics.getInstance().counter(
+            "webdav4vfs_lock_if_false_total", "If header evaluations with result false.");
+
+    /**
+     * 'If:' header evaluations which failed with a lock conflict.
+     */
+    static final Counter EVALUATION_CONFLICT = Metrics.getInstance().counter(
+            "webdav4vfs_lock_if_conflict_total", "If header evaluations failed with a lock conflict.");
+
+    /**
+     * 'If:' headers which could not be parsed.
+     */
+    static final Counter EVALUATION_INVALID = Metrics.getInstance().counter(
+            "webdav4vfs_lock_if_invalid_total", "If headers which could not be parsed.");
+
+    /**
+     * Expired locks.
+     */
+    static final Counter EXPIRED = Metrics.getInstance().counter(
+            "webdav4vfs_lock_expired_total", "Locks removed because of their timeout.");
+
+    /**
+     * Duration of the round trips to a shared lock registry.
+     */
+    static final Histogram REGISTRY_ROUND_TRIP = Metrics.getInstance().histogram(
+            "webdav4vfs_lock_registry_round_trip_seconds", "Duration of the round trips to the shared lock registry.");
+
+    static {
+        Metrics.getInstance().register(new Gauge("webdav4vfs_lock_active", "Current number of locks.") {
+            @Override()
+            public double getValue()
+            {
+                return LockManager.getInstance().getLockCount();
+            }
+        });
+    }
+
+    /**
+     * Only static fields.
+     */
+    private LockMetrics()
+    {
+    }
+
+    /**
+     * Counts a conflict for a requested lock with given scope.
+     *
+     * @param _lock     requested lock
+     */
+    static void conflict(final Lock _lock)
+    {
+        if (Lock.EXCLUSIVE.equals(_lock.getScope())) {
+            LockMetrics.CONFLICTS_EXCLUSIVE.inc();
+        } else {
+            LockMetrics.CONFLICTS_SHARED.inc();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.lock;
+
+import java.util.Collection;
+
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystemException;
+
+/**
+ * A lock store persists the locks of the {@link LockManager} so that they
+ * survive a restart of the server. The lock manager informs the store about
+ * each change of a lock; the store must not block the caller longer than
+ * needed (e.g. by waiting for a sync to the disk). Errors are only logged by
+ * the store, because the in-memory locks are still valid.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ * @see LocalLockManager#setLockStore(LockStore, FileObject)
+ */
+public interface LockStore
+{
+    /**
+     * Loads all stored locks which are not expired.
+     *
+     * @param _root     root file object used to resolve the paths of the
+     *                  locked file objects
+     * @return collection of the stored locks
+     * @throws FileSystemException if a locked file object could not be
+     *                             resolved
+     */
+    Collection<Lock> load(final FileObject _root)
+        throws FileSystemException;
+
+    /**
+     * A new lock was acquired.
+     *
+     * @param _lock     acquired lock
+     */
+    void stored(final Lock _lock);
+
+    /**
+     * The timeout of a lock was refreshed.
+     *
+     * @param _lock     refreshed lock
+     */
+    void refreshed(final Lock _lock);
+
+    /**
+     * A lock was released or is expired.
+     *
+     * @param _lock     removed lock
+     */
+    void removed(final Lock _lock);
+
+    /**
+     * Closes the lock store. All pending changes must be written.
+     */
+    void close();
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.lock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Hashed timer wheel used to expire locks. Each lock with a finite timeout is
+ * put into the bucket of the tick in which it expires. One single daemon
+ * thread advances the wheel each tick and only handles the locks of the
+ * current bucket, so scheduling and expiring a lock costs O(1) independent of
+ * the number of locks. A released lock is only marked as cancelled, so that
+ * it does not reference the lock anymore; a bucket is purged from cancelled
+ * entries as soon as at least half of its entries are cancelled. If a lock
+ * was refreshed in the meantime, this is detected when its bucket is
+ * handled.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+final class LockTimerWheel
+{
+    /**
+     * Logging instance used in this class.
+     */
+    private static final Log LOG = LogFactory.getLog(LockTimerWheel.class);
+
+    /**
+     * Listener called for expired locks.
+     */
+    interface ExpiryListener
+    {
+        /**
+         * Called from the timer thread for each expired lock.
+         *
+         * @param _lock     expired lock
+         */
+        void expired(Lock _lock);
+    }
+
+    /**
+     * Duration of one tick in milliseconds.
+     */
+    private final long tickDuration;
+
+    /**
+     * Buckets of the wheel (number of buckets is a power of two).
+     */
+    private final Bucket[] buckets;
+
+    /**
+     * Mask to get the bucket index for a tick.
+     */
+    private final int mask;
+
+    /**
+     * Current entries of the scheduled locks.
+     */
+    private final ConcurrentMap<Lock, Entry> entries = new ConcurrentHashMap<Lock, Entry>();
+
+    /**
+     * Listener for expired locks.
+     */
+    private final ExpiryListener listener;
+
+    /**
+     * Time in milliseconds when the wheel was created (tick 0).
+     */
+    private final long startTime;
+
+    /**
+     * Last tick handled by the timer thread.
+     */
+    private volatile long currentTick;
+
+    /**
+     * Timer thread (started with the first scheduled lock).
+     */
+    private Thread thread;
+
+    /**
+     * @param _listener         listener for expired locks
+     * @param _tickDuration     duration of one tick in milliseconds
+     * @param _bucketCount      wanted number of buckets (rounded up to the
+     *                          next power of two)
+     */
+    LockTimerWheel(final ExpiryListener _listener,
+                   final long _tickDuration,
+                   final int _bucketCount)
+    {
+        int count = 1;
+        while (count < _bucketCount) {
+            count <<= 1;
+        }
+        this.listener = _listener;
+        this.tickDuration = _tickDuration;
+        this.buckets = new Bucket[count];
+        for (int idx = 0; idx < count; idx++) {
+            this.buckets[idx] = new Bucket();
+        }
+        this.mask = count - 1;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Schedules given <code>_lock</code> for expiry. Locks without timeout
+     * are ignored.
+     *
+     * @param _lock     lock to schedule
+     */
+    void schedule(final Lock _lock)
+    {
+        if (_lock.getExpires() != Long.MAX_VALUE) {
+            final long tick = Math.max(getTick(_lock.getExpires()), this.currentTick + 1);
+            final Entry entry = new Entry(_lock, tick);
+            final Entry oldEntry = this.entries.put(_lock, entry);
+            if (oldEntry != null) {
+                cancel(oldEntry);
+            }
+            this.buckets[(int) (tick & this.mask)].add(entry);
+            startThread();
+        }
+    }
+
+    /**
+     * Cancels the expiry of given released <code>_lock</code>.
+     *
+     * @param _lock     released lock
+     */
+    void cancel(final Lock _lock)
+    {
+        final Entry entry = this.entries.remove(_lock);
+        if (entry != null) {
+            cancel(entry);
+        }
+    }
+
+    /**
+     * Marks given <code>_entry</code> as cancelled and purges its bucket if
+     * at least half of the entries of the bucket are cancelled.
+     *
+     * @param _entry    entry to cancel
+     */
+    private void cancel(final Entry _entry)
+    {
+        _entry.lock = null;
+        if (_entry.state.compareAndSet(Entry.QUEUED, Entry.CANCELLED)) {
+            final Bucket bucket = this.buckets[(int) (_entry.tick & this.mask)];
+            if (bucket.cancelled.incrementAndGet() * 2 >= bucket.size.get()) {
+                bucket.purge();
+            }
+        }
+    }
+
+    /**
+     * Stops the timer thread.
+     */
+    synchronized void stop()
+    {
+        if (this.thread != null) {
+            this.thread.interrupt();
+            this.thread = null;
+        }
+    }
+
+    /**
+     * Starts the timer thread if not already running.
+     */
+    private synchronized void startThread()
+    {
+        if (this.thread == null) {
+            this.thread = new Thread("WebDAV Lock Expiry") {
+                @Override()
+                public void run()
+                {
+                    runWheel();
+                }
+            };
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+    }
+
+    /**
+     * Main loop of the timer thread.
+     */
+    private void runWheel()
+    {
+        while (!Thread.currentThread().isInterrupted()) {
+            final long now = System.currentTimeMillis();
+            final long tick = (now - this.startTime) / this.tickDuration;
+            // catch up all ticks since the last run
+            while (this.currentTick < tick) {
+                handleBucket(this.currentTick + 1, now);
+                this.currentTick++;
+            }
+            final long sleep = this.startTime + (tick + 1) * this.tickDuration - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (final InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles all entries of the bucket for given <code>_tick</code>.
+     * Entries for later rounds and locks which were refreshed are
+     * rescheduled.
+     *
+     * @param _tick     tick to handle
+     * @param _now      current time in milliseconds
+     */
+    private void handleBucket(final long _tick,
+                              final long _now)
+    {
+        final Bucket bucket = this.buckets[(int) (_tick & this.mask)];
+        final List<Entry> polled = bucket.pollAll();
+        for (final Entry current : polled) {
+            final Lock lock = current.lock;
+            if (lock == null) {
+                // cancelled in the meantime
+                continue;
+            }
+            if (current.tick > _tick) {
+                bucket.add(current);
+            } else if (lock.isExpired(_now)) {
+                if (this.entries.remove(lock, current)) {
+                    try {
+                        this.listener.expired(lock);
+                    } catch (final RuntimeException e) {
+                        LOG.error("could not expire lock " + lock, e);
+                    }
+                }
+            } else if (lock.getExpires() != Long.MAX_VALUE) {
+                // lock was refreshed
+                final long tick = Math.max(getTick(lock.getExpires()), _tick + 1);
+                final Entry entry = new Entry(lock, tick);
+                if (this.entries.replace(lock, current, entry)) {
+                    this.buckets[(int) (tick & this.mask)].add(entry);
+                }
+            } else {
+                this.entries.remove(lock, current);
+            }
+        }
+    }
+
+    /**
+     * Returns the first tick which starts at or after given time.
+     *
+     * @param _time time in milliseconds
+     * @return tick for given time
+     */
+    private long getTick(final long _time)
+    {
+        return (_time - this.startTime + this.tickDuration - 1) / this.tickDuration;
+    }
+
+    /**
+     * Bucket of the wheel.
+     */
+    private static final class Bucket
+    {
+        /**
+         * Entries of the bucket.
+         */
+        private final Queue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+
+        /**
+         * Number of entries in the bucket.
+         */
+        private final AtomicInteger size = new AtomicInteger();
+
+        /**
+         * Number of cancelled entries in the bucket.
+         */
+        private final AtomicInteger cancelled = new AtomicInteger();
+
+        /**
+         * @param _entry    entry to add
+         */
+        private void add(final Entry _entry)
+        {
+            _entry.state.set(Entry.QUEUED);
+            this.size.incrementAndGet();
+            this.queue.add(_entry);
+        }
+
+        /**
+         * Removes all entries from the bucket.
+         *
+         * @return list of all removed entries
+         */
+        private synchronized List<Entry> pollAll()
+        {
+            final List<Entry> ret = new ArrayList<Entry>();
+            Entry entry = this.queue.poll();
+            while (entry != null) {
+                ret.add(entry);
+                removed(entry);
+                entry = this.queue.poll();
+            }
+            return ret;
+        }
+
+        /**
+         * Removes all cancelled entries from the bucket.
+         */
+        private synchronized void purge()
+        {
+            final Iterator<Entry> iter = this.queue.iterator();
+            while (iter.hasNext()) {
+                final Entry entry = iter.next();
+                if (entry.state.get() == Entry.CANCELLED) {
+                    iter.remove();
+                    removed(entry);
+                }
+            }
+        }
+
+        /**
+         * Updates the counters for a removed entry.
+         *
+         * @param _entry    removed entry
+         */
+        private void removed(final Entry _entry)
+        {
+            this.size.decrementAndGet();
+            if (!_entry.state.compareAndSet(Entry.QUEUED, Entry.DEQUEUED)) {
+                this.cancelled.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Entry of a bucket.
+     */
+    private static final class Entry
+    {
+        /**
+         * State of an entry which is queued in a bucket.
+         */
+        private static final int QUEUED = 0;
+
+        /**
+         * State of a cancelled entry which is still queued in a bucket.
+         */
+        private static final int CANCELLED = 1;
+
+        /**
+         * State of an entry which was removed from its bucket.
+         */
+        private static final int DEQUEUED = 2;
+
+        /**
+         * Current state of the entry.
+         */
+        private final AtomicInteger state = new AtomicInteger(Entry.DEQUEUED);
+
+        /**
+         * Scheduled lock (<code>null</code> if cancelled).
+         */
+        private volatile Lock lock;
+
+        /**
+         * Tick in which the lock expires.
+         */
+        private final long tick;
+
+        /**
+         * @param _lock     scheduled lock
+         * @param _tick     tick in which the lock expires
+         */
+        private Entry(final Lock _lock,
+                      final long _tick)
+        {
+            this.lock = _lock;
+            this.tick = _tick;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.lock;
+
+import java.util.List;
+
+/**
+ * A shared lock registry is the backing store of the {@link ClusterLockManager}
+ * which is shared between all servlet nodes of a cluster. The registry is the
+ * only authority for the locks: each method is one round trip to the registry
+ * and must be atomic, especially the conflict check and the insert of a new
+ * lease in {@link #acquire(LockLease)}. Expired leases must be ignored by the
+ * registry.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+public interface SharedLockRegistry
+{
+    /**
+     * Listener informed about changed locks (e.g. to invalidate a cache).
+     */
+    interface Listener
+    {
+        /**
+         * The locks of given path were changed (acquired, refreshed, released
+         * or expired).
+         *
+         * @param _path     path of the changed locks
+         */
+        void changed(String _path);
+    }
+
+    /**
+     * Acquires given lease if no conflicting lease exists.
+     *
+     * @param _lease    lease to acquire
+     * @return list of conflicting leases; an empty list if the lease was
+     *         acquired
+     */
+    List<LockLease> acquire(final LockLease _lease);
+
+    /**
+     * Refreshes the lease with given lock token.
+     *
+     * @param _token    lock token
+     * @param _timeout  new timeout in seconds (<code>-1</code> for infinite)
+     * @param _expires  new expiry time in milliseconds
+     * @return refreshed lease or <code>null</code> if no valid lease with
+     *         given token exists
+     */
+    LockLease refresh(final String _token,
+                      final long _timeout,
+                      final long _expires);
+
+    /**
+     * Releases the lease with given lock token on given path.
+     *
+     * @param _path     path of the locked file object
+     * @param _token    lock token
+     * @return <i>true</i> if the lease was released or the path has no
+     *         leases at all; otherwise <i>false</i>
+     */
+    boolean release(final String _path,
+                    final String _token);
+
+    /**
+     * Removes all leases of given path and of all its descendants.
+     *
+     * @param _path     path of the deleted or moved file object
+     * @return number of removed leases
+     */
+    int removeTree(final String _path);
+
+    /**
+     * Returns the number of all current leases.
+     *
+     * @return number of leases
+     */
+    int size();
+
+    /**
+     * Returns the leases which are the closest to given path: the leases of
+     * the path itself or, if the path has no leases, the leases of the
+     * nearest parent path with leases.
+     *
+     * @param _path     path of the file object
+     * @return list of the closest leases or <code>null</code> if neither the
+     *         path nor one of its parents has a lease
+     */
+    List<LockLease> discover(final String _path);
+
+    /**
+     * Registers a listener for changed locks.
+     *
+     * @param _listener listener to add
+     */
+    void addListener(final Listener _listener);
+
+    /**
+     * Unregisters a listener for changed locks.
+     *
+     * @param _listener listener to remove
+     */
+    void removeListener(final Listener _listener);
+}
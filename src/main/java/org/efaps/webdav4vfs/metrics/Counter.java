@@ -0,0 +1,93 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonic counter.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ * @see Metrics#counter(String, String)
+ */
+public final class Counter
+    extends Metric
+{
+    /**
+     * Current value.
+     */
+    private final AtomicLong value = new AtomicLong();
+
+    /**
+     * @param _name     name of the counter
+     * @param _help     help text of the counter
+     */
+    Counter(final String _name,
+            final String _help)
+    {
+        super(_name, _help);
+    }
+
+    /**
+     * Increments the counter by one.
+     */
+    public void inc()
+    {
+        this.value.incrementAndGet();
+    }
+
+    /**
+     * Increments the counter by given <code>_delta</code>.
+     *
+     * @param _delta    delta to add
+     */
+    public void add(final long _delta)
+    {
+        this.value.addAndGet(_delta);
+    }
+
+    /**
+     * @return current value of the counter
+     */
+    public long get()
+    {
+        return this.value.get();
+    }
+
+    @Override()
+    protected void writeText(final Writer _writer)
+        throws IOException
+    {
+        writeHeader(_writer, "counter");
+        _writer.append(getName()).append(' ').append(String.valueOf(get())).append('\n');
+    }
+
+    @Override()
+    protected Map<String, Object> getAttributes()
+    {
+        return Collections.<String, Object>singletonMap(getName(), get());
+    }
+}
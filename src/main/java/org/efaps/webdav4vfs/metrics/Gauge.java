@@ -0,0 +1,66 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Gauge which reads its current value each time it is reported.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ * @see Metrics#register(Metric)
+ */
+public abstract class Gauge
+    extends Metric
+{
+    /**
+     * @param _name     name of the gauge
+     * @param _help     help text of the gauge
+     */
+    protected Gauge(final String _name,
+                    final String _help)
+    {
+        super(_name, _help);
+    }
+
+    /**
+     * @return current value of the gauge
+     */
+    public abstract double getValue();
+
+    @Override()
+    protected void writeText(final Writer _writer)
+        throws IOException
+    {
+        writeHeader(_writer, "gauge");
+        _writer.append(getName()).append(' ').append(String.valueOf(getValue())).append('\n');
+    }
+
+    @Override()
+    protected Map<String, Object> getAttributes()
+    {
+        return Collections.<String, Object>singletonMap(getName(), getValue());
+    }
+}
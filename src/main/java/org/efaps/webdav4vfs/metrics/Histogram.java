@@ -0,0 +1,245 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds with log-linear buckets (like a HDR
+ * histogram): each power of two is divided into {@link #SUB_BUCKETS} linear
+ * sub buckets, so each recorded value is held with a relative error of at
+ * most 1 / {@link #SUB_BUCKETS} independent of its magnitude. Recording a
+ * value is lock free and costs O(1). The durations are reported in seconds.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ * @see Metrics#histogram(String, String)
+ */
+public final class Histogram
+    extends Metric
+{
+    /**
+     * Number of bits for the sub buckets.
+     */
+    private static final int SUB_BITS = 5;
+
+    /**
+     * Number of sub buckets per power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << Histogram.SUB_BITS;
+
+    /**
+     * Reported quantiles.
+     */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /**
+     * Suffixes of the JMX attributes for the reported quantiles.
+     */
+    private static final String[] QUANTILE_SUFFIXES = {"_p50", "_p90", "_p99", "_p999"};
+
+    /**
+     * Nanoseconds per second.
+     */
+    private static final double NANOS = 1000000000.0;
+
+    /**
+     * Count of the values per bucket.
+     */
+    private final AtomicLongArray buckets
+        = new AtomicLongArray((64 - Histogram.SUB_BITS) * Histogram.SUB_BUCKETS);
+
+    /**
+     * Number of recorded values.
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * Sum of all recorded values.
+     */
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * Maximum recorded value.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param _name     name of the histogram
+     * @param _help     help text of the histogram
+     */
+    Histogram(final String _name,
+              final String _help)
+    {
+        super(_name, _help);
+    }
+
+    /**
+     * Records the duration since given start time.
+     *
+     * @param _startNanos   start time from {@link System#nanoTime()}
+     */
+    public void recordSince(final long _startNanos)
+    {
+        record(System.nanoTime() - _startNanos);
+    }
+
+    /**
+     * Records given duration.
+     *
+     * @param _nanos    duration in nanoseconds (negative values are
+     *                  recorded as zero)
+     */
+    public void record(final long _nanos)
+    {
+        final long value = Math.max(0, _nanos);
+        this.buckets.incrementAndGet(getIndex(value));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(value);
+        long current = this.max.get();
+        while ((value > current) && !this.max.compareAndSet(current, value)) {
+            current = this.max.get();
+        }
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    public long getCount()
+    {
+        return this.count.get();
+    }
+
+    /**
+     * @return sum of all recorded values in nanoseconds
+     */
+    public long getSum()
+    {
+        return this.sum.get();
+    }
+
+    /**
+     * @return maximum recorded value in nanoseconds
+     */
+    public long getMax()
+    {
+        return this.max.get();
+    }
+
+    /**
+     * Returns the value at given quantile. The returned value is the upper
+     * bound of the bucket which contains the quantile (but never more than
+     * the maximum).
+     *
+     * @param _quantile quantile between 0 and 1
+     * @return value at the quantile in nanoseconds (<code>0</code> if no
+     *         value was recorded)
+     */
+    public long getQuantile(final double _quantile)
+    {
+        long ret = 0;
+        final long total = this.count.get();
+        if (total > 0) {
+            final long rank = Math.max(1, (long) Math.ceil(_quantile * total));
+            long seen = 0;
+            for (int idx = 0; idx < this.buckets.length(); idx++) {
+                seen += this.buckets.get(idx);
+                if (seen >= rank) {
+                    ret = Math.min(getUpperBound(idx), this.max.get());
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Override()
+    protected void writeText(final Writer _writer)
+        throws IOException
+    {
+        writeHeader(_writer, "summary");
+        for (final double quantile : Histogram.QUANTILES) {
+            _writer.append(getName()).append("{quantile=\"").append(String.valueOf(quantile)).append("\"} ")
+                   .append(String.valueOf(getQuantile(quantile) / Histogram.NANOS)).append('\n');
+        }
+        _writer.append(getName()).append("_sum ").append(String.valueOf(getSum() / Histogram.NANOS)).append('\n')
+               .append(getName()).append("_count ").append(String.valueOf(getCount())).append('\n')
+               .append(getName()).append("_max ").append(String.valueOf(getMax() / Histogram.NANOS)).append('\n');
+    }
+
+    @Override()
+    protected Map<String, Object> getAttributes()
+    {
+        final Map<String, Object> ret = new LinkedHashMap<String, Object>();
+        ret.put(getName() + "_count", getCount());
+        ret.put(getName() + "_sum", getSum() / Histogram.NANOS);
+        for (int idx = 0; idx < Histogram.QUANTILES.length; idx++) {
+            ret.put(getName() + Histogram.QUANTILE_SUFFIXES[idx],
+                    getQuantile(Histogram.QUANTILES[idx]) / Histogram.NANOS);
+        }
+        ret.put(getName() + "_max", getMax() / Histogram.NANOS);
+        return ret;
+    }
+
+    /**
+     * Returns the index of the bucket for given value.
+     *
+     * @param _value    value (not negative)
+     * @return index of the bucket
+     */
+    private static int getIndex(final long _value)
+    {
+        final int ret;
+        if (_value < Histogram.SUB_BUCKETS) {
+            ret = (int) _value;
+        } else {
+            final int exp = 63 - Long.numberOfLeadingZeros(_value);
+            final int sub = (int) (_value >>> (exp - Histogram.SUB_BITS)) & (Histogram.SUB_BUCKETS - 1);
+            ret = (exp - Histogram.SUB_BITS + 1) * Histogram.SUB_BUCKETS + sub;
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the highest value of the bucket with given index.
+     *
+     * @param _index    index of the bucket
+     * @return upper bound of the bucket
+     */
+    private static long getUpperBound(final int _index)
+    {
+        final long ret;
+        if (_index < Histogram.SUB_BUCKETS) {
+            ret = _index;
+        } else {
+            final int exp = _index / Histogram.SUB_BUCKETS + Histogram.SUB_BITS - 1;
+            final long sub = _index % Histogram.SUB_BUCKETS;
+            final int shift = exp - Histogram.SUB_BITS;
+            ret = ((Histogram.SUB_BUCKETS + sub) << shift) + (1L << shift) - 1;
+        }
+        return ret;
+    }
+}
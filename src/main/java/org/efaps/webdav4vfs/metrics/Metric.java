@@ -0,0 +1,105 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Abstract metric with a name and a help text. The name follows the naming
+ * conventions of the Prometheus text format (lower case with underscores),
+ * so that the text output of {@link Metrics#writeText(Writer)} could be
+ * scraped directly.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+public abstract class Metric
+{
+    /**
+     * Name of the metric.
+     */
+    private final String name;
+
+    /**
+     * Help text of the metric.
+     */
+    private final String help;
+
+    /**
+     * @param _name     name of the metric
+     * @param _help     help text of the metric
+     */
+    protected Metric(final String _name,
+                     final String _help)
+    {
+        this.name = _name;
+        this.help = _help;
+    }
+
+    /**
+     * @return name of the metric
+     */
+    public String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * @return help text of the metric
+     */
+    public String getHelp()
+    {
+        return this.help;
+    }
+
+    /**
+     * Writes the current values of the metric in the text format.
+     *
+     * @param _writer   writer to write to
+     * @throws IOException if the values could not be written
+     */
+    protected abstract void writeText(final Writer _writer)
+        throws IOException;
+
+    /**
+     * Returns the current values of the metric as JMX attributes.
+     *
+     * @return map of attribute names and values (ordered)
+     */
+    protected abstract Map<String, Object> getAttributes();
+
+    /**
+     * Writes the help and type lines of the metric.
+     *
+     * @param _writer   writer to write to
+     * @param _type     type of the metric
+     * @throws IOException if the lines could not be written
+     */
+    protected void writeHeader(final Writer _writer,
+                               final String _type)
+        throws IOException
+    {
+        _writer.append("# HELP ").append(this.name).append(' ').append(this.help).append('\n')
+               .append("# TYPE ").append(this.name).append(' ').append(_type).append('\n');
+    }
+}
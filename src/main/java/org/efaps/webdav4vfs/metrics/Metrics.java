@@ -0,0 +1,189 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Registry of all metrics of the WebDAV server. The metrics are created once
+ * (normally in a static field of the measured class) and are reported with
+ * {@link #writeText(Writer)} (see {@link MetricsServlet}) or as attributes of
+ * a JMX MBean (see {@link #registerMBean()}).
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+public final class Metrics
+{
+    /**
+     * Logging instance used in this class.
+     */
+    private static final Log LOG = LogFactory.getLog(Metrics.class);
+
+    /**
+     * Name of the JMX MBean.
+     */
+    private static final String MBEAN_NAME = "org.efaps.webdav4vfs:type=Metrics";
+
+    /**
+     * Singleton instance.
+     */
+    private static final Metrics INSTANCE = new Metrics();
+
+    /**
+     * All metrics sorted by their name.
+     */
+    private final ConcurrentNavigableMap<String, Metric> metrics = new ConcurrentSkipListMap<String, Metric>();
+
+    /**
+     * The metrics registry is a singleton.
+     */
+    private Metrics()
+    {
+    }
+
+    /**
+     * @return the metrics registry
+     */
+    public static Metrics getInstance()
+    {
+        return Metrics.INSTANCE;
+    }
+
+    /**
+     * Returns the counter with given name. If the counter does not exist, it
+     * is created.
+     *
+     * @param _name     name of the counter
+     * @param _help     help text of the counter
+     * @return counter
+     */
+    public Counter counter(final String _name,
+                           final String _help)
+    {
+        return (Counter) register(new Counter(_name, _help));
+    }
+
+    /**
+     * Returns the histogram with given name. If the histogram does not
+     * exist, it is created.
+     *
+     * @param _name     name of the histogram
+     * @param _help     help text of the histogram
+     * @return histogram
+     */
+    public Histogram histogram(final String _name,
+                               final String _help)
+    {
+        return (Histogram) register(new Histogram(_name, _help));
+    }
+
+    /**
+     * Registers given metric (e.g. a {@link Gauge}). If a metric with the
+     * same name is already registered, the existing metric is returned.
+     *
+     * @param _metric   metric to register
+     * @return registered metric
+     */
+    public Metric register(final Metric _metric)
+    {
+        final Metric existing = this.metrics.putIfAbsent(_metric.getName(), _metric);
+        return (existing == null) ? _metric : existing;
+    }
+
+    /**
+     * @return all metrics sorted by their name
+     */
+    public Collection<Metric> getMetrics()
+    {
+        return this.metrics.values();
+    }
+
+    /**
+     * Returns the metric with given name.
+     *
+     * @param _name     name of the metric
+     * @return metric or <code>null</code> if not registered
+     */
+    public Metric getMetric(final String _name)
+    {
+        return this.metrics.get(_name);
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text format.
+     *
+     * @param _writer   writer to write to
+     * @throws IOException if the metrics could not be written
+     */
+    public void writeText(final Writer _writer)
+        throws IOException
+    {
+        for (final Metric metric : this.metrics.values()) {
+            metric.writeText(_writer);
+        }
+    }
+
+    /**
+     * Registers the MBean for the metrics at the platform MBean server. A
+     * failure is only logged.
+     */
+    public void registerMBean()
+    {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(Metrics.MBEAN_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MetricsMBean(this), name);
+            }
+        } catch (final JMException e) {
+            LOG.warn("could not register metrics MBean", e);
+        }
+    }
+
+    /**
+     * Unregisters the MBean for the metrics. A failure is only logged.
+     */
+    public void unregisterMBean()
+    {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(Metrics.MBEAN_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (final JMException e) {
+            LOG.warn("could not unregister metrics MBean", e);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * Dynamic MBean which exposes all metrics as read only attributes. Because
+ * metrics could be registered at any time, the attributes are evaluated
+ * each time the MBean info is requested.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+final class MetricsMBean
+    implements DynamicMBean
+{
+    /**
+     * Reported metrics.
+     */
+    private final Metrics metrics;
+
+    /**
+     * @param _metrics  reported metrics
+     */
+    MetricsMBean(final Metrics _metrics)
+    {
+        this.metrics = _metrics;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object getAttribute(final String _attribute)
+        throws AttributeNotFoundException
+    {
+        final Object ret = getValues().get(_attribute);
+        if (ret == null) {
+            throw new AttributeNotFoundException(_attribute);
+        }
+        return ret;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public AttributeList getAttributes(final String[] _attributes)
+    {
+        final Map<String, Object> values = getValues();
+        final AttributeList ret = new AttributeList();
+        for (final String attribute : _attributes) {
+            if (values.containsKey(attribute)) {
+                ret.add(new Attribute(attribute, values.get(attribute)));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * All attributes are read only.
+     *
+     * @param _attribute    attribute to set
+     * @throws AttributeNotFoundException always
+     */
+    public void setAttribute(final Attribute _attribute)
+        throws AttributeNotFoundException
+    {
+        throw new AttributeNotFoundException("attribute " + _attribute.getName() + " is read only");
+    }
+
+    /**
+     * All attributes are read only.
+     *
+     * @param _attributes   attributes to set
+     * @return always an empty list
+     */
+    public AttributeList setAttributes(final AttributeList _attributes)
+    {
+        return new AttributeList();
+    }
+
+    /**
+     * The MBean has no operations.
+     *
+     * @param _actionName   name of the operation
+     * @param _params       parameters
+     * @param _signature    signature
+     * @return nothing
+     */
+    public Object invoke(final String _actionName,
+                         final Object[] _params,
+                         final String[] _signature)
+    {
+        throw new UnsupportedOperationException(_actionName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public MBeanInfo getMBeanInfo()
+    {
+        final List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (final Metric metric : this.metrics.getMetrics()) {
+            for (final Map.Entry<String, Object> entry : metric.getAttributes().entrySet()) {
+                attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                                                      metric.getHelp(), true, false, false));
+            }
+        }
+        return new MBeanInfo(Metrics.class.getName(), "WebDAV server metrics",
+                             attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                             null, new MBeanOperationInfo[0], null);
+    }
+
+    /**
+     * @return current values of all attributes
+     */
+    private Map<String, Object> getValues()
+    {
+        final Map<String, Object> ret = new LinkedHashMap<String, Object>();
+        for (final Metric metric : this.metrics.getMetrics()) {
+            ret.putAll(metric.getAttributes());
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet reporting all metrics in the Prometheus text format. It must be
+ * mapped separately from the WebDAV servlet, e.g. to <code>/metrics</code>.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+public class MetricsServlet
+    extends HttpServlet
+{
+    /**
+     * Serial version unique identifier.
+     */
+    private static final long serialVersionUID = -2413476510183361279L;
+
+    @Override()
+    protected void doGet(final HttpServletRequest _request,
+                         final HttpServletResponse _response)
+        throws IOException
+    {
+        _response.setContentType("text/plain; version=0.0.4");
+        _response.setCharacterEncoding("UTF-8");
+        _response.setHeader("Cache-Control", "no-cache");
+        final Writer writer = _response.getWriter();
+        Metrics.getInstance().writeText(writer);
+        writer.flush();
+    }
+}
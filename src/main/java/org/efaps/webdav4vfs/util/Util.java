@@ -21,13 +21,17 @@
 
 package org.efaps.webdav4vfs.util;
 
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.TimeZone;
 
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.vfs.FileObject;
 import org.apache.commons.vfs.FileSystemException;
+import org.apache.commons.vfs.FileType;
+import org.efaps.webdav4vfs.vfs.ContentDigest;
 
 /**
  * @author Matthias L. Jugel
@@ -36,9 +40,27 @@ import org.apache.commons.vfs.FileSystemException;
 public final class Util
 {
     /**
-     * Date formatter for the HTTP date.
+     * Date formatter for the HTTP date (per thread, because a date format is
+     * not thread safe). HTTP dates are always in GMT.
      */
-    private static final SimpleDateFormat httpDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    private static final ThreadLocal<SimpleDateFormat> httpDateFormat = new ThreadLocal<SimpleDateFormat>() {
+        @Override()
+        protected SimpleDateFormat initialValue()
+        {
+            final SimpleDateFormat ret = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            ret.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return ret;
+        }
+    };
+
+    /**
+     * Patterns of the allowed HTTP date formats.
+     *
+     * @see #parseDate(String)
+     */
+    private static final String[] HTTP_DATE_PATTERNS = {"EEE, dd MMM yyyy HH:mm:ss zzz",
+                                                        "EEEE, dd-MMM-yy HH:mm:ss zzz",
+                                                        "EEE MMM d HH:mm:ss yyyy"};
 
     /**
      *
@@ -47,23 +69,72 @@ public final class Util
      */
     public static String getDateString(long _time)
     {
-        return httpDateFormat.format(new Date(_time));
+        return httpDateFormat.get().format(new Date(_time));
     }
 
     /**
+     * Parses a HTTP date in one of the formats of RFC 2616, section 3.3.1
+     * (RFC 1123, RFC 850 and ANSI C asctime).
      *
-     * @param _object
-     * @return
+     * @param _date     date string to parse
+     * @return time in milliseconds or <code>-1</code> if the date could not
+     *         be parsed
+     */
+    public static long parseDate(final String _date)
+    {
+        long ret = -1;
+        if (_date != null) {
+            for (final String pattern : Util.HTTP_DATE_PATTERNS) {
+                final SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+                format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                final ParsePosition pos = new ParsePosition(0);
+                final Date date = format.parse(_date.trim(), pos);
+                if ((date != null) && (pos.getIndex() == _date.trim().length())) {
+                    ret = date.getTime();
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the entity tag of a file object. The entity tag of a file with
+     * a stored digest is the strong entity tag of its content (see
+     * {@link ContentDigest}); otherwise the entity tag depends on the path
+     * and the last modification time, and is weak for a file whose digest
+     * is not known yet (the digest of a larger content is recomputed in the
+     * background).
+     *
+     * @param _object   file object
+     * @return entity tag of the file object
      */
     public static String getETag(final FileObject _object)
     {
-        final String fileName = _object.getName().getPath();
-        String lastModified = "";
+        String ret = null;
+        boolean weak = false;
         try {
-            lastModified = String.valueOf(_object.getContent().getLastModifiedTime());
+            if (FileType.FILE.equals(_object.getType())) {
+                final ContentDigest.Digest digest = ContentDigest.getInstance().getDigest(_object);
+                if (digest != null) {
+                    ret = digest.getETag();
+                } else {
+                    weak = true;
+                }
+            }
         } catch (final FileSystemException e) {
-            // ignore error here
+            weak = true;
+        }
+        if (ret == null) {
+            final String fileName = _object.getName().getPath();
+            String lastModified = "";
+            try {
+                lastModified = String.valueOf(_object.getContent().getLastModifiedTime());
+            } catch (final FileSystemException e) {
+                // ignore error here
+            }
+            ret = (weak ? "W/" : "") + DigestUtils.shaHex(fileName + lastModified);
         }
-        return DigestUtils.shaHex(fileName + lastModified);
+        return ret;
     }
 }
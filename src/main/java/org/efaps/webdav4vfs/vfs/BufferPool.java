@@ -0,0 +1,238 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ * Copyright 2007 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.vfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.efaps.webdav4vfs.metrics.Counter;
+import org.efaps.webdav4vfs.metrics.Gauge;
+import org.efaps.webdav4vfs.metrics.Metrics;
+
+/**
+ * Pool of the byte buffers used to copy contents (see {@link FileTransfer}).
+ * The buffers are grouped in size classes (powers of two from
+ * {@link #MIN_SIZE} to {@link #MAX_SIZE}); a requested size is rounded up to
+ * the next size class. Each thread caches one released buffer per size
+ * class, so the common case (acquire and release in the same request
+ * thread) needs no synchronization. Other released buffers are kept in a
+ * bounded central queue per size class. Buffers larger than
+ * {@link #MAX_SIZE} are not pooled.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+public final class BufferPool
+{
+    /**
+     * Size of the smallest size class.
+     */
+    public static final int MIN_SIZE = 4 * 1024;
+
+    /**
+     * Size of the largest size class.
+     */
+    public static final int MAX_SIZE = 256 * 1024;
+
+    /**
+     * Default budget of the buffers kept in the central queues.
+     */
+    public static final long DEFAULT_BUDGET = 16 * 1024 * 1024;
+
+    /**
+     * Number of size classes.
+     */
+    private static final int CLASSES = Integer.numberOfTrailingZeros(BufferPool.MAX_SIZE / BufferPool.MIN_SIZE) + 1;
+
+    /**
+     * Acquired buffers.
+     */
+    private static final Counter ACQUIRES = Metrics.getInstance().counter(
+            "webdav4vfs_buffer_acquires_total", "Acquired copy buffers.");
+
+    /**
+     * Newly allocated buffers.
+     */
+    private static final Counter ALLOCATIONS = Metrics.getInstance().counter(
+            "webdav4vfs_buffer_allocations_total", "Newly allocated copy buffers.");
+
+    /**
+     * Bytes of the newly allocated buffers.
+     */
+    private static final Counter ALLOCATED_BYTES = Metrics.getInstance().counter(
+            "webdav4vfs_buffer_allocated_bytes_total", "Bytes of the newly allocated copy buffers.");
+
+    static {
+        Metrics.getInstance().register(new Gauge("webdav4vfs_buffer_pooled_bytes",
+                                                 "Bytes of the copy buffers in the central pool.") {
+            @Override()
+            public double getValue()
+            {
+                return BufferPool.getInstance().getPooledBytes();
+            }
+        });
+    }
+
+    /**
+     * Current instance.
+     */
+    private static volatile BufferPool instance = new BufferPool(BufferPool.DEFAULT_BUDGET);
+
+    /**
+     * Central queues of the released buffers per size class.
+     */
+    private final List<BlockingQueue<byte[]>> central;
+
+    /**
+     * Buffer cached per thread and size class. Only arrays of bytes are held,
+     * so the thread local does not keep a class loader of a web application
+     * alive.
+     */
+    private final ThreadLocal<byte[][]> cache = new ThreadLocal<byte[][]>() {
+        @Override()
+        protected byte[][] initialValue()
+        {
+            return new byte[BufferPool.CLASSES][];
+        }
+    };
+
+    /**
+     * @param _budget   maximum number of bytes of the buffers in the central
+     *                  queues (divided equally between the size classes)
+     */
+    public BufferPool(final long _budget)
+    {
+        this.central = new ArrayList<BlockingQueue<byte[]>>(BufferPool.CLASSES);
+        for (int idx = 0; idx < BufferPool.CLASSES; idx++) {
+            final long count = _budget / BufferPool.CLASSES / getSize(idx);
+            this.central.add(new ArrayBlockingQueue<byte[]>((int) Math.max(1, Math.min(count, 1024))));
+        }
+    }
+
+    /**
+     * @return current buffer pool
+     */
+    public static BufferPool getInstance()
+    {
+        return BufferPool.instance;
+    }
+
+    /**
+     * Replaces the current buffer pool.
+     *
+     * @param _instance new buffer pool
+     */
+    public static void setInstance(final BufferPool _instance)
+    {
+        BufferPool.instance = _instance;
+    }
+
+    /**
+     * Returns a buffer with at least given size. The buffer should be given
+     * back with {@link #release(byte[])} if it is no longer used.
+     *
+     * @param _size     minimum size of the buffer
+     * @return buffer
+     */
+    public byte[] acquire(final int _size)
+    {
+        BufferPool.ACQUIRES.inc();
+        final int sizeClass = getSizeClass(_size);
+        byte[] ret = null;
+        if (sizeClass >= 0) {
+            final byte[][] buffers = this.cache.get();
+            ret = buffers[sizeClass];
+            if (ret != null) {
+                buffers[sizeClass] = null;
+            } else {
+                ret = this.central.get(sizeClass).poll();
+            }
+        }
+        if (ret == null) {
+            ret = new byte[(sizeClass >= 0) ? getSize(sizeClass) : _size];
+            BufferPool.ALLOCATIONS.inc();
+            BufferPool.ALLOCATED_BYTES.add(ret.length);
+        }
+        return ret;
+    }
+
+    /**
+     * Gives back a buffer which is no longer used. Buffers which were not
+     * acquired from a pool are ignored (if their size is not a size class)
+     * or pooled.
+     *
+     * @param _buffer   buffer to release
+     */
+    public void release(final byte[] _buffer)
+    {
+        final int sizeClass = getSizeClass(_buffer.length);
+        if ((sizeClass >= 0) && (getSize(sizeClass) == _buffer.length)) {
+            final byte[][] buffers = this.cache.get();
+            if (buffers[sizeClass] == null) {
+                buffers[sizeClass] = _buffer;
+            } else {
+                this.central.get(sizeClass).offer(_buffer);
+            }
+        }
+    }
+
+    /**
+     * @return bytes of the buffers in the central queues
+     */
+    public long getPooledBytes()
+    {
+        long ret = 0;
+        for (int idx = 0; idx < BufferPool.CLASSES; idx++) {
+            ret += (long) this.central.get(idx).size() * getSize(idx);
+        }
+        return ret;
+    }
+
+    /**
+     * @param _size     size of a buffer
+     * @return index of the smallest size class which holds given size, or
+     *         <code>-1</code> if the size is larger than {@link #MAX_SIZE}
+     */
+    private static int getSizeClass(final int _size)
+    {
+        final int ret;
+        if (_size <= BufferPool.MIN_SIZE) {
+            ret = 0;
+        } else if (_size > BufferPool.MAX_SIZE) {
+            ret = -1;
+        } else {
+            ret = 32 - Integer.numberOfLeadingZeros((_size - 1) / BufferPool.MIN_SIZE);
+        }
+        return ret;
+    }
+
+    /**
+     * @param _sizeClass    index of a size class
+     * @return size of the buffers of the size class
+     */
+    private static int getSize(final int _sizeClass)
+    {
+        return BufferPool.MIN_SIZE << _sizeClass;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ * Copyright 2007 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.vfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystemException;
+import org.apache.commons.vfs.FileType;
+import org.apache.commons.vfs.Selectors;
+import org.efaps.webdav4vfs.metrics.Counter;
+import org.efaps.webdav4vfs.metrics.Histogram;
+import org.efaps.webdav4vfs.metrics.Metrics;
+
+/**
+ * Assembly of chunked uploads. A client creates an upload collection (with
+ * MKCOL), puts the chunks of the content (in parallel) into the collection
+ * and assembles them with a MOVE of the member {@link #ASSEMBLE_NAME} of the
+ * collection to the destination. The names of the chunks are numbers which
+ * define their order; they must be numbered from <code>1</code> to the
+ * number of chunks without gaps (e.g. <code>1</code>, <code>2</code>, ...),
+ * so that a chunk whose PUT failed is not silently left out.
+ * <p>
+ * The chunks are concatenated in one pass into a staged file (see
+ * {@link Staging}) which replaces the destination, so readers never see a
+ * partly assembled content. After the assembly the upload collection is
+ * deleted.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+public final class ChunkAssembly
+{
+    /**
+     * Name of the (not existing) member of an upload collection which is
+     * moved to assemble the chunks.
+     */
+    public static final String ASSEMBLE_NAME = ".file";
+
+    /**
+     * Duration of the assemblies.
+     */
+    private static final Histogram DURATION = Metrics.getInstance().histogram(
+            "webdav4vfs_chunk_assembly_seconds", "Duration of the assemblies of chunked uploads.");
+
+    /**
+     * Assembled chunks.
+     */
+    private static final Counter CHUNKS = Metrics.getInstance().counter(
+            "webdav4vfs_chunk_assembly_chunks_total", "Chunks concatenated by the assemblies of chunked uploads.");
+
+    /**
+     * Orders the chunks by their number.
+     */
+    private static final Comparator<FileObject> ORDER = new Comparator<FileObject>() {
+        public int compare(final FileObject _chunk1,
+                           final FileObject _chunk2)
+        {
+            final long number1 = ChunkAssembly.getNumber(_chunk1);
+            final long number2 = ChunkAssembly.getNumber(_chunk2);
+            return (number1 < number2) ? -1 : ((number1 == number2) ? 0 : 1);
+        }
+    };
+
+    /**
+     * Only static methods.
+     */
+    private ChunkAssembly()
+    {
+    }
+
+    /**
+     * Checks if the file object is the assembly member of an upload
+     * collection.
+     *
+     * @param _object   file object to check
+     * @return <i>true</i> if the file object is the assembly member of an
+     *         existing collection
+     * @throws FileSystemException if the file object could not be checked
+     */
+    public static boolean isAssembly(final FileObject _object)
+        throws FileSystemException
+    {
+        return ChunkAssembly.ASSEMBLE_NAME.equals(_object.getName().getBaseName())
+                && !_object.exists()
+                && (_object.getParent() != null)
+                && FileType.FOLDER.equals(_object.getParent().getType());
+    }
+
+    /**
+     * Returns the chunks of the upload collection ordered by their number.
+     * Staging files of running PUT requests for chunks are ignored.
+     *
+     * @param _collection   upload collection
+     * @return chunks of the upload collection
+     * @throws MissingChunksException if the chunks are not numbered from 1
+     *                                to the number of chunks
+     * @throws IOException if the collection could not be read
+     * @throws IllegalArgumentException if the collection contains a member
+     *                                  which is not a chunk or two chunks
+     *                                  with the same number
+     */
+    public static List<FileObject> getChunks(final FileObject _collection)
+        throws IOException
+    {
+        final List<FileObject> ret = new ArrayList<FileObject>();
+        for (final FileObject child : _collection.getChildren()) {
+            if (!Staging.isStagingFile(child)) {
+                if (!FileType.FILE.equals(child.getType()) || (ChunkAssembly.getNumber(child) < 0)) {
+                    throw new IllegalArgumentException("invalid chunk " + child.getName().getBaseName());
+                }
+                ret.add(child);
+            }
+        }
+        Collections.sort(ret, ChunkAssembly.ORDER);
+        for (int idx = 0; idx < ret.size(); idx++) {
+            final long number = ChunkAssembly.getNumber(ret.get(idx));
+            if (number <= idx) {
+                throw new IllegalArgumentException("duplicate chunk " + ret.get(idx).getName().getBaseName());
+            } else if (number > idx + 1) {
+                throw new MissingChunksException(_collection, idx + 1);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Concatenates the chunks of the upload collection into the target and
+     * deletes the upload collection. The chunks are compared again while the
+     * collection is write locked (PUT requests of chunks hold the read lock
+     * of their collection while they commit), so no chunk which is not part
+     * of the assembled content is deleted with the collection.
+     *
+     * @param _collection   upload collection
+     * @param _target       file which is replaced by the assembled content
+     * @return length of the assembled content
+     * @throws ContentLockedException if the content of the collection or the
+     *                                target could not be locked
+     * @throws ChunksChangedException if the chunks changed while they were
+     *                                assembled
+     * @throws IOException if the chunks could not be assembled
+     */
+    public static long assemble(final FileObject _collection,
+                                final FileObject _target)
+        throws IOException
+    {
+        final long start = System.nanoTime();
+        final List<FileObject> chunks = ChunkAssembly.getChunks(_collection);
+        final List<String> states = ChunkAssembly.getStates(chunks);
+        final long ret;
+        final StagedFile stagedFile = Staging.getInstance().create(_target);
+        try {
+            ret = stagedFile.write(chunks);
+            final ContentCoordinator.HeldLock collectionLock = ChunkAssembly.acquireWrite(_collection);
+            try {
+                _collection.refresh();
+                List<String> current;
+                try {
+                    current = ChunkAssembly.getStates(ChunkAssembly.getChunks(_collection));
+                } catch (final IllegalArgumentException e) {
+                    current = null;
+                } catch (final MissingChunksException e) {
+                    current = null;
+                }
+                if (!states.equals(current)) {
+                    throw new ChunksChangedException(_collection);
+                }
+                final ContentCoordinator.HeldLock writeLock = ChunkAssembly.acquireWrite(_target);
+                try {
+                    stagedFile.commit();
+                    _target.close();
+                } finally {
+                    ContentCache.getInstance().invalidate(_target);
+                    writeLock.unlock();
+                }
+                _collection.delete(Selectors.SELECT_ALL);
+            } finally {
+                collectionLock.unlock();
+            }
+        } finally {
+            stagedFile.discard();
+        }
+        ChunkAssembly.CHUNKS.add(chunks.size());
+        ChunkAssembly.DURATION.recordSince(start);
+        return ret;
+    }
+
+    /**
+     * Acquires the write lock of the content coordinator for the file
+     * object.
+     *
+     * @param _object   file object to lock
+     * @return acquired write lock
+     * @throws ContentLockedException if the lock could not be acquired
+     *                                within the timeout
+     */
+    private static ContentCoordinator.HeldLock acquireWrite(final FileObject _object)
+        throws ContentLockedException
+    {
+        ContentCoordinator.HeldLock ret;
+        try {
+            ret = ContentCoordinator.getInstance().acquireWrite(_object);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ret = null;
+        }
+        if (ret == null) {
+            throw new ContentLockedException(_object);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the states (name, size and last modification time) of the
+     * chunks to detect changed chunks.
+     *
+     * @param _chunks   chunks
+     * @return states of the chunks
+     * @throws FileSystemException if a chunk could not be read
+     */
+    private static List<String> getStates(final List<FileObject> _chunks)
+        throws FileSystemException
+    {
+        final List<String> ret = new ArrayList<String>(_chunks.size());
+        for (final FileObject chunk : _chunks) {
+            ret.add(chunk.getName().getBaseName() + ":" + chunk.getContent().getSize()
+                    + ":" + chunk.getContent().getLastModifiedTime());
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the number of a chunk.
+     *
+     * @param _chunk    chunk
+     * @return number of the chunk or <code>-1</code> if the name is not a
+     *         number
+     */
+    private static long getNumber(final FileObject _chunk)
+    {
+        final String name = _chunk.getName().getBaseName();
+        long ret = -1;
+        if ((name.length() > 0) && (name.length() < 19)) {
+            ret = 0;
+            for (int idx = 0; idx < name.length(); idx++) {
+                final char ch = name.charAt(idx);
+                if ((ch < '0') || (ch > '9')) {
+                    ret = -1;
+                    break;
+                }
+                ret = ret * 10 + (ch - '0');
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,602 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ * Copyright 2007 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.vfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.vfs.FileContent;
+import org.apache.commons.vfs.FileObject;
+import org.efaps.webdav4vfs.metrics.Counter;
+import org.efaps.webdav4vfs.metrics.Gauge;
+import org.efaps.webdav4vfs.metrics.Metrics;
+
+/**
+ * Cache for the content of small files in front of
+ * {@link FileContent#getInputStream()}. The contents are held off-heap in
+ * direct byte buffer slabs which are divided into chunks of
+ * {@link #CHUNK_SIZE} bytes; all cached contents together never use more
+ * chunks than the byte budget allows. The slabs are allocated on demand and
+ * never freed, so the cache causes no garbage and no direct buffer cleanup.
+ * <p>
+ * The eviction is a segmented LRU: new contents start in the probation
+ * segment and are promoted to the protected segment (80 percent of the
+ * budget) on the second hit, so a scan over many files only evicts other
+ * files of the probation segment. A cached content is only used if the
+ * last modification time and the size of the file are unchanged; in
+ * addition, modifications through the WebDAV servlet invalidate the cached
+ * contents with {@link #invalidate(FileObject)}.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+public final class ContentCache
+{
+    /**
+     * Size of one chunk in bytes.
+     */
+    static final int CHUNK_SIZE = 4096;
+
+    /**
+     * Number of chunks per slab (one slab has 1 MB).
+     */
+    private static final int CHUNKS_PER_SLAB = 256;
+
+    /**
+     * Default maximum size of a cached content.
+     */
+    public static final int DEFAULT_MAX_FILE_SIZE = 64 * 1024;
+
+    /**
+     * Cache hits.
+     */
+    private static final Counter HITS = Metrics.getInstance().counter(
+            "webdav4vfs_content_cache_hits_total", "Contents read from the content cache.");
+
+    /**
+     * Cache misses (only of cacheable contents).
+     */
+    private static final Counter MISSES = Metrics.getInstance().counter(
+            "webdav4vfs_content_cache_misses_total", "Cacheable contents not found in the content cache.");
+
+    /**
+     * Evicted contents.
+     */
+    private static final Counter EVICTIONS = Metrics.getInstance().counter(
+            "webdav4vfs_content_cache_evictions_total", "Contents evicted from the content cache.");
+
+    static {
+        Metrics.getInstance().register(new Gauge("webdav4vfs_content_cache_hit_ratio",
+                                                 "Ratio of the cacheable contents found in the content cache.") {
+            @Override()
+            public double getValue()
+            {
+                final long hits = ContentCache.HITS.get();
+                final long total = hits + ContentCache.MISSES.get();
+                return (total == 0) ? 0 : (double) hits / total;
+            }
+        });
+        Metrics.getInstance().register(new Gauge("webdav4vfs_content_cache_bytes",
+                                                 "Bytes of the chunks used by the content cache.") {
+            @Override()
+            public double getValue()
+            {
+                return ContentCache.getInstance().getUsedBytes();
+            }
+        });
+    }
+
+    /**
+     * Current instance (by default disabled).
+     */
+    private static volatile ContentCache instance = new ContentCache(0, 0);
+
+    /**
+     * Maximum size of a cached content.
+     */
+    private final int maxFileSize;
+
+    /**
+     * Maximum number of chunks.
+     */
+    private final int maxChunks;
+
+    /**
+     * Maximum number of chunks of the protected segment.
+     */
+    private final int maxProtectedChunks;
+
+    /**
+     * Slabs of direct memory (allocated on demand).
+     */
+    private final ByteBuffer[] slabs;
+
+    /**
+     * Stack of the free chunks.
+     */
+    private final int[] freeChunks;
+
+    /**
+     * Number of free chunks on the stack.
+     */
+    private int freeCount;
+
+    /**
+     * Number of chunks used by cached contents (including evicted contents
+     * which are still read).
+     */
+    private int usedChunks;
+
+    /**
+     * Number of chunks used by the protected segment.
+     */
+    private int protectedChunks;
+
+    /**
+     * Probation segment in insertion order.
+     */
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<String, Entry>();
+
+    /**
+     * Protected segment in access order.
+     */
+    private final LinkedHashMap<String, Entry> protect = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * @param _budget       maximum number of bytes of all cached contents
+     *                      (<code>0</code> disables the cache)
+     * @param _maxFileSize  maximum size of one cached content
+     */
+    public ContentCache(final long _budget,
+                        final int _maxFileSize)
+    {
+        this.maxChunks = (int) Math.min(Integer.MAX_VALUE - ContentCache.CHUNKS_PER_SLAB,
+                                        _budget / ContentCache.CHUNK_SIZE);
+        this.maxProtectedChunks = (int) (this.maxChunks * 0.8);
+        this.maxFileSize = Math.min(_maxFileSize, this.maxChunks * ContentCache.CHUNK_SIZE);
+        this.slabs = new ByteBuffer[(this.maxChunks + ContentCache.CHUNKS_PER_SLAB - 1)
+                                    / ContentCache.CHUNKS_PER_SLAB];
+        this.freeChunks = new int[this.maxChunks];
+        for (int idx = 0; idx < this.maxChunks; idx++) {
+            this.freeChunks[idx] = this.maxChunks - idx - 1;
+        }
+        this.freeCount = this.maxChunks;
+    }
+
+    /**
+     * @return current content cache
+     */
+    public static ContentCache getInstance()
+    {
+        return ContentCache.instance;
+    }
+
+    /**
+     * Replaces the current content cache.
+     *
+     * @param _instance new content cache
+     */
+    public static void setInstance(final ContentCache _instance)
+    {
+        ContentCache.instance = _instance;
+    }
+
+    /**
+     * Returns an input stream for the content. Small contents are read from
+     * the cache (or read once from the file and stored in the cache), the
+     * other contents are read directly from the file (see
+     * {@link ReadAhead}).
+     *
+     * @param _content  content of a file
+     * @return input stream of the content
+     * @throws IOException if the content could not be read
+     */
+    public InputStream getInputStream(final FileContent _content)
+        throws IOException
+    {
+        final InputStream ret;
+        final long size = _content.getSize();
+        if (size > this.maxFileSize) {
+            ret = ReadAhead.getInstance().getInputStream(_content);
+        } else {
+            final String path = _content.getFile().getName().getPath();
+            final long lastModified = _content.getLastModifiedTime();
+            final Entry entry = get(path, lastModified, size);
+            if (entry != null) {
+                ContentCache.HITS.inc();
+                ret = new EntryInputStream(entry);
+            } else {
+                ContentCache.MISSES.inc();
+                final byte[] bytes = new byte[(int) size];
+                final InputStream in = _content.getInputStream();
+                try {
+                    int pos = 0;
+                    while (pos < bytes.length) {
+                        final int read = in.read(bytes, pos, bytes.length - pos);
+                        if (read <= 0) {
+                            break;
+                        }
+                        pos += read;
+                    }
+                    if (pos == bytes.length) {
+                        put(path, lastModified, bytes);
+                    }
+                } finally {
+                    in.close();
+                }
+                ret = new ByteArrayInputStream(bytes);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Removes the cached contents of the file object and (for folders) of
+     * all descendants.
+     *
+     * @param _object   file object which was changed or removed
+     */
+    public void invalidate(final FileObject _object)
+    {
+        if (this.maxChunks > 0) {
+            final String path = _object.getName().getPath();
+            final String prefix = path.endsWith("/") ? path : path + "/";
+            synchronized (this) {
+                remove(this.probation, path, prefix);
+                remove(this.protect, path, prefix);
+            }
+        }
+    }
+
+    /**
+     * @return number of cached contents
+     */
+    public synchronized int size()
+    {
+        return this.probation.size() + this.protect.size();
+    }
+
+    /**
+     * @return bytes of the used chunks
+     */
+    public synchronized long getUsedBytes()
+    {
+        return (long) this.usedChunks * ContentCache.CHUNK_SIZE;
+    }
+
+    /**
+     * Returns the valid cached entry for given path and retains it for
+     * reading. A hit in the probation segment promotes the entry to the
+     * protected segment.
+     *
+     * @param _path         path of the file
+     * @param _lastModified current last modification time of the file
+     * @param _size         current size of the file
+     * @return retained entry or <code>null</code> if not cached
+     */
+    private synchronized Entry get(final String _path,
+                                   final long _lastModified,
+                                   final long _size)
+    {
+        Entry ret = this.protect.get(_path);
+        if (ret == null) {
+            ret = this.probation.remove(_path);
+            if (ret != null) {
+                this.protect.put(_path, ret);
+                this.protectedChunks += ret.chunks.length;
+                // demote the least recently used entries of the protected
+                // segment
+                final Iterator<Entry> iter = this.protect.values().iterator();
+                while (this.protectedChunks > this.maxProtectedChunks) {
+                    final Entry demoted = iter.next();
+                    iter.remove();
+                    this.protectedChunks -= demoted.chunks.length;
+                    this.probation.put(demoted.path, demoted);
+                }
+            }
+        }
+        if ((ret != null) && ((ret.lastModified != _lastModified) || (ret.length != _size))) {
+            if (this.protect.remove(_path) != null) {
+                this.protectedChunks -= ret.chunks.length;
+            } else {
+                this.probation.remove(_path);
+            }
+            evicted(ret);
+            ret = null;
+        }
+        if (ret != null) {
+            ret.references++;
+        }
+        return ret;
+    }
+
+    /**
+     * Stores the content in the probation segment. Entries are evicted
+     * (first from the probation segment) until enough chunks are free.
+     *
+     * @param _path         path of the file
+     * @param _lastModified last modification time of the file
+     * @param _bytes        content of the file
+     */
+    private synchronized void put(final String _path,
+                                  final long _lastModified,
+                                  final byte[] _bytes)
+    {
+        final int count = Math.max(1, (_bytes.length + ContentCache.CHUNK_SIZE - 1) / ContentCache.CHUNK_SIZE);
+        remove(this.probation, _path, null);
+        remove(this.protect, _path, null);
+        while ((this.freeCount < count) && (!this.probation.isEmpty() || !this.protect.isEmpty())) {
+            final Map<String, Entry> segment = this.probation.isEmpty() ? this.protect : this.probation;
+            final Iterator<Entry> iter = segment.values().iterator();
+            final Entry eldest = iter.next();
+            iter.remove();
+            if (segment == this.protect) {
+                this.protectedChunks -= eldest.chunks.length;
+            }
+            ContentCache.EVICTIONS.inc();
+            evicted(eldest);
+        }
+        if (this.freeCount >= count) {
+            final Entry entry = new Entry(_path, _lastModified, _bytes.length, new int[count]);
+            for (int idx = 0; idx < count; idx++) {
+                entry.chunks[idx] = this.freeChunks[--this.freeCount];
+                final ByteBuffer chunk = getChunk(entry.chunks[idx]);
+                final int offset = idx * ContentCache.CHUNK_SIZE;
+                chunk.put(_bytes, offset, Math.min(ContentCache.CHUNK_SIZE, _bytes.length - offset));
+            }
+            this.usedChunks += count;
+            this.probation.put(_path, entry);
+        }
+    }
+
+    /**
+     * Removes the entries of the path (and with a prefix of all descendants)
+     * from the segment.
+     *
+     * @param _segment  segment
+     * @param _path     path of the entry to remove
+     * @param _prefix   prefix of the descendants to remove or
+     *                  <code>null</code>
+     */
+    private void remove(final Map<String, Entry> _segment,
+                        final String _path,
+                        final String _prefix)
+    {
+        final List<Entry> removed = new ArrayList<Entry>();
+        if (_prefix == null) {
+            final Entry entry = _segment.remove(_path);
+            if (entry != null) {
+                removed.add(entry);
+            }
+        } else {
+            final Iterator<Entry> iter = _segment.values().iterator();
+            while (iter.hasNext()) {
+                final Entry entry = iter.next();
+                if (entry.path.equals(_path) || entry.path.startsWith(_prefix)) {
+                    iter.remove();
+                    removed.add(entry);
+                }
+            }
+        }
+        for (final Entry entry : removed) {
+            if (_segment == this.protect) {
+                this.protectedChunks -= entry.chunks.length;
+            }
+            evicted(entry);
+        }
+    }
+
+    /**
+     * Marks the entry as evicted; the chunks are freed as soon as the entry
+     * is not read anymore.
+     *
+     * @param _entry    evicted entry
+     */
+    private void evicted(final Entry _entry)
+    {
+        _entry.evicted = true;
+        if (_entry.references == 0) {
+            free(_entry);
+        }
+    }
+
+    /**
+     * Releases an entry after reading.
+     *
+     * @param _entry    entry to release
+     */
+    private synchronized void release(final Entry _entry)
+    {
+        _entry.references--;
+        if (_entry.evicted && (_entry.references == 0)) {
+            free(_entry);
+        }
+    }
+
+    /**
+     * Returns the chunks of the entry to the free chunks.
+     *
+     * @param _entry    entry to free
+     */
+    private void free(final Entry _entry)
+    {
+        for (final int chunk : _entry.chunks) {
+            this.freeChunks[this.freeCount++] = chunk;
+        }
+        this.usedChunks -= _entry.chunks.length;
+    }
+
+    /**
+     * Returns a buffer for the chunk with given index. The position of the
+     * buffer is the start and the limit the end of the chunk.
+     *
+     * @param _chunk    index of the chunk
+     * @return buffer of the chunk
+     */
+    private ByteBuffer getChunk(final int _chunk)
+    {
+        final int slabIdx = _chunk / ContentCache.CHUNKS_PER_SLAB;
+        ByteBuffer slab;
+        synchronized (this.slabs) {
+            slab = this.slabs[slabIdx];
+            if (slab == null) {
+                slab = ByteBuffer.allocateDirect(ContentCache.CHUNKS_PER_SLAB * ContentCache.CHUNK_SIZE);
+                this.slabs[slabIdx] = slab;
+            }
+        }
+        final ByteBuffer ret = slab.duplicate();
+        final int offset = (_chunk % ContentCache.CHUNKS_PER_SLAB) * ContentCache.CHUNK_SIZE;
+        ret.limit(offset + ContentCache.CHUNK_SIZE);
+        ret.position(offset);
+        return ret;
+    }
+
+    /**
+     * Cached content of one file.
+     */
+    private static final class Entry
+    {
+        /**
+         * Path of the file.
+         */
+        private final String path;
+
+        /**
+         * Last modification time of the cached content.
+         */
+        private final long lastModified;
+
+        /**
+         * Length of the content.
+         */
+        private final int length;
+
+        /**
+         * Indexes of the chunks with the content.
+         */
+        private final int[] chunks;
+
+        /**
+         * Number of running readers (guarded by the cache).
+         */
+        private int references;
+
+        /**
+         * Was the entry evicted (guarded by the cache)?
+         */
+        private boolean evicted;
+
+        /**
+         * @param _path         path of the file
+         * @param _lastModified last modification time
+         * @param _length       length of the content
+         * @param _chunks       indexes of the chunks
+         */
+        Entry(final String _path,
+              final long _lastModified,
+              final int _length,
+              final int[] _chunks)
+        {
+            this.path = _path;
+            this.lastModified = _lastModified;
+            this.length = _length;
+            this.chunks = _chunks;
+        }
+    }
+
+    /**
+     * Input stream over the chunks of a retained entry. The entry is
+     * released when the stream is closed.
+     */
+    private final class EntryInputStream
+        extends InputStream
+    {
+        /**
+         * Entry to read.
+         */
+        private final Entry entry;
+
+        /**
+         * Current position.
+         */
+        private int pos;
+
+        /**
+         * Was the stream closed?
+         */
+        private boolean closed;
+
+        /**
+         * @param _entry    retained entry to read
+         */
+        EntryInputStream(final Entry _entry)
+        {
+            this.entry = _entry;
+        }
+
+        @Override()
+        public int read()
+        {
+            final byte[] b = new byte[1];
+            return (read(b, 0, 1) == 1) ? (b[0] & 0xff) : -1;
+        }
+
+        @Override()
+        public int read(final byte[] _bytes,
+                        final int _off,
+                        final int _len)
+        {
+            int ret = -1;
+            if (!this.closed && (this.pos < this.entry.length)) {
+                final ByteBuffer chunk = getChunk(this.entry.chunks[this.pos / ContentCache.CHUNK_SIZE]);
+                final int offset = this.pos % ContentCache.CHUNK_SIZE;
+                chunk.position(chunk.position() + offset);
+                ret = Math.min(Math.min(_len, ContentCache.CHUNK_SIZE - offset), this.entry.length - this.pos);
+                chunk.get(_bytes, _off, ret);
+                this.pos += ret;
+            }
+            return ret;
+        }
+
+        @Override()
+        public int available()
+        {
+            return this.closed ? 0 : this.entry.length - this.pos;
+        }
+
+        @Override()
+        public void close()
+        {
+            if (!this.closed) {
+                this.closed = true;
+                release(this.entry);
+            }
+        }
+    }
+}
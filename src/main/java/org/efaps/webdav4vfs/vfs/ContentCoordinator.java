@@ -0,0 +1,291 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.vfs;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.vfs.FileObject;
+import org.efaps.webdav4vfs.metrics.Counter;
+import org.efaps.webdav4vfs.metrics.Histogram;
+import org.efaps.webdav4vfs.metrics.Metrics;
+
+/**
+ * Coordinates the readers and writers of the content of resources which are
+ * not protected by a WebDAV lock. Each normalized path owns its own read /
+ * write lock, so concurrent writers of the same resource are serialized,
+ * readers never see a partly written content and requests for distinct
+ * resources never wait for each other. A lock exists only while it is held
+ * or awaited by a request; it is removed when the last of them released it.
+ * The locks are found in a concurrent map without any global lock: a lock
+ * whose last reference was released is dead and replaced by a new lock.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+public final class ContentCoordinator
+{
+    /**
+     * Default time in milliseconds to wait for the lock of a resource.
+     */
+    public static final long DEFAULT_TIMEOUT = 5000;
+
+    /**
+     * Duration of waiting for the content locks.
+     */
+    private static final Histogram WAIT = Metrics.getInstance().histogram(
+            "webdav4vfs_content_lock_wait_seconds", "Duration of waiting for the read or write lock of a content.");
+
+    /**
+     * Content locks which could not be acquired within the timeout.
+     */
+    private static final Counter TIMEOUTS = Metrics.getInstance().counter(
+            "webdav4vfs_content_lock_timeouts_total", "Content locks which could not be acquired within the timeout.");
+
+    /**
+     * Current instance.
+     */
+    private static volatile ContentCoordinator instance = new ContentCoordinator(
+            ContentCoordinator.DEFAULT_TIMEOUT);
+
+    /**
+     * Locks which are currently held or awaited, by normalized path.
+     */
+    private final ConcurrentMap<String, PathLock> locks = new ConcurrentHashMap<String, PathLock>();
+
+    /**
+     * Time in milliseconds to wait for a lock.
+     */
+    private final long timeout;
+
+    /**
+     * @param _timeout  time in milliseconds to wait for a lock; with
+     *                  <code>0</code> a busy resource fails immediately
+     */
+    public ContentCoordinator(final long _timeout)
+    {
+        this.timeout = _timeout;
+    }
+
+    /**
+     * @return current content coordinator
+     */
+    public static ContentCoordinator getInstance()
+    {
+        return ContentCoordinator.instance;
+    }
+
+    /**
+     * Replaces the current content coordinator, e.g. to change the timeout.
+     *
+     * @param _instance new content coordinator
+     */
+    public static void setInstance(final ContentCoordinator _instance)
+    {
+        ContentCoordinator.instance = _instance;
+    }
+
+    /**
+     * @return time in milliseconds to wait for a lock
+     */
+    public long getTimeout()
+    {
+        return this.timeout;
+    }
+
+    /**
+     * Acquires the read lock for the content of given file object. Readers
+     * of the same resource do not block each other, but wait for a running
+     * writer.
+     *
+     * @param _object   file object to read
+     * @return acquired lock which must be unlocked after the content was
+     *         read, or <code>null</code> if the lock could not be acquired
+     *         within the timeout
+     * @throws InterruptedException if the current thread was interrupted
+     */
+    public HeldLock acquireRead(final FileObject _object)
+        throws InterruptedException
+    {
+        return acquire(_object, false);
+    }
+
+    /**
+     * Acquires the write lock for the content of given file object.
+     *
+     * @param _object   file object to write
+     * @return acquired lock which must be unlocked after the content was
+     *         written, or <code>null</code> if the lock could not be acquired
+     *         within the timeout
+     * @throws InterruptedException if the current thread was interrupted
+     */
+    public HeldLock acquireWrite(final FileObject _object)
+        throws InterruptedException
+    {
+        return acquire(_object, true);
+    }
+
+    /**
+     * @param _object   file object
+     * @param _write    <i>true</i> for the write lock
+     * @return acquired lock or <code>null</code> if not acquired
+     * @throws InterruptedException if the current thread was interrupted
+     */
+    private HeldLock acquire(final FileObject _object,
+                             final boolean _write)
+        throws InterruptedException
+    {
+        final String path = _object.getName().getPath();
+        PathLock pathLock = this.locks.get(path);
+        while ((pathLock == null) || !pathLock.retain()) {
+            if (pathLock != null) {
+                // dead lock which is not removed yet
+                this.locks.remove(path, pathLock);
+            }
+            final PathLock created = new PathLock(path);
+            pathLock = this.locks.putIfAbsent(path, created);
+            if (pathLock == null) {
+                pathLock = created;
+                break;
+            }
+        }
+        final Lock lock = _write ? pathLock.writeLock() : pathLock.readLock();
+        boolean acquired = false;
+        try {
+            acquired = lock.tryLock();
+            if (!acquired) {
+                final long start = System.nanoTime();
+                acquired = lock.tryLock(this.timeout, TimeUnit.MILLISECONDS);
+                ContentCoordinator.WAIT.recordSince(start);
+                if (!acquired) {
+                    ContentCoordinator.TIMEOUTS.inc();
+                }
+            }
+        } finally {
+            if (!acquired) {
+                release(pathLock);
+            }
+        }
+        return acquired ? new HeldLock(pathLock, lock) : null;
+    }
+
+    /**
+     * Releases one reference of the lock; the lock is removed if it is no
+     * longer held or awaited.
+     *
+     * @param _pathLock lock to release
+     */
+    private void release(final PathLock _pathLock)
+    {
+        if (_pathLock.references.decrementAndGet() == 0) {
+            this.locks.remove(_pathLock.path, _pathLock);
+        }
+    }
+
+    /**
+     * Read / write lock of one path.
+     */
+    private static final class PathLock
+        extends ReentrantReadWriteLock
+    {
+        /**
+         * Serial version UID.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Normalized path.
+         */
+        private final String path;
+
+        /**
+         * Number of requests holding or awaiting the lock; a lock without
+         * references is dead.
+         */
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        /**
+         * @param _path normalized path (the lock is referenced by its
+         *              creator)
+         */
+        private PathLock(final String _path)
+        {
+            this.path = _path;
+        }
+
+        /**
+         * Adds a reference to the lock unless the lock is dead.
+         *
+         * @return <i>true</i> if referenced, <i>false</i> if dead
+         */
+        private boolean retain()
+        {
+            boolean ret = false;
+            int current = this.references.get();
+            while (!ret && (current > 0)) {
+                ret = this.references.compareAndSet(current, current + 1);
+                current = this.references.get();
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Acquired read or write lock of a path, which could only be released.
+     */
+    public final class HeldLock
+    {
+        /**
+         * Lock of the path.
+         */
+        private final PathLock pathLock;
+
+        /**
+         * Acquired read or write lock of the path.
+         */
+        private final Lock lock;
+
+        /**
+         * @param _pathLock lock of the path
+         * @param _lock     acquired read or write lock
+         */
+        private HeldLock(final PathLock _pathLock,
+                         final Lock _lock)
+        {
+            this.pathLock = _pathLock;
+            this.lock = _lock;
+        }
+
+        /**
+         * Releases the lock for the path (it must be released by the thread
+         * which acquired it).
+         */
+        public void unlock()
+        {
+            this.lock.unlock();
+            release(this.pathLock);
+        }
+    }
+}
@@ -0,0 +1,624 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ * Copyright 2007 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.vfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.vfs.FileContent;
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystemException;
+import org.apache.commons.vfs.FileType;
+import org.apache.commons.vfs.NameScope;
+import org.efaps.webdav4vfs.metrics.Counter;
+import org.efaps.webdav4vfs.metrics.Metrics;
+
+/**
+ * MD5 and SHA-256 digests of the contents of files. The digests of uploaded
+ * contents are computed while the content is staged (see
+ * {@link StagedFile#write(InputStream)}) and stored as attribute
+ * {@link #ATTR_DIGEST} of the file (if the file system supports attributes)
+ * and in a bounded in-memory cache. Each digest is stamped with the size and
+ * the last modification time of the content; a digest whose stamp does not
+ * match (e.g. because the file was written outside of WebDAV) is unknown.
+ * <p>
+ * Digests are needed on the path of nearly each request (entity tags of
+ * PROPFIND, GET and HEAD, conditions of the If header), so an unknown
+ * digest is only recomputed by reading the content on the request path if
+ * the content is not larger than the synchronous limit; the digests of
+ * larger contents are recomputed by a background thread (at most the given
+ * number of files are queued, further files are queued again by their next
+ * request).
+ * <p>
+ * The SHA-256 digest is the strong entity tag of the file, so the entity
+ * tag only changes if the content changes; until the digest is known the
+ * entity tag is weak (see {@link org.efaps.webdav4vfs.util.Util#getETag}).
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+public final class ContentDigest
+{
+    /**
+     * Name of the file attribute with the digests.
+     */
+    public static final String ATTR_DIGEST = "webdav4vfs.digest";
+
+    /**
+     * Default maximum number of digests held in memory.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+
+    /**
+     * Default maximum size in bytes of contents whose digests are recomputed
+     * on the request path.
+     */
+    public static final long DEFAULT_SYNC_LIMIT = 64 * 1024;
+
+    /**
+     * Default maximum number of files queued for the recomputation in the
+     * background.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    /**
+     * Logging instance used in this class.
+     */
+    private static final Log LOG = LogFactory.getLog(ContentDigest.class);
+
+    /**
+     * Digests computed while the content was uploaded.
+     */
+    private static final Counter STREAMED = Metrics.getInstance().counter(
+            "webdav4vfs_digest_streamed_total", "Content digests computed while the content was uploaded.");
+
+    /**
+     * Digests recomputed by reading the content.
+     */
+    private static final Counter RECOMPUTED = Metrics.getInstance().counter(
+            "webdav4vfs_digest_recomputed_total", "Content digests recomputed by reading the content.");
+
+    /**
+     * Current instance.
+     */
+    private static volatile ContentDigest instance = new ContentDigest(ContentDigest.DEFAULT_CACHE_SIZE);
+
+    /**
+     * Maximum number of digests held in memory.
+     */
+    private final int cacheSize;
+
+    /**
+     * Maximum size in bytes of contents whose digests are recomputed on the
+     * request path.
+     */
+    private final long syncLimit;
+
+    /**
+     * Executor of the recomputations in the background or <code>null</code>
+     * if digests of larger contents are not recomputed.
+     */
+    private final ThreadPoolExecutor recomputer;
+
+    /**
+     * URIs of the files queued for the recomputation.
+     */
+    private final Set<String> queued = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Digests by the URI of their file in the order of their last access.
+     */
+    private final LinkedHashMap<String, Digest> digests = new LinkedHashMap<String, Digest>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override()
+        protected boolean removeEldestEntry(final Map.Entry<String, Digest> _eldest)
+        {
+            return size() > ContentDigest.this.cacheSize;
+        }
+    };
+
+    /**
+     * @param _cacheSize    maximum number of digests held in memory
+     */
+    public ContentDigest(final int _cacheSize)
+    {
+        this(_cacheSize, ContentDigest.DEFAULT_SYNC_LIMIT, ContentDigest.DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * @param _cacheSize    maximum number of digests held in memory
+     * @param _syncLimit    maximum size in bytes of contents whose digests
+     *                      are recomputed on the request path
+     * @param _queueSize    maximum number of files queued for the
+     *                      recomputation in the background (<code>0</code>
+     *                      if not recomputed in the background)
+     */
+    public ContentDigest(final int _cacheSize,
+                         final long _syncLimit,
+                         final int _queueSize)
+    {
+        this.cacheSize = _cacheSize;
+        this.syncLimit = _syncLimit;
+        if (_queueSize > 0) {
+            this.recomputer = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(_queueSize), new ThreadFactory() {
+                        public Thread newThread(final Runnable _runnable)
+                        {
+                            final Thread ret = new Thread(_runnable, "webdav4vfs-digest");
+                            ret.setDaemon(true);
+                            return ret;
+                        }
+                    });
+            this.recomputer.allowCoreThreadTimeOut(true);
+        } else {
+            this.recomputer = null;
+        }
+    }
+
+    /**
+     * @return current content digest
+     */
+    public static ContentDigest getInstance()
+    {
+        return ContentDigest.instance;
+    }
+
+    /**
+     * Replaces the current content digest (e.g. with a new cache size).
+     *
+     * @param _instance new content digest
+     */
+    public static void setInstance(final ContentDigest _instance)
+    {
+        ContentDigest.instance = _instance;
+    }
+
+    /**
+     * @return new MD5 message digest
+     */
+    public static MessageDigest newMD5()
+    {
+        return ContentDigest.newMessageDigest("MD5");
+    }
+
+    /**
+     * @return new SHA-256 message digest
+     */
+    public static MessageDigest newSHA256()
+    {
+        return ContentDigest.newMessageDigest("SHA-256");
+    }
+
+    /**
+     * Returns the digest of the content of the file. An unknown digest is
+     * recomputed on the request path only if the content is not larger than
+     * the synchronous limit, otherwise it is queued for the recomputation
+     * in the background.
+     *
+     * @param _file     file
+     * @return digest of the content, or <code>null</code> if the digest is
+     *         not known yet
+     * @throws FileSystemException if the content could not be accessed
+     */
+    public Digest getDigest(final FileObject _file)
+        throws FileSystemException
+    {
+        Digest ret = getStoredDigest(_file);
+        if (ret == null) {
+            if (_file.getContent().getSize() <= this.syncLimit) {
+                ret = recompute(_file);
+            } else {
+                queue(_file);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the stored digest of the content of the file. The content is
+     * not read.
+     *
+     * @param _file     file
+     * @return digest of the content, or <code>null</code> if no digest is
+     *         stored or its stamp does not match the content
+     * @throws FileSystemException if the content could not be accessed
+     */
+    private Digest getStoredDigest(final FileObject _file)
+        throws FileSystemException
+    {
+        final FileContent content = _file.getContent();
+        final String stamp = ContentDigest.getStamp(content);
+        final String key = _file.getName().getURI();
+        Digest ret;
+        synchronized (this.digests) {
+            ret = this.digests.get(key);
+        }
+        if ((ret == null) || !ret.stamp.equals(stamp)) {
+            ret = Digest.parse(getAttribute(content));
+            if ((ret != null) && ret.stamp.equals(stamp)) {
+                synchronized (this.digests) {
+                    this.digests.put(key, ret);
+                }
+            } else {
+                ret = null;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Stores the digests computed while the content of the file was written.
+     * The caller must make sure that the content is not changed meanwhile.
+     *
+     * @param _file     written file
+     * @param _md5      MD5 digest of the content
+     * @param _sha256   SHA-256 digest of the content
+     * @throws FileSystemException if the content could not be accessed
+     */
+    public void store(final FileObject _file,
+                      final byte[] _md5,
+                      final byte[] _sha256)
+        throws FileSystemException
+    {
+        _file.refresh();
+        put(_file, new Digest(ContentDigest.getStamp(_file.getContent()), _md5, _sha256));
+        ContentDigest.STREAMED.inc();
+    }
+
+    /**
+     * Carries the digest of a copied file over to the copy. The digest must
+     * be fetched (see {@link #getDigest(FileObject)}) before the content is
+     * copied; if the source was changed meanwhile, the digest of the copy
+     * is unknown.
+     *
+     * @param _source   copied file
+     * @param _digest   digest of the source before the copy (or
+     *                  <code>null</code>)
+     * @param _target   copy of the file
+     * @throws FileSystemException if the contents could not be accessed
+     */
+    public void copied(final FileObject _source,
+                       final Digest _digest,
+                       final FileObject _target)
+        throws FileSystemException
+    {
+        if ((_digest != null) && _digest.stamp.equals(ContentDigest.getStamp(_source.getContent()))) {
+            _target.refresh();
+            put(_target, new Digest(ContentDigest.getStamp(_target.getContent()), _digest.md5, _digest.sha256));
+        } else {
+            invalidate(_target);
+        }
+    }
+
+    /**
+     * Carries the digests held in memory of a moved file or folder (and its
+     * descendants) over to the new location. The digests are stamped again
+     * if the size of the content is unchanged (a move could change the last
+     * modification time, e.g. between file systems).
+     *
+     * @param _source   moved file or folder
+     * @param _target   new location of the file or folder
+     * @throws FileSystemException if the content could not be accessed
+     */
+    public void moved(final FileObject _source,
+                      final FileObject _target)
+        throws FileSystemException
+    {
+        final String source = _source.getName().getURI();
+        final String target = _target.getName().getURI();
+        final List<Map.Entry<String, Digest>> moved = new ArrayList<Map.Entry<String, Digest>>();
+        synchronized (this.digests) {
+            for (final Map.Entry<String, Digest> entry : this.digests.entrySet()) {
+                if (entry.getKey().equals(source) || entry.getKey().startsWith(source + "/")) {
+                    moved.add(entry);
+                }
+            }
+            for (final Map.Entry<String, Digest> entry : moved) {
+                this.digests.remove(entry.getKey());
+            }
+            this.digests.remove(target);
+            for (final Map.Entry<String, Digest> entry : moved) {
+                this.digests.put(target + entry.getKey().substring(source.length()), entry.getValue());
+            }
+        }
+        for (final Map.Entry<String, Digest> entry : moved) {
+            final String relative = entry.getKey().substring(source.length());
+            final FileObject file = relative.isEmpty()
+                ? _target
+                : _target.resolveFile(relative.substring(1), NameScope.DESCENDENT);
+            if (FileType.FILE.equals(file.getType())) {
+                final Digest digest = entry.getValue();
+                final FileContent content = file.getContent();
+                if (digest.stamp.startsWith(content.getSize() + ":")) {
+                    put(file, new Digest(ContentDigest.getStamp(content), digest.md5, digest.sha256));
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the digest of the file from memory (e.g. if the content was
+     * written without computing the digests).
+     *
+     * @param _file     file
+     */
+    public void invalidate(final FileObject _file)
+    {
+        synchronized (this.digests) {
+            this.digests.remove(_file.getName().getURI());
+        }
+    }
+
+    /**
+     * Recomputes the digest of the file by reading its content. The digest
+     * is only stored if the content was not changed while it was read.
+     *
+     * @param _file     file
+     * @return digest of the content or <code>null</code> if the content was
+     *         changed while it was read
+     * @throws FileSystemException if the content could not be read
+     */
+    private Digest recompute(final FileObject _file)
+        throws FileSystemException
+    {
+        final FileContent content = _file.getContent();
+        final String stamp = ContentDigest.getStamp(content);
+        final MessageDigest md5 = ContentDigest.newMD5();
+        final MessageDigest sha256 = ContentDigest.newSHA256();
+        final byte[] buffer = BufferPool.getInstance().acquire(BufferPool.MAX_SIZE / 4);
+        try {
+            final InputStream in = content.getInputStream();
+            try {
+                int read = in.read(buffer);
+                while (read >= 0) {
+                    md5.update(buffer, 0, read);
+                    sha256.update(buffer, 0, read);
+                    read = in.read(buffer);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (final FileSystemException e) {
+            throw e;
+        } catch (final IOException e) {
+            throw new FileSystemException(e);
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+        ContentDigest.RECOMPUTED.inc();
+        _file.refresh();
+        Digest ret = null;
+        if (stamp.equals(ContentDigest.getStamp(_file.getContent()))) {
+            ret = new Digest(stamp, md5.digest(), sha256.digest());
+            put(_file, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Queues the file for the recomputation of its digest in the background.
+     * A file which is already queued is not queued again; if the queue is
+     * full, the file is not queued.
+     *
+     * @param _file     file
+     */
+    private void queue(final FileObject _file)
+    {
+        final String key = _file.getName().getURI();
+        if ((this.recomputer != null) && this.queued.add(key)) {
+            try {
+                this.recomputer.execute(new Runnable() {
+                    public void run()
+                    {
+                        try {
+                            if (_file.exists() && (getStoredDigest(_file) == null)) {
+                                recompute(_file);
+                            }
+                        } catch (final FileSystemException e) {
+                            ContentDigest.LOG.warn("digest of " + key + " could not be recomputed", e);
+                        } finally {
+                            ContentDigest.this.queued.remove(key);
+                        }
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                this.queued.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Stores the digest as attribute of the file and in memory.
+     *
+     * @param _file     file
+     * @param _digest   digest of the content of the file
+     */
+    private void put(final FileObject _file,
+                     final Digest _digest)
+    {
+        try {
+            _file.getContent().setAttribute(ContentDigest.ATTR_DIGEST, _digest.toString());
+        } catch (final FileSystemException e) {
+            // attributes not supported, the digest is only held in memory
+        }
+        synchronized (this.digests) {
+            this.digests.put(_file.getName().getURI(), _digest);
+        }
+    }
+
+    /**
+     * @param _content  content of a file
+     * @return stamp of the content (size and last modification time)
+     * @throws FileSystemException if the content could not be accessed
+     */
+    private static String getStamp(final FileContent _content)
+        throws FileSystemException
+    {
+        return _content.getSize() + ":" + _content.getLastModifiedTime();
+    }
+
+    /**
+     * @param _content  content of a file
+     * @return value of the digest attribute or <code>null</code> if not
+     *         stored or attributes are not supported
+     */
+    private String getAttribute(final FileContent _content)
+    {
+        Object ret;
+        try {
+            ret = _content.getAttribute(ContentDigest.ATTR_DIGEST);
+        } catch (final FileSystemException e) {
+            ret = null;
+        }
+        return (ret instanceof String) ? (String) ret : null;
+    }
+
+    /**
+     * @param _algorithm    name of the algorithm
+     * @return new message digest
+     */
+    private static MessageDigest newMessageDigest(final String _algorithm)
+    {
+        try {
+            return MessageDigest.getInstance(_algorithm);
+        } catch (final NoSuchAlgorithmException e) {
+            // each Java platform must support MD5 and SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * MD5 and SHA-256 digest of a content with the stamp (size and last
+     * modification time) of the content.
+     */
+    public static final class Digest
+    {
+        /**
+         * Size and last modification time of the content.
+         */
+        private final String stamp;
+
+        /**
+         * MD5 digest.
+         */
+        private final byte[] md5;
+
+        /**
+         * SHA-256 digest.
+         */
+        private final byte[] sha256;
+
+        /**
+         * @param _stamp    size and last modification time of the content
+         * @param _md5      MD5 digest
+         * @param _sha256   SHA-256 digest
+         */
+        private Digest(final String _stamp,
+                       final byte[] _md5,
+                       final byte[] _sha256)
+        {
+            this.stamp = _stamp;
+            this.md5 = _md5;
+            this.sha256 = _sha256;
+        }
+
+        /**
+         * @return strong entity tag of the content (the SHA-256 digest in
+         *         hex)
+         */
+        public String getETag()
+        {
+            return new String(Hex.encodeHex(this.sha256));
+        }
+
+        /**
+         * @return MD5 digest in Base64 (for the <code>Content-MD5</code>
+         *         header)
+         */
+        public String getMD5Base64()
+        {
+            return new String(Base64.encodeBase64(this.md5));
+        }
+
+        /**
+         * @return SHA-256 digest in Base64 (for the <code>Digest</code>
+         *         header)
+         */
+        public String getSHA256Base64()
+        {
+            return new String(Base64.encodeBase64(this.sha256));
+        }
+
+        /**
+         * Parses the value of a digest attribute.
+         *
+         * @param _value    value of the attribute (or <code>null</code>)
+         * @return digest or <code>null</code> if the value is not valid
+         */
+        static Digest parse(final String _value)
+        {
+            Digest ret = null;
+            if (_value != null) {
+                final String[] parts = _value.split(" ");
+                if (parts.length == 3) {
+                    try {
+                        ret = new Digest(parts[0],
+                                         Hex.decodeHex(parts[1].toCharArray()),
+                                         Hex.decodeHex(parts[2].toCharArray()));
+                    } catch (final DecoderException e) {
+                        ret = null;
+                    }
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * @return value of the digest attribute
+         */
+        @Override()
+        public String toString()
+        {
+            return this.stamp + " " + new String(Hex.encodeHex(this.md5)) + " " + new String(Hex.encodeHex(this.sha256));
+        }
+    }
+}
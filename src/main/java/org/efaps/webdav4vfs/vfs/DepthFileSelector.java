@@ -59,7 +59,8 @@ public class DepthFileSelector implements FileSelector {
 
   public boolean includeFile(FileSelectInfo fileSelectInfo) throws Exception {
     int depth = fileSelectInfo.getDepth();
-    return depth >= minDepth && depth <= maxDepth;
+    // uploads in progress are not visible
+    return depth >= minDepth && depth <= maxDepth && !Staging.isStagingFile(fileSelectInfo.getFile());
   }
 
   public boolean traverseDescendents(FileSelectInfo fileSelectInfo) throws Exception {
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ * Copyright 2007 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.vfs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystemException;
+import org.apache.commons.vfs.provider.local.LocalFileName;
+
+/**
+ * Transfers of contents. All copy loops use buffers of the
+ * {@link BufferPool}, so that a transfer allocates no buffer.
+ * <p>
+ * Fast path to send the content of files from a local file system: instead
+ * of reading the content through the (buffered) streams of commons-vfs, the
+ * file is read through a file channel: larger regions are memory mapped, so
+ * the bytes are copied only once from the page cache to the output stream
+ * and byte ranges are read positional (without skipping). A real
+ * <code>sendfile</code> (<code>FileChannel.transferTo</code>) is not
+ * possible, because the servlet API only offers an output stream; wrapped
+ * as channel, <code>transferTo</code> falls back to small copies and is
+ * slower than the stream.
+ * <p>
+ * Local files are concatenated with <code>FileChannel.transferTo</code>,
+ * so the bytes are copied by the kernel without passing the heap.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+public final class FileTransfer
+{
+    /**
+     * Size of the buffer used to copy to the output stream.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Minimum number of bytes for which the file is memory mapped; smaller
+     * regions are read directly.
+     */
+    private static final long MAP_THRESHOLD = 256 * 1024;
+
+    /**
+     * Maximum size of one mapped region.
+     */
+    private static final long MAP_REGION = 8 * 1024 * 1024;
+
+    /**
+     * Only static methods.
+     */
+    private FileTransfer()
+    {
+    }
+
+    /**
+     * Returns the local file of given file object.
+     *
+     * @param _object   file object
+     * @return local file or <code>null</code> if the file object is not a
+     *         file of the local file system
+     */
+    public static File getLocalFile(final FileObject _object)
+    {
+        File ret = null;
+        if (_object.getName() instanceof LocalFileName) {
+            final LocalFileName name = (LocalFileName) _object.getName();
+            try {
+                ret = new File(name.getRootFile() + name.getPathDecoded());
+            } catch (final FileSystemException e) {
+                ret = null;
+            }
+            if ((ret != null) && !ret.isFile()) {
+                ret = null;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Transfers a region of a file channel to the output stream.
+     *
+     * @param _channel  file channel to read from
+     * @param _position position of the first byte to transfer
+     * @param _count    number of bytes to transfer
+     * @param _out      output stream to write to
+     * @return number of transferred bytes (less than <code>_count</code> only
+     *         if the end of the file was reached)
+     * @throws IOException if the bytes could not be transferred
+     */
+    public static long transfer(final FileChannel _channel,
+                                final long _position,
+                                final long _count,
+                                final OutputStream _out)
+        throws IOException
+    {
+        final long count = Math.max(0, Math.min(_count, _channel.size() - _position));
+        final byte[] buffer = BufferPool.getInstance().acquire(
+                (int) Math.min(FileTransfer.BUFFER_SIZE, Math.max(1, count)));
+        long left = count;
+        try {
+            if (count < FileTransfer.MAP_THRESHOLD) {
+                final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+                while (left > 0) {
+                    byteBuffer.clear();
+                    byteBuffer.limit((int) Math.min(buffer.length, left));
+                    final int read = _channel.read(byteBuffer, _position + count - left);
+                    if (read <= 0) {
+                        break;
+                    }
+                    _out.write(buffer, 0, read);
+                    left -= read;
+                }
+            } else {
+                while (left > 0) {
+                    final MappedByteBuffer region = _channel.map(FileChannel.MapMode.READ_ONLY,
+                                                                 _position + count - left,
+                                                                 Math.min(left, FileTransfer.MAP_REGION));
+                    while (region.hasRemaining()) {
+                        final int length = Math.min(buffer.length, region.remaining());
+                        region.get(buffer, 0, length);
+                        _out.write(buffer, 0, length);
+                    }
+                    left -= region.capacity();
+                }
+            }
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+        return count - left;
+    }
+
+    /**
+     * Copies the input stream to the output stream until the end of the
+     * input stream. Neither stream is closed.
+     *
+     * @param _in       input stream
+     * @param _out      output stream
+     * @return number of copied bytes
+     * @throws IOException if the bytes could not be copied
+     */
+    public static long copy(final InputStream _in,
+                            final OutputStream _out)
+        throws IOException
+    {
+        return FileTransfer.copy(_in, _out, Long.MAX_VALUE);
+    }
+
+    /**
+     * Copies at most <code>_length</code> bytes from the input stream to the
+     * output stream. Neither stream is closed.
+     *
+     * @param _in       input stream
+     * @param _out      output stream
+     * @param _length   number of bytes to copy
+     * @return number of copied bytes (less than <code>_length</code> only at
+     *         the end of the input stream)
+     * @throws IOException if the bytes could not be copied
+     */
+    public static long copy(final InputStream _in,
+                            final OutputStream _out,
+                            final long _length)
+        throws IOException
+    {
+        final byte[] buffer = BufferPool.getInstance().acquire(
+                (int) Math.min(FileTransfer.BUFFER_SIZE, Math.max(1, _length)));
+        long left = _length;
+        try {
+            while (left > 0) {
+                final int read = _in.read(buffer, 0, (int) Math.min(buffer.length, left));
+                if (read <= 0) {
+                    break;
+                }
+                _out.write(buffer, 0, read);
+                left -= read;
+            }
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+        return _length - left;
+    }
+
+    /**
+     * Copies the content of a file to another file (which is created if
+     * needed).
+     *
+     * @param _source   file to copy
+     * @param _target   file to write
+     * @throws IOException if the content could not be copied
+     */
+    public static void copyContent(final FileObject _source,
+                                   final FileObject _target)
+        throws IOException
+    {
+        final OutputStream out = _target.getContent().getOutputStream();
+        try {
+            final InputStream in = _source.getContent().getInputStream();
+            try {
+                FileTransfer.copy(in, out);
+            } finally {
+                in.close();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the local files of given file objects.
+     *
+     * @param _objects  file objects
+     * @return local files or <code>null</code> if not all file objects are
+     *         files of the local file system
+     */
+    public static List<File> getLocalFiles(final List<FileObject> _objects)
+    {
+        List<File> ret = new ArrayList<File>(_objects.size());
+        for (final FileObject object : _objects) {
+            final File file = FileTransfer.getLocalFile(object);
+            if (file == null) {
+                ret = null;
+                break;
+            }
+            ret.add(file);
+        }
+        return ret;
+    }
+
+    /**
+     * Writes the contents of the files one after the other to the output
+     * stream (which is not closed). The message digests are updated with
+     * the written bytes.
+     *
+     * @param _sources  files to concatenate
+     * @param _out      output stream
+     * @param _digests  message digests to update
+     * @return number of written bytes
+     * @throws IOException if the contents could not be copied
+     */
+    public static long concat(final List<FileObject> _sources,
+                              final OutputStream _out,
+                              final MessageDigest... _digests)
+        throws IOException
+    {
+        long ret = 0;
+        for (final FileObject source : _sources) {
+            InputStream in = source.getContent().getInputStream();
+            for (final MessageDigest digest : _digests) {
+                in = new DigestInputStream(in, digest);
+            }
+            try {
+                ret += FileTransfer.copy(in, _out);
+            } finally {
+                in.close();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Replaces the content of the local target file with the concatenated
+     * contents of the local source files. The bytes are transferred between
+     * the file channels by the operating system; the message digests are
+     * updated from read only mappings of the transferred regions (the bytes
+     * are not copied to the heap).
+     *
+     * @param _sources  local files to concatenate
+     * @param _target   local file to write
+     * @param _digests  message digests to update
+     * @return number of written bytes
+     * @throws IOException if the contents could not be transferred
+     */
+    public static long concat(final List<File> _sources,
+                              final File _target,
+                              final MessageDigest... _digests)
+        throws IOException
+    {
+        long ret = 0;
+        final FileChannel out = new FileOutputStream(_target).getChannel();
+        try {
+            for (final File source : _sources) {
+                final FileChannel in = new FileInputStream(source).getChannel();
+                try {
+                    final long size = in.size();
+                    long position = 0;
+                    while (position < size) {
+                        final long count = in.transferTo(position, Math.min(size - position, FileTransfer.MAP_REGION),
+                                                         out);
+                        if (_digests.length > 0) {
+                            final MappedByteBuffer region = in.map(FileChannel.MapMode.READ_ONLY, position, count);
+                            for (final MessageDigest digest : _digests) {
+                                region.rewind();
+                                digest.update(region);
+                            }
+                        }
+                        position += count;
+                    }
+                    ret += size;
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ * Copyright 2007 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.vfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.vfs.FileContent;
+import org.efaps.webdav4vfs.metrics.Counter;
+import org.efaps.webdav4vfs.metrics.Histogram;
+import org.efaps.webdav4vfs.metrics.Metrics;
+
+/**
+ * Read ahead for the contents of high latency file systems (e.g. sftp,
+ * webdav, http or smb). Without read ahead, reading the next buffer from the
+ * file system and writing it to the client alternate, so the throughput is
+ * limited to one buffer per round trip. With read ahead, up to
+ * <code>depth</code> buffers are read in the background while the request
+ * thread writes the already read buffers to the client. Files of the local
+ * file system and contents which fit into one buffer are read directly.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+public final class ReadAhead
+{
+    /**
+     * Default number of buffers read ahead.
+     */
+    public static final int DEFAULT_DEPTH = 4;
+
+    /**
+     * Default size of one buffer.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Durations the request threads waited for read ahead buffers.
+     */
+    static final Histogram STALLS = Metrics.getInstance().histogram(
+            "webdav4vfs_readahead_stall_seconds", "Durations a request waited for the read ahead of a content.");
+
+    /**
+     * Contents read with read ahead.
+     */
+    private static final Counter STREAMS = Metrics.getInstance().counter(
+            "webdav4vfs_readahead_streams_total", "Contents read with read ahead.");
+
+    /**
+     * Current instance.
+     */
+    private static volatile ReadAhead instance = new ReadAhead(ReadAhead.DEFAULT_DEPTH, ReadAhead.DEFAULT_BUFFER_SIZE);
+
+    /**
+     * Number of buffers read ahead.
+     */
+    private final int depth;
+
+    /**
+     * Size of one buffer.
+     */
+    private final int bufferSize;
+
+    /**
+     * @param _depth        number of buffers read ahead (<code>0</code>
+     *                      disables the read ahead)
+     * @param _bufferSize   size of one buffer
+     */
+    public ReadAhead(final int _depth,
+                     final int _bufferSize)
+    {
+        this.depth = _depth;
+        this.bufferSize = _bufferSize;
+    }
+
+    /**
+     * @return current read ahead
+     */
+    public static ReadAhead getInstance()
+    {
+        return ReadAhead.instance;
+    }
+
+    /**
+     * Replaces the current read ahead.
+     *
+     * @param _instance new read ahead
+     */
+    public static void setInstance(final ReadAhead _instance)
+    {
+        ReadAhead.instance = _instance;
+    }
+
+    /**
+     * Returns an input stream for the content which reads ahead if the
+     * content is not a local file and is larger than one buffer. The
+     * returned stream must be closed by the same thread which opened it.
+     *
+     * @param _content  content of a file
+     * @return input stream of the content
+     * @throws IOException if the content could not be opened
+     */
+    public InputStream getInputStream(final FileContent _content)
+        throws IOException
+    {
+        final InputStream ret;
+        if ((this.depth > 0) && (_content.getSize() > this.bufferSize)
+                && (FileTransfer.getLocalFile(_content.getFile()) == null)) {
+            ReadAhead.STREAMS.inc();
+            ret = new ReadAheadInputStream(_content.getInputStream(), this.depth, this.bufferSize);
+        } else {
+            ret = _content.getInputStream();
+        }
+        return ret;
+    }
+}
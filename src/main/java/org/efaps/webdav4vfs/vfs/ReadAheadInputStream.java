@@ -0,0 +1,314 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ * Copyright 2007 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.vfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Input stream which reads ahead of the consumer. A background thread fills
+ * a ring of buffers from the source stream while the consumer drains the
+ * filled buffers, so reading from a high latency source and writing to the
+ * client overlap. The source stream is opened and closed by the consumer
+ * thread (commons VFS tracks the open streams of a content per thread); the
+ * background thread only reads from it.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ * @see ReadAhead
+ */
+final class ReadAheadInputStream
+    extends InputStream
+{
+    /**
+     * Threads of the background readers. Idle threads are stopped after one
+     * minute.
+     */
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(final Runnable _runnable)
+        {
+            final Thread ret = new Thread(_runnable, "webdav4vfs-readahead-" + this.count.incrementAndGet());
+            ret.setDaemon(true);
+            return ret;
+        }
+    });
+
+    /**
+     * Marks the end of the source stream (or a failure while reading).
+     */
+    private static final Chunk END = new Chunk(null, 0);
+
+    /**
+     * Source stream.
+     */
+    private final InputStream in;
+
+    /**
+     * All buffers of the ring (acquired from the {@link BufferPool}).
+     */
+    private final byte[][] buffers;
+
+    /**
+     * Free buffers to be filled by the background thread.
+     */
+    private final BlockingQueue<byte[]> free;
+
+    /**
+     * Filled buffers in the order of the source stream.
+     */
+    private final BlockingQueue<Chunk> filled;
+
+    /**
+     * Counted down if the background thread has finished.
+     */
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /**
+     * Was the stream closed?
+     */
+    private volatile boolean closed;
+
+    /**
+     * Failure of the background thread while reading the source stream.
+     */
+    private volatile IOException failure;
+
+    /**
+     * Chunk which is currently drained.
+     */
+    private Chunk current;
+
+    /**
+     * Position within the current chunk.
+     */
+    private int position;
+
+    /**
+     * @param _in           source stream
+     * @param _depth        number of buffers
+     * @param _bufferSize   size of one buffer
+     */
+    ReadAheadInputStream(final InputStream _in,
+                         final int _depth,
+                         final int _bufferSize)
+    {
+        this.in = _in;
+        this.free = new ArrayBlockingQueue<byte[]>(_depth);
+        this.buffers = new byte[_depth][];
+        for (int idx = 0; idx < _depth; idx++) {
+            this.buffers[idx] = BufferPool.getInstance().acquire(_bufferSize);
+            this.free.add(this.buffers[idx]);
+        }
+        // all buffers and the end marker
+        this.filled = new ArrayBlockingQueue<Chunk>(_depth + 1);
+        ReadAheadInputStream.EXECUTOR.execute(new Runnable() {
+            public void run()
+            {
+                fill();
+            }
+        });
+    }
+
+    /**
+     * Fills the free buffers from the source stream until the end of the
+     * source stream is reached or this stream is closed. Executed by the
+     * background thread.
+     */
+    private void fill()
+    {
+        try {
+            boolean end = false;
+            while (!end && !this.closed) {
+                final byte[] buffer = this.free.take();
+                if (!this.closed) {
+                    // one read per chunk, so that the consumer gets the bytes
+                    // as early as possible
+                    final int read = this.in.read(buffer, 0, buffer.length);
+                    if (read < 0) {
+                        end = true;
+                    } else {
+                        this.filled.put(new Chunk(buffer, read));
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            this.failure = e;
+        } catch (final InterruptedException e) {
+            this.failure = new InterruptedIOException("read ahead interrupted");
+        } finally {
+            this.filled.offer(ReadAheadInputStream.END);
+            this.done.countDown();
+        }
+    }
+
+    @Override()
+    public int read()
+        throws IOException
+    {
+        final int ret;
+        if (nextChunk()) {
+            ret = this.current.buffer[this.position++] & 0xFF;
+        } else {
+            ret = -1;
+        }
+        return ret;
+    }
+
+    @Override()
+    public int read(final byte[] _bytes,
+                    final int _off,
+                    final int _len)
+        throws IOException
+    {
+        int ret;
+        if (_len == 0) {
+            ret = 0;
+        } else if (nextChunk()) {
+            ret = Math.min(_len, this.current.length - this.position);
+            System.arraycopy(this.current.buffer, this.position, _bytes, _off, ret);
+            this.position += ret;
+        } else {
+            ret = -1;
+        }
+        return ret;
+    }
+
+    @Override()
+    public int available()
+        throws IOException
+    {
+        return (this.current == null) ? 0 : this.current.length - this.position;
+    }
+
+    /**
+     * Makes sure that the current chunk has bytes to read. A drained chunk
+     * is given back to the background thread and the next filled chunk is
+     * taken (waiting for it if needed).
+     *
+     * @return <i>true</i> if bytes could be read, <i>false</i> at the end of
+     *         the stream
+     * @throws IOException if the stream is closed or the source stream could
+     *                     not be read
+     */
+    private boolean nextChunk()
+        throws IOException
+    {
+        if (this.closed) {
+            throw new IOException("stream closed");
+        }
+        while ((this.current != ReadAheadInputStream.END)
+                && ((this.current == null) || (this.position >= this.current.length))) {
+            if (this.current != null) {
+                this.free.offer(this.current.buffer);
+            }
+            try {
+                this.current = this.filled.poll();
+                if (this.current == null) {
+                    final long start = System.nanoTime();
+                    this.current = this.filled.take();
+                    ReadAhead.STALLS.recordSince(start);
+                }
+            } catch (final InterruptedException e) {
+                this.current = null;
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("waiting for read ahead interrupted");
+            }
+            this.position = 0;
+        }
+        if ((this.current == ReadAheadInputStream.END) && (this.failure != null)) {
+            throw this.failure;
+        }
+        return this.current != ReadAheadInputStream.END;
+    }
+
+    /**
+     * Stops the background thread (waiting for a running read of the source
+     * stream), gives back the buffers and closes the source stream.
+     *
+     * @throws IOException if the source stream could not be closed
+     */
+    @Override()
+    public void close()
+        throws IOException
+    {
+        if (!this.closed) {
+            this.closed = true;
+            // wakes up the background thread if it waits for a free buffer
+            this.free.offer(new byte[0]);
+            boolean interrupted = false;
+            while (this.done.getCount() > 0) {
+                try {
+                    this.done.await();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            this.current = null;
+            this.filled.clear();
+            this.free.clear();
+            for (final byte[] buffer : this.buffers) {
+                BufferPool.getInstance().release(buffer);
+            }
+            this.in.close();
+        }
+    }
+
+    /**
+     * Filled part of a buffer.
+     */
+    private static final class Chunk
+    {
+        /**
+         * Buffer.
+         */
+        private final byte[] buffer;
+
+        /**
+         * Number of filled bytes.
+         */
+        private final int length;
+
+        /**
+         * @param _buffer   buffer
+         * @param _length   number of filled bytes
+         */
+        Chunk(final byte[] _buffer,
+              final int _length)
+        {
+            this.buffer = _buffer;
+            this.length = _length;
+        }
+    }
+}
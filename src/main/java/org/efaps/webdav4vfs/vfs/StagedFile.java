@@ -0,0 +1,623 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ * Copyright 2007 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.vfs;
+
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.vfs.Capability;
+import org.apache.commons.vfs.FileContent;
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystemException;
+import org.apache.commons.vfs.RandomAccessContent;
+import org.apache.commons.vfs.util.RandomAccessMode;
+
+/**
+ * Uploaded content which replaces its target file only if it is committed
+ * (see {@link Staging}). The content is written to a hidden sibling of the
+ * target (committed by a rename) or to a local spool file. A spool file is
+ * copied to a sibling before it is committed by a rename (see
+ * {@link #prepare()}); only on file systems without rename the spool file
+ * is copied over the target. A staged file which is not committed must be
+ * discarded.
+ * <p>
+ * The content of a resumable upload (see
+ * {@link Staging#getUpload(FileObject, boolean)}) is written in parts at
+ * their offsets with {@link #write(InputStream, long)}; the staged file
+ * knows the number of contiguously received bytes and (if already sent by
+ * the client) the total length of the content. The digests of the content
+ * (see {@link ContentDigest}) are computed while the parts are written as
+ * long as each part continues at the end of the already written bytes.
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+public final class StagedFile
+{
+    /**
+     * Staging which created this staged file.
+     */
+    private final Staging staging;
+
+    /**
+     * File which is replaced by the staged content.
+     */
+    private final FileObject target;
+
+    /**
+     * Sibling of the target or <code>null</code> if spooled.
+     */
+    private final FileObject sibling;
+
+    /**
+     * Local spool file or <code>null</code> for a sibling.
+     */
+    private final File spoolFile;
+
+    /**
+     * Sibling of the target to which the spool file is copied before the
+     * commit or <code>null</code>.
+     */
+    private FileObject copy;
+
+    /**
+     * Is the copy of the spool file up to date?
+     */
+    private boolean prepared;
+
+    /**
+     * Lock of a resumable upload, held while a part is written.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Was the staged file committed or discarded?
+     */
+    private boolean finished;
+
+    /**
+     * Number of written bytes from the start of the content.
+     */
+    private volatile long size;
+
+    /**
+     * Total length of the content of a resumable upload or <code>-1</code>
+     * if not known.
+     */
+    private volatile long length = -1;
+
+    /**
+     * MD5 digest of the content if known, otherwise <code>null</code>.
+     */
+    private byte[] md5;
+
+    /**
+     * SHA-256 digest of the content if known, otherwise <code>null</code>.
+     */
+    private byte[] sha256;
+
+    /**
+     * MD5 digest of the parts of a resumable upload or <code>null</code> if
+     * a part did not continue at the end of the written bytes.
+     */
+    private MessageDigest md5Parts;
+
+    /**
+     * SHA-256 digest of the parts of a resumable upload or <code>null</code>
+     * if a part did not continue at the end of the written bytes.
+     */
+    private MessageDigest sha256Parts;
+
+    /**
+     * Time of the last write in milliseconds.
+     */
+    private volatile long lastAccess = System.currentTimeMillis();
+
+    /**
+     * @param _staging      staging which created this staged file
+     * @param _target       file which is replaced by the staged content
+     * @param _sibling      sibling of the target (or <code>null</code>)
+     * @param _spoolFile    local spool file (or <code>null</code>)
+     */
+    StagedFile(final Staging _staging,
+               final FileObject _target,
+               final FileObject _sibling,
+               final File _spoolFile)
+    {
+        this(_staging, _target, _sibling, _spoolFile, 0);
+    }
+
+    /**
+     * @param _staging      staging which created this staged file
+     * @param _target       file which is replaced by the staged content
+     * @param _sibling      sibling of the target (or <code>null</code>)
+     * @param _spoolFile    local spool file (or <code>null</code>)
+     * @param _size         number of already written bytes (of a resumed
+     *                      upload)
+     */
+    StagedFile(final Staging _staging,
+               final FileObject _target,
+               final FileObject _sibling,
+               final File _spoolFile,
+               final long _size)
+    {
+        this.staging = _staging;
+        this.target = _target;
+        this.sibling = _sibling;
+        this.spoolFile = _spoolFile;
+        this.size = _size;
+        if (_size == 0) {
+            this.md5Parts = ContentDigest.newMD5();
+            this.sha256Parts = ContentDigest.newSHA256();
+        }
+    }
+
+    /**
+     * @return file which is replaced by the staged content
+     */
+    public FileObject getTarget()
+    {
+        return this.target;
+    }
+
+    /**
+     * @return number of bytes written from the start of the content
+     */
+    public long getSize()
+    {
+        return this.size;
+    }
+
+    /**
+     * @return total length of the content or <code>-1</code> if not known
+     */
+    public long getLength()
+    {
+        return this.length;
+    }
+
+    /**
+     * @param _length   total length of the content
+     */
+    public void setLength(final long _length)
+    {
+        this.length = _length;
+    }
+
+    /**
+     * @return time of the last write in milliseconds
+     */
+    long getLastAccess()
+    {
+        return this.lastAccess;
+    }
+
+    /**
+     * Acquires the lock of a resumable upload, so that only one part is
+     * written at the same time.
+     *
+     * @param _timeout  time in milliseconds to wait for the lock
+     * @return <i>true</i> if acquired, <i>false</i> if another part is still
+     *         written after the timeout
+     * @throws InterruptedException if the current thread was interrupted
+     */
+    public boolean tryLock(final long _timeout)
+        throws InterruptedException
+    {
+        return this.lock.tryLock(_timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Releases the lock of the resumable upload.
+     */
+    public void unlock()
+    {
+        this.lock.unlock();
+    }
+
+    /**
+     * @return sibling of the target or <code>null</code> if spooled
+     */
+    FileObject getSibling()
+    {
+        return this.sibling;
+    }
+
+    /**
+     * @return sibling to which the spool file was copied or
+     *         <code>null</code>
+     */
+    FileObject getCopy()
+    {
+        return this.copy;
+    }
+
+    /**
+     * @return path of the staging file (for the sweep of orphans)
+     */
+    String getPath()
+    {
+        return (this.sibling != null) ? this.sibling.getName().getPath() : this.spoolFile.getAbsolutePath();
+    }
+
+    /**
+     * Writes the content of the input stream to the staging file. The
+     * digests of the content (see {@link ContentDigest}) are computed while
+     * the content is copied and stored for the target on commit.
+     *
+     * @param _in   input stream of the content (not closed)
+     * @return number of written bytes
+     * @throws IOException if the content could not be written
+     */
+    public long write(final InputStream _in)
+        throws IOException
+    {
+        final MessageDigest md5Digest = ContentDigest.newMD5();
+        final MessageDigest sha256Digest = ContentDigest.newSHA256();
+        final OutputStream out = (this.sibling != null)
+            ? this.sibling.getContent().getOutputStream()
+            : new FileOutputStream(this.spoolFile);
+        try {
+            this.size = FileTransfer.copy(new DigestInputStream(new DigestInputStream(_in, md5Digest), sha256Digest),
+                                          out);
+        } finally {
+            out.close();
+        }
+        this.md5 = md5Digest.digest();
+        this.sha256 = sha256Digest.digest();
+        this.lastAccess = System.currentTimeMillis();
+        return this.size;
+    }
+
+    /**
+     * Writes the concatenated contents of the files to the staging file in
+     * one pass. If the staging file and all files are local files, the
+     * contents are transferred by the operating system (see
+     * {@link FileTransfer#concat(List, File, MessageDigest...)}). The
+     * digests of the content are computed in the same pass.
+     *
+     * @param _parts    files to concatenate
+     * @return number of written bytes
+     * @throws IOException if the contents could not be written
+     */
+    public long write(final List<FileObject> _parts)
+        throws IOException
+    {
+        final File local;
+        if (this.sibling == null) {
+            local = this.spoolFile;
+        } else {
+            if (!this.sibling.exists()) {
+                this.sibling.createFile();
+            }
+            local = FileTransfer.getLocalFile(this.sibling);
+        }
+        final MessageDigest md5Digest = ContentDigest.newMD5();
+        final MessageDigest sha256Digest = ContentDigest.newSHA256();
+        final List<File> localParts = FileTransfer.getLocalFiles(_parts);
+        if ((local != null) && (localParts != null)) {
+            this.size = FileTransfer.concat(localParts, local, md5Digest, sha256Digest);
+        } else {
+            final OutputStream out = (this.sibling != null)
+                ? this.sibling.getContent().getOutputStream()
+                : new FileOutputStream(this.spoolFile);
+            try {
+                this.size = FileTransfer.concat(_parts, out, md5Digest, sha256Digest);
+            } finally {
+                out.close();
+            }
+        }
+        this.md5 = md5Digest.digest();
+        this.sha256 = sha256Digest.digest();
+        this.lastAccess = System.currentTimeMillis();
+        return this.size;
+    }
+
+    /**
+     * Writes the content of the input stream at given offset of the staging
+     * file. The offset must not be behind the already written bytes, so that
+     * the written bytes are always contiguous. The number of written bytes
+     * is updated while writing, so that a failed write (e.g. an interrupted
+     * connection) keeps the bytes written so far.
+     *
+     * @param _in       input stream of the part of the content (not closed)
+     * @param _offset   offset of the part in the content
+     * @return number of written bytes
+     * @throws IOException if the part could not be written or the offset is
+     *                     behind the written bytes
+     */
+    public long write(final InputStream _in,
+                      final long _offset)
+        throws IOException
+    {
+        if (_offset > this.size) {
+            throw new IOException("offset " + _offset + " behind written bytes " + this.size);
+        }
+        this.md5 = null;
+        this.sha256 = null;
+        this.prepared = false;
+        if (_offset < this.size) {
+            // the digests could not be continued by a rewritten part
+            this.md5Parts = null;
+            this.sha256Parts = null;
+        }
+        long ret = 0;
+        if (this.sibling != null) {
+            if (!this.sibling.getFileSystem().hasCapability(Capability.RANDOM_ACCESS_WRITE)) {
+                throw new IOException("file system of " + this.target + " does not support random access");
+            }
+            if (!this.sibling.exists()) {
+                this.sibling.createFile();
+            }
+            final RandomAccessContent content = this.sibling.getContent().getRandomAccessContent(
+                    RandomAccessMode.READWRITE);
+            try {
+                content.seek(_offset);
+                ret = write(_in, content, _offset);
+            } finally {
+                content.close();
+            }
+        } else {
+            final RandomAccessFile file = new RandomAccessFile(this.spoolFile, "rw");
+            try {
+                file.seek(_offset);
+                ret = write(_in, file, _offset);
+            } finally {
+                file.close();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Copies the input stream to the output positioned at given offset.
+     *
+     * @param _in       input stream
+     * @param _out      output positioned at the offset
+     * @param _offset   offset of the output
+     * @return number of written bytes
+     * @throws IOException if the bytes could not be copied
+     */
+    private long write(final InputStream _in,
+                       final DataOutput _out,
+                       final long _offset)
+        throws IOException
+    {
+        final byte[] buffer = BufferPool.getInstance().acquire(BufferPool.MAX_SIZE / 4);
+        long ret = 0;
+        try {
+            int read = _in.read(buffer);
+            while (read >= 0) {
+                _out.write(buffer, 0, read);
+                if (this.md5Parts != null) {
+                    this.md5Parts.update(buffer, 0, read);
+                    this.sha256Parts.update(buffer, 0, read);
+                }
+                ret += read;
+                this.size = Math.max(this.size, _offset + ret);
+                this.lastAccess = System.currentTimeMillis();
+                read = _in.read(buffer);
+            }
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+        return ret;
+    }
+
+    /**
+     * Copies a spool file to a sibling of the target if the file system of
+     * the target supports renames (a resumable upload on a file system
+     * without random access), so that the content is committed by a rename.
+     * The copy should be made before the target is locked for the commit;
+     * otherwise it is made by the commit.
+     *
+     * @throws IOException if the spool file could not be copied
+     */
+    public void prepare()
+        throws IOException
+    {
+        if ((this.spoolFile != null) && !this.prepared
+                && this.target.getFileSystem().hasCapability(Capability.RENAME)) {
+            if (this.copy == null) {
+                this.copy = this.staging.createSibling(this.target);
+            }
+            final OutputStream out = this.copy.getContent().getOutputStream();
+            try {
+                final InputStream in = new FileInputStream(this.spoolFile);
+                try {
+                    FileTransfer.copy(in, out);
+                } finally {
+                    in.close();
+                }
+            } finally {
+                out.close();
+            }
+            this.prepared = true;
+        }
+    }
+
+    /**
+     * Replaces the target with the staged content. The caller must make sure
+     * that the target is not read meanwhile (see
+     * {@link ContentCoordinator#acquireWrite(FileObject)}).
+     * <p>
+     * The attributes of an existing target (e.g. the dead properties of
+     * PROPPATCH) and the permissions of a local target are copied to the
+     * staged content first. A local target is replaced by an atomic rename
+     * of the operating system, so the target always exists. A rename of VFS
+     * deletes an existing target before the source is renamed; so on all
+     * other file systems (or if the atomic rename fails) an existing target
+     * is first renamed aside and deleted only after the staged content was
+     * renamed to the target; if the rename fails, the old content is renamed
+     * back. An aside file which could not be deleted is an orphan for the
+     * sweep of the staging.
+     *
+     * @throws IOException if the target could not be replaced
+     */
+    public void commit()
+        throws IOException
+    {
+        if ((this.sha256 == null) && (this.md5Parts != null)) {
+            this.md5 = this.md5Parts.digest();
+            this.sha256 = this.sha256Parts.digest();
+        }
+        prepare();
+        final FileObject renamed = (this.copy != null) ? this.copy : this.sibling;
+        if ((renamed != null) && this.target.exists()) {
+            StagedFile.copyMetadata(this.target, renamed);
+        }
+        if ((renamed != null) && this.target.exists() && !renameLocal(renamed)) {
+            final FileObject aside = this.target.getParent().resolveFile(
+                    Staging.PREFIX + "old-" + UUID.randomUUID().toString());
+            this.target.moveTo(aside);
+            try {
+                renamed.moveTo(this.target);
+            } catch (final FileSystemException e) {
+                aside.moveTo(this.target);
+                throw e;
+            }
+            try {
+                aside.delete();
+            } catch (final FileSystemException e) {
+                // removed later by the sweep
+            }
+        } else if (renamed != null) {
+            renamed.moveTo(this.target);
+        } else {
+            final OutputStream out = this.target.getContent().getOutputStream();
+            try {
+                final InputStream in = new FileInputStream(this.spoolFile);
+                try {
+                    FileTransfer.copy(in, out);
+                } finally {
+                    in.close();
+                }
+            } finally {
+                out.close();
+            }
+        }
+        if (this.spoolFile != null) {
+            this.spoolFile.delete();
+        }
+        if (this.sha256 != null) {
+            ContentDigest.getInstance().store(this.target, this.md5, this.sha256);
+        } else {
+            ContentDigest.getInstance().invalidate(this.target);
+        }
+        this.finished = true;
+        this.staging.finished(this);
+        Staging.COMMITS.inc();
+    }
+
+    /**
+     * Replaces the local target with the local file by an atomic rename of
+     * the operating system.
+     *
+     * @param _renamed  file which replaces the target
+     * @return <i>true</i> if renamed, <i>false</i> if not local files or the
+     *         rename failed (e.g. on platforms where a rename does not replace
+     *         an existing file)
+     * @throws FileSystemException if the renamed files could not be
+     *                             refreshed
+     */
+    private boolean renameLocal(final FileObject _renamed)
+        throws FileSystemException
+    {
+        final File from = FileTransfer.getLocalFile(_renamed);
+        final File to = FileTransfer.getLocalFile(this.target);
+        final boolean ret = (from != null) && (to != null) && from.renameTo(to);
+        if (ret) {
+            // renamed outside of VFS
+            _renamed.refresh();
+            this.target.refresh();
+            this.target.getParent().refresh();
+        }
+        return ret;
+    }
+
+    /**
+     * Copies the attributes (without the stored content digest) and, for
+     * local files, the permissions of the owner from one file to another.
+     *
+     * @param _from     file to copy from
+     * @param _to       file to copy to
+     */
+    private static void copyMetadata(final FileObject _from,
+                                     final FileObject _to)
+    {
+        try {
+            final FileContent from = _from.getContent();
+            final FileContent to = _to.getContent();
+            for (final String name : from.getAttributeNames()) {
+                if (!ContentDigest.ATTR_DIGEST.equals(name)) {
+                    to.setAttribute(name, from.getAttribute(name));
+                }
+            }
+        } catch (final FileSystemException e) {
+            // attributes not supported
+        }
+        final File fromFile = FileTransfer.getLocalFile(_from);
+        final File toFile = FileTransfer.getLocalFile(_to);
+        if ((fromFile != null) && (toFile != null)) {
+            toFile.setReadable(fromFile.canRead());
+            toFile.setWritable(fromFile.canWrite());
+            toFile.setExecutable(fromFile.canExecute());
+        }
+    }
+
+    /**
+     * Deletes the staging file if the staged file was not committed.
+     */
+    public void discard()
+    {
+        if (!this.finished) {
+            this.finished = true;
+            try {
+                if (this.sibling != null) {
+                    this.sibling.delete();
+                } else {
+                    this.spoolFile.delete();
+                }
+                if (this.copy != null) {
+                    this.copy.delete();
+                }
+            } catch (final IOException e) {
+                // removed later by the sweep
+            } finally {
+                this.staging.finished(this);
+                Staging.DISCARDS.inc();
+            }
+        }
+    }
+}
@@ -0,0 +1,548 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ * Copyright 2007 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.vfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.vfs.Capability;
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystemException;
+import org.apache.commons.vfs.FileType;
+import org.apache.commons.vfs.provider.local.LocalFileName;
+import org.efaps.webdav4vfs.metrics.Counter;
+import org.efaps.webdav4vfs.metrics.Metrics;
+
+/**
+ * Staging of uploaded contents, so that a file is only replaced by a
+ * completely received content (see {@link StagedFile}). On file systems
+ * which support renames, the content is staged in a hidden sibling of the
+ * target (with prefix {@link #PREFIX}) and renamed over the target; on
+ * other file systems the content is spooled to a local file and copied to
+ * the target, so that the target is replaced in place (see
+ * {@link #isReplacedInPlace(FileObject)}).
+ * <p>
+ * Resumable uploads (see {@link #getUpload(FileObject, boolean)}) are
+ * staged in a file whose name is derived from the target, so that an upload
+ * could also be resumed after a restart of the server. Their parts are
+ * written at their offsets, so they are spooled also on file systems which
+ * support renames, but no random access writes.
+ * <p>
+ * Staging files of crashed servers are orphans. They are deleted by
+ * {@link #sweep()} if they are older than the maximum age; the sweep could
+ * be executed periodically in the background (see {@link #start(long)}).
+ * The sweep does not search the file system: it checks only the spool
+ * directory and the folders in which this staging created staging files
+ * (orphans of a previous run are found as soon as the folder receives an
+ * upload again).
+ *
+ * @author The eFaps Team
+ * @version $Id$
+ */
+public final class Staging
+{
+    /**
+     * Prefix of the names of staging files.
+     */
+    public static final String PREFIX = ".webdav4vfs-staging-";
+
+    /**
+     * Default maximum age of staging files in milliseconds (one day; uploads
+     * of other servers sharing the file system must not be removed).
+     */
+    public static final long DEFAULT_MAX_AGE = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Default directory of the spool files.
+     */
+    public static final File DEFAULT_SPOOL_DIR = new File(System.getProperty("java.io.tmpdir"), "webdav4vfs-spool");
+
+    /**
+     * Default maximum size of uploaded contents in bytes (not limited).
+     */
+    public static final long DEFAULT_MAX_SIZE = Long.MAX_VALUE;
+
+    /**
+     * Logging instance used in this class.
+     */
+    private static final Log LOG = LogFactory.getLog(Staging.class);
+
+    /**
+     * Committed staging files.
+     */
+    static final Counter COMMITS = Metrics.getInstance().counter(
+            "webdav4vfs_staging_commits_total", "Staged uploads which replaced their target.");
+
+    /**
+     * Discarded staging files.
+     */
+    static final Counter DISCARDS = Metrics.getInstance().counter(
+            "webdav4vfs_staging_discards_total", "Staged uploads which were discarded.");
+
+    /**
+     * Deleted orphans.
+     */
+    private static final Counter ORPHANS = Metrics.getInstance().counter(
+            "webdav4vfs_staging_orphans_deleted_total", "Orphaned staging files deleted by the sweep.");
+
+    /**
+     * Current instance.
+     */
+    private static volatile Staging instance = new Staging(Staging.DEFAULT_MAX_AGE, Staging.DEFAULT_SPOOL_DIR);
+
+    /**
+     * Maximum age of staging files in milliseconds.
+     */
+    private final long maxAge;
+
+    /**
+     * Maximum size of uploaded contents in bytes.
+     */
+    private final long maxSize;
+
+    /**
+     * Directory of the local spool files.
+     */
+    private final File spoolDir;
+
+    /**
+     * Paths of the staging files and spool files of running uploads.
+     */
+    private final Set<String> active = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Resumable uploads by the URI of their target.
+     */
+    private final ConcurrentMap<String, StagedFile> uploads = new ConcurrentHashMap<String, StagedFile>();
+
+    /**
+     * Folders with staging files which are checked by the sweep, by their
+     * URI.
+     */
+    private final ConcurrentMap<String, FileObject> folders = new ConcurrentHashMap<String, FileObject>();
+
+    /**
+     * Executor of the periodic sweep.
+     */
+    private ScheduledExecutorService sweeper;
+
+    /**
+     * @param _maxAge   maximum age of staging files in milliseconds
+     * @param _spoolDir directory of the spool files for file systems
+     *                  without rename
+     */
+    public Staging(final long _maxAge,
+                   final File _spoolDir)
+    {
+        this(_maxAge, _spoolDir, Staging.DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param _maxAge   maximum age of staging files in milliseconds
+     * @param _spoolDir directory of the spool files for file systems
+     *                  without rename
+     * @param _maxSize  maximum size of uploaded contents in bytes
+     */
+    public Staging(final long _maxAge,
+                   final File _spoolDir,
+                   final long _maxSize)
+    {
+        this.maxAge = _maxAge;
+        this.spoolDir = _spoolDir;
+        this.maxSize = _maxSize;
+    }
+
+    /**
+     * @return current staging
+     */
+    public static Staging getInstance()
+    {
+        return Staging.instance;
+    }
+
+    /**
+     * Replaces the current staging. The sweep of the previous staging is
+     * stopped.
+     *
+     * @param _instance new staging
+     */
+    public static void setInstance(final Staging _instance)
+    {
+        Staging.instance.stop();
+        Staging.instance = _instance;
+    }
+
+    /**
+     * @param _object   file object
+     * @return <i>true</i> if the file object is a staging file (which must
+     *         not be visible to clients)
+     */
+    public static boolean isStagingFile(final FileObject _object)
+    {
+        return _object.getName().getBaseName().startsWith(Staging.PREFIX);
+    }
+
+    /**
+     * Checks if the target is replaced in place by a commit (on file systems
+     * without rename). Readers of such a target must hold the read lock of
+     * the target until the content is read (see
+     * {@link ContentCoordinator#acquireRead(FileObject)}); on all other file
+     * systems an opened content is never changed by a commit.
+     *
+     * @param _target   file which is replaced by staged contents
+     * @return <i>true</i> if replaced in place
+     */
+    public static boolean isReplacedInPlace(final FileObject _target)
+    {
+        return !_target.getFileSystem().hasCapability(Capability.RENAME);
+    }
+
+    /**
+     * Creates a new staging file for the target.
+     *
+     * @param _target   file which is replaced by the staged content
+     * @return staging file
+     * @throws IOException if the staging file could not be created
+     */
+    public StagedFile create(final FileObject _target)
+        throws IOException
+    {
+        final String name = Staging.PREFIX + UUID.randomUUID().toString();
+        final StagedFile ret;
+        if (!isSpooled(_target, false)) {
+            ret = new StagedFile(this, _target, _target.getParent().resolveFile(name), null);
+        } else {
+            if (!this.spoolDir.isDirectory() && !this.spoolDir.mkdirs()) {
+                throw new IOException("spool directory " + this.spoolDir + " could not be created");
+            }
+            ret = new StagedFile(this, _target, null, new File(this.spoolDir, name));
+        }
+        this.active.add(ret.getPath());
+        if (ret.getSibling() != null) {
+            remember(_target.getParent());
+        }
+        return ret;
+    }
+
+    /**
+     * @return maximum size of uploaded contents in bytes
+     */
+    public long getMaxSize()
+    {
+        return this.maxSize;
+    }
+
+    /**
+     * Checks if there is enough space to stage a content with given length
+     * for the target (see {@link #hasSpace(FileObject, long, boolean)}).
+     *
+     * @param _target   file which is replaced by the staged content
+     * @param _length   length of the content in bytes
+     * @return <i>true</i> if there is enough space (or the space is not
+     *         known)
+     * @throws FileSystemException if the target could not be checked
+     */
+    public boolean hasSpace(final FileObject _target,
+                            final long _length)
+        throws FileSystemException
+    {
+        return hasSpace(_target, _length, false);
+    }
+
+    /**
+     * Checks if there is enough space to stage a content with given length
+     * for the target. Only the space of local directories is known (the
+     * parent of a local target or the spool directory); for all other file
+     * systems there is always enough space.
+     *
+     * @param _target       file which is replaced by the staged content
+     * @param _length       length of the content in bytes
+     * @param _resumable    <i>true</i> for a resumable upload
+     * @return <i>true</i> if there is enough space (or the space is not
+     *         known)
+     * @throws FileSystemException if the target could not be checked
+     */
+    public boolean hasSpace(final FileObject _target,
+                            final long _length,
+                            final boolean _resumable)
+        throws FileSystemException
+    {
+        File dir = null;
+        if (isSpooled(_target, _resumable)) {
+            dir = this.spoolDir;
+        } else if (_target.getName() instanceof LocalFileName) {
+            final LocalFileName name = (LocalFileName) _target.getName();
+            dir = new File(name.getRootFile() + name.getPathDecoded()).getParentFile();
+        }
+        // the usable space of a not existing directory is zero
+        final long space = (dir == null) ? 0 : dir.getUsableSpace();
+        return (space == 0) || (space >= _length);
+    }
+
+    /**
+     * Checks if the content for the target is staged in a local spool file
+     * instead of a sibling of the target.
+     *
+     * @param _target       file which is replaced by the staged content
+     * @param _resumable    <i>true</i> for a resumable upload (written at
+     *                      the offsets of its parts)
+     * @return <i>true</i> if spooled
+     */
+    private boolean isSpooled(final FileObject _target,
+                              final boolean _resumable)
+    {
+        return !_target.getFileSystem().hasCapability(Capability.RENAME)
+                || (_resumable && !_target.getFileSystem().hasCapability(Capability.RANDOM_ACCESS_WRITE));
+    }
+
+    /**
+     * Returns the resumable upload of the target. If the upload is not known
+     * (e.g. after a restart of the server) but its staging file exists, the
+     * upload is resumed with the already written bytes of the staging file
+     * (also if the upload must not be created).
+     *
+     * @param _target   file which is replaced by the uploaded content
+     * @param _create   must the upload be created if it does not exist?
+     * @return resumable upload or <code>null</code> if not existing and not
+     *         created
+     * @throws IOException if the staging file could not be accessed
+     */
+    public StagedFile getUpload(final FileObject _target,
+                                final boolean _create)
+        throws IOException
+    {
+        final String key = _target.getName().getURI();
+        StagedFile ret = this.uploads.get(key);
+        if (ret == null) {
+            synchronized (this.uploads) {
+                ret = this.uploads.get(key);
+                if (ret == null) {
+                    final String name = Staging.PREFIX + "upload-" + DigestUtils.shaHex(key);
+                    if (!isSpooled(_target, true)) {
+                        final FileObject sibling = _target.getParent().resolveFile(name);
+                        if (_create || sibling.exists()) {
+                            ret = new StagedFile(this, _target, sibling, null,
+                                                 sibling.exists() ? sibling.getContent().getSize() : 0);
+                        }
+                    } else {
+                        final File spoolFile = new File(this.spoolDir, name);
+                        if (_create && !this.spoolDir.isDirectory() && !this.spoolDir.mkdirs()) {
+                            throw new IOException("spool directory " + this.spoolDir + " could not be created");
+                        }
+                        if (_create || spoolFile.exists()) {
+                            ret = new StagedFile(this, _target, null, spoolFile, spoolFile.length());
+                        }
+                    }
+                    if (ret != null) {
+                        this.active.add(ret.getPath());
+                        this.uploads.put(key, ret);
+                        if (ret.getSibling() != null) {
+                            remember(_target.getParent());
+                        }
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Creates a new sibling of the target to which a spool file is copied
+     * (see {@link StagedFile#prepare()}).
+     *
+     * @param _target   file which is replaced by the staged content
+     * @return sibling of the target
+     * @throws FileSystemException if the sibling could not be resolved
+     */
+    FileObject createSibling(final FileObject _target)
+        throws FileSystemException
+    {
+        final FileObject ret = _target.getParent().resolveFile(Staging.PREFIX + UUID.randomUUID().toString());
+        this.active.add(ret.getName().getPath());
+        remember(_target.getParent());
+        return ret;
+    }
+
+    /**
+     * Called if a staging file is committed or discarded.
+     *
+     * @param _stagedFile   staged file
+     */
+    void finished(final StagedFile _stagedFile)
+    {
+        this.active.remove(_stagedFile.getPath());
+        if (_stagedFile.getCopy() != null) {
+            this.active.remove(_stagedFile.getCopy().getName().getPath());
+        }
+        this.uploads.remove(_stagedFile.getTarget().getName().getURI(), _stagedFile);
+    }
+
+    /**
+     * Remembers a folder in which staging files are created, so that it is
+     * checked by the sweep.
+     *
+     * @param _folder   folder with staging files
+     */
+    private void remember(final FileObject _folder)
+    {
+        synchronized (this.folders) {
+            this.folders.put(_folder.getName().getURI(), _folder);
+        }
+    }
+
+    /**
+     * Discards the resumable uploads which were not continued within the
+     * maximum age and deletes all staging files and spool files which are
+     * older than the maximum age and do not belong to a running upload of
+     * this server. Only the remembered folders and the spool directory are
+     * checked; a folder without any staging files is forgotten.
+     *
+     * @return number of deleted files
+     * @throws FileSystemException if a folder could not be read
+     */
+    public int sweep()
+        throws FileSystemException
+    {
+        final long oldest = System.currentTimeMillis() - this.maxAge;
+        int ret = 0;
+        for (final StagedFile upload : this.uploads.values()) {
+            if (upload.getLastAccess() < oldest) {
+                upload.discard();
+                ret++;
+            }
+        }
+        for (final FileObject folder : this.folders.values()) {
+            folder.refresh();
+            boolean remaining = false;
+            if (folder.exists()) {
+                for (final FileObject file : folder.getChildren()) {
+                    if (Staging.isStagingFile(file)) {
+                        // the upload could have been finished in the meantime
+                        if (FileType.FILE.equals(file.getType())
+                                && !this.active.contains(file.getName().getPath())
+                                && (file.getContent().getLastModifiedTime() < oldest)
+                                && file.delete()) {
+                            ret++;
+                        } else {
+                            remaining = true;
+                        }
+                    }
+                }
+            }
+            if (!remaining) {
+                forget(folder);
+            }
+        }
+        final File[] spoolFiles = this.spoolDir.listFiles();
+        if (spoolFiles != null) {
+            for (final File spoolFile : spoolFiles) {
+                if (spoolFile.getName().startsWith(Staging.PREFIX)
+                        && !this.active.contains(spoolFile.getAbsolutePath())
+                        && (spoolFile.lastModified() < oldest)
+                        && spoolFile.delete()) {
+                    ret++;
+                }
+            }
+        }
+        Staging.ORPHANS.add(ret);
+        return ret;
+    }
+
+    /**
+     * Forgets a folder without staging files, unless a staging file was
+     * created in it meanwhile (staging files are active before their folder
+     * is remembered).
+     *
+     * @param _folder   folder without staging files
+     */
+    private void forget(final FileObject _folder)
+    {
+        final String path = _folder.getName().getPath();
+        synchronized (this.folders) {
+            boolean used = false;
+            for (final String active : this.active) {
+                final int idx = active.lastIndexOf('/');
+                if ((idx >= 0) && path.equals((idx == 0) ? "/" : active.substring(0, idx))) {
+                    used = true;
+                    break;
+                }
+            }
+            if (!used) {
+                this.folders.remove(_folder.getName().getURI());
+            }
+        }
+    }
+
+    /**
+     * Starts the periodic sweep in a background thread.
+     *
+     * @param _interval interval of the sweeps in milliseconds
+     */
+    public synchronized void start(final long _interval)
+    {
+        stop();
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable _runnable)
+            {
+                final Thread ret = new Thread(_runnable, "webdav4vfs-staging-sweeper");
+                ret.setDaemon(true);
+                return ret;
+            }
+        });
+        this.sweeper.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                try {
+                    final int deleted = sweep();
+                    if (deleted > 0) {
+                        Staging.LOG.info(String.format("%d orphaned staging files deleted", deleted));
+                    }
+                } catch (final FileSystemException e) {
+                    Staging.LOG.warn("sweep of orphaned staging files failed", e);
+                }
+            }
+        }, _interval, _interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the periodic sweep.
+     */
+    public synchronized void stop()
+    {
+        if (this.sweeper != null) {
+            this.sweeper.shutdownNow();
+            this.sweeper = null;
+        }
+    }
+}
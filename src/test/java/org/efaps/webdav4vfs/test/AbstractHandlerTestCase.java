@@ -0,0 +1,354 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystemException;
+import org.apache.commons.vfs.FileSystemOptions;
+import org.apache.commons.vfs.VFS;
+import org.apache.commons.vfs.impl.DefaultFileSystemManager;
+import org.efaps.webdav4vfs.handler.AbstractWebdavHandler;
+import org.efaps.webdav4vfs.test.ramvfs.RamFileProvider;
+import org.efaps.webdav4vfs.vfs.ContentDigest;
+import org.efaps.webdav4vfs.vfs.VFSBackend;
+import org.testng.annotations.BeforeMethod;
+
+/**
+ * Helper class for tests of the WebDAV handlers. The handlers are called
+ * with minimal implementations of the servlet request and response on top
+ * of the {@link RamFileProvider ramvfs} provider (which supports random
+ * access).
+ *
+ * @author The eFaps Team
+ */
+public abstract class AbstractHandlerTestCase
+{
+    /**
+     * Scheme of the ramvfs provider.
+     */
+    protected static final String SCHEME = "ramvfs";
+
+    /**
+     * Path of the folder for the current test.
+     */
+    protected String folder;
+
+    static {
+        try {
+            final DefaultFileSystemManager manager = (DefaultFileSystemManager) VFS.getManager();
+            if (!manager.hasProvider(AbstractHandlerTestCase.SCHEME)) {
+                manager.addProvider(AbstractHandlerTestCase.SCHEME, new RamFileProvider());
+            }
+            VFSBackend.initialize(AbstractHandlerTestCase.SCHEME + ":///", new FileSystemOptions());
+        } catch (final FileSystemException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Creates a new folder for each test, so that the tests are independent
+     * of each other.
+     *
+     * @throws Exception if the folder could not be created
+     */
+    @BeforeMethod()
+    public void setUpFolder()
+        throws Exception
+    {
+        this.folder = "/" + UUID.randomUUID().toString();
+        VFSBackend.resolveFile(this.folder).createFolder();
+    }
+
+    /**
+     * Creates a file with given content in the folder of the test.
+     *
+     * @param _name     name of the file
+     * @param _content  content of the file
+     * @return path of the file
+     * @throws IOException if the file could not be written
+     */
+    protected String createFile(final String _name,
+                                final byte[] _content)
+        throws IOException
+    {
+        final String path = this.folder + "/" + _name;
+        final FileObject file = VFSBackend.resolveFile(path);
+        final OutputStream os = file.getContent().getOutputStream();
+        os.write(_content);
+        os.close();
+        return path;
+    }
+
+    /**
+     * Creates a file with given content in the folder of the test and stores
+     * the digests of the content like an upload with PUT, so that the file
+     * has a strong entity tag.
+     *
+     * @param _name     name of the file
+     * @param _content  content of the file
+     * @return path of the file
+     * @throws IOException if the file could not be written
+     */
+    protected String uploadFile(final String _name,
+                                final byte[] _content)
+        throws IOException
+    {
+        final String path = createFile(_name, _content);
+        ContentDigest.getInstance().store(VFSBackend.resolveFile(path),
+                                          ContentDigest.newMD5().digest(_content),
+                                          ContentDigest.newSHA256().digest(_content));
+        return path;
+    }
+
+    /**
+     * Calls the handler.
+     *
+     * @param _handler  handler to call
+     * @param _method   HTTP method
+     * @param _path     requested path (with an optional query string)
+     * @param _body     body of the request (or <code>null</code>)
+     * @param _headers  name / value pairs of the request headers
+     * @return response of the handler
+     * @throws IOException if the handler failed
+     */
+    protected Response service(final AbstractWebdavHandler _handler,
+                               final String _method,
+                               final String _path,
+                               final byte[] _body,
+                               final String... _headers)
+        throws IOException
+    {
+        final Map<String, String> headers = new HashMap<String, String>();
+        for (int idx = 0; idx < _headers.length; idx += 2) {
+            headers.put(_headers[idx].toLowerCase(), _headers[idx + 1]);
+        }
+        final Response response = new Response();
+        final Request request = new Request(_method, _path, _body, headers);
+        _handler.service(request.proxy(), response.proxy());
+        response.consumed = ((_body == null) ? 0 : _body.length) - request.body.available();
+        return response;
+    }
+
+    /**
+     * Minimal implementation of a servlet request.
+     */
+    private static final class Request
+        implements InvocationHandler
+    {
+        private final String method;
+        private final String path;
+        private final String query;
+        private final ByteArrayInputStream body;
+        private final Map<String, String> headers;
+
+        Request(final String _method,
+                final String _path,
+                final byte[] _body,
+                final Map<String, String> _headers)
+        {
+            this.method = _method;
+            final int queryIdx = _path.indexOf('?');
+            this.path = (queryIdx < 0) ? _path : _path.substring(0, queryIdx);
+            this.query = (queryIdx < 0) ? null : _path.substring(queryIdx + 1);
+            this.body = new ByteArrayInputStream((_body == null) ? new byte[0] : _body);
+            this.headers = _headers;
+        }
+
+        HttpServletRequest proxy()
+        {
+            return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                               new Class<?>[] {HttpServletRequest.class}, this);
+        }
+
+        public Object invoke(final Object _proxy,
+                             final Method _method,
+                             final Object[] _args)
+        {
+            final String name = _method.getName();
+            final Object ret;
+            if ("getMethod".equals(name)) {
+                ret = this.method;
+            } else if ("getPathInfo".equals(name) || "getRequestURI".equals(name)) {
+                ret = this.path;
+            } else if ("getRequestURL".equals(name)) {
+                ret = new StringBuffer("http://localhost").append(this.path);
+            } else if ("getQueryString".equals(name)) {
+                ret = this.query;
+            } else if ("getParameter".equals(name)) {
+                String value = null;
+                if (this.query != null) {
+                    for (final String param : this.query.split("&")) {
+                        if (param.startsWith(_args[0] + "=")) {
+                            value = param.substring(((String) _args[0]).length() + 1);
+                            break;
+                        }
+                    }
+                }
+                ret = value;
+            } else if ("getHeader".equals(name)) {
+                ret = this.headers.get(((String) _args[0]).toLowerCase());
+            } else if ("getHeaders".equals(name)) {
+                final String value = this.headers.get(((String) _args[0]).toLowerCase());
+                ret = Collections.enumeration((value == null)
+                                              ? Collections.<String>emptyList()
+                                              : Collections.singletonList(value));
+            } else if ("getDateHeader".equals(name)) {
+                ret = -1L;
+            } else if ("getIntHeader".equals(name)) {
+                ret = -1;
+            } else if ("getContentLength".equals(name)) {
+                final String value = this.headers.get("content-length");
+                ret = ((value == null) || !value.matches("[0-9]+")) ? -1 : Integer.parseInt(value);
+            } else if ("getInputStream".equals(name)) {
+                ret = new ServletInputStream() {
+                    @Override()
+                    public int read()
+                    {
+                        return Request.this.body.read();
+                    }
+                };
+            } else if ("getContextPath".equals(name) || "getServletPath".equals(name)) {
+                ret = "";
+            } else {
+                ret = null;
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Minimal implementation of a servlet response which stores the status,
+     * the headers and the body.
+     */
+    protected static final class Response
+        implements InvocationHandler
+    {
+        private int status = HttpServletResponse.SC_OK;
+        private final Map<String, String> headers = new HashMap<String, String>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private int consumed;
+
+        HttpServletResponse proxy()
+        {
+            return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                                new Class<?>[] {HttpServletResponse.class}, this);
+        }
+
+        public Object invoke(final Object _proxy,
+                             final Method _method,
+                             final Object[] _args)
+        {
+            final String name = _method.getName();
+            Object ret = null;
+            if ("setStatus".equals(name) || "sendError".equals(name)) {
+                this.status = (Integer) _args[0];
+            } else if ("setHeader".equals(name) || "addHeader".equals(name)) {
+                this.headers.put(((String) _args[0]).toLowerCase(), String.valueOf(_args[1]));
+            } else if ("setIntHeader".equals(name) || "setDateHeader".equals(name)) {
+                this.headers.put(((String) _args[0]).toLowerCase(), String.valueOf(_args[1]));
+            } else if ("setContentLength".equals(name)) {
+                this.headers.put("content-length", String.valueOf(_args[0]));
+            } else if ("setContentType".equals(name)) {
+                this.headers.put("content-type", (String) _args[0]);
+            } else if ("getOutputStream".equals(name)) {
+                ret = new ServletOutputStream() {
+                    @Override()
+                    public void write(final int _byte)
+                    {
+                        Response.this.body.write(_byte);
+                    }
+
+                    @Override()
+                    public void write(final byte[] _bytes,
+                                      final int _off,
+                                      final int _len)
+                    {
+                        Response.this.body.write(_bytes, _off, _len);
+                    }
+                };
+            } else if ("getWriter".equals(name)) {
+                try {
+                    ret = new PrintWriter(new OutputStreamWriter(this.body, "UTF-8"), true);
+                } catch (final UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            } else if ("containsHeader".equals(name)) {
+                ret = this.headers.containsKey(((String) _args[0]).toLowerCase());
+            } else if ("isCommitted".equals(name)) {
+                ret = false;
+            }
+            return ret;
+        }
+
+        /**
+         * @return status code of the response
+         */
+        public int getStatus()
+        {
+            return this.status;
+        }
+
+        /**
+         * @param _name     name of the header
+         * @return value of the header or <code>null</code> if not set
+         */
+        public String getHeader(final String _name)
+        {
+            return this.headers.get(_name.toLowerCase());
+        }
+
+        /**
+         * @return body of the response
+         */
+        public byte[] getBody()
+        {
+            return this.body.toByteArray();
+        }
+
+        /**
+         * @return number of bytes of the request body read by the handler
+         */
+        public int getConsumed()
+        {
+            return this.consumed;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.efaps.webdav4vfs.handler.CopyHandler;
+import org.efaps.webdav4vfs.metrics.Counter;
+import org.efaps.webdav4vfs.metrics.Metrics;
+import org.efaps.webdav4vfs.vfs.BufferPool;
+import org.efaps.webdav4vfs.vfs.FileTransfer;
+import org.efaps.webdav4vfs.vfs.VFSBackend;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the pool of copy buffers and the copies with pooled buffers,
+ * and a benchmark of the allocated bytes of copies with and without pool.
+ *
+ * @author The eFaps Team
+ */
+public class BufferPoolTest
+    extends AbstractHandlerTestCase
+{
+    private static final Log LOG = LogFactory.getLog(BufferPoolTest.class);
+
+    @Test()
+    public void testSizeClasses()
+    {
+        final BufferPool pool = new BufferPool(BufferPool.DEFAULT_BUDGET);
+        Assert.assertEquals(pool.acquire(1).length, BufferPool.MIN_SIZE);
+        Assert.assertEquals(pool.acquire(BufferPool.MIN_SIZE).length, BufferPool.MIN_SIZE);
+        Assert.assertEquals(pool.acquire(BufferPool.MIN_SIZE + 1).length, 2 * BufferPool.MIN_SIZE);
+        Assert.assertEquals(pool.acquire(3 * BufferPool.MIN_SIZE).length, 4 * BufferPool.MIN_SIZE);
+        Assert.assertEquals(pool.acquire(BufferPool.MAX_SIZE).length, BufferPool.MAX_SIZE);
+        Assert.assertEquals(pool.acquire(BufferPool.MAX_SIZE + 1).length, BufferPool.MAX_SIZE + 1);
+    }
+
+    @Test()
+    public void testReuse()
+        throws Exception
+    {
+        final Counter allocations = (Counter) Metrics.getInstance().getMetric("webdav4vfs_buffer_allocations_total");
+        final BufferPool pool = new BufferPool(1024 * 1024);
+        final byte[] first = pool.acquire(10000);
+        final byte[] second = pool.acquire(10000);
+        final long before = allocations.get();
+
+        // the first buffer is cached for the thread, the second one is
+        // kept in the central pool
+        pool.release(first);
+        pool.release(second);
+        Assert.assertEquals(pool.getPooledBytes(), second.length);
+        Assert.assertSame(pool.acquire(10000), first);
+
+        final byte[][] fromOtherThread = new byte[1][];
+        final Thread thread = new Thread() {
+            @Override()
+            public void run()
+            {
+                fromOtherThread[0] = pool.acquire(10000);
+            }
+        };
+        thread.start();
+        thread.join();
+        Assert.assertSame(fromOtherThread[0], second);
+        Assert.assertEquals(pool.getPooledBytes(), 0);
+        Assert.assertEquals(allocations.get(), before);
+
+        // foreign buffers without the size of a size class are ignored
+        pool.release(new byte[10000]);
+        pool.release(new byte[BufferPool.MAX_SIZE * 2]);
+        Assert.assertEquals(pool.getPooledBytes(), 0);
+    }
+
+    @Test()
+    public void testBudget()
+    {
+        final BufferPool pool = new BufferPool(0);
+        for (int idx = 0; idx < 10; idx++) {
+            pool.release(new byte[BufferPool.MAX_SIZE]);
+        }
+        // one buffer cached for the thread, one in the central pool
+        Assert.assertEquals(pool.getPooledBytes(), BufferPool.MAX_SIZE);
+    }
+
+    @Test()
+    public void testCopy()
+        throws Exception
+    {
+        final byte[] bytes = new byte[300000];
+        new Random(4711).nextBytes(bytes);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(FileTransfer.copy(new ByteArrayInputStream(bytes), out), bytes.length);
+        Assert.assertEquals(out.toByteArray(), bytes);
+
+        out = new ByteArrayOutputStream();
+        Assert.assertEquals(FileTransfer.copy(new ByteArrayInputStream(bytes), out, 100000), 100000);
+        Assert.assertEquals(out.size(), 100000);
+    }
+
+    @Test()
+    public void testCopyHandler()
+        throws Exception
+    {
+        final byte[] bytes = new byte[100000];
+        new Random(4711).nextBytes(bytes);
+        VFSBackend.resolveFile(this.folder + "/source/sub").createFolder();
+        createFile("source/a.bin", bytes);
+        createFile("source/sub/b.bin", "b".getBytes("UTF-8"));
+        createFile("target/sub", "file".getBytes("UTF-8"));
+
+        final Response response = service(new CopyHandler(), "COPY", this.folder + "/source", null,
+                                           "Destination", "http://localhost" + this.folder + "/target");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_NO_CONTENT);
+        Assert.assertEquals(read(this.folder + "/target/a.bin"), bytes);
+        Assert.assertEquals(read(this.folder + "/target/sub/b.bin"), "b".getBytes("UTF-8"));
+    }
+
+    /**
+     * Compares the bytes allocated by copies with
+     * <code>IOUtils.copyLarge</code> (a new buffer for each copy) and with
+     * {@link FileTransfer#copy(java.io.InputStream, java.io.OutputStream)}.
+     *
+     * @throws Exception if the benchmark failed
+     */
+    @Test()
+    public void benchmark()
+        throws Exception
+    {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            throw new SkipException("allocated bytes of a thread could not be measured");
+        }
+        final com.sun.management.ThreadMXBean threads
+            = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final byte[] bytes = new byte[16 * 1024];
+        final NullOutputStream out = new NullOutputStream();
+        final int rounds = 20000;
+
+        // warm up
+        for (int idx = 0; idx < rounds; idx++) {
+            IOUtils.copyLarge(new ByteArrayInputStream(bytes), out);
+            FileTransfer.copy(new ByteArrayInputStream(bytes), out);
+        }
+
+        final long id = Thread.currentThread().getId();
+        long start = threads.getThreadAllocatedBytes(id);
+        for (int idx = 0; idx < rounds; idx++) {
+            IOUtils.copyLarge(new ByteArrayInputStream(bytes), out);
+        }
+        final long unpooled = threads.getThreadAllocatedBytes(id) - start;
+
+        start = threads.getThreadAllocatedBytes(id);
+        for (int idx = 0; idx < rounds; idx++) {
+            FileTransfer.copy(new ByteArrayInputStream(bytes), out);
+        }
+        final long pooled = threads.getThreadAllocatedBytes(id) - start;
+
+        LOG.info(String.format("allocated bytes per copy of %d KB: unpooled %d, pooled %d",
+                               bytes.length / 1024, unpooled / rounds, pooled / rounds));
+        Assert.assertTrue(pooled * 10 < unpooled, "pooled copies allocate too much");
+    }
+
+    /**
+     * @param _path     path of a file
+     * @return content of the file
+     * @throws Exception if the file could not be read
+     */
+    private byte[] read(final String _path)
+        throws Exception
+    {
+        return IOUtils.toByteArray(VFSBackend.resolveFile(_path).getContent().getInputStream());
+    }
+}
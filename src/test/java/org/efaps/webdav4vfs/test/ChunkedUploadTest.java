@@ -0,0 +1,342 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.VFS;
+import org.efaps.webdav4vfs.handler.MoveHandler;
+import org.efaps.webdav4vfs.handler.PutHandler;
+import org.efaps.webdav4vfs.vfs.ChunkAssembly;
+import org.efaps.webdav4vfs.vfs.ContentCoordinator;
+import org.efaps.webdav4vfs.vfs.ContentDigest;
+import org.efaps.webdav4vfs.vfs.StagedFile;
+import org.efaps.webdav4vfs.vfs.Staging;
+import org.efaps.webdav4vfs.vfs.VFSBackend;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for chunked uploads assembled with a MOVE of the upload collection.
+ *
+ * @author The eFaps Team
+ */
+public class ChunkedUploadTest
+    extends AbstractHandlerTestCase
+{
+    private final PutHandler put = new PutHandler();
+
+    private final MoveHandler move = new MoveHandler();
+
+    @Test()
+    public void testParallelChunks()
+        throws Exception
+    {
+        final byte[] content = new byte[300000];
+        new Random(42).nextBytes(content);
+        final String upload = this.folder + "/upload";
+        VFSBackend.resolveFile(upload).createFolder();
+
+        // 12 chunks, so that the numeric order differs from the name order
+        final int chunkSize = content.length / 12;
+        final ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int idx = 0; idx < 12; idx++) {
+                final int number = idx + 1;
+                final byte[] chunk = Arrays.copyOfRange(content, idx * chunkSize,
+                                                        (idx == 11) ? content.length : (idx + 1) * chunkSize);
+                results.add(executor.submit(new Callable<Integer>() {
+                    public Integer call()
+                        throws Exception
+                    {
+                        return service(ChunkedUploadTest.this.put, "PUT", upload + "/" + number, chunk).getStatus();
+                    }
+                }));
+            }
+            for (final Future<Integer> result : results) {
+                Assert.assertEquals(result.get().intValue(), HttpServletResponse.SC_CREATED);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        final Response response = service(this.move, "MOVE", upload + "/" + ChunkAssembly.ASSEMBLE_NAME, null,
+                                          "Destination", "http://localhost" + this.folder + "/large.bin",
+                                          "Upload-Length", String.valueOf(content.length));
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_CREATED);
+        Assert.assertTrue(Arrays.equals(read(this.folder + "/large.bin"), content));
+        Assert.assertFalse(VFSBackend.resolveFile(upload).exists(), "upload collection not deleted");
+        Assert.assertEquals(VFSBackend.resolveFile(this.folder).getChildren().length, 1, "staging file left");
+    }
+
+    @Test()
+    public void testReplaceExisting()
+        throws Exception
+    {
+        final String path = createFile("file.txt", "existing".getBytes("UTF-8"));
+        final String upload = this.folder + "/upload";
+        VFSBackend.resolveFile(upload).createFolder();
+        service(this.put, "PUT", upload + "/2", "content".getBytes("UTF-8"));
+        service(this.put, "PUT", upload + "/1", "new ".getBytes("UTF-8"));
+        final Response response = service(this.move, "MOVE", upload + "/" + ChunkAssembly.ASSEMBLE_NAME, null,
+                                          "Destination", "http://localhost" + path);
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_NO_CONTENT);
+        Assert.assertEquals(new String(read(path), "UTF-8"), "new content");
+    }
+
+    @Test()
+    public void testLockedTarget()
+        throws Exception
+    {
+        final String path = createFile("file.txt", "existing".getBytes("UTF-8"));
+        final String upload = this.folder + "/upload";
+        VFSBackend.resolveFile(upload).createFolder();
+        service(this.put, "PUT", upload + "/1", "new".getBytes("UTF-8"));
+        ContentCoordinator.setInstance(new ContentCoordinator(0));
+        final FileObject target = VFSBackend.resolveFile(path);
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread writer = new Thread() {
+            @Override()
+            public void run()
+            {
+                try {
+                    final ContentCoordinator.HeldLock lock = ContentCoordinator.getInstance().acquireWrite(target);
+                    locked.countDown();
+                    done.await();
+                    lock.unlock();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        writer.start();
+        locked.await();
+        try {
+            final Response response = service(this.move, "MOVE", upload + "/" + ChunkAssembly.ASSEMBLE_NAME, null,
+                                              "Destination", "http://localhost" + path);
+            Assert.assertEquals(response.getStatus(), 423);
+        } finally {
+            ContentCoordinator.setInstance(new ContentCoordinator(ContentCoordinator.DEFAULT_TIMEOUT));
+            done.countDown();
+            writer.join();
+        }
+        Assert.assertEquals(new String(read(path), "UTF-8"), "existing");
+        Assert.assertTrue(VFSBackend.resolveFile(upload + "/1").exists());
+    }
+
+    @Test()
+    public void testChunkAddedWhileAssembled()
+        throws Exception
+    {
+        final String upload = this.folder + "/upload";
+        final FileObject collection = VFSBackend.resolveFile(upload);
+        collection.createFolder();
+        service(this.put, "PUT", upload + "/1", "abc".getBytes("UTF-8"));
+        // a running PUT of a chunk holds the read lock of the collection
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread writer = new Thread() {
+            @Override()
+            public void run()
+            {
+                try {
+                    final ContentCoordinator.HeldLock lock = ContentCoordinator.getInstance().acquireRead(collection);
+                    locked.countDown();
+                    done.await();
+                    lock.unlock();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        writer.start();
+        locked.await();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Response> move = executor.submit(new Callable<Response>() {
+                public Response call()
+                    throws Exception
+                {
+                    return service(ChunkedUploadTest.this.move, "MOVE", upload + "/" + ChunkAssembly.ASSEMBLE_NAME,
+                                   null, "Destination", "http://localhost" + ChunkedUploadTest.this.folder + "/file.txt");
+                }
+            });
+            Thread.sleep(300);
+            createFile("upload/2", "def".getBytes("UTF-8"));
+            done.countDown();
+            Assert.assertEquals(move.get().getStatus(), HttpServletResponse.SC_CONFLICT);
+        } finally {
+            done.countDown();
+            writer.join();
+            executor.shutdown();
+        }
+        Assert.assertFalse(VFSBackend.resolveFile(this.folder + "/file.txt").exists());
+        Assert.assertTrue(VFSBackend.resolveFile(upload + "/2").exists(), "added chunk deleted");
+    }
+
+    @Test()
+    public void testInvalidChunk()
+        throws Exception
+    {
+        final String upload = this.folder + "/upload";
+        VFSBackend.resolveFile(upload).createFolder();
+        service(this.put, "PUT", upload + "/1", "abc".getBytes("UTF-8"));
+        service(this.put, "PUT", upload + "/chunk", "def".getBytes("UTF-8"));
+        final Response response = service(this.move, "MOVE", upload + "/" + ChunkAssembly.ASSEMBLE_NAME, null,
+                                          "Destination", "http://localhost" + this.folder + "/file.txt");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_BAD_REQUEST);
+        Assert.assertFalse(VFSBackend.resolveFile(this.folder + "/file.txt").exists());
+        Assert.assertTrue(VFSBackend.resolveFile(upload).exists());
+    }
+
+    @Test()
+    public void testMissingChunk()
+        throws Exception
+    {
+        final String upload = this.folder + "/upload";
+        VFSBackend.resolveFile(upload).createFolder();
+        service(this.put, "PUT", upload + "/1", "abc".getBytes("UTF-8"));
+        service(this.put, "PUT", upload + "/3", "ghi".getBytes("UTF-8"));
+        final Response response = service(this.move, "MOVE", upload + "/" + ChunkAssembly.ASSEMBLE_NAME, null,
+                                          "Destination", "http://localhost" + this.folder + "/file.txt",
+                                          "Upload-Length", "9");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_CONFLICT);
+        Assert.assertFalse(VFSBackend.resolveFile(this.folder + "/file.txt").exists());
+        Assert.assertTrue(VFSBackend.resolveFile(upload + "/3").exists());
+    }
+
+    /**
+     * A gap in the numbers of the chunks is detected also without the
+     * upload length.
+     *
+     * @throws Exception on failure
+     */
+    @Test()
+    public void testGapWithoutUploadLength()
+        throws Exception
+    {
+        final String upload = this.folder + "/upload";
+        VFSBackend.resolveFile(upload).createFolder();
+        service(this.put, "PUT", upload + "/1", "abc".getBytes("UTF-8"));
+        service(this.put, "PUT", upload + "/2", "def".getBytes("UTF-8"));
+        service(this.put, "PUT", upload + "/4", "jkl".getBytes("UTF-8"));
+        final Response response = service(this.move, "MOVE", upload + "/" + ChunkAssembly.ASSEMBLE_NAME, null,
+                                          "Destination", "http://localhost" + this.folder + "/file.txt");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_CONFLICT);
+        Assert.assertFalse(VFSBackend.resolveFile(this.folder + "/file.txt").exists());
+        Assert.assertEquals(VFSBackend.resolveFile(upload).getChildren().length, 3);
+    }
+
+    @Test()
+    public void testDuplicateChunk()
+        throws Exception
+    {
+        final String upload = this.folder + "/upload";
+        VFSBackend.resolveFile(upload).createFolder();
+        service(this.put, "PUT", upload + "/1", "abc".getBytes("UTF-8"));
+        service(this.put, "PUT", upload + "/01", "def".getBytes("UTF-8"));
+        final Response response = service(this.move, "MOVE", upload + "/" + ChunkAssembly.ASSEMBLE_NAME, null,
+                                          "Destination", "http://localhost" + this.folder + "/file.txt");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_BAD_REQUEST);
+        Assert.assertFalse(VFSBackend.resolveFile(this.folder + "/file.txt").exists());
+    }
+
+    /**
+     * Local chunks are concatenated into a local staging file by the
+     * operating system.
+     *
+     * @throws Exception on failure
+     */
+    @Test()
+    public void testLocalConcat()
+        throws Exception
+    {
+        final File dir = new File(System.getProperty("java.io.tmpdir"), "webdav4vfs-chunks-" + System.nanoTime());
+        dir.mkdirs();
+        try {
+            final List<FileObject> chunks = new ArrayList<FileObject>();
+            final StringBuilder expected = new StringBuilder();
+            for (int idx = 1; idx <= 3; idx++) {
+                final File chunk = new File(dir, String.valueOf(idx));
+                final OutputStream out = new FileOutputStream(chunk);
+                try {
+                    out.write(("chunk " + idx + ";").getBytes("UTF-8"));
+                } finally {
+                    out.close();
+                }
+                expected.append("chunk ").append(idx).append(';');
+                chunks.add(VFS.getManager().resolveFile(chunk.getAbsolutePath()));
+            }
+            final FileObject target = VFS.getManager().resolveFile(new File(dir, "target").getAbsolutePath());
+            final StagedFile stagedFile = Staging.getInstance().create(target);
+            try {
+                Assert.assertEquals(stagedFile.write(chunks), expected.length());
+                stagedFile.commit();
+            } finally {
+                stagedFile.discard();
+            }
+            Assert.assertEquals(FileUtils.readFileToString(new File(dir, "target"), "UTF-8"), expected.toString());
+            Assert.assertEquals(ContentDigest.getInstance().getDigest(target).getETag(),
+                                new String(Hex.encodeHex(MessageDigest.getInstance("SHA-256").digest(
+                                        expected.toString().getBytes("UTF-8")))),
+                                "digest not computed while concatenated");
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * @param _path     path of a file
+     * @return content of the file
+     * @throws Exception if the file could not be read
+     */
+    private byte[] read(final String _path)
+        throws Exception
+    {
+        final InputStream in = VFSBackend.resolveFile(_path).getContent().getInputStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.vfs.FileObject;
+import org.efaps.webdav4vfs.lock.ClusterLockManager;
+import org.efaps.webdav4vfs.lock.InMemorySharedLockRegistry;
+import org.efaps.webdav4vfs.lock.Lock;
+import org.efaps.webdav4vfs.lock.LockConflictException;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Multi-node tests for the cluster lock manager. Several lock managers
+ * (one per simulated servlet node) share one in-memory registry with a small
+ * simulated latency.
+ *
+ * @author The eFaps Team
+ */
+public class ClusterLockManagerTest
+    extends AbstractDavTestCase
+{
+    private static final Log LOG = LogFactory.getLog(ClusterLockManagerTest.class);
+
+    private static final String OWNER_STR = "testowner";
+
+    private static final int NODES = 3;
+
+    /**
+     * Simulated latency of the registry in milliseconds.
+     */
+    private static final long LATENCY = 1;
+
+    private final List<ClusterLockManager> nodes = new ArrayList<ClusterLockManager>();
+
+    @BeforeMethod()
+    public void startNodes()
+        throws Exception
+    {
+        final InMemorySharedLockRegistry registry = new InMemorySharedLockRegistry(LATENCY);
+        for (int idx = 0; idx < NODES; idx++) {
+            this.nodes.add(new ClusterLockManager(registry, aFile.getParent()));
+        }
+    }
+
+    @AfterMethod()
+    public void stopNodes()
+    {
+        long roundTrips = 0;
+        long nanos = 0;
+        for (final ClusterLockManager node : this.nodes) {
+            roundTrips += node.getRoundTrips();
+            nanos += node.getRoundTrips() * node.getAverageRoundTripNanos();
+            node.close();
+        }
+        if (roundTrips > 0) {
+            LOG.info(String.format("%d lock registry round trips, average %d us",
+                                   roundTrips, nanos / roundTrips / 1000));
+        }
+        this.nodes.clear();
+    }
+
+    @Test()
+    public void testLockIsVisibleOnAllNodes()
+        throws Exception
+    {
+        final Lock lock = new Lock(aFile, Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, 0, 3600);
+        this.nodes.get(0).acquireLock(lock);
+
+        final List<Lock> locks = this.nodes.get(1).discoverLock(aFile);
+        Assert.assertNotNull(locks, "lock of other node not discovered");
+        Assert.assertEquals(locks.get(0).getToken(), lock.getToken());
+        Assert.assertNotNull(this.nodes.get(2).findLock(aFile, lock.getToken()));
+
+        try {
+            this.nodes.get(2).acquireLock(new Lock(aFile, Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, 0, 3600));
+            Assert.fail("lock of other node was ignored");
+        } catch (final LockConflictException e) {
+            Assert.assertEquals(e.getLocks().get(0).getToken(), lock.getToken());
+        }
+    }
+
+    @Test()
+    public void testNearCacheIsInvalidatedOnRelease()
+        throws Exception
+    {
+        final ClusterLockManager node0 = this.nodes.get(0);
+        final ClusterLockManager node1 = this.nodes.get(1);
+        final Lock lock = new Lock(aFile, Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, 0, 3600);
+        node0.acquireLock(lock);
+        Assert.assertNotNull(node1.discoverLock(aFile));
+
+        // second discover is answered by the near-cache
+        final long roundTrips = node1.getRoundTrips();
+        Assert.assertNotNull(node1.discoverLock(aFile));
+        Assert.assertEquals(node1.getRoundTrips(), roundTrips, "near-cache not used");
+
+        Assert.assertTrue(node0.releaseLock(aFile, lock.getToken()));
+        Assert.assertNull(node1.discoverLock(aFile), "released lock still cached");
+        node1.acquireLock(new Lock(aFile, Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, 0, 3600));
+    }
+
+    /**
+     * A file object without locks is not cached, so that the lock of another
+     * node is discovered even if the change notification is lost.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testMissingLockIsNotCached()
+        throws Exception
+    {
+        final ClusterLockManager node1 = this.nodes.get(1);
+        // the listener is removed, so that all notifications are lost
+        node1.close();
+        Assert.assertNull(node1.discoverLock(aFile));
+
+        final Lock lock = new Lock(aFile, Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, 0, 3600);
+        this.nodes.get(0).acquireLock(lock);
+        final List<Lock> locks = node1.discoverLock(aFile);
+        Assert.assertNotNull(locks, "missing lock was cached");
+        Assert.assertEquals(locks.get(0).getToken(), lock.getToken());
+    }
+
+    @Test()
+    public void testParentLockInvalidatesCachedChildren()
+        throws Exception
+    {
+        final FileObject child = aDirectory.resolveFile("child.txt");
+        child.createFile();
+        Assert.assertNull(this.nodes.get(1).discoverLock(child));
+
+        final Lock lock = new Lock(aDirectory, Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, Integer.MAX_VALUE, 3600);
+        this.nodes.get(0).acquireLock(lock);
+        final List<Lock> locks = this.nodes.get(1).discoverLock(child);
+        Assert.assertNotNull(locks, "cached child ignores lock of parent");
+        Assert.assertEquals(locks.get(0).getToken(), lock.getToken());
+    }
+
+    @Test()
+    public void testRemoveLocksOfSubtreeOnAllNodes()
+        throws Exception
+    {
+        final FileObject child = aDirectory.resolveFile("child.txt");
+        child.createFile();
+        this.nodes.get(0).acquireLock(new Lock(child, Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, 0, 3600));
+        this.nodes.get(0).acquireLock(new Lock(aFile, Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, 0, 3600));
+        Assert.assertNotNull(this.nodes.get(1).discoverLock(child));
+
+        Assert.assertEquals(this.nodes.get(2).removeLocks(aDirectory), 1);
+        Assert.assertNull(this.nodes.get(1).discoverLock(child), "removed lock still cached");
+        Assert.assertNotNull(this.nodes.get(1).discoverLock(aFile), "lock outside the subtree removed");
+    }
+
+    @Test()
+    public void testRefreshOnOtherNode()
+        throws Exception
+    {
+        final Lock lock = new Lock(aFile, Lock.WRITE, Lock.SHARED, OWNER_STR, 0, 60);
+        this.nodes.get(0).acquireLock(lock);
+        final Lock other = this.nodes.get(1).findLock(aFile, lock.getToken());
+        this.nodes.get(1).refreshLock(other, 3600);
+
+        final Lock refreshed = this.nodes.get(0).findLock(aFile, lock.getToken());
+        Assert.assertEquals(refreshed.getTimeout(), "Second-3600");
+        Assert.assertTrue(refreshed.getExpires() > lock.getExpires(), "refresh not seen by other node");
+    }
+
+    /**
+     * Threads on all nodes acquire and release exclusive locks on a small set
+     * of files. At no time two threads are allowed to hold an exclusive lock
+     * on the same file.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testExclusiveLocksAreMutuallyExclusiveOnAllNodes()
+        throws Exception
+    {
+        final FileObject[] files = new FileObject[2];
+        final AtomicInteger[] holders = new AtomicInteger[files.length];
+        for (int idx = 0; idx < files.length; idx++) {
+            files[idx] = aDirectory.resolveFile("file" + idx + ".txt");
+            files[idx].createFile();
+            holders[idx] = new AtomicInteger();
+        }
+        final AtomicInteger acquired = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int idx = 0; idx < NODES * 2; idx++) {
+            final int thread = idx;
+            final ClusterLockManager node = this.nodes.get(idx % NODES);
+            threads.add(new Thread() {
+                @Override()
+                public void run()
+                {
+                    final Random random = new Random(thread);
+                    try {
+                        for (int iter = 0; iter < 100; iter++) {
+                            final int fileIdx = random.nextInt(files.length);
+                            final Lock lock = new Lock(files[fileIdx], Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, 0, 3600);
+                            try {
+                                node.acquireLock(lock);
+                            } catch (final LockConflictException e) {
+                                continue;
+                            }
+                            acquired.incrementAndGet();
+                            Assert.assertEquals(holders[fileIdx].incrementAndGet(), 1, "exclusive lock held twice");
+                            holders[fileIdx].decrementAndGet();
+                            Assert.assertTrue(node.releaseLock(files[fileIdx], lock.getToken()));
+                        }
+                    } catch (final Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        Assert.assertTrue(acquired.get() > 0, "no lock was acquired at all");
+        for (final ClusterLockManager node : this.nodes) {
+            Assert.assertTrue(node.getAverageRoundTripNanos() > 0, "round trip latency not measured");
+            for (final FileObject file : files) {
+                Assert.assertNull(node.discoverLock(file), "phantom lock found for " + file);
+            }
+        }
+    }
+}
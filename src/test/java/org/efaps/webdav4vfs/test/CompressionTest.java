@@ -0,0 +1,207 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import java.io.ByteArrayInputStream;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.efaps.webdav4vfs.handler.Compression;
+import org.efaps.webdav4vfs.handler.GetHandler;
+import org.efaps.webdav4vfs.handler.HeadHandler;
+import org.efaps.webdav4vfs.metrics.Counter;
+import org.efaps.webdav4vfs.metrics.Metrics;
+import org.efaps.webdav4vfs.util.Util;
+import org.efaps.webdav4vfs.vfs.ContentCache;
+import org.efaps.webdav4vfs.vfs.VFSBackend;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the gzip compression of GET responses.
+ *
+ * @author The eFaps Team
+ */
+public class CompressionTest
+    extends AbstractHandlerTestCase
+{
+    private final GetHandler handler = new GetHandler();
+
+    private byte[] text;
+
+    private String path;
+
+    @BeforeMethod()
+    public void setUpFile()
+        throws Exception
+    {
+        final StringBuilder builder = new StringBuilder();
+        for (int idx = 0; idx < 500; idx++) {
+            builder.append("<entry id=\"").append(idx).append("\">some text</entry>\n");
+        }
+        this.text = builder.toString().getBytes("UTF-8");
+        this.path = uploadFile("content.txt", this.text);
+    }
+
+    @AfterMethod()
+    public void resetCompression()
+    {
+        Compression.setInstance(new Compression(Compression.DEFAULT_LEVEL, Compression.DEFAULT_MIN_SIZE,
+                                                Compression.DEFAULT_CACHE_SIZE));
+        ContentCache.setInstance(new ContentCache(0, 0));
+    }
+
+    @Test()
+    public void testCompressed()
+        throws Exception
+    {
+        Compression.getInstance();
+        final Counter cached = (Counter) Metrics.getInstance().getMetric("webdav4vfs_compression_cache_hits_total");
+        final Response response = service(this.handler, "GET", this.path, null, "Accept-Encoding", "deflate, gzip");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+        Assert.assertEquals(response.getHeader("Content-Encoding"), "gzip");
+        Assert.assertEquals(response.getHeader("Vary"), "Accept-Encoding");
+        Assert.assertEquals(response.getHeader("Content-Length"), String.valueOf(response.getBody().length));
+        // the digests of the uncompressed content must not be sent
+        Assert.assertNull(response.getHeader("Digest"));
+        Assert.assertNull(response.getHeader("Content-MD5"));
+        Assert.assertTrue(response.getBody().length < this.text.length / 4, "not compressed");
+        Assert.assertEquals(gunzip(response.getBody()), this.text);
+        final String etag = Util.getETag(VFSBackend.resolveFile(this.path));
+        Assert.assertEquals(response.getHeader("ETag"), etag + "-gzip");
+
+        // the second request is answered from the cache without opening
+        // the content (which would be counted by the content cache)
+        ContentCache.setInstance(new ContentCache(1024 * 1024, 64 * 1024));
+        final Counter hits = (Counter) Metrics.getInstance().getMetric("webdav4vfs_content_cache_hits_total");
+        final Counter misses = (Counter) Metrics.getInstance().getMetric("webdav4vfs_content_cache_misses_total");
+        final long cachedBefore = cached.get();
+        final long readsBefore = hits.get() + misses.get();
+        final Response second = service(this.handler, "GET", this.path, null, "Accept-Encoding", "gzip");
+        Assert.assertEquals(second.getBody(), response.getBody());
+        Assert.assertEquals(cached.get(), cachedBefore + 1);
+        Assert.assertEquals(hits.get() + misses.get(), readsBefore, "content opened for a cached variant");
+    }
+
+    @Test()
+    public void testNegotiation()
+        throws Exception
+    {
+        Response response = service(this.handler, "GET", this.path, null);
+        Assert.assertNull(response.getHeader("Content-Encoding"));
+        Assert.assertEquals(response.getHeader("Vary"), "Accept-Encoding");
+        Assert.assertEquals(response.getBody(), this.text);
+
+        response = service(this.handler, "GET", this.path, null, "Accept-Encoding", "gzip;q=0, identity");
+        Assert.assertNull(response.getHeader("Content-Encoding"));
+        response = service(this.handler, "GET", this.path, null, "Accept-Encoding", "gzip;q=0, *");
+        Assert.assertNull(response.getHeader("Content-Encoding"));
+        response = service(this.handler, "GET", this.path, null, "Accept-Encoding", "*;q=0.5");
+        Assert.assertEquals(response.getHeader("Content-Encoding"), "gzip");
+    }
+
+    @Test()
+    public void testNotCompressible()
+        throws Exception
+    {
+        final String binary = createFile("content.bin", this.text);
+        Response response = service(this.handler, "GET", binary, null, "Accept-Encoding", "gzip");
+        Assert.assertNull(response.getHeader("Content-Encoding"));
+        Assert.assertNull(response.getHeader("Vary"));
+
+        final String small = createFile("small.txt", "small".getBytes("UTF-8"));
+        response = service(this.handler, "GET", small, null, "Accept-Encoding", "gzip");
+        Assert.assertNull(response.getHeader("Content-Encoding"));
+
+        Compression.setInstance(new Compression(0, 0, 0));
+        response = service(this.handler, "GET", this.path, null, "Accept-Encoding", "gzip");
+        Assert.assertNull(response.getHeader("Content-Encoding"));
+        Assert.assertEquals(response.getBody(), this.text);
+    }
+
+    @Test()
+    public void testRangeNotCompressed()
+        throws Exception
+    {
+        final Response response = service(this.handler, "GET", this.path, null,
+                                          "Accept-Encoding", "gzip", "Range", "bytes=0-9");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_PARTIAL_CONTENT);
+        Assert.assertNull(response.getHeader("Content-Encoding"));
+        Assert.assertEquals(response.getBody().length, 10);
+    }
+
+    @Test()
+    public void testConditionalVariant()
+        throws Exception
+    {
+        final String etag = Util.getETag(VFSBackend.resolveFile(this.path));
+        Response response = service(this.handler, "GET", this.path, null,
+                                    "Accept-Encoding", "gzip", "If-None-Match", "\"" + etag + "-gzip\"");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_NOT_MODIFIED);
+        Assert.assertEquals(response.getHeader("ETag"), etag + "-gzip");
+
+        // the uncompressed variant has another entity tag
+        response = service(this.handler, "GET", this.path, null,
+                           "Accept-Encoding", "gzip", "If-None-Match", "\"" + etag + "\"");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+        response = service(this.handler, "GET", this.path, null, "If-None-Match", "\"" + etag + "\"");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_NOT_MODIFIED);
+    }
+
+    @Test()
+    public void testHead()
+        throws Exception
+    {
+        final Response response = service(new HeadHandler(), "HEAD", this.path, null, "Accept-Encoding", "gzip");
+        Assert.assertEquals(response.getHeader("Content-Encoding"), "gzip");
+        Assert.assertEquals(response.getHeader("Vary"), "Accept-Encoding");
+        Assert.assertNull(response.getHeader("Content-Length"));
+    }
+
+    @Test()
+    public void testCacheBudget()
+        throws Exception
+    {
+        final Compression compression = new Compression(Compression.DEFAULT_LEVEL, 100, 1000);
+        Compression.setInstance(compression);
+        for (int idx = 0; idx < 20; idx++) {
+            final String file = createFile("file" + idx + ".txt", this.text);
+            final Response response = service(this.handler, "GET", file, null, "Accept-Encoding", "gzip");
+            Assert.assertEquals(gunzip(response.getBody()), this.text);
+            Assert.assertTrue(compression.getCachedBytes() <= 1000, "budget exceeded");
+        }
+    }
+
+    /**
+     * @param _bytes    gzip compressed bytes
+     * @return uncompressed bytes
+     * @throws Exception if the bytes could not be uncompressed
+     */
+    private byte[] gunzip(final byte[] _bytes)
+        throws Exception
+    {
+        return IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(_bytes)));
+    }
+}
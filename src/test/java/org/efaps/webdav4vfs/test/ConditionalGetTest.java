@@ -0,0 +1,162 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.efaps.webdav4vfs.handler.GetHandler;
+import org.efaps.webdav4vfs.handler.HeadHandler;
+import org.efaps.webdav4vfs.metrics.Counter;
+import org.efaps.webdav4vfs.metrics.Gauge;
+import org.efaps.webdav4vfs.metrics.Metrics;
+import org.efaps.webdav4vfs.util.Util;
+import org.efaps.webdav4vfs.vfs.VFSBackend;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for conditional GET and HEAD requests.
+ *
+ * @author The eFaps Team
+ */
+public class ConditionalGetTest
+    extends AbstractHandlerTestCase
+{
+    private final GetHandler getHandler = new GetHandler();
+
+    private final HeadHandler headHandler = new HeadHandler();
+
+    private String path;
+
+    private String etag;
+
+    private long lastModified;
+
+    @BeforeMethod()
+    public void setUpFile()
+        throws Exception
+    {
+        this.path = uploadFile("content.txt", "some content".getBytes("UTF-8"));
+        this.etag = Util.getETag(VFSBackend.resolveFile(this.path));
+        this.lastModified = VFSBackend.resolveFile(this.path).getContent().getLastModifiedTime();
+    }
+
+    @Test()
+    public void testIfNoneMatch()
+        throws Exception
+    {
+        Response response = service(this.getHandler, "GET", this.path, null, "If-None-Match", "\"" + this.etag + "\"");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_NOT_MODIFIED);
+        Assert.assertEquals(response.getBody().length, 0);
+        Assert.assertEquals(response.getHeader("ETag"), this.etag);
+
+        // weak comparison, unquoted entity tag and lists
+        response = service(this.getHandler, "GET", this.path, null, "If-None-Match", "W/\"" + this.etag + "\"");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_NOT_MODIFIED);
+        response = service(this.getHandler, "GET", this.path, null, "If-None-Match", this.etag);
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_NOT_MODIFIED);
+        response = service(this.getHandler, "GET", this.path, null, "If-None-Match", "\"a\", \"" + this.etag + "\"");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_NOT_MODIFIED);
+        response = service(this.getHandler, "GET", this.path, null, "If-None-Match", "*");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_NOT_MODIFIED);
+
+        response = service(this.getHandler, "GET", this.path, null, "If-None-Match", "\"other\"");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+        Assert.assertEquals(new String(response.getBody(), "UTF-8"), "some content");
+    }
+
+    @Test()
+    public void testIfModifiedSince()
+        throws Exception
+    {
+        Response response = service(this.getHandler, "GET", this.path, null,
+                                    "If-Modified-Since", Util.getDateString(this.lastModified));
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_NOT_MODIFIED);
+
+        response = service(this.getHandler, "GET", this.path, null,
+                           "If-Modified-Since", Util.getDateString(this.lastModified - 10000));
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+
+        // If-None-Match has precedence
+        response = service(this.getHandler, "GET", this.path, null,
+                           "If-None-Match", "\"other\"",
+                           "If-Modified-Since", Util.getDateString(this.lastModified));
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+
+        // invalid dates are ignored
+        response = service(this.getHandler, "GET", this.path, null, "If-Modified-Since", "yesterday");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+    }
+
+    @Test()
+    public void testIfMatchAndIfUnmodifiedSince()
+        throws Exception
+    {
+        Response response = service(this.getHandler, "GET", this.path, null, "If-Match", "\"other\"");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_PRECONDITION_FAILED);
+        response = service(this.getHandler, "GET", this.path, null, "If-Match", "W/\"" + this.etag + "\"");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_PRECONDITION_FAILED,
+                            "weak entity tags never match strongly");
+        response = service(this.getHandler, "GET", this.path, null, "If-Match", "\"" + this.etag + "\"");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+
+        response = service(this.getHandler, "GET", this.path, null,
+                           "If-Unmodified-Since", Util.getDateString(this.lastModified - 10000));
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_PRECONDITION_FAILED);
+        response = service(this.getHandler, "GET", this.path, null,
+                           "If-Unmodified-Since", Util.getDateString(this.lastModified));
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+    }
+
+    @Test()
+    public void testHead()
+        throws Exception
+    {
+        Response response = service(this.headHandler, "HEAD", this.path, null, "If-None-Match", this.etag);
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_NOT_MODIFIED);
+        response = service(this.headHandler, "HEAD", this.path, null, "If-Match", "\"other\"");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_PRECONDITION_FAILED);
+        response = service(this.headHandler, "HEAD", this.path, null);
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+    }
+
+    @Test()
+    public void testMetrics()
+        throws Exception
+    {
+        service(this.getHandler, "GET", this.path, null, "If-None-Match", this.etag);
+        final Counter conditional = (Counter) Metrics.getInstance().getMetric(
+                "webdav4vfs_http_conditional_requests_total");
+        final Counter notModified = (Counter) Metrics.getInstance().getMetric("webdav4vfs_http_not_modified_total");
+        final long conditionalBefore = conditional.get();
+        final long notModifiedBefore = notModified.get();
+
+        service(this.getHandler, "GET", this.path, null, "If-None-Match", this.etag);
+        service(this.getHandler, "GET", this.path, null, "If-None-Match", "\"other\"");
+        service(this.getHandler, "GET", this.path, null);
+        Assert.assertEquals(conditional.get(), conditionalBefore + 2);
+        Assert.assertEquals(notModified.get(), notModifiedBefore + 1);
+
+        final double ratio = ((Gauge) Metrics.getInstance().getMetric("webdav4vfs_http_not_modified_ratio")).getValue();
+        Assert.assertEquals(ratio, (double) notModified.get() / conditional.get(), 0.0001);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.vfs.FileObject;
+import org.efaps.webdav4vfs.handler.DeleteHandler;
+import org.efaps.webdav4vfs.handler.GetHandler;
+import org.efaps.webdav4vfs.handler.PutHandler;
+import org.efaps.webdav4vfs.metrics.Counter;
+import org.efaps.webdav4vfs.metrics.Metrics;
+import org.efaps.webdav4vfs.vfs.ContentCache;
+import org.efaps.webdav4vfs.vfs.VFSBackend;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the off-heap content cache.
+ *
+ * @author The eFaps Team
+ */
+public class ContentCacheTest
+    extends AbstractHandlerTestCase
+{
+    private ContentCache cache;
+
+    @AfterMethod()
+    public void disableCache()
+    {
+        ContentCache.setInstance(new ContentCache(0, 0));
+    }
+
+    @Test()
+    public void testHitAndMiss()
+        throws Exception
+    {
+        this.cache = new ContentCache(1024 * 1024, 64 * 1024);
+        final FileObject file = VFSBackend.resolveFile(createFile("a.txt", bytes(10000, 1)));
+        final Counter hits = (Counter) Metrics.getInstance().getMetric("webdav4vfs_content_cache_hits_total");
+        final Counter misses = (Counter) Metrics.getInstance().getMetric("webdav4vfs_content_cache_misses_total");
+        final long hitsBefore = hits.get();
+        final long missesBefore = misses.get();
+
+        Assert.assertEquals(read(file), bytes(10000, 1));
+        Assert.assertEquals(read(file), bytes(10000, 1));
+        Assert.assertEquals(read(file), bytes(10000, 1));
+        Assert.assertEquals(hits.get(), hitsBefore + 2);
+        Assert.assertEquals(misses.get(), missesBefore + 1);
+        Assert.assertEquals(this.cache.size(), 1);
+        Assert.assertEquals(this.cache.getUsedBytes(), 3 * 4096);
+    }
+
+    @Test()
+    public void testLargeFileNotCached()
+        throws Exception
+    {
+        this.cache = new ContentCache(1024 * 1024, 1000);
+        final FileObject file = VFSBackend.resolveFile(createFile("a.txt", bytes(1001, 1)));
+        Assert.assertEquals(read(file), bytes(1001, 1));
+        Assert.assertEquals(this.cache.size(), 0);
+    }
+
+    @Test()
+    public void testChangedContentIsReread()
+        throws Exception
+    {
+        this.cache = new ContentCache(1024 * 1024, 64 * 1024);
+        final FileObject file = VFSBackend.resolveFile(createFile("a.txt", bytes(100, 1)));
+        Assert.assertEquals(read(file), bytes(100, 1));
+        createFile("a.txt", bytes(200, 2));
+        Assert.assertEquals(read(file), bytes(200, 2));
+        Assert.assertEquals(this.cache.size(), 1);
+    }
+
+    @Test()
+    public void testBudget()
+        throws Exception
+    {
+        this.cache = new ContentCache(16 * 4096, 64 * 1024);
+        for (int idx = 0; idx < 40; idx++) {
+            final FileObject file = VFSBackend.resolveFile(createFile("f" + idx + ".txt", bytes(4000, idx)));
+            Assert.assertEquals(read(file), bytes(4000, idx));
+            Assert.assertTrue(this.cache.getUsedBytes() <= 16 * 4096, "budget exceeded");
+        }
+        Assert.assertEquals(this.cache.size(), 16);
+    }
+
+    /**
+     * A file read twice is protected and survives a scan over many other
+     * files.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testScanResistance()
+        throws Exception
+    {
+        this.cache = new ContentCache(16 * 4096, 64 * 1024);
+        final FileObject hot = VFSBackend.resolveFile(createFile("hot.txt", bytes(4000, 7)));
+        read(hot);
+        read(hot);
+        for (int idx = 0; idx < 100; idx++) {
+            read(VFSBackend.resolveFile(createFile("f" + idx + ".txt", bytes(4000, idx))));
+        }
+        final Counter hits = (Counter) Metrics.getInstance().getMetric("webdav4vfs_content_cache_hits_total");
+        final long hitsBefore = hits.get();
+        Assert.assertEquals(read(hot), bytes(4000, 7));
+        Assert.assertEquals(hits.get(), hitsBefore + 1);
+    }
+
+    /**
+     * The chunks of an evicted content are not reused while the content is
+     * still read.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testEvictionWhileReading()
+        throws Exception
+    {
+        this.cache = new ContentCache(4 * 4096, 64 * 1024);
+        final FileObject file = VFSBackend.resolveFile(createFile("a.txt", bytes(8000, 1)));
+        read(file);
+        final InputStream in = this.cache.getInputStream(file.getContent());
+        this.cache.invalidate(file);
+        for (int idx = 0; idx < 10; idx++) {
+            read(VFSBackend.resolveFile(createFile("f" + idx + ".txt", bytes(4000, idx + 10))));
+        }
+        Assert.assertEquals(IOUtils.toByteArray(in), bytes(8000, 1));
+        in.close();
+        Assert.assertTrue(this.cache.getUsedBytes() <= 4 * 4096, "budget exceeded");
+    }
+
+    @Test()
+    public void testInvalidationThroughHandlers()
+        throws Exception
+    {
+        this.cache = new ContentCache(1024 * 1024, 64 * 1024);
+        ContentCache.setInstance(this.cache);
+        final String path = createFile("sub/a.txt", bytes(100, 1));
+        createFile("sub/b.txt", bytes(100, 2));
+
+        Assert.assertEquals(service(new GetHandler(), "GET", path, null).getBody(), bytes(100, 1));
+        service(new GetHandler(), "GET", this.folder + "/sub/b.txt", null);
+        Assert.assertEquals(this.cache.size(), 2);
+
+        service(new PutHandler(), "PUT", path, bytes(100, 3));
+        Assert.assertEquals(this.cache.size(), 1);
+        Assert.assertEquals(service(new GetHandler(), "GET", path, null).getBody(), bytes(100, 3));
+        Assert.assertEquals(this.cache.size(), 2);
+
+        service(new DeleteHandler(), "DELETE", this.folder + "/sub", null);
+        Assert.assertEquals(this.cache.size(), 0);
+        Assert.assertEquals(this.cache.getUsedBytes(), 0);
+    }
+
+    /**
+     * @param _file     file to read
+     * @return content read through the cache
+     * @throws Exception if the content could not be read
+     */
+    private byte[] read(final FileObject _file)
+        throws Exception
+    {
+        final InputStream in = this.cache.getInputStream(_file.getContent());
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param _length   length of the content
+     * @param _seed     seed of the content
+     * @return content
+     */
+    private byte[] bytes(final int _length,
+                         final int _seed)
+    {
+        final byte[] ret = new byte[_length];
+        Arrays.fill(ret, (byte) _seed);
+        for (int idx = 0; idx < _length; idx += 97) {
+            ret[idx] = (byte) (idx + _seed);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.vfs.FileObject;
+import org.efaps.webdav4vfs.vfs.ContentCoordinator;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests and a small benchmark for the coordination of concurrent readers and
+ * writers of contents.
+ *
+ * @author The eFaps Team
+ */
+public class ContentCoordinatorTest
+    extends AbstractDavTestCase
+{
+    private static final Log LOG = LogFactory.getLog(ContentCoordinatorTest.class);
+
+    private static final int THREADS = 8;
+
+    private static final int ITERATIONS = 500;
+
+    /**
+     * Concurrent writers and readers of the same file. Each writer writes a
+     * content with one repeated byte, so a reader sees a mixed content if
+     * writes are interleaved or a read overlaps a write.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testWritersAreSerialized()
+        throws Exception
+    {
+        final ContentCoordinator coordinator = new ContentCoordinator(60000);
+        final AtomicInteger writers = new AtomicInteger();
+
+        runConcurrently(new Task() {
+            public void run(final int _thread)
+                throws Exception
+            {
+                final byte[] content = new byte[4096];
+                Arrays.fill(content, (byte) _thread);
+                for (int idx = 0; idx < ITERATIONS; idx++) {
+                    if ((_thread % 2) == 0) {
+                        final ContentCoordinator.HeldLock lock = coordinator.acquireWrite(aFile);
+                        try {
+                            Assert.assertEquals(writers.incrementAndGet(), 1, "concurrent writers");
+                            final OutputStream os = aFile.getContent().getOutputStream();
+                            for (final byte b : content) {
+                                os.write(b);
+                            }
+                            os.close();
+                            writers.decrementAndGet();
+                        } finally {
+                            lock.unlock();
+                        }
+                    } else {
+                        final ContentCoordinator.HeldLock lock = coordinator.acquireRead(aFile);
+                        try {
+                            Assert.assertEquals(writers.get(), 0, "read while writing");
+                            final InputStream is = aFile.getContent().getInputStream();
+                            final byte[] read = IOUtils.toByteArray(is);
+                            is.close();
+                            for (final byte b : read) {
+                                Assert.assertEquals(b, read[0], "interleaved content");
+                            }
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * A writer fails immediately if another writer holds the lock and the
+     * timeout is zero.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testFailFast()
+        throws Exception
+    {
+        final ContentCoordinator coordinator = new ContentCoordinator(0);
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread writer = new Thread() {
+            @Override()
+            public void run()
+            {
+                try {
+                    final ContentCoordinator.HeldLock lock = coordinator.acquireWrite(aFile);
+                    locked.countDown();
+                    done.await();
+                    lock.unlock();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        writer.start();
+        locked.await();
+        try {
+            Assert.assertNull(coordinator.acquireWrite(aFile), "second writer got the lock");
+            Assert.assertNull(coordinator.acquireRead(aFile), "reader got the lock while writing");
+            final ContentCoordinator.HeldLock other = coordinator.acquireWrite(aDirectory.resolveFile("other.txt"));
+            Assert.assertNotNull(other, "writer of other file is blocked");
+            other.unlock();
+        } finally {
+            done.countDown();
+            writer.join();
+        }
+        final ContentCoordinator.HeldLock lock = coordinator.acquireWrite(aFile);
+        Assert.assertNotNull(lock, "lock not released");
+        lock.unlock();
+    }
+
+    /**
+     * Paths with the same hash code ("Aa" and "BB") have their own locks,
+     * and a released lock can be acquired again.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testSameHashCode()
+        throws Exception
+    {
+        final ContentCoordinator coordinator = new ContentCoordinator(0);
+        final FileObject first = aDirectory.resolveFile("Aa");
+        final FileObject second = aDirectory.resolveFile("BB");
+        Assert.assertEquals(first.getName().getPath().hashCode(), second.getName().getPath().hashCode());
+        final ContentCoordinator.HeldLock lock = coordinator.acquireWrite(first);
+        Assert.assertNotNull(lock);
+        final ContentCoordinator.HeldLock other = coordinator.acquireWrite(second);
+        Assert.assertNotNull(other, "writer of other path with same hash code is blocked");
+        other.unlock();
+        lock.unlock();
+        final ContentCoordinator.HeldLock again = coordinator.acquireWrite(first);
+        Assert.assertNotNull(again, "lock not released");
+        again.unlock();
+    }
+
+    /**
+     * Compares the throughput of writers of distinct files with writers of
+     * one file. Writers of distinct files must not be serialized.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void benchmarkDistinctAndSamePath()
+        throws Exception
+    {
+        final ContentCoordinator coordinator = new ContentCoordinator(60000);
+        final FileObject[] files = new FileObject[THREADS];
+        for (int idx = 0; idx < THREADS; idx++) {
+            files[idx] = aDirectory.resolveFile("bench" + idx + ".txt");
+        }
+        final AtomicInteger maxParallel = new AtomicInteger();
+        final AtomicInteger parallel = new AtomicInteger();
+        final int cycles = 20000;
+
+        long start = System.nanoTime();
+        runConcurrently(new Task() {
+            public void run(final int _thread)
+                throws Exception
+            {
+                for (int idx = 0; idx < cycles; idx++) {
+                    final ContentCoordinator.HeldLock lock = coordinator.acquireWrite(files[_thread]);
+                    final int current = parallel.incrementAndGet();
+                    int max = maxParallel.get();
+                    while ((current > max) && !maxParallel.compareAndSet(max, current)) {
+                        max = maxParallel.get();
+                    }
+                    parallel.decrementAndGet();
+                    lock.unlock();
+                }
+            }
+        });
+        final long distinct = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        runConcurrently(new Task() {
+            public void run(final int _thread)
+                throws Exception
+            {
+                for (int idx = 0; idx < cycles; idx++) {
+                    final ContentCoordinator.HeldLock lock = coordinator.acquireWrite(files[0]);
+                    Assert.assertEquals(parallel.incrementAndGet(), 1, "concurrent writers");
+                    parallel.decrementAndGet();
+                    lock.unlock();
+                }
+            }
+        });
+        final long same = System.nanoTime() - start;
+
+        LOG.info(String.format("%d writes with %d threads: distinct paths %d ms, same path %d ms",
+                               THREADS * cycles, THREADS, distinct / 1000000, same / 1000000));
+        if (Runtime.getRuntime().availableProcessors() > 1) {
+            Assert.assertTrue(maxParallel.get() > 1, "writers of distinct paths were serialized");
+        }
+    }
+
+    /**
+     * Runs given <code>_task</code> in {@link #THREADS} threads at the same
+     * time and rethrows the first failure.
+     *
+     * @param _task     task to run
+     * @throws Exception if one of the threads failed
+     */
+    private void runConcurrently(final Task _task)
+        throws Exception
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int idx = 0; idx < THREADS; idx++) {
+            final int thread = idx;
+            threads.add(new Thread() {
+                @Override()
+                public void run()
+                {
+                    try {
+                        start.await();
+                        _task.run(thread);
+                    } catch (final Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() instanceof Error) {
+            throw (Error) failure.get();
+        } else if (failure.get() != null) {
+            throw (Exception) failure.get();
+        }
+    }
+
+    /**
+     * Task executed by each of the test threads.
+     */
+    private interface Task
+    {
+        /**
+         * @param _thread   index of the thread
+         * @throws Exception if the task fails
+         */
+        void run(int _thread)
+            throws Exception;
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import java.security.MessageDigest;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.vfs.FileObject;
+import org.efaps.webdav4vfs.handler.CopyHandler;
+import org.efaps.webdav4vfs.handler.GetHandler;
+import org.efaps.webdav4vfs.handler.HeadHandler;
+import org.efaps.webdav4vfs.handler.MoveHandler;
+import org.efaps.webdav4vfs.handler.PutHandler;
+import org.efaps.webdav4vfs.util.Util;
+import org.efaps.webdav4vfs.vfs.ChunkAssembly;
+import org.efaps.webdav4vfs.vfs.ContentDigest;
+import org.efaps.webdav4vfs.vfs.VFSBackend;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the content digests computed while uploading and used as strong
+ * entity tags (and the weak entity tags without digest).
+ *
+ * @author The eFaps Team
+ */
+public class ContentDigestTest
+    extends AbstractHandlerTestCase
+{
+    private final PutHandler put = new PutHandler();
+
+    private final GetHandler get = new GetHandler();
+
+    @AfterMethod()
+    public void resetDigest()
+    {
+        ContentDigest.setInstance(new ContentDigest(ContentDigest.DEFAULT_CACHE_SIZE));
+    }
+
+    @Test()
+    public void testDigestComputedWhileUploading()
+        throws Exception
+    {
+        final byte[] content = "content of the uploaded file".getBytes("UTF-8");
+        final String path = this.folder + "/file.txt";
+        final Response putResponse = service(this.put, "PUT", path, content);
+        Assert.assertEquals(putResponse.getStatus(), HttpServletResponse.SC_CREATED);
+        Assert.assertEquals(putResponse.getHeader("ETag"), hex("SHA-256", content));
+        Assert.assertNotNull(VFSBackend.resolveFile(path).getContent().getAttribute(ContentDigest.ATTR_DIGEST));
+
+        final Response response = service(this.get, "GET", path, null);
+        Assert.assertEquals(response.getHeader("ETag"), hex("SHA-256", content));
+        Assert.assertEquals(response.getHeader("Digest"), "SHA-256=" + base64("SHA-256", content));
+        Assert.assertEquals(response.getHeader("Content-MD5"), base64("MD5", content));
+        Assert.assertEquals(service(new HeadHandler(), "HEAD", path, null).getHeader("Content-MD5"),
+                            base64("MD5", content));
+    }
+
+    @Test()
+    public void testStoredDigestUsedAfterEviction()
+        throws Exception
+    {
+        final byte[] content = "stored content".getBytes("UTF-8");
+        final String path = this.folder + "/file.txt";
+        service(this.put, "PUT", path, content);
+        ContentDigest.getInstance().invalidate(VFSBackend.resolveFile(path));
+        Assert.assertEquals(Util.getETag(VFSBackend.resolveFile(path)), hex("SHA-256", content),
+                            "stored digest not used");
+    }
+
+    @Test()
+    public void testSameContentSameETag()
+        throws Exception
+    {
+        final String path = this.folder + "/file.txt";
+        final String etag = service(this.put, "PUT", path, "same".getBytes("UTF-8")).getHeader("ETag");
+        Thread.sleep(5);
+        Assert.assertEquals(service(this.put, "PUT", path, "same".getBytes("UTF-8")).getHeader("ETag"), etag);
+        Assert.assertFalse(etag.equals(service(this.put, "PUT", path, "other".getBytes("UTF-8")).getHeader("ETag")));
+    }
+
+    /**
+     * The digest of a small content written outside of WebDAV is recomputed
+     * on the request path.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testRecomputeOnMiss()
+        throws Exception
+    {
+        final byte[] content = "written directly".getBytes("UTF-8");
+        final String path = createFile("file.txt", content);
+        Assert.assertEquals(Util.getETag(VFSBackend.resolveFile(path)), hex("SHA-256", content));
+        final Response response = service(this.get, "GET", path, null, "If-Match",
+                                           "\"" + hex("SHA-256", content) + "\"");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+        Assert.assertEquals(response.getHeader("Content-MD5"), base64("MD5", content));
+    }
+
+    /**
+     * The digest of a content larger than the synchronous limit is
+     * recomputed in the background; meanwhile the entity tag is weak.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testRecomputeInBackground()
+        throws Exception
+    {
+        ContentDigest.setInstance(new ContentDigest(ContentDigest.DEFAULT_CACHE_SIZE, 4, 10));
+        final byte[] content = "written directly".getBytes("UTF-8");
+        final FileObject file = VFSBackend.resolveFile(createFile("file.txt", content));
+        String etag = Util.getETag(file);
+        final long start = System.currentTimeMillis();
+        while (etag.startsWith("W/") && (System.currentTimeMillis() - start < 5000)) {
+            Thread.sleep(10);
+            etag = Util.getETag(file);
+        }
+        Assert.assertEquals(etag, hex("SHA-256", content));
+    }
+
+    /**
+     * Without a known digest the entity tag is the weak entity tag of the
+     * path and the last modification time.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testWeakETagOnMiss()
+        throws Exception
+    {
+        // not recomputed at all
+        ContentDigest.setInstance(new ContentDigest(ContentDigest.DEFAULT_CACHE_SIZE, 0, 0));
+        // written outside of WebDAV
+        final String path = createFile("file.txt", "written directly".getBytes("UTF-8"));
+        final FileObject file = VFSBackend.resolveFile(path);
+        final String hash = DigestUtils.shaHex(file.getName().getPath() + file.getContent().getLastModifiedTime());
+        Assert.assertNull(ContentDigest.getInstance().getDigest(file));
+        Assert.assertEquals(Util.getETag(file), "W/" + hash);
+
+        Response response = service(this.get, "GET", path, null);
+        Assert.assertEquals(response.getHeader("ETag"), "W/" + hash);
+        Assert.assertNull(response.getHeader("Digest"));
+        Assert.assertNull(response.getHeader("Content-MD5"));
+
+        // weak entity tags match only with the weak comparison
+        response = service(this.get, "GET", path, null, "If-None-Match", "W/\"" + hash + "\"");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_NOT_MODIFIED);
+        response = service(this.get, "GET", path, null, "If-Match", "W/\"" + hash + "\"");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_PRECONDITION_FAILED);
+        response = service(this.get, "GET", path, null, "If-Match", "\"" + hash + "\"");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_PRECONDITION_FAILED);
+        response = service(this.get, "GET", path, null, "Range", "bytes=0-6", "If-Range", "W/\"" + hash + "\"");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+
+        // an upload stores the digest
+        service(this.put, "PUT", path, "uploaded".getBytes("UTF-8"));
+        Assert.assertEquals(Util.getETag(file), hex("SHA-256", "uploaded".getBytes("UTF-8")));
+    }
+
+    /**
+     * The digests of a resumed upload are computed while its parts are
+     * written.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testDigestOfResumedUpload()
+        throws Exception
+    {
+        ContentDigest.setInstance(new ContentDigest(ContentDigest.DEFAULT_CACHE_SIZE, 0, 0));
+        final String path = this.folder + "/file.txt";
+        service(this.put, "PUT", path, "new ".getBytes("UTF-8"), "Content-Range", "bytes 0-3/11");
+        final Response response = service(this.put, "PUT", path, "content".getBytes("UTF-8"),
+                                          "Content-Range", "bytes 4-10/11");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_CREATED);
+        Assert.assertEquals(Util.getETag(VFSBackend.resolveFile(path)),
+                            hex("SHA-256", "new content".getBytes("UTF-8")));
+    }
+
+    /**
+     * The digests of assembled chunks are computed while the chunks are
+     * concatenated.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testDigestOfAssembledChunks()
+        throws Exception
+    {
+        ContentDigest.setInstance(new ContentDigest(ContentDigest.DEFAULT_CACHE_SIZE, 0, 0));
+        final String upload = this.folder + "/upload";
+        VFSBackend.resolveFile(upload).createFolder();
+        service(this.put, "PUT", upload + "/1", "new ".getBytes("UTF-8"));
+        service(this.put, "PUT", upload + "/2", "content".getBytes("UTF-8"));
+        final String path = this.folder + "/file.txt";
+        final Response response = service(new MoveHandler(), "MOVE", upload + "/" + ChunkAssembly.ASSEMBLE_NAME,
+                                          null, "Destination", "http://localhost" + path);
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_CREATED);
+        Assert.assertEquals(Util.getETag(VFSBackend.resolveFile(path)),
+                            hex("SHA-256", "new content".getBytes("UTF-8")));
+    }
+
+    /**
+     * The digests are carried over to the destinations of a COPY and a
+     * MOVE.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testDigestCarriedOver()
+        throws Exception
+    {
+        final byte[] content = "carried over".getBytes("UTF-8");
+        final String path = this.folder + "/file.txt";
+        service(this.put, "PUT", path, content);
+        ContentDigest.setInstance(new ContentDigest(ContentDigest.DEFAULT_CACHE_SIZE, 0, 0));
+        Assert.assertEquals(Util.getETag(VFSBackend.resolveFile(path)), hex("SHA-256", content));
+
+        Response response = service(new CopyHandler(), "COPY", path, null,
+                                    "Destination", "http://localhost" + this.folder + "/copy.txt");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_CREATED);
+        Assert.assertEquals(Util.getETag(VFSBackend.resolveFile(this.folder + "/copy.txt")), hex("SHA-256", content));
+
+        VFSBackend.resolveFile(this.folder + "/sub").createFolder();
+        response = service(new MoveHandler(), "MOVE", path, null,
+                           "Destination", "http://localhost" + this.folder + "/sub/moved.txt");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_CREATED);
+        Assert.assertEquals(Util.getETag(VFSBackend.resolveFile(this.folder + "/sub/moved.txt")),
+                            hex("SHA-256", content));
+
+        response = service(new MoveHandler(), "MOVE", this.folder + "/sub", null,
+                           "Destination", "http://localhost" + this.folder + "/other");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_CREATED);
+        Assert.assertEquals(Util.getETag(VFSBackend.resolveFile(this.folder + "/other/moved.txt")),
+                            hex("SHA-256", content));
+    }
+
+    @Test()
+    public void testIfMatch()
+        throws Exception
+    {
+        final byte[] content = "conditional".getBytes("UTF-8");
+        final String path = this.folder + "/file.txt";
+        service(this.put, "PUT", path, content);
+        Assert.assertEquals(service(this.get, "GET", path, null, "If-Match", "\"" + hex("SHA-256", content) + "\"")
+                                    .getStatus(),
+                            HttpServletResponse.SC_OK);
+        Assert.assertEquals(service(this.get, "GET", path, null, "If-Match", "\"" + hex("SHA-256", "x".getBytes()) + "\"")
+                                    .getStatus(),
+                            HttpServletResponse.SC_PRECONDITION_FAILED);
+    }
+
+    /**
+     * @param _algorithm    digest algorithm
+     * @param _content      content
+     * @return digest of the content in hex
+     * @throws Exception if the digest could not be computed
+     */
+    private String hex(final String _algorithm,
+                       final byte[] _content)
+        throws Exception
+    {
+        return new String(Hex.encodeHex(MessageDigest.getInstance(_algorithm).digest(_content)));
+    }
+
+    /**
+     * @param _algorithm    digest algorithm
+     * @param _content      content
+     * @return digest of the content in Base64
+     * @throws Exception if the digest could not be computed
+     */
+    private String base64(final String _algorithm,
+                          final byte[] _content)
+        throws Exception
+    {
+        return new String(Base64.encodeBase64(MessageDigest.getInstance(_algorithm).digest(_content)));
+    }
+}
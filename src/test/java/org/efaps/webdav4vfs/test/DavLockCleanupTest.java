@@ -0,0 +1,118 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import org.apache.commons.vfs.AllFileSelector;
+import org.apache.commons.vfs.FileObject;
+import org.efaps.webdav4vfs.lock.LocalLockManager;
+import org.efaps.webdav4vfs.lock.Lock;
+import org.efaps.webdav4vfs.lock.LockManager;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that the locks of deleted or moved file objects are removed.
+ *
+ * @author The eFaps Team
+ */
+public class DavLockCleanupTest
+    extends AbstractDavTestCase
+{
+    private static final String OWNER_STR = "testowner";
+
+    /**
+     * Number of create / lock / delete cycles of the regression test.
+     */
+    private static final int CYCLES = Integer.getInteger("webdav4vfs.test.lockCycles", 1000000);
+
+    /**
+     * Maximum allowed growth of the used heap in bytes for all cycles.
+     */
+    private static final long MAX_HEAP_GROWTH = 32L * 1024 * 1024;
+
+    @Test()
+    public void testRemoveLocksOfSubtree()
+        throws Exception
+    {
+        final FileObject child = aDirectory.resolveFile("sub/child.txt");
+        child.createFile();
+        final Lock childLock1 = new Lock(child, Lock.WRITE, Lock.SHARED, OWNER_STR, 0, 3600);
+        final Lock childLock2 = new Lock(child, Lock.WRITE, Lock.SHARED, OWNER_STR + "1", 0, 3600);
+        final Lock subLock = new Lock(child.getParent(), Lock.WRITE, Lock.SHARED, OWNER_STR, 0, 3600);
+        final Lock fileLock = new Lock(aFile, Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, 0, 3600);
+        LockManager.getInstance().acquireLock(childLock1);
+        LockManager.getInstance().acquireLock(childLock2);
+        LockManager.getInstance().acquireLock(subLock);
+        LockManager.getInstance().acquireLock(fileLock);
+
+        Assert.assertEquals(LockManager.getInstance().removeLocks(aDirectory), 3);
+        Assert.assertNull(LockManager.getInstance().discoverLock(child));
+        Assert.assertNull(LockManager.getInstance().discoverLock(child.getParent()));
+        Assert.assertNull(LockManager.getInstance().findLock(child, childLock1.getToken()));
+        Assert.assertNotNull(LockManager.getInstance().discoverLock(aFile), "lock outside the subtree removed");
+
+        // an exclusive lock with infinite depth must be possible again
+        LockManager.getInstance().acquireLock(
+                new Lock(aDirectory, Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, Integer.MAX_VALUE, 3600));
+    }
+
+    /**
+     * Regression test for leaked locks: many times a file is created, locked
+     * and deleted again. Afterwards no lock must be left and the used heap
+     * must not grow with the number of cycles.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testCreateLockDeleteCyclesDoNotLeak()
+        throws Exception
+    {
+        final LocalLockManager manager = (LocalLockManager) LockManager.getInstance();
+        final int lockCount = manager.getLockCount();
+        final long usedHeap = getUsedHeap();
+        for (int idx = 0; idx < CYCLES; idx++) {
+            final FileObject folder = aDirectory.resolveFile("cycle" + (idx % 16));
+            final FileObject file = folder.resolveFile("file.txt");
+            file.createFile();
+            manager.acquireLock(new Lock(file, Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, 0, 3600));
+            manager.acquireLock(new Lock(folder, Lock.WRITE, Lock.SHARED, OWNER_STR, 0, 3600));
+            folder.delete(new AllFileSelector());
+            Assert.assertEquals(manager.removeLocks(folder), 2);
+        }
+        Assert.assertEquals(manager.getLockCount(), lockCount, "locks are leaked");
+        final long growth = getUsedHeap() - usedHeap;
+        Assert.assertTrue(growth < MAX_HEAP_GROWTH, "used heap grew by " + growth + " bytes");
+    }
+
+    /**
+     * Returns the used heap after a garbage collection.
+     *
+     * @return used heap in bytes
+     */
+    private long getUsedHeap()
+    {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int idx = 0; idx < 3; idx++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
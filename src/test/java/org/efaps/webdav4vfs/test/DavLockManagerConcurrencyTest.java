@@ -0,0 +1,250 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.vfs.FileObject;
+import org.efaps.webdav4vfs.lock.Lock;
+import org.efaps.webdav4vfs.lock.LockConflictException;
+import org.efaps.webdav4vfs.lock.LockManager;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Stress tests for the lock manager with concurrent threads.
+ *
+ * @author The eFaps Team
+ */
+public class DavLockManagerConcurrencyTest
+    extends AbstractDavTestCase
+{
+    private static final String OWNER_STR = "testowner";
+
+    private static final int THREADS = 8;
+
+    private static final int ITERATIONS = 2000;
+
+    /**
+     * Many threads acquire and release exclusive locks on a small set of
+     * files. At no time two threads are allowed to hold an exclusive lock on
+     * the same file and at the end no lock must be left.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testExclusiveLocksAreMutuallyExclusive()
+        throws Exception
+    {
+        final FileObject[] files = new FileObject[4];
+        final AtomicInteger[] holders = new AtomicInteger[files.length];
+        for (int idx = 0; idx < files.length; idx++) {
+            files[idx] = aDirectory.resolveFile("file" + idx + ".txt");
+            files[idx].createFile();
+            holders[idx] = new AtomicInteger();
+        }
+        final AtomicInteger acquired = new AtomicInteger();
+
+        runConcurrently(new Task() {
+            public void run(final int _thread)
+                throws Exception
+            {
+                final Random random = new Random(_thread);
+                for (int idx = 0; idx < ITERATIONS; idx++) {
+                    final int fileIdx = random.nextInt(files.length);
+                    final Lock lock = new Lock(files[fileIdx], Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, 0, 3600);
+                    try {
+                        LockManager.getInstance().acquireLock(lock);
+                    } catch (final LockConflictException e) {
+                        continue;
+                    }
+                    acquired.incrementAndGet();
+                    Assert.assertEquals(holders[fileIdx].incrementAndGet(), 1, "exclusive lock held twice");
+                    holders[fileIdx].decrementAndGet();
+                    Assert.assertTrue(LockManager.getInstance().releaseLock(files[fileIdx], lock.getToken()),
+                                      "release of acquired lock failed");
+                }
+            }
+        });
+
+        Assert.assertTrue(acquired.get() > 0, "no lock was acquired at all");
+        for (final FileObject file : files) {
+            Assert.assertNull(LockManager.getInstance().discoverLock(file), "phantom lock found for " + file);
+        }
+    }
+
+    /**
+     * Many threads try to acquire exclusive locks and discover the locks of
+     * the same files. A lock which was rejected because of a conflict must
+     * never be discovered.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testRejectedLocksAreNotDiscovered()
+        throws Exception
+    {
+        final FileObject[] files = new FileObject[2];
+        for (int idx = 0; idx < files.length; idx++) {
+            files[idx] = aDirectory.resolveFile("file" + idx + ".txt");
+            files[idx].createFile();
+        }
+        final Set<String> rejected = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final Set<String> discovered = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        runConcurrently(new Task() {
+            public void run(final int _thread)
+                throws Exception
+            {
+                final Random random = new Random(_thread);
+                for (int idx = 0; idx < ITERATIONS; idx++) {
+                    final FileObject file = files[random.nextInt(files.length)];
+                    final Lock lock = new Lock(file, Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, 0, 3600);
+                    try {
+                        LockManager.getInstance().acquireLock(lock);
+                        LockManager.getInstance().releaseLock(file, lock.getToken());
+                    } catch (final LockConflictException e) {
+                        rejected.add(lock.getToken());
+                    }
+                    final List<Lock> locks = LockManager.getInstance().discoverLock(file);
+                    if (locks != null) {
+                        for (final Lock found : locks) {
+                            discovered.add(found.getToken());
+                        }
+                    }
+                }
+            }
+        });
+
+        Assert.assertFalse(rejected.isEmpty(), "no lock was rejected at all");
+        discovered.retainAll(rejected);
+        Assert.assertTrue(discovered.isEmpty(), "rejected locks discovered: " + discovered);
+    }
+
+    /**
+     * Many threads acquire shared locks on the same file concurrently. All
+     * locks must be found afterwards and must be released again concurrently.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testConcurrentSharedLocksAreNotLost()
+        throws Exception
+    {
+        final int locksPerThread = 250;
+        final List<List<Lock>> threadLocks = new ArrayList<List<Lock>>();
+        for (int idx = 0; idx < THREADS; idx++) {
+            threadLocks.add(new ArrayList<Lock>());
+        }
+
+        runConcurrently(new Task() {
+            public void run(final int _thread)
+                throws Exception
+            {
+                for (int idx = 0; idx < locksPerThread; idx++) {
+                    final Lock lock = new Lock(aFile, Lock.WRITE, Lock.SHARED, OWNER_STR + _thread, 0, 3600);
+                    LockManager.getInstance().acquireLock(lock);
+                    threadLocks.get(_thread).add(lock);
+                }
+            }
+        });
+
+        final List<Lock> locks = LockManager.getInstance().discoverLock(aFile);
+        Assert.assertNotNull(locks, "shared locks are lost");
+        Assert.assertEquals(locks.size(), THREADS * locksPerThread, "some shared locks are lost");
+
+        runConcurrently(new Task() {
+            public void run(final int _thread)
+                throws Exception
+            {
+                for (final Lock lock : threadLocks.get(_thread)) {
+                    Assert.assertTrue(LockManager.getInstance().releaseLock(aFile, lock.getToken()),
+                                      "release of shared lock failed");
+                }
+            }
+        });
+
+        Assert.assertNull(LockManager.getInstance().discoverLock(aFile), "phantom shared locks found");
+    }
+
+    /**
+     * Runs given <code>_task</code> in {@link #THREADS} threads at the same
+     * time and rethrows the first failure.
+     *
+     * @param _task     task to run
+     * @throws Exception if one of the threads failed
+     */
+    private void runConcurrently(final Task _task)
+        throws Exception
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int idx = 0; idx < THREADS; idx++) {
+            final int thread = idx;
+            threads.add(new Thread() {
+                @Override()
+                public void run()
+                {
+                    try {
+                        start.await();
+                        _task.run(thread);
+                    } catch (final Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() instanceof Error) {
+            throw (Error) failure.get();
+        } else if (failure.get() != null) {
+            throw (Exception) failure.get();
+        }
+    }
+
+    /**
+     * Task executed by each of the test threads.
+     */
+    private interface Task
+    {
+        /**
+         * @param _thread   index of the thread
+         * @throws Exception if the task fails
+         */
+        void run(int _thread)
+            throws Exception;
+    }
+}
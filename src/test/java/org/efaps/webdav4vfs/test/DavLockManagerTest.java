@@ -238,4 +238,97 @@ public class DavLockManagerTest
                 LockManager.getInstance().evaluateCondition(aFile, condition).result,
                 "complex condition with bogus eTag should fail");
     }
+
+    @Test()
+    public void testFailToAcquireDepthLockOverExclusiveChildLock()
+        throws Exception
+    {
+        final Lock childLock = new Lock(aDirectory.resolveFile("sub/child.txt"),
+                                        Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, 0, 3600);
+        final Lock folderLock = new Lock(aDirectory, Lock.WRITE, Lock.SHARED, OWNER_STR, Integer.MAX_VALUE, 3600);
+        LockManager.getInstance().acquireLock(childLock);
+        LockConflictException ex = null;
+        try {
+            LockManager.getInstance().acquireLock(folderLock);
+        } catch (final LockConflictException e) {
+            ex = e;
+        }
+        Assert.assertNotNull(ex, "check that exception was thrown");
+        Assert.assertEquals(ex.getLocks().size(), 1);
+        Assert.assertSame(ex.getLocks().get(0), childLock);
+    }
+
+    @Test()
+    public void testAcquireDepthLocks()
+        throws Exception
+    {
+        final Lock childLock = new Lock(aDirectory.resolveFile("sub/child.txt"),
+                                        Lock.WRITE, Lock.SHARED, OWNER_STR, 0, 3600);
+        final Lock depthOneLock = new Lock(aDirectory, Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, 1, 3600);
+        final Lock sharedLock = new Lock(aDirectory, Lock.WRITE, Lock.SHARED, OWNER_STR, Integer.MAX_VALUE, 3600);
+        LockManager.getInstance().acquireLock(childLock);
+        // child lock is not a direct child and therefore no conflict
+        LockManager.getInstance().acquireLock(depthOneLock);
+        LockManager.getInstance().releaseLock(aDirectory, depthOneLock.getToken());
+        // shared locks are compatible
+        LockManager.getInstance().acquireLock(sharedLock);
+    }
+
+    @Test()
+    public void testExpiredLockIsNotDiscovered()
+        throws Exception
+    {
+        final Lock aLock = new Lock(aFile, Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, 0, 0);
+        LockManager.getInstance().acquireLock(aLock);
+        Assert.assertNull(
+                LockManager.getInstance().discoverLock(aFile),
+                "expired lock must not be discovered");
+    }
+
+    @Test()
+    public void testExpiredLockDoesNotConflict()
+        throws Exception
+    {
+        final Lock expiredLock = new Lock(aFile, Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, 0, 0);
+        final Lock exclusiveLock = new Lock(aFile, Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, 0, 3600);
+        final Lock folderLock = new Lock(aDirectory.resolveFile("expired"), Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, 0, 0);
+        final Lock depthLock = new Lock(aDirectory, Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, Integer.MAX_VALUE, 3600);
+        LockManager.getInstance().acquireLock(expiredLock);
+        LockManager.getInstance().acquireLock(exclusiveLock);
+        LockManager.getInstance().acquireLock(folderLock);
+        LockManager.getInstance().acquireLock(depthLock);
+    }
+
+    @Test()
+    public void testRefreshedLockIsDiscovered()
+        throws Exception
+    {
+        final Lock aLock = new Lock(aFile, Lock.WRITE, Lock.EXCLUSIVE, OWNER_STR, 0, 60);
+        LockManager.getInstance().acquireLock(aLock);
+        final long expires = aLock.getExpires();
+        LockManager.getInstance().refreshLock(aLock, 3600);
+        Assert.assertTrue(aLock.getExpires() > expires, "refresh must extend the lock");
+        Assert.assertNotNull(
+                LockManager.getInstance().discoverLock(aFile),
+                "refreshed lock must be discovered");
+        Assert.assertEquals(aLock.getTimeout(), "Second-3600");
+    }
+
+    @Test()
+    public void testReleaseSharedLockByToken()
+        throws Exception
+    {
+        final Lock sharedLock1 = new Lock(aFile, Lock.WRITE, Lock.SHARED, OWNER_STR, 0, 3600);
+        final Lock sharedLock2 = new Lock(aFile, Lock.WRITE, Lock.SHARED, OWNER_STR + "1", 0, 3600);
+        Assert.assertFalse(sharedLock1.getToken().equals(sharedLock2.getToken()), "lock tokens must be unique");
+        LockManager.getInstance().acquireLock(sharedLock1);
+        LockManager.getInstance().acquireLock(sharedLock2);
+        Assert.assertTrue(LockManager.getInstance().releaseLock(aFile, sharedLock2.getToken()));
+        Assert.assertEquals(LockManager.getInstance().discoverLock(aFile).size(), 1);
+        Assert.assertSame(LockManager.getInstance().discoverLock(aFile).get(0), sharedLock1);
+        Assert.assertSame(LockManager.getInstance().findLock(aFile, sharedLock1.getToken()), sharedLock1);
+        Assert.assertNull(LockManager.getInstance().findLock(aFile, sharedLock2.getToken()));
+        Assert.assertFalse(LockManager.getInstance().releaseLock(aFile, sharedLock2.getToken()),
+                           "released lock token must not be valid anymore");
+    }
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.VFS;
+import org.efaps.webdav4vfs.vfs.FileTransfer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests and a throughput benchmark for the transfer of local files through
+ * a file channel compared with the streams of commons-vfs.
+ *
+ * @author The eFaps Team
+ */
+public class FileTransferTest
+    extends AbstractDavTestCase
+{
+    private static final Log LOG = LogFactory.getLog(FileTransferTest.class);
+
+    /**
+     * Size of the benchmark file in MB (could be overwritten with the system
+     * property <code>webdav4vfs.test.transferMB</code>).
+     */
+    private static final int SIZE_MB = Integer.getInteger("webdav4vfs.test.transferMB", 32);
+
+    private File localFile;
+
+    @BeforeMethod()
+    public void setUpLocalFile()
+        throws Exception
+    {
+        this.localFile = File.createTempFile("webdav4vfs", ".bin");
+        final byte[] block = new byte[1024 * 1024];
+        for (int idx = 0; idx < block.length; idx++) {
+            block[idx] = (byte) (idx % 253);
+        }
+        final OutputStream os = new FileOutputStream(this.localFile);
+        try {
+            for (int idx = 0; idx < FileTransferTest.SIZE_MB; idx++) {
+                os.write(block);
+            }
+        } finally {
+            os.close();
+        }
+    }
+
+    @AfterMethod()
+    public void tearDownLocalFile()
+    {
+        this.localFile.delete();
+    }
+
+    @Test()
+    public void testLocalFileDetected()
+        throws Exception
+    {
+        final FileObject object = VFS.getManager().resolveFile(this.localFile.getAbsolutePath());
+        Assert.assertEquals(FileTransfer.getLocalFile(object), this.localFile.getAbsoluteFile());
+        Assert.assertNull(FileTransfer.getLocalFile(aFile), "ram file is not local");
+        Assert.assertNull(FileTransfer.getLocalFile(object.getParent()), "folder is not a local file");
+    }
+
+    @Test()
+    public void testTransferRange()
+        throws Exception
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final FileInputStream in = new FileInputStream(this.localFile);
+        try {
+            Assert.assertEquals(FileTransfer.transfer(in.getChannel(), 1000, 5000, out), 5000);
+            final long size = this.localFile.length();
+            Assert.assertEquals(FileTransfer.transfer(in.getChannel(), size - 10, 100, out), 10);
+        } finally {
+            in.close();
+        }
+        final byte[] expected = new byte[5010];
+        for (int idx = 0; idx < 5000; idx++) {
+            expected[idx] = (byte) ((1000 + idx) % 253);
+        }
+        for (int idx = 0; idx < 10; idx++) {
+            expected[5000 + idx] = (byte) ((1024 * 1024 - 10 + idx) % 253);
+        }
+        Assert.assertTrue(Arrays.equals(out.toByteArray(), expected));
+
+        // large region is memory mapped
+        final ByteArrayOutputStream mapped = new ByteArrayOutputStream();
+        final FileInputStream in2 = new FileInputStream(this.localFile);
+        try {
+            Assert.assertEquals(FileTransfer.transfer(in2.getChannel(), 17, 9 * 1024 * 1024, mapped), 9 * 1024 * 1024);
+        } finally {
+            in2.close();
+        }
+        final byte[] bytes = mapped.toByteArray();
+        for (int idx = 0; idx < bytes.length; idx += 4099) {
+            Assert.assertEquals(bytes[idx], (byte) (((17 + idx) % (1024 * 1024)) % 253));
+        }
+    }
+
+    /**
+     * Sends the file several times with both methods and logs the throughput
+     * and the CPU time per GB.
+     *
+     * @throws Exception if the benchmark fails
+     */
+    @Test()
+    public void benchmarkThroughput()
+        throws Exception
+    {
+        final FileObject object = VFS.getManager().resolveFile(this.localFile.getAbsolutePath());
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final long size = this.localFile.length();
+        final int rounds = 5;
+
+        // warm up both methods
+        sendStream(object);
+        sendChannel();
+
+        long start = System.nanoTime();
+        long cpu = threads.getCurrentThreadCpuTime();
+        for (int idx = 0; idx < rounds; idx++) {
+            Assert.assertEquals(sendStream(object), size);
+        }
+        final long streamTime = System.nanoTime() - start;
+        final long streamCpu = threads.getCurrentThreadCpuTime() - cpu;
+
+        start = System.nanoTime();
+        cpu = threads.getCurrentThreadCpuTime();
+        for (int idx = 0; idx < rounds; idx++) {
+            Assert.assertEquals(sendChannel(), size);
+        }
+        final long channelTime = System.nanoTime() - start;
+        final long channelCpu = threads.getCurrentThreadCpuTime() - cpu;
+
+        final double gb = (double) (size * rounds) / (1024 * 1024 * 1024);
+        final double mb = (double) (size * rounds) / (1024 * 1024);
+        LOG.info(String.format("commons-vfs stream: %.0f MB/s, %.0f ms CPU/GB",
+                               mb / (streamTime / 1e9), streamCpu / 1e6 / gb));
+        LOG.info(String.format("file channel:       %.0f MB/s, %.0f ms CPU/GB",
+                               mb / (channelTime / 1e9), channelCpu / 1e6 / gb));
+    }
+
+    /**
+     * @param _object   file object to send
+     * @return number of sent bytes
+     * @throws Exception if the file could not be sent
+     */
+    private long sendStream(final FileObject _object)
+        throws Exception
+    {
+        final InputStream is = _object.getContent().getInputStream();
+        try {
+            return IOUtils.copyLarge(is, new NullOutputStream());
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * @return number of sent bytes
+     * @throws Exception if the file could not be sent
+     */
+    private long sendChannel()
+        throws Exception
+    {
+        final FileInputStream in = new FileInputStream(this.localFile);
+        try {
+            return FileTransfer.transfer(in.getChannel(), 0, this.localFile.length(), new NullOutputStream());
+        } finally {
+            in.close();
+        }
+    }
+}
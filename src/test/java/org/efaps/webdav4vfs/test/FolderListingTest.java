@@ -0,0 +1,151 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.efaps.webdav4vfs.handler.GetHandler;
+import org.efaps.webdav4vfs.handler.HeadHandler;
+import org.efaps.webdav4vfs.vfs.VFSBackend;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the listings of folders answered for GET requests.
+ *
+ * @author The eFaps Team
+ */
+public class FolderListingTest
+    extends AbstractHandlerTestCase
+{
+    private final GetHandler handler = new GetHandler();
+
+    @Test()
+    public void testHtml()
+        throws Exception
+    {
+        createFile("a<b>&c.txt", "abc".getBytes("UTF-8"));
+        VFSBackend.resolveFile(this.folder + "/sub folder").createFolder();
+
+        final Response response = service(this.handler, "GET", this.folder, null);
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+        Assert.assertEquals(response.getHeader("Content-Type"), "text/html; charset=UTF-8");
+        final String body = new String(response.getBody(), "UTF-8");
+        Assert.assertTrue(body.contains(">a&lt;b&gt;&amp;c.txt</a></td><td>3</td>"), body);
+        Assert.assertTrue(body.contains("<a href=\"" + this.folder + "/sub%20folder/\">sub folder/</a>"), body);
+        Assert.assertTrue(body.contains("<a href=\"/\">../</a>"), body);
+        Assert.assertTrue(body.contains("Entries 1 to 2 of 2."), body);
+        Assert.assertFalse(body.contains("Next"), body);
+    }
+
+    @Test()
+    public void testJson()
+        throws Exception
+    {
+        createFile("a\"b.txt", "abc".getBytes("UTF-8"));
+        VFSBackend.resolveFile(this.folder + "/sub").createFolder();
+
+        Response response = service(this.handler, "GET", this.folder, null, "Accept", "application/json");
+        Assert.assertEquals(response.getHeader("Content-Type"), "application/json; charset=UTF-8");
+        final String body = new String(response.getBody(), "UTF-8");
+        Assert.assertTrue(body.startsWith("{\"path\":\"" + this.folder + "/\",\"offset\":0,\"limit\":1000,\"total\":2,"),
+                          body);
+        Assert.assertTrue(body.contains("{\"name\":\"a\\\"b.txt\",\"href\":\"" + this.folder
+                + "/a%22b.txt\",\"type\":\"file\",\"size\":3,\"lastModified\":"), body);
+        Assert.assertTrue(body.contains("{\"name\":\"sub\",\"href\":\"" + this.folder
+                + "/sub/\",\"type\":\"folder\"}"), body);
+        Assert.assertFalse(body.contains("\"next\""), body);
+
+        response = service(this.handler, "GET", this.folder + "?format=json", null);
+        Assert.assertEquals(response.getHeader("Content-Type"), "application/json; charset=UTF-8");
+    }
+
+    @Test()
+    public void testPaging()
+        throws Exception
+    {
+        for (int idx = 0; idx < 25; idx++) {
+            createFile("file" + idx + ".txt", new byte[idx]);
+        }
+
+        Response response = service(this.handler, "GET", this.folder + "?format=json&limit=10", null);
+        String body = new String(response.getBody(), "UTF-8");
+        Assert.assertEquals(count(body, "\"name\":"), 10);
+        Assert.assertTrue(body.contains("\"total\":25"), body);
+        Assert.assertTrue(body.endsWith(",\"next\":\"?format=json&offset=10&limit=10\"}\n"), body);
+
+        response = service(this.handler, "GET", this.folder + "?format=json&offset=20&limit=10", null);
+        body = new String(response.getBody(), "UTF-8");
+        Assert.assertEquals(count(body, "\"name\":"), 5);
+        Assert.assertFalse(body.contains("\"next\""), body);
+
+        response = service(this.handler, "GET", this.folder + "?offset=10&limit=10", null);
+        body = new String(response.getBody(), "UTF-8");
+        Assert.assertEquals(count(body, "<tr><td>"), 11);
+        Assert.assertTrue(body.contains("Entries 11 to 20 of 25."), body);
+        Assert.assertTrue(body.contains("<a href=\"?offset=0&amp;limit=10\">Previous</a>"), body);
+        Assert.assertTrue(body.contains("<a href=\"?offset=20&amp;limit=10\">Next</a>"), body);
+
+        response = service(this.handler, "GET", this.folder + "?offset=100", null);
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+        Assert.assertTrue(new String(response.getBody(), "UTF-8").contains("No entries (of 25)."));
+    }
+
+    @Test()
+    public void testInvalidPaging()
+        throws Exception
+    {
+        Assert.assertEquals(service(this.handler, "GET", this.folder + "?offset=-1", null).getStatus(),
+                            HttpServletResponse.SC_BAD_REQUEST);
+        Assert.assertEquals(service(this.handler, "GET", this.folder + "?limit=0", null).getStatus(),
+                            HttpServletResponse.SC_BAD_REQUEST);
+        Assert.assertEquals(service(this.handler, "GET", this.folder + "?limit=many", null).getStatus(),
+                            HttpServletResponse.SC_BAD_REQUEST);
+    }
+
+    @Test()
+    public void testHead()
+        throws Exception
+    {
+        createFile("file.txt", "abc".getBytes("UTF-8"));
+        final Response response = service(new HeadHandler(), "HEAD", this.folder, null, "Accept", "application/json");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+        Assert.assertEquals(response.getHeader("Content-Type"), "application/json; charset=UTF-8");
+        Assert.assertEquals(response.getBody().length, 0);
+    }
+
+    /**
+     * @param _text     text to search in
+     * @param _search   searched text
+     * @return number of occurrences of the searched text
+     */
+    private int count(final String _text,
+                      final String _search)
+    {
+        int ret = 0;
+        int idx = _text.indexOf(_search);
+        while (idx >= 0) {
+            ret++;
+            idx = _text.indexOf(_search, idx + _search.length());
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.efaps.webdav4vfs.handler.GetHandler;
+import org.efaps.webdav4vfs.handler.HeadHandler;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the <code>Content-Length</code> and <code>Accept-Ranges</code>
+ * headers of GET and HEAD requests.
+ *
+ * @author The eFaps Team
+ */
+public class GetContentLengthTest
+    extends AbstractHandlerTestCase
+{
+    private static final int FILES = 100;
+
+    private static final int REQUESTS = 10000;
+
+    private final GetHandler getHandler = new GetHandler();
+
+    private final HeadHandler headHandler = new HeadHandler();
+
+    @Test()
+    public void testGetAndHead()
+        throws Exception
+    {
+        final String path = createFile("content.txt", new byte[12345]);
+
+        Response response = service(this.getHandler, "GET", path, null);
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+        Assert.assertEquals(response.getHeader("Content-Length"), "12345");
+        Assert.assertEquals(response.getHeader("Accept-Ranges"), "bytes");
+        Assert.assertEquals(response.getBody().length, 12345);
+
+        response = service(this.headHandler, "HEAD", path, null);
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+        Assert.assertEquals(response.getHeader("Content-Length"), "12345");
+        Assert.assertEquals(response.getHeader("Accept-Ranges"), "bytes");
+        Assert.assertEquals(response.getBody().length, 0);
+    }
+
+    @Test()
+    public void testEmptyFile()
+        throws Exception
+    {
+        final String path = createFile("empty.txt", new byte[0]);
+        final Response response = service(this.getHandler, "GET", path, null);
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+        Assert.assertEquals(response.getHeader("Content-Length"), "0");
+    }
+
+    /**
+     * A connection could only be reused if the length of each response is
+     * known, so for a batch of small files each GET must send the exact
+     * length (and not fall back to chunked encoding).
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testBatchOfSmallFiles()
+        throws Exception
+    {
+        final String[] paths = new String[GetContentLengthTest.FILES];
+        for (int idx = 0; idx < paths.length; idx++) {
+            paths[idx] = createFile("file" + idx + ".txt", ("content of file " + idx).getBytes("UTF-8"));
+        }
+        for (int idx = 0; idx < GetContentLengthTest.REQUESTS; idx++) {
+            final String path = paths[idx % paths.length];
+            final Response response = service(this.getHandler, "GET", path, null);
+            Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+            Assert.assertEquals(response.getHeader("Content-Length"), String.valueOf(response.getBody().length),
+                                path);
+        }
+    }
+}
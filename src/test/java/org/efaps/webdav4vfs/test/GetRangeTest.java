@@ -0,0 +1,219 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.efaps.webdav4vfs.handler.GetHandler;
+import org.efaps.webdav4vfs.util.Util;
+import org.efaps.webdav4vfs.vfs.VFSBackend;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for GET requests with <code>Range</code> and <code>If-Range</code>
+ * headers.
+ *
+ * @author The eFaps Team
+ */
+public class GetRangeTest
+    extends AbstractHandlerTestCase
+{
+    private final GetHandler handler = new GetHandler();
+
+    private byte[] content;
+
+    private String path;
+
+    @BeforeMethod()
+    public void setUpFile()
+        throws Exception
+    {
+        this.content = new byte[10000];
+        for (int idx = 0; idx < this.content.length; idx++) {
+            this.content[idx] = (byte) (idx % 251);
+        }
+        this.path = uploadFile("content.bin", this.content);
+    }
+
+    @Test()
+    public void testWithoutRange()
+        throws Exception
+    {
+        final Response response = service(this.handler, "GET", this.path, null);
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+        Assert.assertEquals(response.getBody(), this.content);
+    }
+
+    @Test()
+    public void testRange()
+        throws Exception
+    {
+        final Response response = service(this.handler, "GET", this.path, null, "Range", "bytes=100-199");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_PARTIAL_CONTENT);
+        Assert.assertEquals(response.getHeader("Content-Range"), "bytes 100-199/10000");
+        Assert.assertEquals(response.getHeader("Content-Length"), "100");
+        Assert.assertEquals(response.getBody(), Arrays.copyOfRange(this.content, 100, 200));
+    }
+
+    @Test()
+    public void testOpenAndSuffixRange()
+        throws Exception
+    {
+        Response response = service(this.handler, "GET", this.path, null, "Range", "bytes=9990-");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_PARTIAL_CONTENT);
+        Assert.assertEquals(response.getHeader("Content-Range"), "bytes 9990-9999/10000");
+        Assert.assertEquals(response.getBody(), Arrays.copyOfRange(this.content, 9990, 10000));
+
+        response = service(this.handler, "GET", this.path, null, "Range", "bytes=-5");
+        Assert.assertEquals(response.getHeader("Content-Range"), "bytes 9995-9999/10000");
+        Assert.assertEquals(response.getBody(), Arrays.copyOfRange(this.content, 9995, 10000));
+
+        response = service(this.handler, "GET", this.path, null, "Range", "bytes=9000-20000");
+        Assert.assertEquals(response.getHeader("Content-Range"), "bytes 9000-9999/10000");
+        Assert.assertEquals(response.getBody(), Arrays.copyOfRange(this.content, 9000, 10000));
+    }
+
+    @Test()
+    public void testNotSatisfiable()
+        throws Exception
+    {
+        final Response response = service(this.handler, "GET", this.path, null, "Range", "bytes=10000-");
+        Assert.assertEquals(response.getStatus(), 416);
+        Assert.assertEquals(response.getHeader("Content-Range"), "bytes */10000");
+    }
+
+    @Test()
+    public void testInvalidRangeIgnored()
+        throws Exception
+    {
+        for (final String range : new String[] {"bytes=5-2", "items=1-2", "bytes=a-b", "bytes="}) {
+            final Response response = service(this.handler, "GET", this.path, null, "Range", range);
+            Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK, range);
+            Assert.assertEquals(response.getBody(), this.content, range);
+        }
+    }
+
+    @Test()
+    public void testIfRangeETag()
+        throws Exception
+    {
+        final String etag = Util.getETag(VFSBackend.resolveFile(this.path));
+        Response response = service(this.handler, "GET", this.path, null,
+                                    "Range", "bytes=0-9", "If-Range", "\"" + etag + "\"");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_PARTIAL_CONTENT);
+        Assert.assertEquals(response.getBody(), Arrays.copyOfRange(this.content, 0, 10));
+
+        response = service(this.handler, "GET", this.path, null,
+                           "Range", "bytes=0-9", "If-Range", "\"other\"");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+        Assert.assertEquals(response.getBody(), this.content);
+
+        response = service(this.handler, "GET", this.path, null,
+                           "Range", "bytes=0-9", "If-Range", "W/\"" + etag + "\"");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+    }
+
+    @Test()
+    public void testIfRangeDate()
+        throws Exception
+    {
+        final long lastModified = VFSBackend.resolveFile(this.path).getContent().getLastModifiedTime();
+        Response response = service(this.handler, "GET", this.path, null,
+                                    "Range", "bytes=0-9", "If-Range", Util.getDateString(lastModified));
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_PARTIAL_CONTENT);
+
+        response = service(this.handler, "GET", this.path, null,
+                           "Range", "bytes=0-9", "If-Range", Util.getDateString(lastModified - 60000));
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+    }
+
+    @Test()
+    public void testMultipleRanges()
+        throws Exception
+    {
+        final Response response = service(this.handler, "GET", this.path, null,
+                                          "Range", "bytes=500-599,-10,0-9");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_PARTIAL_CONTENT);
+        final String contentType = response.getHeader("Content-Type");
+        Assert.assertTrue(contentType.startsWith("multipart/byteranges; boundary="), contentType);
+        final String boundary = contentType.substring(contentType.indexOf('=') + 1);
+        Assert.assertEquals(response.getHeader("Content-Length"), String.valueOf(response.getBody().length));
+
+        // parts are sorted by their position
+        final String body = new String(response.getBody(), "ISO-8859-1");
+        final String[] parts = body.split("\r\n--" + boundary);
+        Assert.assertEquals(parts.length, 5);
+        Assert.assertEquals(parts[0], "");
+        Assert.assertEquals(parts[4], "--\r\n");
+        checkPart(parts[1], 0, 9);
+        checkPart(parts[2], 500, 599);
+        checkPart(parts[3], 9990, 9999);
+    }
+
+    @Test()
+    public void testOverlappingRangesCoalesced()
+        throws Exception
+    {
+        final Response response = service(this.handler, "GET", this.path, null,
+                                          "Range", "bytes=10-19,0-9,5-14,20-29");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_PARTIAL_CONTENT);
+        Assert.assertEquals(response.getHeader("Content-Range"), "bytes 0-29/10000");
+        Assert.assertEquals(response.getBody(), Arrays.copyOfRange(this.content, 0, 30));
+    }
+
+    @Test()
+    public void testTooManyRanges()
+        throws Exception
+    {
+        final StringBuilder range = new StringBuilder("bytes=");
+        for (int idx = 0; idx < 100; idx++) {
+            range.append(idx * 10).append('-').append(idx * 10 + 1).append(',');
+        }
+        final Response response = service(this.handler, "GET", this.path, null, "Range", range.toString());
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+        Assert.assertEquals(response.getBody(), this.content);
+    }
+
+    /**
+     * Checks the headers and the content of one part of a multipart body.
+     *
+     * @param _part     part to check
+     * @param _first    expected first byte
+     * @param _last     expected last byte
+     * @throws Exception if the check fails
+     */
+    private void checkPart(final String _part,
+                           final int _first,
+                           final int _last)
+        throws Exception
+    {
+        final int headerEnd = _part.indexOf("\r\n\r\n");
+        final String header = _part.substring(0, headerEnd);
+        Assert.assertTrue(header.contains("\r\nContent-Range: bytes " + _first + "-" + _last + "/10000"), header);
+        Assert.assertTrue(header.contains("\r\nContent-Type: "), header);
+        Assert.assertEquals(_part.substring(headerEnd + 4).getBytes("ISO-8859-1"),
+                            Arrays.copyOfRange(this.content, _first, _last + 1));
+    }
+}
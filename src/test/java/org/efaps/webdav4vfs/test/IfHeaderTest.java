@@ -0,0 +1,100 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import java.text.ParseException;
+import java.util.List;
+
+import org.efaps.webdav4vfs.lock.IfHeader;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the parser of the 'If:' header.
+ *
+ * @author The eFaps Team
+ */
+public class IfHeaderTest
+{
+    @Test()
+    public void testNoTagList()
+        throws Exception
+    {
+        final IfHeader header = IfHeader.parse("(<urn:uuid:181d4fae> [W/\"A weak ETag\"]) ([\"strong ETag\"])");
+        Assert.assertEquals(header.getTaggedLists().size(), 1);
+        final IfHeader.TaggedList taggedList = header.getTaggedLists().get(0);
+        Assert.assertNull(taggedList.getPath());
+        Assert.assertEquals(taggedList.getLists().size(), 2);
+
+        final List<IfHeader.Condition> first = taggedList.getLists().get(0);
+        Assert.assertEquals(first.size(), 2);
+        Assert.assertEquals(first.get(0).getType(), IfHeader.Condition.Type.STATE_TOKEN);
+        Assert.assertEquals(first.get(0).getValue(), "urn:uuid:181d4fae");
+        Assert.assertFalse(first.get(0).isNegated());
+        Assert.assertEquals(first.get(1).getType(), IfHeader.Condition.Type.ENTITY_TAG);
+        Assert.assertEquals(first.get(1).getValue(), "W/\"A weak ETag\"");
+        Assert.assertEquals(taggedList.getLists().get(1).get(0).getValue(), "\"strong ETag\"");
+    }
+
+    @Test()
+    public void testTaggedLists()
+        throws Exception
+    {
+        final IfHeader header = IfHeader.parse(
+                "<http://cid:8080/litmus/unmapped_url> (<opaquelocktoken:cd6798>) </specs/rfc2518.doc> (Not [\"4217\"])");
+        Assert.assertEquals(header.getTaggedLists().size(), 2);
+        Assert.assertEquals(header.getTaggedLists().get(0).getPath(), "/litmus/unmapped_url");
+        Assert.assertEquals(header.getTaggedLists().get(1).getPath(), "/specs/rfc2518.doc");
+        final IfHeader.Condition condition = header.getTaggedLists().get(1).getLists().get(0).get(0);
+        Assert.assertTrue(condition.isNegated());
+        Assert.assertEquals(condition.getValue(), "\"4217\"");
+    }
+
+    @Test()
+    public void testNotIsCaseInsensitive()
+        throws Exception
+    {
+        final IfHeader header = IfHeader.parse("(NOT <DAV:no-lock>)(nOt<DAV:no-lock>)");
+        Assert.assertTrue(header.getTaggedLists().get(0).getLists().get(0).get(0).isNegated());
+        Assert.assertTrue(header.getTaggedLists().get(0).getLists().get(1).get(0).isNegated());
+    }
+
+    @Test()
+    public void testParsedHeadersAreCached()
+        throws Exception
+    {
+        final String value = "(<opaquelocktoken:cached>)";
+        Assert.assertSame(IfHeader.parse(value), IfHeader.parse(new String(value)));
+    }
+
+    @Test()
+    public void testSyntaxErrors()
+    {
+        for (final String value : new String[] {"(", "()", "(<token>", "(<>)", "(Not)", "(x)", "x", "<a b>"}) {
+            try {
+                IfHeader.parse(value);
+                Assert.fail("no parse exception for '" + value + "'");
+            } catch (final ParseException e) {
+                Assert.assertTrue(e.getErrorOffset() >= 0);
+            }
+        }
+    }
+}
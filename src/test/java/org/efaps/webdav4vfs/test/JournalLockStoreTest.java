@@ -0,0 +1,214 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.efaps.webdav4vfs.lock.JournalLockStore;
+import org.efaps.webdav4vfs.lock.Lock;
+import org.efaps.webdav4vfs.lock.LockManager;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the journal based lock store.
+ *
+ * @author The eFaps Team
+ */
+public class JournalLockStoreTest
+    extends AbstractDavTestCase
+{
+    private static final String OWNER_STR = "testowner";
+
+    /**
+     * Small region size so that the tests use more than one region.
+     */
+    private static final int REGION_SIZE = 4096;
+
+    private File journal;
+
+    @BeforeMethod()
+    public void createJournal()
+        throws Exception
+    {
+        this.journal = File.createTempFile("webdav4vfs", ".journal");
+        this.journal.delete();
+    }
+
+    @AfterMethod()
+    public void deleteJournal()
+    {
+        this.journal.delete();
+        new File(this.journal.getPath() + ".compact").delete();
+    }
+
+    @Test()
+    public void testLocksAreRestored()
+        throws Exception
+    {
+        final Lock lock1 = new Lock(aFile, Lock.WRITE, Lock.SHARED, OWNER_STR, 0, 3600);
+        final Lock lock2 = new Lock(aFile, Lock.WRITE, Lock.SHARED, new URL("http://owner"), 0, 60);
+        final Lock lock3 = new Lock(aDirectory, Lock.WRITE, Lock.EXCLUSIVE, null, Integer.MAX_VALUE, -1);
+
+        JournalLockStore store = new JournalLockStore(this.journal, REGION_SIZE, 10);
+        store.stored(lock1);
+        store.stored(lock2);
+        store.stored(lock3);
+        LockManager.getInstance().refreshLock(lock2, 7200);
+        store.refreshed(lock2);
+        store.removed(lock1);
+        store.close();
+
+        store = new JournalLockStore(this.journal, REGION_SIZE, 10);
+        final Map<String, Lock> restored = toMap(store.load(aFile.getParent()));
+        store.close();
+
+        Assert.assertEquals(restored.size(), 2);
+        Assert.assertFalse(restored.containsKey(lock1.getToken()), "removed lock must not be restored");
+        final Lock restored2 = restored.get(lock2.getToken());
+        Assert.assertEquals(restored2.getObject(), aFile);
+        Assert.assertEquals(restored2.getOwner(), lock2.getOwner());
+        Assert.assertEquals(restored2.getScope(), Lock.SHARED);
+        Assert.assertEquals(restored2.getTimeout(), "Second-7200");
+        Assert.assertEquals(restored2.getExpires(), lock2.getExpires());
+        final Lock restored3 = restored.get(lock3.getToken());
+        Assert.assertEquals(restored3.getObject(), aDirectory);
+        Assert.assertNull(restored3.getOwner());
+        Assert.assertEquals(restored3.getDepth(), Integer.MAX_VALUE);
+        Assert.assertEquals(restored3.getTimeout(), "Infinity");
+    }
+
+    @Test()
+    public void testExpiredLocksAreNotRestored()
+        throws Exception
+    {
+        final Lock lock = new Lock(aFile, Lock.WRITE, Lock.SHARED, OWNER_STR, 0, 0);
+        JournalLockStore store = new JournalLockStore(this.journal, REGION_SIZE, 10);
+        store.stored(lock);
+        store.close();
+
+        store = new JournalLockStore(this.journal, REGION_SIZE, 10);
+        Assert.assertTrue(store.load(aFile.getParent()).isEmpty(), "expired lock must not be restored");
+        store.close();
+    }
+
+    @Test()
+    public void testCompactedJournalIsRestored()
+        throws Exception
+    {
+        final List<Lock> locks = new ArrayList<Lock>();
+        JournalLockStore store = new JournalLockStore(this.journal, REGION_SIZE, 10);
+        for (int idx = 0; idx < 500; idx++) {
+            final Lock lock = new Lock(aFile, Lock.WRITE, Lock.SHARED, OWNER_STR + idx, 0, 3600);
+            store.stored(lock);
+            if ((idx % 5) == 0) {
+                locks.add(lock);
+            } else {
+                store.removed(lock);
+            }
+        }
+        final long length = this.journal.length();
+        store.compact();
+        Assert.assertTrue(this.journal.length() < length, "journal was not compacted");
+        // append after the compaction
+        final Lock lock = new Lock(aFile, Lock.WRITE, Lock.SHARED, OWNER_STR, 0, 3600);
+        store.stored(lock);
+        locks.add(lock);
+        store.close();
+
+        store = new JournalLockStore(this.journal, REGION_SIZE, 10);
+        final Map<String, Lock> restored = toMap(store.load(aFile.getParent()));
+        store.close();
+        Assert.assertEquals(restored.size(), locks.size());
+        for (final Lock expected : locks) {
+            Assert.assertEquals(restored.get(expected.getToken()).getOwner(), expected.getOwner());
+        }
+    }
+
+    /**
+     * Locks stored while the journal is compacted are part of the compacted
+     * journal.
+     *
+     * @throws Exception on failure
+     */
+    @Test()
+    public void testStoredWhileCompacted()
+        throws Exception
+    {
+        final List<Lock> locks = new ArrayList<Lock>();
+        final JournalLockStore store = new JournalLockStore(this.journal, REGION_SIZE, 10);
+        for (int idx = 0; idx < 300; idx++) {
+            final Lock lock = new Lock(aFile, Lock.WRITE, Lock.SHARED, OWNER_STR + idx, 0, 3600);
+            store.stored(lock);
+            locks.add(lock);
+        }
+        final Thread compactor = new Thread() {
+            @Override()
+            public void run()
+            {
+                try {
+                    for (int idx = 0; idx < 20; idx++) {
+                        store.compact();
+                    }
+                } catch (final IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        compactor.start();
+        for (int idx = 0; idx < 300; idx++) {
+            final Lock lock = new Lock(aFile, Lock.WRITE, Lock.SHARED, "other" + idx, 0, 3600);
+            store.stored(lock);
+            if ((idx % 2) == 0) {
+                store.removed(locks.remove(0));
+            }
+            locks.add(lock);
+        }
+        compactor.join();
+        store.close();
+
+        final JournalLockStore reopened = new JournalLockStore(this.journal, REGION_SIZE, 10);
+        final Map<String, Lock> restored = toMap(reopened.load(aFile.getParent()));
+        reopened.close();
+        Assert.assertEquals(restored.size(), locks.size());
+        for (final Lock expected : locks) {
+            Assert.assertEquals(restored.get(expected.getToken()).getOwner(), expected.getOwner());
+        }
+    }
+
+    private Map<String, Lock> toMap(final Collection<Lock> _locks)
+    {
+        final Map<String, Lock> ret = new HashMap<String, Lock>();
+        for (final Lock lock : _locks) {
+            ret.put(lock.getToken(), lock);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.text.ParseException;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.efaps.webdav4vfs.lock.Lock;
+import org.efaps.webdav4vfs.lock.LockConflictException;
+import org.efaps.webdav4vfs.lock.LockManager;
+import org.efaps.webdav4vfs.metrics.Counter;
+import org.efaps.webdav4vfs.metrics.Histogram;
+import org.efaps.webdav4vfs.metrics.Metrics;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the metrics and the metrics of the lock subsystem.
+ *
+ * @author The eFaps Team
+ */
+public class MetricsTest
+    extends AbstractDavTestCase
+{
+    @Test()
+    public void testHistogramQuantiles()
+    {
+        final Histogram histogram = Metrics.getInstance().histogram("test_histogram_seconds", "Test histogram.");
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value * 1000L);
+        }
+        Assert.assertEquals(histogram.getCount(), 1000);
+        Assert.assertEquals(histogram.getMax(), 1000000L);
+        Assert.assertEquals(histogram.getSum(), 500500000L);
+        final long median = histogram.getQuantile(0.5);
+        Assert.assertTrue((median >= 500000L) && (median <= 500000L * 33 / 32), "median " + median);
+        final long p99 = histogram.getQuantile(0.99);
+        Assert.assertTrue((p99 >= 990000L) && (p99 <= 1000000L), "p99 " + p99);
+        Assert.assertEquals(histogram.getQuantile(1.0), 1000000L);
+    }
+
+    @Test()
+    public void testLockConflictCounted()
+        throws Exception
+    {
+        final Lock exclusive = new Lock(aFile, Lock.WRITE, Lock.EXCLUSIVE, "owner1", 0, 3600);
+        final Lock other = new Lock(aFile, Lock.WRITE, Lock.EXCLUSIVE, "owner2", 0, 3600);
+        LockManager.getInstance().acquireLock(exclusive);
+
+        final Counter conflicts = (Counter) Metrics.getInstance().getMetric("webdav4vfs_lock_conflicts_exclusive_total");
+        final long before = conflicts.get();
+        try {
+            LockManager.getInstance().acquireLock(other);
+            Assert.fail("conflict expected");
+        } catch (final LockConflictException e) {
+            Assert.assertEquals(conflicts.get(), before + 1);
+        } finally {
+            LockManager.getInstance().releaseLock(aFile, exclusive.getToken());
+        }
+
+        final StringWriter writer = new StringWriter();
+        Metrics.getInstance().writeText(writer);
+        final String text = writer.toString();
+        Assert.assertTrue(text.contains("# TYPE webdav4vfs_lock_acquire_seconds summary\n"), text);
+        Assert.assertTrue(text.contains("\nwebdav4vfs_lock_conflicts_exclusive_total " + (before + 1) + "\n"), text);
+        Assert.assertTrue(text.contains("\nwebdav4vfs_lock_active "), text);
+    }
+
+    @Test()
+    public void testIfEvaluationCounted()
+        throws Exception
+    {
+        Assert.assertTrue(LockManager.getInstance().evaluateCondition(aFile, "(Not <DAV:no-lock>)").result);
+
+        final Counter invalid = (Counter) Metrics.getInstance().getMetric("webdav4vfs_lock_if_invalid_total");
+        final Counter success = (Counter) Metrics.getInstance().getMetric("webdav4vfs_lock_if_true_total");
+        final long invalidBefore = invalid.get();
+        final long successBefore = success.get();
+        try {
+            LockManager.getInstance().evaluateCondition(aFile, "(<DAV:no-lock>");
+            Assert.fail("parse exception expected");
+        } catch (final ParseException e) {
+            Assert.assertEquals(invalid.get(), invalidBefore + 1);
+        }
+        Assert.assertTrue(LockManager.getInstance().evaluateCondition(aFile, "(Not <DAV:no-lock>)").result);
+        Assert.assertEquals(success.get(), successBefore + 1);
+    }
+
+    @Test()
+    public void testMBean()
+        throws Exception
+    {
+        Metrics.getInstance().registerMBean();
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName("org.efaps.webdav4vfs:type=Metrics");
+            Assert.assertTrue(server.isRegistered(name));
+            Assert.assertNotNull(server.getAttribute(name, "webdav4vfs_lock_acquire_seconds_count"));
+            Assert.assertNotNull(server.getAttribute(name, "webdav4vfs_lock_active"));
+        } finally {
+            Metrics.getInstance().unregisterMBean();
+        }
+    }
+}
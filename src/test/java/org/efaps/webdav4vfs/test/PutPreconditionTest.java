@@ -0,0 +1,242 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.efaps.webdav4vfs.handler.PutHandler;
+import org.efaps.webdav4vfs.util.Util;
+import org.efaps.webdav4vfs.vfs.Staging;
+import org.efaps.webdav4vfs.vfs.VFSBackend;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that rejected PUT requests do not read their body (so that a client
+ * waiting for a "100 Continue" never sends it).
+ *
+ * @author The eFaps Team
+ */
+public class PutPreconditionTest
+    extends AbstractHandlerTestCase
+{
+    private static final byte[] BODY = new byte[1000];
+
+    private final PutHandler put = new PutHandler();
+
+    @AfterMethod()
+    public void resetStaging()
+    {
+        Staging.setInstance(new Staging(Staging.DEFAULT_MAX_AGE, Staging.DEFAULT_SPOOL_DIR));
+    }
+
+    @Test()
+    public void testAccepted()
+        throws Exception
+    {
+        final Response response = service(this.put, "PUT", this.folder + "/file.bin", PutPreconditionTest.BODY,
+                                           "Expect", "100-continue", "Content-Length", "1000");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_CREATED);
+        Assert.assertEquals(response.getConsumed(), 1000);
+    }
+
+    @Test()
+    public void testIfConditionFails()
+        throws Exception
+    {
+        final String path = createFile("file.bin", new byte[10]);
+        assertRejected(service(this.put, "PUT", path, PutPreconditionTest.BODY,
+                               "Expect", "100-continue", "If", "(<urn:uuid:wrong-token>)"),
+                       HttpServletResponse.SC_PRECONDITION_FAILED);
+    }
+
+    /**
+     * <code>If-None-Match: *</code> only creates a new file.
+     *
+     * @throws Exception on failure
+     */
+    @Test()
+    public void testIfNoneMatch()
+        throws Exception
+    {
+        final String path = this.folder + "/file.bin";
+        Assert.assertEquals(service(this.put, "PUT", path, PutPreconditionTest.BODY,
+                                    "Expect", "100-continue", "If-None-Match", "*").getStatus(),
+                            HttpServletResponse.SC_CREATED);
+        assertRejected(service(this.put, "PUT", path, PutPreconditionTest.BODY,
+                               "Expect", "100-continue", "If-None-Match", "*"),
+                       HttpServletResponse.SC_PRECONDITION_FAILED);
+        assertRejected(service(this.put, "PUT", path, PutPreconditionTest.BODY,
+                               "Expect", "100-continue", "If-None-Match", "\"" + etag(path) + "\""),
+                       HttpServletResponse.SC_PRECONDITION_FAILED);
+    }
+
+    /**
+     * <code>If-Match</code> only overwrites the file with the given entity
+     * tag.
+     *
+     * @throws Exception on failure
+     */
+    @Test()
+    public void testIfMatch()
+        throws Exception
+    {
+        final String path = this.folder + "/file.bin";
+        assertRejected(service(this.put, "PUT", path, PutPreconditionTest.BODY,
+                               "Expect", "100-continue", "If-Match", "*"),
+                       HttpServletResponse.SC_PRECONDITION_FAILED);
+        service(this.put, "PUT", path, new byte[10]);
+        assertRejected(service(this.put, "PUT", path, PutPreconditionTest.BODY,
+                               "Expect", "100-continue", "If-Match", "\"other\""),
+                       HttpServletResponse.SC_PRECONDITION_FAILED);
+        Assert.assertEquals(service(this.put, "PUT", path, PutPreconditionTest.BODY,
+                                    "Expect", "100-continue", "If-Match", "\"" + etag(path) + "\"").getStatus(),
+                            HttpServletResponse.SC_CREATED);
+        Assert.assertEquals(VFSBackend.resolveFile(path).getContent().getSize(), PutPreconditionTest.BODY.length);
+    }
+
+    /**
+     * The conditions are evaluated again when the upload is committed,
+     * because the target could be created while the body is read.
+     *
+     * @throws Exception on failure
+     */
+    @Test()
+    public void testIfNoneMatchOnCommit()
+        throws Exception
+    {
+        final String path = this.folder + "/file.bin";
+        Assert.assertEquals(service(this.put, "PUT", path, new byte[5], "If-None-Match", "*",
+                                    "Content-Range", "bytes 0-4/10").getStatus(),
+                            HttpServletResponse.SC_ACCEPTED);
+        createFile("file.bin", new byte[3]);
+        final Response response = service(this.put, "PUT", path, new byte[5],
+                                          "Content-Range", "bytes 5-9/10", "If-None-Match", "*");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_PRECONDITION_FAILED);
+        Assert.assertEquals(VFSBackend.resolveFile(path).getContent().getSize(), 3);
+    }
+
+    @Test()
+    public void testTargetIsFolder()
+        throws Exception
+    {
+        assertRejected(service(this.put, "PUT", this.folder, PutPreconditionTest.BODY, "Expect", "100-continue"),
+                       HttpServletResponse.SC_FORBIDDEN);
+    }
+
+    @Test()
+    public void testParentMissing()
+        throws Exception
+    {
+        assertRejected(service(this.put, "PUT", this.folder + "/missing/file.bin", PutPreconditionTest.BODY,
+                               "Expect", "100-continue"),
+                       HttpServletResponse.SC_FORBIDDEN);
+    }
+
+    @Test()
+    public void testParentIsFile()
+        throws Exception
+    {
+        final String path = createFile("file.bin", new byte[10]);
+        assertRejected(service(this.put, "PUT", path + "/child.bin", PutPreconditionTest.BODY,
+                               "Expect", "100-continue"),
+                       HttpServletResponse.SC_CONFLICT);
+    }
+
+    @Test()
+    public void testInvalidContentLength()
+        throws Exception
+    {
+        assertRejected(service(this.put, "PUT", this.folder + "/file.bin", PutPreconditionTest.BODY,
+                               "Expect", "100-continue", "Content-Length", "many"),
+                       HttpServletResponse.SC_BAD_REQUEST);
+    }
+
+    @Test()
+    public void testTooLarge()
+        throws Exception
+    {
+        Staging.setInstance(new Staging(Staging.DEFAULT_MAX_AGE, Staging.DEFAULT_SPOOL_DIR, 100));
+        assertRejected(service(this.put, "PUT", this.folder + "/file.bin", PutPreconditionTest.BODY,
+                               "Expect", "100-continue", "Content-Length", "1000"),
+                       HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        assertRejected(service(this.put, "PUT", this.folder + "/file.bin", PutPreconditionTest.BODY,
+                               "Expect", "100-continue", "Content-Range", "bytes 0-999/1000"),
+                       HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+
+        // without content length the size is checked after the upload
+        final Response response = service(this.put, "PUT", this.folder + "/file.bin", PutPreconditionTest.BODY);
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        Assert.assertFalse(VFSBackend.resolveFile(this.folder + "/file.bin").exists());
+        Assert.assertEquals(VFSBackend.resolveFile(this.folder).getChildren().length, 0, "staging file left");
+    }
+
+    @Test()
+    public void testRangeRejected()
+        throws Exception
+    {
+        final String path = this.folder + "/file.bin";
+        assertRejected(service(this.put, "PUT", path, PutPreconditionTest.BODY,
+                               "Expect", "100-continue", "Content-Range", "bytes 0-999/2000", "Content-Length", "10"),
+                       HttpServletResponse.SC_BAD_REQUEST);
+        final Response response = service(this.put, "PUT", path, PutPreconditionTest.BODY,
+                                           "Expect", "100-continue", "Content-Range", "bytes 1000-1999/2000");
+        assertRejected(response, HttpServletResponse.SC_CONFLICT);
+        Assert.assertEquals(response.getHeader("Upload-Offset"), "0");
+    }
+
+    @Test()
+    public void testConnectionClosed()
+        throws Exception
+    {
+        // the client sends the body without waiting for a "100 Continue"
+        final Response response = service(this.put, "PUT", this.folder, PutPreconditionTest.BODY,
+                                           "Content-Length", "1000");
+        assertRejected(response, HttpServletResponse.SC_FORBIDDEN);
+        Assert.assertEquals(response.getHeader("Connection"), "close");
+
+        Assert.assertNull(service(this.put, "PUT", this.folder, PutPreconditionTest.BODY,
+                                  "Expect", "100-continue", "Content-Length", "1000").getHeader("Connection"));
+    }
+
+    /**
+     * @param _path     path of a file
+     * @return entity tag of the file
+     * @throws Exception if the file could not be resolved
+     */
+    private String etag(final String _path)
+        throws Exception
+    {
+        return Util.getETag(VFSBackend.resolveFile(_path));
+    }
+
+    /**
+     * @param _response     response of the rejected request
+     * @param _status       expected status
+     */
+    private void assertRejected(final Response _response,
+                                final int _status)
+    {
+        Assert.assertEquals(_response.getStatus(), _status);
+        Assert.assertEquals(_response.getConsumed(), 0, "body read");
+    }
+}
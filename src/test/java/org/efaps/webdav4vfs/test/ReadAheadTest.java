@@ -0,0 +1,339 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.vfs.FileContent;
+import org.apache.commons.vfs.FileObject;
+import org.efaps.webdav4vfs.metrics.Counter;
+import org.efaps.webdav4vfs.metrics.Metrics;
+import org.efaps.webdav4vfs.vfs.ReadAhead;
+import org.efaps.webdav4vfs.vfs.VFSBackend;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests and a benchmark for the read ahead of contents. The contents are
+ * simulated by a stub whose input stream waits for each read (like a file
+ * system with a high latency).
+ *
+ * @author The eFaps Team
+ */
+public class ReadAheadTest
+    extends AbstractHandlerTestCase
+{
+    private static final Log LOG = LogFactory.getLog(ReadAheadTest.class);
+
+    /**
+     * Latency of each read and write of the benchmark in milliseconds.
+     */
+    private static final int LATENCY = 2;
+
+    /**
+     * Bytes returned by one read of the stub and written by one write to
+     * the simulated client.
+     */
+    private static final int PACKET_SIZE = 16 * 1024;
+
+    @Test()
+    public void testContent()
+        throws Exception
+    {
+        final byte[] bytes = new byte[1024 * 1024 + 17];
+        new Random(4711).nextBytes(bytes);
+        final ReadAhead readAhead = new ReadAhead(3, 10000);
+
+        // block reads
+        LatencyInputStream source = new LatencyInputStream(bytes, 0, -1);
+        InputStream in = readAhead.getInputStream(stubContent(source));
+        Assert.assertEquals(IOUtils.toByteArray(in), bytes);
+        Assert.assertEquals(in.read(), -1);
+        in.close();
+        Assert.assertTrue(source.closed);
+
+        // single byte reads
+        source = new LatencyInputStream(bytes, 0, -1);
+        in = readAhead.getInputStream(stubContent(source));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int read = in.read(); read >= 0; read = in.read()) {
+            out.write(read);
+        }
+        in.close();
+        Assert.assertEquals(out.toByteArray(), bytes);
+    }
+
+    @Test()
+    public void testDirect()
+        throws Exception
+    {
+        final Counter streams = (Counter) Metrics.getInstance().getMetric("webdav4vfs_readahead_streams_total");
+        final long before = streams.get();
+        final byte[] bytes = new byte[100];
+
+        InputStream in = new ReadAhead(4, 100).getInputStream(stubContent(new LatencyInputStream(bytes, 0, -1)));
+        Assert.assertEquals(IOUtils.toByteArray(in), bytes);
+        in = new ReadAhead(0, 10).getInputStream(stubContent(new LatencyInputStream(bytes, 0, -1)));
+        Assert.assertEquals(IOUtils.toByteArray(in), bytes);
+        Assert.assertEquals(streams.get(), before);
+
+        in = new ReadAhead(4, 10).getInputStream(stubContent(new LatencyInputStream(bytes, 0, -1)));
+        Assert.assertEquals(IOUtils.toByteArray(in), bytes);
+        Assert.assertEquals(streams.get(), before + 1);
+    }
+
+    @Test()
+    public void testFailure()
+        throws Exception
+    {
+        final byte[] bytes = new byte[100000];
+        final LatencyInputStream source = new LatencyInputStream(bytes, 0, 50000);
+        final InputStream in = new ReadAhead(2, 1000).getInputStream(stubContent(source));
+        final byte[] buffer = new byte[1000];
+        int total = 0;
+        try {
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                total += read;
+            }
+            Assert.fail("failure of the source not thrown");
+        } catch (final IOException e) {
+            Assert.assertEquals(e.getMessage(), "simulated failure");
+        }
+        Assert.assertEquals(total, 50000);
+        in.close();
+        Assert.assertTrue(source.closed);
+    }
+
+    @Test()
+    public void testCloseEarly()
+        throws Exception
+    {
+        final byte[] bytes = new byte[10 * 1024 * 1024];
+        final LatencyInputStream source = new LatencyInputStream(bytes, 1, -1);
+        final InputStream in = new ReadAhead(4, 1024).getInputStream(stubContent(source));
+        Assert.assertEquals(in.read(new byte[100]), 100);
+        in.close();
+        Assert.assertTrue(source.closed);
+        Assert.assertEquals(source.closingThread, Thread.currentThread());
+        final int position = source.position;
+        Thread.sleep(20);
+        Assert.assertEquals(source.position, position, "source read after close");
+        try {
+            in.read();
+            Assert.fail("read of a closed stream");
+        } catch (final IOException e) {
+            Assert.assertEquals(e.getMessage(), "stream closed");
+        }
+    }
+
+    /**
+     * Compares the copy of a content from a file system with latency to a
+     * client with latency without and with read ahead.
+     *
+     * @throws Exception if the test failed
+     */
+    @Test()
+    public void benchmark()
+        throws Exception
+    {
+        final byte[] bytes = new byte[128 * ReadAheadTest.PACKET_SIZE];
+        new Random(4711).nextBytes(bytes);
+
+        final long direct = copy(new ReadAhead(0, ReadAhead.DEFAULT_BUFFER_SIZE), bytes);
+        final long readAhead = copy(new ReadAhead(ReadAhead.DEFAULT_DEPTH, ReadAheadTest.PACKET_SIZE), bytes);
+
+        LOG.info(String.format("copy of %d KB with %d ms latency per %d KB: direct %d ms, read ahead %d ms",
+                               bytes.length / 1024, ReadAheadTest.LATENCY, ReadAheadTest.PACKET_SIZE / 1024,
+                               direct / 1000000, readAhead / 1000000));
+        Assert.assertTrue(readAhead < direct * 0.8, "read ahead not faster");
+    }
+
+    /**
+     * @param _readAhead    read ahead to use
+     * @param _bytes        content
+     * @return duration of the copy in nanoseconds
+     * @throws Exception if the copy failed
+     */
+    private long copy(final ReadAhead _readAhead,
+                      final byte[] _bytes)
+        throws Exception
+    {
+        final LatencyOutputStream out = new LatencyOutputStream();
+        final long start = System.nanoTime();
+        final InputStream in = _readAhead.getInputStream(stubContent(
+                new LatencyInputStream(_bytes, ReadAheadTest.LATENCY, -1)));
+        try {
+            final byte[] buffer = new byte[ReadAheadTest.PACKET_SIZE];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        final long ret = System.nanoTime() - start;
+        Assert.assertTrue(Arrays.equals(out.bytes.toByteArray(), _bytes));
+        return ret;
+    }
+
+    /**
+     * @param _in   input stream of the content
+     * @return stub of a content (of a non local file) with given input
+     *         stream
+     * @throws Exception if the stub could not be created
+     */
+    private FileContent stubContent(final LatencyInputStream _in)
+        throws Exception
+    {
+        final FileObject file = VFSBackend.resolveFile(createFile("file.bin", new byte[0]));
+        return (FileContent) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {FileContent.class},
+                new InvocationHandler() {
+                    public Object invoke(final Object _proxy,
+                                         final Method _method,
+                                         final Object[] _args)
+                    {
+                        final Object ret;
+                        if ("getSize".equals(_method.getName())) {
+                            ret = (long) _in.bytes.length;
+                        } else if ("getFile".equals(_method.getName())) {
+                            ret = file;
+                        } else if ("getInputStream".equals(_method.getName())) {
+                            ret = _in;
+                        } else {
+                            throw new UnsupportedOperationException(_method.getName());
+                        }
+                        return ret;
+                    }
+                });
+    }
+
+    /**
+     * Input stream which waits for each read and returns at most
+     * {@link ReadAheadTest#PACKET_SIZE} bytes.
+     */
+    private static final class LatencyInputStream
+        extends InputStream
+    {
+        private final byte[] bytes;
+        private final int latency;
+        private final int failAt;
+        private volatile int position;
+        private volatile boolean closed;
+        private volatile Thread closingThread;
+
+        /**
+         * @param _bytes    content
+         * @param _latency  latency of each read in milliseconds
+         * @param _failAt   position where a read fails (or <code>-1</code>)
+         */
+        LatencyInputStream(final byte[] _bytes,
+                           final int _latency,
+                           final int _failAt)
+        {
+            this.bytes = _bytes;
+            this.latency = _latency;
+            this.failAt = _failAt;
+        }
+
+        @Override()
+        public int read()
+            throws IOException
+        {
+            final byte[] one = new byte[1];
+            return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xFF;
+        }
+
+        @Override()
+        public int read(final byte[] _bytes,
+                        final int _off,
+                        final int _len)
+            throws IOException
+        {
+            if (this.latency > 0) {
+                try {
+                    Thread.sleep(this.latency);
+                } catch (final InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+            }
+            if (this.position == this.failAt) {
+                throw new IOException("simulated failure");
+            }
+            int ret = -1;
+            if (this.position < this.bytes.length) {
+                int end = Math.min(this.bytes.length, this.position + Math.min(_len, ReadAheadTest.PACKET_SIZE));
+                if ((this.failAt > this.position) && (end > this.failAt)) {
+                    end = this.failAt;
+                }
+                ret = end - this.position;
+                System.arraycopy(this.bytes, this.position, _bytes, _off, ret);
+                this.position = end;
+            }
+            return ret;
+        }
+
+        @Override()
+        public void close()
+        {
+            this.closed = true;
+            this.closingThread = Thread.currentThread();
+        }
+    }
+
+    /**
+     * Output stream which simulates a client with latency.
+     */
+    private static final class LatencyOutputStream
+        extends OutputStream
+    {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        @Override()
+        public void write(final int _byte)
+        {
+            this.bytes.write(_byte);
+        }
+
+        @Override()
+        public void write(final byte[] _bytes,
+                          final int _off,
+                          final int _len)
+            throws IOException
+        {
+            try {
+                Thread.sleep(ReadAheadTest.LATENCY);
+            } catch (final InterruptedException e) {
+                throw new IOException("interrupted");
+            }
+            this.bytes.write(_bytes, _off, _len);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.efaps.webdav4vfs.handler.HeadHandler;
+import org.efaps.webdav4vfs.handler.PutHandler;
+import org.efaps.webdav4vfs.vfs.ContentCoordinator;
+import org.efaps.webdav4vfs.vfs.StagedFile;
+import org.efaps.webdav4vfs.vfs.Staging;
+import org.efaps.webdav4vfs.vfs.VFSBackend;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for resumable uploads with PUT requests with a
+ * <code>Content-Range</code> header.
+ *
+ * @author The eFaps Team
+ */
+public class ResumableUploadTest
+    extends AbstractHandlerTestCase
+{
+    private final PutHandler put = new PutHandler();
+
+    private final HeadHandler head = new HeadHandler();
+
+    @AfterMethod()
+    public void resetStaging()
+    {
+        Staging.setInstance(new Staging(Staging.DEFAULT_MAX_AGE, Staging.DEFAULT_SPOOL_DIR));
+    }
+
+    /**
+     * Uploads the content in parts which are interrupted at random
+     * positions; each part is resumed at a random offset before the offset
+     * reported by HEAD.
+     *
+     * @throws Exception on failure
+     */
+    @Test()
+    public void testInterruptAndResume()
+        throws Exception
+    {
+        final Random random = new Random(4711);
+        final byte[] content = new byte[200000];
+        random.nextBytes(content);
+        final String path = this.folder + "/large.bin";
+
+        int offset = 0;
+        int parts = 0;
+        Response response = null;
+        while ((response == null) || (response.getStatus() != HttpServletResponse.SC_CREATED)) {
+            Assert.assertTrue(parts++ < 1000, "upload not finished");
+            final int first = (offset == 0) ? 0 : random.nextInt(offset + 1);
+            final int sent = Math.min(content.length - first, random.nextInt(30000) + 1);
+            final boolean interrupted = random.nextBoolean() && (first + sent < content.length);
+            final int last = interrupted ? Math.min(content.length - 1, first + sent + random.nextInt(10000)) : first + sent - 1;
+            response = service(this.put, "PUT", path, Arrays.copyOfRange(content, first, first + sent),
+                               "Content-Range", "bytes " + first + "-" + last + "/" + content.length);
+            if (response.getStatus() != HttpServletResponse.SC_CREATED) {
+                Assert.assertEquals(response.getStatus(), interrupted
+                                                          ? HttpServletResponse.SC_BAD_REQUEST
+                                                          : HttpServletResponse.SC_ACCEPTED);
+                final Response status = service(this.head, "HEAD", path, null);
+                Assert.assertEquals(status.getStatus(), HttpServletResponse.SC_NOT_FOUND);
+                Assert.assertEquals(status.getHeader("Upload-Length"), String.valueOf(content.length));
+                offset = Integer.parseInt(status.getHeader("Upload-Offset"));
+                Assert.assertTrue(offset >= first + sent);
+                Assert.assertFalse(VFSBackend.resolveFile(path).exists(), "partial upload visible");
+            }
+        }
+        Assert.assertTrue(parts > 2);
+        Assert.assertTrue(Arrays.equals(read(path), content));
+        Assert.assertEquals(VFSBackend.resolveFile(this.folder).getChildren().length, 1, "staging file left");
+        Assert.assertNull(service(this.head, "HEAD", path, null).getHeader("Upload-Offset"));
+    }
+
+    /**
+     * The upload must be resumable after a restart of the server (simulated
+     * with a new staging instance).
+     *
+     * @throws Exception on failure
+     */
+    @Test()
+    public void testResumeAfterRestart()
+        throws Exception
+    {
+        final String path = createFile("file.txt", "existing".getBytes("UTF-8"));
+        Response response = service(this.put, "PUT", path, "new ".getBytes("UTF-8"),
+                                    "Content-Range", "bytes 0-3/11");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_ACCEPTED);
+        Assert.assertEquals(response.getHeader("Upload-Offset"), "4");
+        Assert.assertEquals(response.getHeader("Range"), "bytes=0-3");
+
+        Staging.setInstance(new Staging(Staging.DEFAULT_MAX_AGE, Staging.DEFAULT_SPOOL_DIR));
+        response = service(this.head, "HEAD", path, null);
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+        Assert.assertEquals(response.getHeader("Upload-Offset"), "4");
+        Assert.assertEquals(new String(read(path), "UTF-8"), "existing");
+
+        response = service(this.put, "PUT", path, "content".getBytes("UTF-8"),
+                           "Content-Range", "bytes 4-10/11");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_CREATED);
+        Assert.assertEquals(new String(read(path), "UTF-8"), "new content");
+    }
+
+    /**
+     * A part behind the written bytes is rejected with the current offset.
+     *
+     * @throws Exception on failure
+     */
+    @Test()
+    public void testGap()
+        throws Exception
+    {
+        final String path = this.folder + "/file.txt";
+        service(this.put, "PUT", path, "abc".getBytes("UTF-8"), "Content-Range", "bytes 0-2/10");
+        final Response response = service(this.put, "PUT", path, "ghi".getBytes("UTF-8"),
+                                          "Content-Range", "bytes 6-8/10");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_CONFLICT);
+        Assert.assertEquals(response.getHeader("Upload-Offset"), "3");
+    }
+
+    /**
+     * A part is rejected with the current offset if another part of the
+     * upload is still written after the timeout.
+     *
+     * @throws Exception on failure
+     */
+    @Test()
+    public void testBusy()
+        throws Exception
+    {
+        final String path = this.folder + "/file.txt";
+        service(this.put, "PUT", path, "abc".getBytes("UTF-8"), "Content-Range", "bytes 0-2/6");
+        final StagedFile upload = Staging.getInstance().getUpload(VFSBackend.resolveFile(path), false);
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread writer = new Thread() {
+            @Override()
+            public void run()
+            {
+                try {
+                    upload.tryLock(0);
+                    locked.countDown();
+                    done.await();
+                    upload.unlock();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        writer.start();
+        locked.await();
+        ContentCoordinator.setInstance(new ContentCoordinator(0));
+        try {
+            final Response response = service(this.put, "PUT", path, "def".getBytes("UTF-8"),
+                                              "Content-Range", "bytes 3-5/6");
+            Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_CONFLICT);
+            Assert.assertEquals(response.getHeader("Upload-Offset"), "3");
+            Assert.assertEquals(response.getConsumed(), 0);
+        } finally {
+            ContentCoordinator.setInstance(new ContentCoordinator(ContentCoordinator.DEFAULT_TIMEOUT));
+            done.countDown();
+            writer.join();
+        }
+        Assert.assertEquals(service(this.put, "PUT", path, "def".getBytes("UTF-8"),
+                                    "Content-Range", "bytes 3-5/6").getStatus(),
+                            HttpServletResponse.SC_CREATED);
+        Assert.assertEquals(new String(read(path), "UTF-8"), "abcdef");
+    }
+
+    /**
+     * The state of an upload could be queried with an empty part.
+     *
+     * @throws Exception on failure
+     */
+    @Test()
+    public void testQuery()
+        throws Exception
+    {
+        final String path = this.folder + "/file.txt";
+        service(this.put, "PUT", path, "abc".getBytes("UTF-8"), "Content-Range", "bytes 0-2/*");
+        Response response = service(this.put, "PUT", path, new byte[0], "Content-Range", "bytes */5");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_ACCEPTED);
+        Assert.assertEquals(response.getHeader("Upload-Offset"), "3");
+
+        response = service(this.put, "PUT", path, "de".getBytes("UTF-8"), "Content-Range", "bytes 3-4/5");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_CREATED);
+        Assert.assertEquals(new String(read(path), "UTF-8"), "abcde");
+    }
+
+    /**
+     * Invalid content ranges are rejected.
+     *
+     * @throws Exception on failure
+     */
+    @Test()
+    public void testInvalidRange()
+        throws Exception
+    {
+        final String path = this.folder + "/file.txt";
+        for (final String range : new String[] {"bytes 5-2/10", "bytes 0-10/10", "bytes */*", "items 0-1/2", "bytes x"}) {
+            Assert.assertEquals(service(this.put, "PUT", path, "ab".getBytes("UTF-8"), "Content-Range", range)
+                                        .getStatus(),
+                                HttpServletResponse.SC_BAD_REQUEST, range);
+        }
+        Assert.assertFalse(VFSBackend.resolveFile(path).exists());
+    }
+
+    /**
+     * @param _path     path of a file
+     * @return content of the file
+     * @throws Exception if the file could not be read
+     */
+    private byte[] read(final String _path)
+        throws Exception
+    {
+        final InputStream in = VFSBackend.resolveFile(_path).getContent().getInputStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright 2003 - 2010 The eFaps Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Revision:        $Rev$
+ * Last Changed:    $Date$
+ * Last Changed By: $Author$
+ */
+
+package org.efaps.webdav4vfs.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.vfs.Capability;
+import org.apache.commons.vfs.FileName;
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystem;
+import org.apache.commons.vfs.FileSystemOptions;
+import org.apache.commons.vfs.VFS;
+import org.apache.commons.vfs.impl.DefaultFileSystemManager;
+import org.efaps.webdav4vfs.handler.GetHandler;
+import org.efaps.webdav4vfs.handler.PropPatchHandler;
+import org.efaps.webdav4vfs.handler.PutHandler;
+import org.efaps.webdav4vfs.test.ramvfs.RamFileProvider;
+import org.efaps.webdav4vfs.test.ramvfs.RamFileSystem;
+import org.efaps.webdav4vfs.vfs.StagedFile;
+import org.efaps.webdav4vfs.vfs.Staging;
+import org.efaps.webdav4vfs.vfs.VFSBackend;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the staged uploads of PUT requests.
+ *
+ * @author The eFaps Team
+ */
+public class StagingTest
+    extends AbstractHandlerTestCase
+{
+    /**
+     * Scheme of a ramvfs provider without rename.
+     */
+    private static final String SCHEME_NO_RENAME = "ramvfs-norename";
+
+    /**
+     * Scheme of a ramvfs provider with rename, but without random access
+     * writes.
+     */
+    private static final String SCHEME_NO_RANDOM_WRITE = "ramvfs-norandomwrite";
+
+    private final PutHandler put = new PutHandler();
+
+    @AfterMethod()
+    public void resetStaging()
+    {
+        Staging.setInstance(new Staging(Staging.DEFAULT_MAX_AGE, Staging.DEFAULT_SPOOL_DIR));
+    }
+
+    @Test()
+    public void testPut()
+        throws Exception
+    {
+        final String path = this.folder + "/file.txt";
+        Response response = service(this.put, "PUT", path, "first".getBytes("UTF-8"));
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_CREATED);
+        Assert.assertEquals(read(path), "first");
+
+        response = service(this.put, "PUT", path, "second content".getBytes("UTF-8"), "Content-Length", "14");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_CREATED);
+        Assert.assertEquals(read(path), "second content");
+        response = service(new GetHandler(), "GET", path, null);
+        Assert.assertEquals(response.getHeader("Content-Length"), "14");
+        Assert.assertEquals(new String(response.getBody(), "UTF-8"), "second content");
+        Assert.assertEquals(VFSBackend.resolveFile(this.folder).getChildren().length, 1, "staging file left");
+    }
+
+    @Test()
+    public void testPutIncomplete()
+        throws Exception
+    {
+        final String path = createFile("file.txt", "existing".getBytes("UTF-8"));
+        final Response response = service(this.put, "PUT", path, "trunc".getBytes("UTF-8"), "Content-Length", "100");
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_BAD_REQUEST);
+        Assert.assertEquals(read(path), "existing");
+        Assert.assertEquals(VFSBackend.resolveFile(this.folder).getChildren().length, 1, "staging file left");
+    }
+
+    @Test()
+    public void testFailedUpload()
+        throws Exception
+    {
+        final String path = createFile("file.txt", "existing".getBytes("UTF-8"));
+        final StagedFile stagedFile = Staging.getInstance().create(VFSBackend.resolveFile(path));
+        try {
+            stagedFile.write(new InputStream() {
+                private int count;
+
+                @Override()
+                public int read()
+                    throws IOException
+                {
+                    if (this.count++ > 1000) {
+                        throw new IOException("connection reset");
+                    }
+                    return 'x';
+                }
+            });
+            Assert.fail("failure of the upload not thrown");
+        } catch (final IOException e) {
+            Assert.assertEquals(e.getMessage(), "connection reset");
+        } finally {
+            stagedFile.discard();
+        }
+        Assert.assertEquals(read(path), "existing");
+        Assert.assertEquals(VFSBackend.resolveFile(this.folder).getChildren().length, 1, "staging file left");
+    }
+
+    @Test()
+    public void testReadersSeeOldContent()
+        throws Exception
+    {
+        final String path = createFile("file.txt", "existing".getBytes("UTF-8"));
+        final StagedFile stagedFile = Staging.getInstance().create(VFSBackend.resolveFile(path));
+        stagedFile.write(new ByteArrayInputStream("new content".getBytes("UTF-8")));
+
+        // the staging file is not visible
+        Assert.assertEquals(new String(service(new GetHandler(), "GET", path, null).getBody(), "UTF-8"), "existing");
+        final String listing = new String(service(new GetHandler(), "GET", this.folder, null).getBody(), "UTF-8");
+        Assert.assertFalse(listing.contains(Staging.PREFIX), listing);
+
+        stagedFile.commit();
+        stagedFile.discard();
+        Assert.assertEquals(new String(service(new GetHandler(), "GET", path, null).getBody(), "UTF-8"),
+                            "new content");
+    }
+
+    /**
+     * The dead properties of a file survive the replacement of its content.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testPropertiesSurvivePut()
+        throws Exception
+    {
+        final String path = createFile("file.txt", "existing".getBytes("UTF-8"));
+        final Response response = service(new PropPatchHandler(), "PROPPATCH", path,
+                ("<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+                    + "<D:propertyupdate xmlns:D=\"DAV:\" xmlns:Z=\"http://example.com/ns\">"
+                    + "<D:set><D:prop><Z:author>Jane</Z:author></D:prop></D:set>"
+                    + "</D:propertyupdate>").getBytes("UTF-8"));
+        Assert.assertEquals(response.getStatus(), 207);
+        final String name = author(path);
+        Assert.assertNotNull(name, "property not stored");
+
+        Assert.assertEquals(service(this.put, "PUT", path, "new content".getBytes("UTF-8")).getStatus(),
+                            HttpServletResponse.SC_CREATED);
+        Assert.assertEquals(read(path), "new content");
+        Assert.assertEquals(author(path), name, "property lost");
+        Assert.assertTrue(String.valueOf(VFSBackend.resolveFile(path).getContent().getAttribute(name)).contains("Jane"));
+    }
+
+    @Test()
+    public void testSweep()
+        throws Exception
+    {
+        final Staging staging = new Staging(200, Staging.DEFAULT_SPOOL_DIR);
+        final String orphan = createFile(Staging.PREFIX + "orphan", new byte[10]);
+        Thread.sleep(300);
+        final String recent = createFile(Staging.PREFIX + "recent", new byte[10]);
+        final String path = createFile("file.txt", "existing".getBytes("UTF-8"));
+        // staging file of a running upload
+        final StagedFile running = staging.create(VFSBackend.resolveFile(path));
+        running.write(new ByteArrayInputStream(new byte[10]));
+
+        Assert.assertTrue(staging.sweep() >= 1);
+        Assert.assertFalse(VFSBackend.resolveFile(orphan).exists());
+        Assert.assertTrue(VFSBackend.resolveFile(recent).exists());
+        Assert.assertEquals(VFSBackend.resolveFile(this.folder).getChildren().length, 3);
+
+        // staging files of running uploads are never removed
+        Thread.sleep(300);
+        Assert.assertTrue(staging.sweep() >= 1);
+        Assert.assertFalse(VFSBackend.resolveFile(recent).exists());
+        Assert.assertEquals(VFSBackend.resolveFile(this.folder).getChildren().length, 2);
+
+        running.commit();
+        Assert.assertEquals(read(path).length(), 10);
+    }
+
+    /**
+     * The sweep checks only folders in which staging files were created.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testSweepOnlyUsedFolders()
+        throws Exception
+    {
+        final Staging staging = new Staging(0, Staging.DEFAULT_SPOOL_DIR);
+        VFSBackend.resolveFile(this.folder + "/other").createFolder();
+        final String foreign = createFile("other/" + Staging.PREFIX + "foreign", new byte[10]);
+        final String orphan = createFile(Staging.PREFIX + "orphan", new byte[10]);
+        final String path = createFile("file.txt", "existing".getBytes("UTF-8"));
+        Thread.sleep(10);
+
+        Assert.assertEquals(staging.sweep(), 0);
+        Assert.assertTrue(VFSBackend.resolveFile(orphan).exists());
+
+        staging.create(VFSBackend.resolveFile(path)).discard();
+        Assert.assertEquals(staging.sweep(), 1);
+        Assert.assertFalse(VFSBackend.resolveFile(orphan).exists());
+        Assert.assertTrue(VFSBackend.resolveFile(foreign).exists());
+    }
+
+    /**
+     * The commit replaces an existing target without leaving the old
+     * content behind.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testCommitReplacesTarget()
+        throws Exception
+    {
+        final String path = createFile("file.txt", "existing".getBytes("UTF-8"));
+        final StagedFile stagedFile = Staging.getInstance().create(VFSBackend.resolveFile(path));
+        stagedFile.write(new ByteArrayInputStream("new content".getBytes("UTF-8")));
+        stagedFile.commit();
+        Assert.assertEquals(read(path), "new content");
+        Assert.assertEquals(VFSBackend.resolveFile(this.folder).getChildren().length, 1);
+    }
+
+    @Test()
+    public void testSpool()
+        throws Exception
+    {
+        final DefaultFileSystemManager manager = (DefaultFileSystemManager) VFS.getManager();
+        if (!manager.hasProvider(StagingTest.SCHEME_NO_RENAME)) {
+            manager.addProvider(StagingTest.SCHEME_NO_RENAME, new RamFileProvider() {
+                @Override()
+                protected FileSystem doCreateFileSystem(final FileName _name,
+                                                        final FileSystemOptions _options)
+                {
+                    return new RamFileSystem(_name, _options) {
+                        private static final long serialVersionUID = 1L;
+
+                        @Override()
+                        @SuppressWarnings("unchecked")
+                        protected void addCapabilities(final Collection _caps)
+                        {
+                            super.addCapabilities(_caps);
+                            _caps.remove(Capability.RENAME);
+                        }
+                    };
+                }
+            });
+        }
+        final File spoolDir = new File(System.getProperty("java.io.tmpdir"), "webdav4vfs-test-" + System.nanoTime());
+        final FileObject target = manager.resolveFile(StagingTest.SCHEME_NO_RENAME + ":///file.txt");
+        target.getContent().getOutputStream().close();
+
+        final StagedFile stagedFile = new Staging(Staging.DEFAULT_MAX_AGE, spoolDir).create(target);
+        stagedFile.write(new ByteArrayInputStream("spooled".getBytes("UTF-8")));
+        Assert.assertEquals(spoolDir.listFiles().length, 1);
+        Assert.assertEquals(target.getContent().getSize(), 0);
+        stagedFile.commit();
+        Assert.assertEquals(IOUtils.toString(target.getContent().getInputStream()), "spooled");
+        Assert.assertEquals(spoolDir.listFiles().length, 0);
+        spoolDir.delete();
+    }
+
+    /**
+     * Resumable uploads are spooled on file systems without random access
+     * writes.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test()
+    public void testResumableSpool()
+        throws Exception
+    {
+        final DefaultFileSystemManager manager = (DefaultFileSystemManager) VFS.getManager();
+        if (!manager.hasProvider(StagingTest.SCHEME_NO_RANDOM_WRITE)) {
+            manager.addProvider(StagingTest.SCHEME_NO_RANDOM_WRITE, new RamFileProvider() {
+                @Override()
+                protected FileSystem doCreateFileSystem(final FileName _name,
+                                                        final FileSystemOptions _options)
+                {
+                    return new RamFileSystem(_name, _options) {
+                        private static final long serialVersionUID = 1L;
+
+                        @Override()
+                        @SuppressWarnings("unchecked")
+                        protected void addCapabilities(final Collection _caps)
+                        {
+                            super.addCapabilities(_caps);
+                            _caps.remove(Capability.RANDOM_ACCESS_WRITE);
+                        }
+                    };
+                }
+            });
+        }
+        final File spoolDir = new File(System.getProperty("java.io.tmpdir"), "webdav4vfs-test-" + System.nanoTime());
+        final FileObject target = manager.resolveFile(StagingTest.SCHEME_NO_RANDOM_WRITE + ":///file.txt");
+
+        final Staging staging = new Staging(Staging.DEFAULT_MAX_AGE, spoolDir);
+        final StagedFile upload = staging.getUpload(target, true);
+        upload.write(new ByteArrayInputStream("new ".getBytes("UTF-8")), 0);
+        Assert.assertEquals(spoolDir.listFiles().length, 1);
+        Assert.assertEquals(new Staging(Staging.DEFAULT_MAX_AGE, spoolDir).getUpload(target, false).getSize(), 4L);
+        upload.write(new ByteArrayInputStream("content".getBytes("UTF-8")), 4);
+
+        // the spool file is copied next to the target and renamed over it
+        upload.prepare();
+        Assert.assertEquals(stagingFiles(target.getParent()), 1, "spool file not copied");
+        // a rewritten part must be copied again
+        upload.write(new ByteArrayInputStream("CONTENT".getBytes("UTF-8")), 4);
+        upload.commit();
+        Assert.assertFalse(Staging.isReplacedInPlace(target));
+        Assert.assertEquals(IOUtils.toString(target.getContent().getInputStream()), "new CONTENT");
+        Assert.assertEquals(spoolDir.listFiles().length, 0);
+        Assert.assertEquals(stagingFiles(target.getParent()), 0, "copy of the spool file left");
+        spoolDir.delete();
+    }
+
+    /**
+     * The file is removed from the files cache first, because the content of
+     * a file object caches the attributes.
+     *
+     * @param _path     path of a file
+     * @return name of the attribute with the author property or
+     *         <code>null</code>
+     * @throws Exception if the file could not be read
+     */
+    private String author(final String _path)
+        throws Exception
+    {
+        final FileObject cached = VFSBackend.resolveFile(_path);
+        VFS.getManager().getFilesCache().removeFile(cached.getFileSystem(), cached.getName());
+        String ret = null;
+        for (final String name : VFSBackend.resolveFile(_path).getContent().getAttributeNames()) {
+            if (name.endsWith("author")) {
+                ret = name;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param _folder   folder
+     * @return number of staging files in the folder
+     * @throws Exception if the folder could not be read
+     */
+    private int stagingFiles(final FileObject _folder)
+        throws Exception
+    {
+        int ret = 0;
+        _folder.refresh();
+        for (final FileObject child : _folder.getChildren()) {
+            if (Staging.isStagingFile(child)) {
+                ret++;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param _path     path of a file
+     * @return content of the file
+     * @throws Exception if the file could not be read
+     */
+    private String read(final String _path)
+        throws Exception
+    {
+        final InputStream in = VFSBackend.resolveFile(_path).getContent().getInputStream();
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
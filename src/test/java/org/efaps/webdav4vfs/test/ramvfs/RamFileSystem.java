@@ -21,7 +21,6 @@
 
 package org.efaps.webdav4vfs.test.ramvfs;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -39,6 +38,7 @@ import org.apache.commons.vfs.FileSystemOptions;
 import org.apache.commons.vfs.FileType;
 import org.apache.commons.vfs.provider.AbstractFileSystem;
 import org.apache.commons.vfs.provider.local.LocalFileName;
+import org.efaps.webdav4vfs.vfs.FileTransfer;
 
 /**
  * A RAM File System.
@@ -271,12 +271,8 @@ public class RamFileSystem
             try  {
                 final InputStream is = _fo.getContent().getInputStream();
                 try  {
-                    final OutputStream os = new BufferedOutputStream(memFo.getOutputStream(), 512);
-                    int i;
-                    while ((i = is.read()) != -1)  {
-                        os.write(i);
-                    }
-                    os.flush();
+                    final OutputStream os = memFo.getOutputStream();
+                    FileTransfer.copy(is, os);
                     os.close();
                 } finally  {
                     try  {